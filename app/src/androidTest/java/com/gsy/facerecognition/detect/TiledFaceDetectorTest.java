@@ -0,0 +1,104 @@
+package com.gsy.facerecognition.detect;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.PixelBuffer;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * TiledFaceDetector的测试，需要BitmapRegionDecoder，在设备上运行。
+ * 3000x2000的图按1000分块，每个方向重叠1/4，共4x3=12块，另外有一次整图粗识别
+ */
+@RunWith(AndroidJUnit4.class)
+public class TiledFaceDetectorTest {
+    private static final int TILE_COUNT = 12;
+
+    private File mFile;
+    private final AtomicInteger mDetectCount = new AtomicInteger();
+    private final FaceDetectionEngine mEngine = new FaceDetectionEngine() {
+        @Override
+        public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+            mDetectCount.incrementAndGet();
+            return new FaceInfo[0];
+        }
+
+        @Override
+        public String getName() {
+            return "counting";
+        }
+
+        @Override
+        public void release() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "tiled_test.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(3000, 2000, Bitmap.Config.RGB_565);
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void detectsEveryTile() throws Exception {
+        TiledFaceDetector detector = new TiledFaceDetector(mEngine, new BitmapPool(0), 1000, 1);
+        try {
+            FaceInfo[] faces = detector.detect(mFile.getPath(), header(), 5, null);
+            assertNotNull(faces);
+            assertEquals(TILE_COUNT + 1, mDetectCount.get());
+        } finally {
+            detector.release();
+        }
+    }
+
+    @Test
+    public void cancelStopsBeforeNextTile() throws Exception {
+        TiledFaceDetector detector = new TiledFaceDetector(mEngine, new BitmapPool(0), 1000, 1);
+        try {
+            // 粗识别和第一块完成后取消
+            FaceInfo[] faces = detector.detect(mFile.getPath(), header(), 5, new TiledFaceDetector.Cancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return mDetectCount.get() >= 2;
+                }
+            });
+            assertNull(faces);
+            assertTrue(mDetectCount.get() < TILE_COUNT + 1);
+        } finally {
+            detector.release();
+        }
+    }
+
+    private ImageHeaderParser.ImageHeader header() {
+        ImageHeaderParser.ImageHeader header = BitmapUtils.readHeader(mFile.getPath());
+        assertNotNull(header);
+        return header;
+    }
+}
@@ -0,0 +1,93 @@
+package com.gsy.facerecognition.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * BitmapMemoryCache的测试，需要真实的Bitmap，在设备上运行。
+ * 10x10的ARGB_8888占400字节，RGB_565占200字节
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapMemoryCacheTest {
+
+    @Test
+    public void segmentsAreAccountedSeparately() throws Exception {
+        BitmapMemoryCache cache = new BitmapMemoryCache(1000, 400, null);
+        cache.put("argb", argb());
+        cache.put("565a", rgb565());
+        cache.put("565b", rgb565());
+        assertEquals(400, cache.getArgbSegment().getSize());
+        assertEquals(400, cache.getRgb565Segment().getSize());
+        // 565已满，再放入只挤掉565，不影响ARGB
+        cache.put("565c", rgb565());
+        assertEquals(400, cache.getRgb565Segment().getSize());
+        assertEquals(1, cache.getArgbSegment().getCount());
+        assertEquals(1, cache.getEvictionCount());
+        // 超过整个分段上限的bitmap不放入
+        BitmapMemoryCache small = new BitmapMemoryCache(300, 300, null);
+        small.put("argb", argb());
+        assertEquals(0, small.getArgbSegment().getSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyPut() throws Exception {
+        BitmapPool pool = new BitmapPool(10000);
+        BitmapMemoryCache cache = new BitmapMemoryCache(1200, 1000, pool);
+        Bitmap a = argb();
+        cache.put("a", a);
+        cache.put("b", argb());
+        cache.put("c", argb());
+        // 取出后再放回的b变为最近使用
+        cache.put("b", cache.take("b", Bitmap.Config.ARGB_8888));
+        cache.put("d", argb());
+        assertNull(cache.take("a", Bitmap.Config.ARGB_8888));
+        assertNotNull(cache.take("b", Bitmap.Config.ARGB_8888));
+        // 淘汰的bitmap归还到对象池
+        assertSame(a, pool.getDirty(10, 10, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void takeCountsHitsAndMisses() throws Exception {
+        BitmapMemoryCache cache = new BitmapMemoryCache(1000, 1000, null);
+        Bitmap bitmap = rgb565();
+        cache.put("a", bitmap);
+        assertNull(cache.take("a", Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, cache.take("a", Bitmap.Config.RGB_565));
+        // 取出后归调用者所有，不再留在缓存中
+        assertNull(cache.take("a", Bitmap.Config.RGB_565));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getRgb565Segment().getSize());
+    }
+
+    @Test
+    public void trimMemoryShrinksByLevel() throws Exception {
+        BitmapMemoryCache cache = new BitmapMemoryCache(1600, 800, null);
+        for (int i = 0; i < 4; i++) {
+            cache.put("argb" + i, argb());
+            cache.put("565" + i, rgb565());
+        }
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(1600, cache.getArgbSegment().getSize());
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(800, cache.getArgbSegment().getSize());
+        assertEquals(400, cache.getRgb565Segment().getSize());
+        cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertEquals(0, cache.getArgbSegment().getSize());
+        assertEquals(0, cache.getRgb565Segment().getSize());
+    }
+
+    private static Bitmap argb() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+
+    private static Bitmap rgb565() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565);
+    }
+}
@@ -2,26 +2,90 @@ package com.gsy.facerecognition;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
-import android.graphics.PointF;
-import android.media.FaceDetector;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Gravity;
 import android.widget.FrameLayout;
 import android.widget.Toast;
 
+import com.gsy.facerecognition.detect.DetectResult;
+import com.gsy.facerecognition.detect.FaceDetectPipeline;
+import com.gsy.facerecognition.detect.FaceDetectorPool;
+import com.gsy.facerecognition.detect.FaceResultCache;
+import com.gsy.facerecognition.detect.TiledFaceDetector;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngines;
+import com.gsy.facerecognition.index.GalleryIndexer;
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.metrics.MetricsDumper;
 import com.gsy.facerecognition.utils.BitmapUtils;
 import com.gsy.facerecognition.view.MyImageView;
 
+import java.io.File;
+
 public class MainActivity extends Activity {
+    private static final String METRICS_FILE = "metrics.txt";
 
     private MyImageView mMyImageView;
+    private FaceDetectionEngine mDetectionEngine;                    // 识别引擎，后台按设备换成更快的一个
+    private FaceDetectPipeline mDetectPipeline;
+    private TiledFaceDetector mTiledDetector;                        // 大图的分块识别，合影中小的脸不会丢失
+    private Bitmap mShownBitmap;                                     // 正在显示的bitmap，来自BitmapPool，替换后需要归还
+    private String mShownBitmapKey;                                  // mShownBitmap在内存缓存中的key，不能缓存时为null
+    private String mShownPath;                                       // 正在显示的图片路径，同一张图片替换时保持缩放和位置
+    private GalleryIndexer mGalleryIndexer;                          // 整个图库的后台索引，屏幕关闭时才运行
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mDetectionEngine = FaceDetectionEngines.createDefault(this);
+        mDetectPipeline = new FaceDetectPipeline(mDetectionEngine, new FaceResultCache(getCacheDir()));
+        mTiledDetector = new TiledFaceDetector(mDetectionEngine, BitmapUtils.getBitmapPool());
+        mDetectPipeline.setTiledDetector(mTiledDetector);
         initView();
         initPhoto();
+        mGalleryIndexer = new GalleryIndexer(this, mDetectionEngine, BitmapUtils.getBitmapPool());
+        mGalleryIndexer.start();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 运行时打开收集: adb shell setprop log.tag.FaceMetrics DEBUG，再回到这个页面
+        Metrics.setEnabled(Log.isLoggable(MetricsDumper.TAG, Log.DEBUG));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (Metrics.isEnabled()) {
+            MetricsDumper.dumpToLogcat();
+            MetricsDumper.dumpToFile(new File(getFilesDir(), METRICS_FILE));
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        mGalleryIndexer.release();
+        mDetectPipeline.release();
+        mTiledDetector.release();
+        mDetectionEngine.release();
+        mMyImageView.setImageDrawable(null);
+        BitmapUtils.recycleBitmap(mShownBitmapKey, mShownBitmap, BitmapUtils.getBitmapPool());
+        mShownBitmap = null;
+        mShownBitmapKey = null;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapUtils.getMemoryCache().trimMemory(level);
+        BitmapUtils.getBitmapPool().trimMemory(level);
+        BitmapUtils.getMemoryGovernor().trimMemory(level);
+        FaceDetectorPool.getInstance().trimMemory(level);
+        mMyImageView.trimMemory(level);
     }
 
     private void initView() {
@@ -30,41 +94,64 @@ public class MainActivity extends Activity {
 
     private void initPhoto() {
         String picPath = "/storage/emulated/0/Tencent/QQ_Images/-663c6adb1540c36f.jpg";
-        Bitmap srcBitmap = BitmapUtils.loadBitmap(picPath, 1000, 1000, true);
-        if (srcBitmap == null) {
-            Toast.makeText(getApplicationContext(), "处理图片失败", Toast.LENGTH_SHORT).show();
-        } else {
-            // 图片的宽必须为偶数，不然系统无法进行人脸识别
-            if (srcBitmap.getWidth() % 2 != 0) {
-                srcBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth() - 1
-                        , srcBitmap.getHeight());
+        // 最多的人脸数
+        int maxCount = 50;
+        // 显示图单独按更大的尺寸解码，放大后依然清晰，识别结果按矫正系数换算到显示图上
+        int displayMaxSide = 2000;
+        // 解码和识别都在后台线程完成，识别比较耗时间，大概一秒左右，跟bitmap的大小有关(1000左右最佳，识别结果准确并且时间较少)
+        mDetectPipeline.submit(picPath, displayMaxSide, 1000, maxCount, new FaceDetectPipeline.OnDetectListener() {
+            @Override
+            public void onCachedFaces(String picPath, FaceResultCache.Record record) {
+                // 命中缓存，图片解码完成之前先显示人脸的位置
+                setPhotoParams();
+                mMyImageView.setFacesPreview(record.getWidth(), record.getHeight(), record.getFaces(), 1f);
+                mShownPath = picPath;
+            }
+
+            @Override
+            public void onPreview(DetectResult preview) {
+                // 先显示预览图和粗识别的结果，显示图解码和识别完成后再无缝替换
+                showPhoto(preview);
+            }
+
+            @Override
+            public void onDetectSuccess(DetectResult result) {
+                showPhoto(result);
             }
-            // 最多的人脸数
-            int maxCount = 50;
-            FaceDetector.Face[] faces = new FaceDetector.Face[maxCount];
-            FaceDetector faceDetector = new FaceDetector(srcBitmap.getWidth(), srcBitmap.getHeight(), maxCount);
-            // 这一步比较耗时间，大概一秒左右，跟bitmap的大小有关(1000左右最佳，识别结果准确并且时间较少)，建议使用EventBus异步处理
-            int faceCount = faceDetector.findFaces(srcBitmap, faces);
-            PointF pointF = new PointF();
-            // 过滤原本就不完整的脸
-            for (int i = 0; i < faceCount; i++) {
-                float eyesDistance = faces[i].eyesDistance();
-                faces[i].getMidPoint(pointF);
-                if (pointF.x < eyesDistance                                              // 左边超出
-                        || pointF.y < eyesDistance * 1.8f                                // 上边超出
-                        || srcBitmap.getWidth() - pointF.x < eyesDistance                // 右边超出
-                        || srcBitmap.getHeight() - pointF.y < eyesDistance * 1.8f) {     // 下边超出
-                    faces[i] = null;
-                }
+
+            @Override
+            public void onDetectFailed(String picPath) {
+                Toast.makeText(getApplicationContext(), "处理图片失败", Toast.LENGTH_SHORT).show();
             }
-            // 必须设置LayoutParams，这样在自定义ImageView中使用getLayoutParams才能得到正确的params
-            FrameLayout.LayoutParams photoParams = new FrameLayout.LayoutParams(mMyImageView.getLayoutParams());
-            photoParams.gravity = Gravity.CENTER;
-            photoParams.width = 1000;
-            photoParams.height = 1000;
-            mMyImageView.setLayoutParams(photoParams);
-            mMyImageView.setImageBitmap(srcBitmap, faces, 1f);
+        });
+    }
+
+    private void showPhoto(DetectResult result) {
+        if (result.getPicPath().equals(mShownPath)) {
+            mMyImageView.replaceImageBitmap(result.getBitmap(), result.getOrientation(), result.getFaces()
+                    , result.getAdjustScale());
+        } else {
+            setPhotoParams();
+            mMyImageView.setImageBitmap(result.getBitmap(), result.getOrientation(), result.getFaces()
+                    , result.getAdjustScale());
+            mShownPath = result.getPicPath();
         }
+        // 放大到显示图不够清晰时按需解码原图的分块
+        mMyImageView.setTileSource(result.getPicPath(), result.getSourceWidth(), result.getSourceHeight()
+                , BitmapUtils.getBitmapPool());
+        // 之前显示的bitmap已经不再使用，放入内存缓存或者归还到对象池
+        BitmapUtils.recycleBitmap(mShownBitmapKey, mShownBitmap, BitmapUtils.getBitmapPool());
+        mShownBitmap = result.getBitmap();
+        mShownBitmapKey = result.getBitmapCacheKey();
+    }
+
+    private void setPhotoParams() {
+        // 必须设置LayoutParams，这样在自定义ImageView中使用getLayoutParams才能得到正确的params
+        FrameLayout.LayoutParams photoParams = new FrameLayout.LayoutParams(mMyImageView.getLayoutParams());
+        photoParams.gravity = Gravity.CENTER;
+        photoParams.width = 1000;
+        photoParams.height = 1000;
+        mMyImageView.setLayoutParams(photoParams);
     }
 
 }
@@ -0,0 +1,116 @@
+package com.gsy.facerecognition.detect;
+
+import android.graphics.Bitmap;
+
+/**
+ * 一次人脸识别请求的结果，包含显示用的bitmap、识别结果以及每个阶段的耗时
+ */
+public class DetectResult {
+    private final String mPicPath;
+    private final Bitmap mBitmap;                                   // 显示用的bitmap，保持图片数据原来的方向
+    private final int mOrientation;                                 // mBitmap的EXIF方向，显示时需要摆正
+    private final FaceInfo[] mFaces;                                // 识别结果，摆正后的坐标，已经去掉不完整的脸
+    private final float mAdjustScale;                               // 识别bitmap相对于显示bitmap的矫正系数
+    private final long[] mStageNanos;                               // 每个阶段的耗时，单位纳秒
+    private final boolean mIsFromCache;                             // 识别结果是否来自磁盘缓存
+    private int mSourceWidth, mSourceHeight;                        // 原图数据的宽高，显示图的像素已经旋转时为0
+    private String mBitmapCacheKey;                                 // 显示图在内存缓存中的key，不能缓存时为null
+
+    DetectResult(String picPath, Bitmap bitmap, int orientation, FaceInfo[] faces, float adjustScale, long[] stageNanos
+            , boolean isFromCache) {
+        mPicPath = picPath;
+        mBitmap = bitmap;
+        mOrientation = orientation;
+        mFaces = faces;
+        mAdjustScale = adjustScale;
+        mStageNanos = stageNanos;
+        mIsFromCache = isFromCache;
+    }
+
+    public String getPicPath() {
+        return mPicPath;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public FaceInfo[] getFaces() {
+        return mFaces;
+    }
+
+    public float getAdjustScale() {
+        return mAdjustScale;
+    }
+
+    public boolean isFromCache() {
+        return mIsFromCache;
+    }
+
+    /**
+     * @return 原图数据的宽，没有摆正，用来放大时分块解码原图；显示图的像素已经旋转时为0
+     */
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    void setSourceSize(int sourceWidth, int sourceHeight) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+    }
+
+    /**
+     * @return 显示图用完后交给BitmapUtils.recycleBitmap的key，不能缓存时为null
+     */
+    public String getBitmapCacheKey() {
+        return mBitmapCacheKey;
+    }
+
+    void setBitmapCacheKey(String bitmapCacheKey) {
+        mBitmapCacheKey = bitmapCacheKey;
+    }
+
+    /**
+     * 获取某个阶段的耗时
+     *
+     * @param stage 阶段，取值为FaceDetectPipeline中的STAGE_XXX
+     * @return 耗时，单位毫秒
+     */
+    public float getStageTimeMs(int stage) {
+        return mStageNanos[stage] / 1000000f;
+    }
+
+    /**
+     * @return 所有阶段的总耗时，单位毫秒
+     */
+    public float getTotalTimeMs() {
+        long total = 0;
+        for (long nanos : mStageNanos) {
+            total += nanos;
+        }
+        return total / 1000000f;
+    }
+
+    /**
+     * @return 每个阶段耗时的描述，用于打印日志
+     */
+    public String toTimingString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mStageNanos.length; i++) {
+            builder.append(FaceDetectPipeline.getStageName(i))
+                    .append('=')
+                    .append(String.format("%.1f", getStageTimeMs(i)))
+                    .append("ms ");
+        }
+        builder.append("total=").append(String.format("%.1f", getTotalTimeMs())).append("ms");
+        return builder.toString();
+    }
+}
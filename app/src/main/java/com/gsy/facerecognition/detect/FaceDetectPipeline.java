@@ -0,0 +1,496 @@
+package com.gsy.facerecognition.detect;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.engine.AndroidFaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngines;
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.DetectionFrame;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步的人脸识别流水线，所有阶段都在后台线程执行：
+ * 解码 -> 方向矫正 -> 识别图准备(宽为偶数) -> findFaces -> 过滤不完整的脸
+ * 默认不旋转显示的bitmap，方向矫正在坐标空间中完成，见setOrientationInCoordinateSpace。
+ * 结果在主线程回调。新的请求提交后，旧的请求会被取消，旧请求在下一个阶段开始前直接丢弃。
+ * 设置了FaceResultCache时，命中缓存会先回调缓存的识别结果，然后只解码图片，不再进行识别。
+ * 解码、旋转和裁剪都使用BitmapPool中的bitmap，结果中的bitmap不再使用时需要归还到BitmapPool
+ */
+public class FaceDetectPipeline {
+    private static final String TAG = "FaceDetectPipeline";
+    public static final int STAGE_DECODE = 0;                       // 解码
+    public static final int STAGE_ORIENTATION = 1;                  // 方向矫正
+    public static final int STAGE_PREPARE = 2;                      // 识别图准备
+    public static final int STAGE_FIND_FACES = 3;                   // 人脸识别
+    public static final int STAGE_FILTER = 4;                       // 过滤不完整的脸
+    public static final int STAGE_COUNT = 5;
+    private static final int TILED_SAMPLE_SIZE = 0;                // 分块识别时缓存key中的inSampleSize
+    public static final int DEFAULT_PREVIEW_MAX_SIDE = 320;         // 预览图的最大宽高
+    private static final String[] STAGE_NAMES = {"decode", "orientation", "prepare", "findFaces", "filter"};
+
+    private final ExecutorService mExecutor;
+    private final FaceDetectionEngine mEngine;
+    private final FaceResultCache mResultCache;
+    private final BitmapPool mBitmapPool = BitmapUtils.getBitmapPool();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mGeneration = new AtomicInteger();  // 每次提交新请求加一，用来判断请求是否过期
+    private Future<?> mCurrentFuture;
+    private volatile boolean mIsReleased;
+    private volatile boolean mIsOrientationInCoordinateSpace = true;
+    private volatile TiledFaceDetector mTiledDetector;
+    private volatile int mPreviewMaxSide = DEFAULT_PREVIEW_MAX_SIDE;
+
+    /**
+     * 识别结果回调，均在主线程调用，被取消的请求不会回调
+     */
+    public interface OnDetectListener {
+        /**
+         * 命中识别结果的缓存，此时图片还没有解码，可以先显示人脸的位置
+         */
+        void onCachedFaces(String picPath, FaceResultCache.Record record);
+
+        /**
+         * 预览图和在预览图上粗识别的结果，在onDetectSuccess之前回调，之后用MyImageView.replaceImageBitmap替换。
+         * 预览图和显示图一样用完归还到对象池
+         */
+        void onPreview(DetectResult preview);
+
+        void onDetectSuccess(DetectResult result);
+
+        void onDetectFailed(String picPath);
+    }
+
+    public FaceDetectPipeline() {
+        this(FaceDetectorPool.getInstance(), null);
+    }
+
+    /**
+     * @param detectorPool FaceDetector的对象池，同样大小的图片复用detector
+     * @param resultCache  识别结果的磁盘缓存，为null时不使用缓存
+     */
+    public FaceDetectPipeline(FaceDetectorPool detectorPool, FaceResultCache resultCache) {
+        this(new AndroidFaceDetectionEngine(detectorPool, BitmapUtils.getBitmapPool()), resultCache);
+    }
+
+    /**
+     * @param engine      识别引擎，由调用者负责释放
+     * @param resultCache 识别结果的磁盘缓存，为null时不使用缓存
+     */
+    public FaceDetectPipeline(FaceDetectionEngine engine, FaceResultCache resultCache) {
+        mEngine = engine;
+        mResultCache = resultCache;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 设置方向的处理方式，默认为true。
+     * true时不旋转显示的bitmap，结果中带有方向信息，由MyImageView在绘制时摆正，识别图的摆正和裁剪合并为一次绘制，
+     * 方向为1或2时直接在解码的bitmap上识别；false时先旋转像素得到摆正的bitmap，再裁剪和识别，结果的方向总是1
+     */
+    public void setOrientationInCoordinateSpace(boolean isOrientationInCoordinateSpace) {
+        mIsOrientationInCoordinateSpace = isOrientationInCoordinateSpace;
+    }
+
+    /**
+     * 设置大图的分块识别，为null时不分块。图片的长边是识别大小的两倍以上时分块识别，只在方向在坐标空间中处理时有效。
+     * 分块识别器的线程池由调用者负责释放
+     */
+    public void setTiledDetector(TiledFaceDetector tiledDetector) {
+        mTiledDetector = tiledDetector;
+    }
+
+    /**
+     * 设置预览图的最大宽高，为0时不生成预览图。EXIF中有宽高比一致的缩略图时直接使用缩略图
+     */
+    public void setPreviewMaxSide(int previewMaxSide) {
+        mPreviewMaxSide = previewMaxSide;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * 提交一次识别请求，显示图和识别图使用同样的最大宽高，之前未完成的请求会被取消
+     *
+     * @param picPath  图片路径
+     * @param maxSide  识别使用的bitmap的最大宽高，1000左右最佳
+     * @param maxCount 最多的人脸数
+     * @param listener 结果回调
+     */
+    public void submit(String picPath, int maxSide, int maxCount, OnDetectListener listener) {
+        submit(picPath, maxSide, maxSide, maxCount, listener);
+    }
+
+    /**
+     * 提交一次识别请求，显示图和识别图分别解码，之前未完成的请求会被取消。
+     * 两者的inSampleSize相同时只解码一次，识别结果通过DetectResult.getAdjustScale换算到显示图上
+     *
+     * @param picPath        图片路径
+     * @param displayMaxSide 显示使用的bitmap的最大宽高，旋转像素时不起作用
+     * @param detectMaxSide  识别使用的bitmap的最大宽高，1000左右最佳
+     * @param maxCount       最多的人脸数
+     * @param listener       结果回调
+     */
+    public synchronized void submit(final String picPath, final int displayMaxSide, final int detectMaxSide
+            , final int maxCount, final OnDetectListener listener) {
+        if (mIsReleased) {
+            return;
+        }
+        final int generation = mGeneration.incrementAndGet();
+        final long submitTime = System.nanoTime();
+        if (mCurrentFuture != null) {
+            mCurrentFuture.cancel(false);
+        }
+        mCurrentFuture = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final DetectResult result = detect(generation, submitTime, picPath, displayMaxSide, detectMaxSide
+                        , maxCount, listener);
+                if (isCancelled(generation)) {
+                    recycle(result);
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // 在主线程再检查一次，防止在切换线程的过程中被取消
+                        if (isCancelled(generation)) {
+                            recycle(result);
+                        } else if (result == null) {
+                            listener.onDetectFailed(picPath);
+                        } else {
+                            listener.onDetectSuccess(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 取消当前的请求
+     */
+    public synchronized void cancel() {
+        mGeneration.incrementAndGet();
+        if (mCurrentFuture != null) {
+            mCurrentFuture.cancel(false);
+            mCurrentFuture = null;
+        }
+    }
+
+    /**
+     * 释放流水线，释放后不能再提交请求，一般在Activity的onDestroy中调用
+     */
+    public synchronized void release() {
+        mIsReleased = true;
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private boolean isCancelled(int generation) {
+        return mIsReleased || generation != mGeneration.get();
+    }
+
+    /**
+     * 按阶段执行识别，每个阶段开始前检查请求是否已经被取消
+     *
+     * @return 识别结果，失败或者被取消时为null
+     */
+    private DetectResult detect(final int generation, long submitTime, final String picPath, int displayMaxSide
+            , int detectMaxSide, int maxCount, final OnDetectListener listener) {
+        long[] stageNanos = new long[STAGE_COUNT];
+        long start = System.nanoTime();
+        // 只读一次文件头得到宽高和方向
+        ImageHeaderParser.ImageHeader header = BitmapUtils.readHeader(picPath);
+        if (header == null) {
+            return null;
+        }
+        int detectSampleSize = BitmapUtils.computeSampleSize(header, detectMaxSide, detectMaxSide);
+        // 旋转像素时显示图就是识别图，只能使用同一次解码
+        int displaySampleSize = mIsOrientationInCoordinateSpace
+                ? BitmapUtils.computeSampleSize(header, displayMaxSide, displayMaxSide) : detectSampleSize;
+        boolean isSharedDecode = displaySampleSize == detectSampleSize;
+        final TiledFaceDetector tiledDetector = mTiledDetector;
+        boolean isTiled = tiledDetector != null && mIsOrientationInCoordinateSpace
+                && TiledFaceDetector.isWorthTiling(header, detectMaxSide);
+        String cacheKey = null;
+        FaceResultCache.Record cachedRecord = null;
+        if (mResultCache != null) {
+            cacheKey = FaceResultCache.buildKey(new File(picPath), detectMaxSide, maxCount
+                    , isTiled ? TILED_SAMPLE_SIZE : detectSampleSize);
+            cachedRecord = mResultCache.get(cacheKey);
+            if (cachedRecord != null) {
+                final FaceResultCache.Record record = cachedRecord;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled(generation)) {
+                            listener.onCachedFaces(picPath, record);
+                        }
+                    }
+                });
+            }
+        }
+        int previewMaxSide = mPreviewMaxSide;
+        if (previewMaxSide > 0) {
+            detectPreview(generation, submitTime, picPath, header, previewMaxSide, maxCount, cachedRecord, listener);
+        }
+        // 显示图，和识别图共用一次解码时使用系统人脸识别只认的565格式。
+        // 像素不旋转时显示图就是解码结果，用完后放入内存缓存，再次打开同一张图片时不用解码
+        String bitmapCacheKey = mIsOrientationInCoordinateSpace
+                ? BitmapUtils.buildCacheKey(picPath, displaySampleSize, isSharedDecode) : null;
+        Bitmap bitmap = bitmapCacheKey != null ? BitmapUtils.takeCachedBitmap(bitmapCacheKey, isSharedDecode) : null;
+        if (bitmap == null) {
+            bitmap = BitmapUtils.decodeBitmap(picPath, header, displaySampleSize, isSharedDecode, mBitmapPool);
+            if (bitmap != null && !BitmapUtils.isRequestedQuality(header, displaySampleSize, isSharedDecode
+                    , bitmap)) {
+                bitmapCacheKey = null;
+            }
+        }
+        stageNanos[STAGE_DECODE] = System.nanoTime() - start;
+        if (bitmap == null || isCancelled(generation)) {
+            recycle(bitmap, bitmapCacheKey);
+            return null;
+        }
+        int orientation = header.getOrientation();
+        if (!mIsOrientationInCoordinateSpace) {
+            // 方向矫正
+            bitmapCacheKey = null;
+            start = System.nanoTime();
+            bitmap = BitmapUtils.decodeBitmapByOrientation(bitmap, orientation, true, mBitmapPool);
+            orientation = ExifOrientation.NORMAL;
+            stageNanos[STAGE_ORIENTATION] = System.nanoTime() - start;
+            if (isCancelled(generation)) {
+                recycle(bitmap, bitmapCacheKey);
+                return null;
+            }
+            // 图片的宽必须为偶数，不然系统无法进行人脸识别
+            start = System.nanoTime();
+            bitmap = BitmapUtils.cropToEvenWidth(bitmap, mBitmapPool);
+            stageNanos[STAGE_PREPARE] = System.nanoTime() - start;
+        }
+        // 显示图摆正后的宽，用来计算识别结果到显示图的矫正系数
+        int displayWidth = ExifOrientation.uprightWidth(orientation, bitmap.getWidth(), bitmap.getHeight());
+        if (cachedRecord != null) {
+            DetectResult result = new DetectResult(picPath, bitmap, orientation, cachedRecord.getFaces()
+                    , displayWidth * 1f / cachedRecord.getWidth(), stageNanos, true);
+            setSourceSize(result, header);
+            result.setBitmapCacheKey(bitmapCacheKey);
+            Log.d(TAG, picPath + " cached faceCount=" + cachedRecord.getFaces().length + " "
+                    + result.toTimingString());
+            return result;
+        }
+        if (isTiled) {
+            return detectTiled(generation, picPath, header, bitmap, bitmapCacheKey, orientation, displayWidth
+                    , maxCount, cacheKey, stageNanos, tiledDetector);
+        }
+        // 识别图：摆正、RGB_565、宽为偶数，显示图没有摆正时也在坐标空间中处理方向
+        start = System.nanoTime();
+        DetectionFrame frame;
+        if (isSharedDecode) {
+            frame = BitmapUtils.createDetectionFrame(bitmap, mIsOrientationInCoordinateSpace ? header
+                    : new ImageHeaderParser.ImageHeader(header.getType(), bitmap.getWidth(), bitmap.getHeight()
+                    , ExifOrientation.NORMAL, -1, 0), mBitmapPool);
+        } else {
+            frame = BitmapUtils.decodeDetectionFrame(picPath, header, detectMaxSide, mBitmapPool);
+        }
+        stageNanos[STAGE_PREPARE] += System.nanoTime() - start;
+        if (frame == null || isCancelled(generation)) {
+            if (frame != null) {
+                frame.release(mBitmapPool);
+            }
+            recycle(bitmap, bitmapCacheKey);
+            return null;
+        }
+        // 这一步比较耗时间，大概一秒左右，跟bitmap的大小有关(1000左右最佳，识别结果准确并且时间较少)
+        start = System.nanoTime();
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        FaceInfo[] faceInfos;
+        try {
+            faceInfos = FaceDetectionEngines.detect(mEngine, frame.getBitmap(), maxCount
+                    , BitmapUtils.getFramePool());
+        } finally {
+            frame.release(mBitmapPool);
+        }
+        int faceCount = faceInfos.length;
+        stageNanos[STAGE_FIND_FACES] = System.nanoTime() - start;
+        Metrics.record(Metrics.STAGE_FIND_FACES, stageNanos[STAGE_FIND_FACES]);
+        if (isCancelled(generation)) {
+            recycle(bitmap, bitmapCacheKey);
+            return null;
+        }
+        // 过滤原本就不完整的脸
+        start = System.nanoTime();
+        faceInfos = FaceFilter.filterIncompleteFaces(faceInfos, frameWidth, frameHeight);
+        if (frame.getUprightTransform() != null) {
+            // 识别图没有摆正(只有左右镜像)，结果映射到摆正后的坐标
+            faceInfos = FaceFilter.mapFaces(faceInfos, frame.getUprightTransform());
+        }
+        stageNanos[STAGE_FILTER] = System.nanoTime() - start;
+        Metrics.record(Metrics.STAGE_FILTER, stageNanos[STAGE_FILTER]);
+        if (mResultCache != null) {
+            // 缓存中保存识别图摆正后的宽高，命中时据此计算到显示图的矫正系数
+            mResultCache.put(cacheKey, new FaceResultCache.Record(frame.getDecodedWidth(), frame.getDecodedHeight()
+                    , faceInfos));
+        }
+        DetectResult result = new DetectResult(picPath, bitmap, orientation, faceInfos, frame.getScaleTo(displayWidth)
+                , stageNanos, false);
+        setSourceSize(result, header);
+        result.setBitmapCacheKey(bitmapCacheKey);
+        Log.d(TAG, picPath + " orientation=" + orientation + " faceCount=" + faceCount + " "
+                + result.toTimingString());
+        return result;
+    }
+
+    /**
+     * 解码预览图并在上面粗识别，交给主线程先显示。命中缓存时直接使用缓存的结果，不再识别
+     */
+    private void detectPreview(final int generation, final long submitTime, final String picPath
+            , ImageHeaderParser.ImageHeader header, int previewMaxSide, int maxCount
+            , FaceResultCache.Record cachedRecord, final OnDetectListener listener) {
+        long[] stageNanos = new long[STAGE_COUNT];
+        long start = System.nanoTime();
+        Bitmap preview = BitmapUtils.decodePreview(picPath, header, previewMaxSide, mBitmapPool);
+        stageNanos[STAGE_DECODE] = System.nanoTime() - start;
+        if (preview == null || isCancelled(generation)) {
+            recycle(preview);
+            return;
+        }
+        // 预览图总是保持原图的方向，绘制时摆正
+        int orientation = header.getOrientation();
+        int previewWidth = ExifOrientation.uprightWidth(orientation, preview.getWidth(), preview.getHeight());
+        FaceInfo[] faces;
+        float adjustScale;
+        if (cachedRecord != null) {
+            faces = cachedRecord.getFaces();
+            adjustScale = previewWidth * 1f / cachedRecord.getWidth();
+        } else {
+            // 预览图很小，只能识别出比较大的脸，完整的结果等正式识别
+            start = System.nanoTime();
+            DetectionFrame frame = BitmapUtils.createDetectionFrame(preview, header, mBitmapPool);
+            stageNanos[STAGE_PREPARE] = System.nanoTime() - start;
+            start = System.nanoTime();
+            try {
+                faces = FaceDetectionEngines.detect(mEngine, frame.getBitmap(), maxCount
+                        , BitmapUtils.getFramePool());
+                faces = FaceFilter.filterIncompleteFaces(faces, frame.getWidth(), frame.getHeight());
+            } finally {
+                frame.release(mBitmapPool);
+            }
+            if (frame.getUprightTransform() != null) {
+                faces = FaceFilter.mapFaces(faces, frame.getUprightTransform());
+            }
+            stageNanos[STAGE_FIND_FACES] = System.nanoTime() - start;
+            adjustScale = frame.getScaleTo(previewWidth);
+        }
+        final DetectResult result = new DetectResult(picPath, preview, orientation, faces, adjustScale, stageNanos
+                , cachedRecord != null);
+        Log.d(TAG, picPath + " preview " + preview.getWidth() + "x" + preview.getHeight() + " faceCount="
+                + faces.length + " " + result.toTimingString());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled(generation)) {
+                    recycle(result);
+                    return;
+                }
+                Metrics.record(Metrics.STAGE_FIRST_PIXEL, System.nanoTime() - submitTime);
+                listener.onPreview(result);
+            }
+        });
+    }
+
+    /**
+     * 大图分块识别，结果是原图摆正后的坐标，过滤和合并已经在TiledFaceDetector中完成
+     */
+    private DetectResult detectTiled(final int generation, String picPath, ImageHeaderParser.ImageHeader header
+            , Bitmap bitmap, String bitmapCacheKey, int orientation, int displayWidth, int maxCount, String cacheKey
+            , long[] stageNanos, TiledFaceDetector tiledDetector) {
+        long start = System.nanoTime();
+        // 切换图片或者释放后不再开始新的块
+        FaceInfo[] faceInfos = tiledDetector.detect(picPath, header, maxCount, new TiledFaceDetector.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return FaceDetectPipeline.this.isCancelled(generation);
+            }
+        });
+        stageNanos[STAGE_FIND_FACES] = System.nanoTime() - start;
+        // 分块识别的过滤和合并在TiledFaceDetector中完成，一起记为findFaces
+        Metrics.record(Metrics.STAGE_FIND_FACES, stageNanos[STAGE_FIND_FACES]);
+        if (faceInfos == null || isCancelled(generation)) {
+            recycle(bitmap, bitmapCacheKey);
+            return null;
+        }
+        int sourceWidth = ExifOrientation.uprightWidth(orientation, header.getWidth(), header.getHeight());
+        int sourceHeight = ExifOrientation.uprightHeight(orientation, header.getWidth(), header.getHeight());
+        if (mResultCache != null) {
+            mResultCache.put(cacheKey, new FaceResultCache.Record(sourceWidth, sourceHeight, faceInfos));
+        }
+        DetectResult result = new DetectResult(picPath, bitmap, orientation, faceInfos
+                , displayWidth * 1f / sourceWidth, stageNanos, false);
+        setSourceSize(result, header);
+        result.setBitmapCacheKey(bitmapCacheKey);
+        Log.d(TAG, picPath + " tiled orientation=" + orientation + " faceCount=" + faceInfos.length + " "
+                + result.toTimingString());
+        return result;
+    }
+
+    /**
+     * 显示图保持原图的方向时记录原图的宽高，放大时可以分块解码原图；像素已经旋转时方向不同，不记录
+     */
+    private static void setSourceSize(DetectResult result, ImageHeaderParser.ImageHeader header) {
+        if (result.getOrientation() == header.getOrientation()) {
+            result.setSourceSize(header.getWidth(), header.getHeight());
+        }
+    }
+
+    private void recycle(DetectResult result) {
+        if (result != null) {
+            recycle(result.getBitmap(), result.getBitmapCacheKey());
+        }
+    }
+
+    /**
+     * 被丢弃的显示图放入内存缓存，cacheKey为null时归还到对象池
+     */
+    private void recycle(Bitmap bitmap, String cacheKey) {
+        BitmapUtils.recycleBitmap(cacheKey, bitmap, mBitmapPool);
+    }
+
+    /**
+     * 被丢弃的bitmap归还到对象池
+     */
+    private void recycle(Bitmap bitmap) {
+        mBitmapPool.put(bitmap);
+    }
+}
@@ -0,0 +1,163 @@
+package com.gsy.facerecognition.detect;
+
+import android.content.ComponentCallbacks2;
+import android.media.FaceDetector;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FaceDetector的对象池，FaceDetector的构造函数会按照图片的宽高申请native内存，
+ * 同样大小的图片复用同一个FaceDetector可以省掉这部分开销。
+ * 以(宽, 高, 最大人脸数)为key，空闲的detector总数有上限，超出时淘汰最久没有使用的key下的detector。
+ * 借出和归还都是线程安全的，同一个detector同一时间只会借给一个线程
+ */
+public class FaceDetectorPool {
+    private static final int DEFAULT_MAX_IDLE = 4;                  // 默认最多缓存的空闲detector数量
+    private static FaceDetectorPool sInstance;
+
+    private final int mMaxIdle;
+    // accessOrder为true，遍历的顺序即为最久未使用到最近使用
+    private final LinkedHashMap<Key, ArrayDeque<FaceDetector>> mIdleDetectors =
+            new LinkedHashMap<Key, ArrayDeque<FaceDetector>>(8, 0.75f, true);
+    private int mIdleCount;
+    private int mCreateCount;                                       // 新建detector的次数
+    private int mReuseCount;                                        // 复用detector的次数
+
+    public static synchronized FaceDetectorPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new FaceDetectorPool(DEFAULT_MAX_IDLE);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxIdle 最多缓存的空闲detector数量，一般为工作线程数
+     */
+    public FaceDetectorPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * 借出一个指定大小的detector，没有空闲的则新建一个，用完后必须调用release归还
+     *
+     * @param width    图片的宽，必须为偶数
+     * @param height   图片的高
+     * @param maxFaces 最多的人脸数
+     * @return detector
+     */
+    public FaceDetector acquire(int width, int height, int maxFaces) {
+        Key key = new Key(width, height, maxFaces);
+        synchronized (this) {
+            ArrayDeque<FaceDetector> detectors = mIdleDetectors.get(key);
+            if (detectors != null && !detectors.isEmpty()) {
+                mIdleCount--;
+                mReuseCount++;
+                FaceDetector detector = detectors.pop();
+                if (detectors.isEmpty()) {
+                    mIdleDetectors.remove(key);
+                }
+                return detector;
+            }
+            mCreateCount++;
+        }
+        // 构造函数会申请内存，放在锁外面执行
+        return new FaceDetector(width, height, maxFaces);
+    }
+
+    /**
+     * 归还detector，参数必须和acquire时一致
+     */
+    public void release(FaceDetector detector, int width, int height, int maxFaces) {
+        if (detector == null) {
+            return;
+        }
+        Key key = new Key(width, height, maxFaces);
+        synchronized (this) {
+            ArrayDeque<FaceDetector> detectors = mIdleDetectors.get(key);
+            if (detectors == null) {
+                detectors = new ArrayDeque<FaceDetector>();
+                mIdleDetectors.put(key, detectors);
+            }
+            detectors.push(detector);
+            mIdleCount++;
+            trimToSize(mMaxIdle);
+        }
+    }
+
+    /**
+     * 根据系统的内存等级清空空闲的detector，在onTrimMemory中调用。内存开始紧张或者界面不可见之后就清空，
+     * detector按图片大小占用native内存，重新创建的开销比解码小
+     *
+     * @param level ComponentCallbacks2中的TRIM_MEMORY_XXX
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(0);
+        }
+    }
+
+    /**
+     * 清空所有空闲的detector，内存紧张时调用
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 淘汰最久未使用的key下的detector，直到空闲数量不超过maxIdle。
+     * FaceDetector的native内存在finalize中释放，这里只需要去掉引用
+     */
+    private void trimToSize(int maxIdle) {
+        Iterator<Map.Entry<Key, ArrayDeque<FaceDetector>>> iterator = mIdleDetectors.entrySet().iterator();
+        while (mIdleCount > maxIdle && iterator.hasNext()) {
+            ArrayDeque<FaceDetector> detectors = iterator.next().getValue();
+            while (mIdleCount > maxIdle && !detectors.isEmpty()) {
+                detectors.pollLast();
+                mIdleCount--;
+            }
+            if (detectors.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdleCount;
+    }
+
+    public synchronized int getCreateCount() {
+        return mCreateCount;
+    }
+
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final int maxFaces;
+
+        Key(int width, int height, int maxFaces) {
+            this.width = width;
+            this.height = height;
+            this.maxFaces = maxFaces;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && maxFaces == key.maxFaces;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + maxFaces;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.gsy.facerecognition.detect;
+
+import com.gsy.facerecognition.utils.ExifOrientation;
+
+import java.util.Arrays;
+
+/**
+ * 人脸识别结果的过滤，去掉图片中原本就不完整的脸
+ */
+public class FaceFilter {
+
+    public static final float FILTER_VERTICAL = 1.8f;               // 过滤时竖直方向上相对于眼睛的距离
+
+    /**
+     * 过滤原本就不完整的脸：两眼中点到左右边界不足一个两眼距离，或者到上下边界不足FILTER_VERTICAL个两眼距离
+     *
+     * @param faces  识别结果
+     * @param width  识别使用的图的宽
+     * @param height 识别使用的图的高
+     * @return 完整的脸
+     */
+    public static FaceInfo[] filterIncompleteFaces(FaceInfo[] faces, int width, int height) {
+        int remainCount = 0;
+        FaceInfo[] remains = new FaceInfo[faces.length];
+        for (FaceInfo face : faces) {
+            float eyesDistance = face.eyesDistance();
+            if (face.getMidX() < eyesDistance                                                 // 左边超出
+                    || face.getMidY() < eyesDistance * FILTER_VERTICAL                        // 上边超出
+                    || width - face.getMidX() < eyesDistance                                  // 右边超出
+                    || height - face.getMidY() < eyesDistance * FILTER_VERTICAL) {            // 下边超出
+                continue;
+            }
+            remains[remainCount++] = face;
+        }
+        return remainCount == faces.length ? remains : Arrays.copyOf(remains, remainCount);
+    }
+
+    /**
+     * 将识别结果映射到另一个坐标空间，例如从图片数据的坐标映射到摆正后的坐标
+     *
+     * @param faces     人脸识别结果
+     * @param transform ExifOrientation中的仿射变换，只包含旋转、镜像和平移，两眼距离不变
+     * @return 映射后的FaceInfo数组
+     */
+    public static FaceInfo[] mapFaces(FaceInfo[] faces, float[] transform) {
+        FaceInfo[] faceInfos = new FaceInfo[faces.length];
+        for (int i = 0; i < faces.length; i++) {
+            FaceInfo face = faces[i];
+            faceInfos[i] = new FaceInfo(ExifOrientation.mapX(transform, face.getMidX(), face.getMidY())
+                    , ExifOrientation.mapY(transform, face.getMidX(), face.getMidY()), face.eyesDistance()
+                    , face.confidence());
+        }
+        return faceInfos;
+    }
+}
@@ -0,0 +1,40 @@
+package com.gsy.facerecognition.detect;
+
+/**
+ * 人脸的几何信息，和FaceDetector.Face对应，但是可以直接构造，用于缓存和不依赖系统识别的场景
+ */
+public class FaceInfo {
+    private final float mMidX;                                      // 两眼中点的x坐标
+    private final float mMidY;                                      // 两眼中点的y坐标
+    private final float mEyesDistance;                              // 两眼之间的距离
+    private final float mConfidence;                                // 可信度，0到1
+
+    public FaceInfo(float midX, float midY, float eyesDistance, float confidence) {
+        mMidX = midX;
+        mMidY = midY;
+        mEyesDistance = eyesDistance;
+        mConfidence = confidence;
+    }
+
+    public float getMidX() {
+        return mMidX;
+    }
+
+    public float getMidY() {
+        return mMidY;
+    }
+
+    public float eyesDistance() {
+        return mEyesDistance;
+    }
+
+    public float confidence() {
+        return mConfidence;
+    }
+
+    @Override
+    public String toString() {
+        return "FaceInfo{mid=(" + mMidX + ", " + mMidY + "), eyesDistance=" + mEyesDistance
+                + ", confidence=" + mConfidence + '}';
+    }
+}
@@ -0,0 +1,73 @@
+package com.gsy.facerecognition.detect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 非极大值抑制，合并分块识别时在块的重叠区域以及整图粗识别中重复识别出的同一张脸。
+ * 脸的范围按两眼中点和两眼距离估计：水平方向左右各一个两眼距离，竖直方向上下各FILTER_VERTICAL个两眼距离
+ */
+public class FaceMerger {
+    public static final float DEFAULT_IOU_THRESHOLD = 0.3f;         // 交并比超过这个值认为是同一张脸
+    public static final float DEFAULT_CONTAIN_THRESHOLD = 0.7f;     // 交集占较小的脸的比例超过这个值认为是同一张脸
+
+    private final float mIouThreshold;
+    private final float mContainThreshold;
+
+    public FaceMerger() {
+        this(DEFAULT_IOU_THRESHOLD, DEFAULT_CONTAIN_THRESHOLD);
+    }
+
+    public FaceMerger(float iouThreshold, float containThreshold) {
+        mIouThreshold = iouThreshold;
+        mContainThreshold = containThreshold;
+    }
+
+    /**
+     * 按可信度从高到低保留，和已经保留的脸重复的被丢弃
+     *
+     * @param faces 所有的识别结果，必须在同一个坐标空间中
+     * @return 合并后的结果，按可信度从高到低排列
+     */
+    public FaceInfo[] merge(List<FaceInfo> faces) {
+        FaceInfo[] sorted = faces.toArray(new FaceInfo[faces.size()]);
+        Arrays.sort(sorted, new Comparator<FaceInfo>() {
+            @Override
+            public int compare(FaceInfo lhs, FaceInfo rhs) {
+                return Float.compare(rhs.confidence(), lhs.confidence());
+            }
+        });
+        List<FaceInfo> kept = new ArrayList<FaceInfo>(sorted.length);
+        for (FaceInfo face : sorted) {
+            boolean isDuplicate = false;
+            for (int i = 0; i < kept.size() && !isDuplicate; i++) {
+                isDuplicate = isSameFace(kept.get(i), face);
+            }
+            if (!isDuplicate) {
+                kept.add(face);
+            }
+        }
+        return kept.toArray(new FaceInfo[kept.size()]);
+    }
+
+    boolean isSameFace(FaceInfo a, FaceInfo b) {
+        float aHalfWidth = a.eyesDistance();
+        float aHalfHeight = a.eyesDistance() * FaceFilter.FILTER_VERTICAL;
+        float bHalfWidth = b.eyesDistance();
+        float bHalfHeight = b.eyesDistance() * FaceFilter.FILTER_VERTICAL;
+        float intersectWidth = Math.min(a.getMidX() + aHalfWidth, b.getMidX() + bHalfWidth)
+                - Math.max(a.getMidX() - aHalfWidth, b.getMidX() - bHalfWidth);
+        float intersectHeight = Math.min(a.getMidY() + aHalfHeight, b.getMidY() + bHalfHeight)
+                - Math.max(a.getMidY() - aHalfHeight, b.getMidY() - bHalfHeight);
+        if (intersectWidth <= 0 || intersectHeight <= 0) {
+            return false;
+        }
+        float intersect = intersectWidth * intersectHeight;
+        float aArea = 4 * aHalfWidth * aHalfHeight;
+        float bArea = 4 * bHalfWidth * bHalfHeight;
+        return intersect / (aArea + bArea - intersect) > mIouThreshold
+                || intersect / Math.min(aArea, bArea) > mContainThreshold;
+    }
+}
@@ -0,0 +1,239 @@
+package com.gsy.facerecognition.detect;
+
+import android.util.Log;
+
+import com.gsy.facerecognition.utils.RecordJournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 人脸识别结果的磁盘缓存，以(路径, 文件大小, 修改时间, 识别参数)为key。
+ * 所有记录追加写到同一个RecordJournal中，写到一半进程被杀的记录在打开时被截断，追加写不会破坏已有的数据。
+ * 内存中按LRU维护所有记录，条数或者文件大小超出上限时淘汰最久未使用的记录并重写journal。
+ * get不写文件，访问顺序只在重写时保存：记录按最久未使用到最近使用的顺序重写，重新打开时恢复；
+ * 上次重写之后的访问只在本进程内有效，重新打开后这部分记录按写入journal的顺序淘汰
+ */
+public class FaceResultCache {
+    private static final String TAG = "FaceResultCache";
+    private static final String JOURNAL_NAME = "face_results.journal";
+    private static final String JOURNAL_TMP_NAME = "face_results.journal.tmp";
+    private static final int RECORD_MAGIC = 0x46524332;             // "FRC2"，FRC1的记录多一个固定为1的矫正系数
+    private static final int DEFAULT_MAX_ENTRIES = 2000;
+    private static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final RecordJournal mJournal;
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    // accessOrder为true，遍历的顺序即为最久未使用到最近使用
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<String, Record>(64, 0.75f, true);
+    private boolean mIsLoaded;
+    private long mLiveBytes;                                        // 有效记录的总长度
+
+    /**
+     * 一张图片的识别结果，人脸的坐标以width、height为准，换算到显示图时乘以显示图的宽 / width
+     */
+    public static class Record {
+        private final int mWidth;                                   // 识别使用的bitmap的宽
+        private final int mHeight;                                  // 识别使用的bitmap的高
+        private final FaceInfo[] mFaces;
+
+        public Record(int width, int height, FaceInfo[] faces) {
+            mWidth = width;
+            mHeight = height;
+            mFaces = faces;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public FaceInfo[] getFaces() {
+            return mFaces;
+        }
+    }
+
+    /**
+     * @param cacheDir 缓存目录，一般为Context.getCacheDir()
+     */
+    public FaceResultCache(File cacheDir) {
+        this(cacheDir, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * 构造函数不读文件，第一次get或者put时才会加载，因此可以在主线程构造
+     *
+     * @param cacheDir   缓存目录
+     * @param maxEntries 最多缓存的图片数
+     * @param maxBytes   journal文件的最大长度
+     */
+    public FaceResultCache(File cacheDir, int maxEntries, long maxBytes) {
+        mJournal = new RecordJournal(new File(cacheDir, JOURNAL_NAME), new File(cacheDir, JOURNAL_TMP_NAME)
+                , RECORD_MAGIC);
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 生成缓存的key，文件被修改后大小或者修改时间会变化，对应的缓存自然失效
+     *
+     * @param file       图片文件
+     * @param maxSide    识别使用的bitmap的最大宽高
+     * @param maxCount   最多的人脸数
+     * @param sampleSize 解码时的inSampleSize
+     * @return key
+     */
+    public static String buildKey(File file, int maxSide, int maxCount, int sampleSize) {
+        return file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified()
+                + '|' + maxSide + '|' + maxCount + '|' + sampleSize;
+    }
+
+    public synchronized Record get(String key) {
+        ensureLoaded();
+        return mRecords.get(key);
+    }
+
+    public synchronized void put(String key, Record record) {
+        ensureLoaded();
+        byte[] bytes;
+        try {
+            bytes = encodeRecord(key, record);
+        } catch (IOException e) {
+            Log.e(TAG, "encode record failed", e);
+            return;
+        }
+        Record old = mRecords.put(key, record);
+        if (old != null) {
+            mLiveBytes -= encodedLength(key, old);
+        }
+        mLiveBytes += bytes.length;
+        if (!mJournal.append(bytes)) {
+            mRecords.remove(key);
+            mLiveBytes -= bytes.length;
+            return;
+        }
+        if (mRecords.size() > mMaxEntries || mJournal.getLength() > mMaxBytes) {
+            trimAndRewrite();
+        }
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mRecords.size();
+    }
+
+    /**
+     * 清空缓存并删除journal文件
+     */
+    public synchronized void clear() {
+        mRecords.clear();
+        mLiveBytes = 0;
+        mIsLoaded = true;
+        mJournal.delete();
+    }
+
+    private void ensureLoaded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        mJournal.load(new RecordJournal.RecordReader() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                decodeRecord(payload);
+            }
+        });
+        if (mRecords.size() > mMaxEntries || mJournal.getLength() > mMaxBytes
+                || mJournal.getLength() > mLiveBytes * 2) {
+            trimAndRewrite();
+        }
+    }
+
+    private void decodeRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        int faceCount = in.readUnsignedShort();
+        FaceInfo[] faces = new FaceInfo[faceCount];
+        for (int i = 0; i < faceCount; i++) {
+            faces[i] = new FaceInfo(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+        }
+        Record old = mRecords.put(key, new Record(width, height, faces));
+        if (old != null) {
+            mLiveBytes -= encodedLength(key, old);
+        }
+        mLiveBytes += RecordJournal.RECORD_OVERHEAD + payload.length;
+    }
+
+    private byte[] encodeRecord(String key, Record record) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream(64 + record.mFaces.length * 16);
+        DataOutputStream payloadOut = new DataOutputStream(payloadStream);
+        payloadOut.writeUTF(key);
+        payloadOut.writeInt(record.mWidth);
+        payloadOut.writeInt(record.mHeight);
+        payloadOut.writeShort(record.mFaces.length);
+        for (FaceInfo face : record.mFaces) {
+            payloadOut.writeFloat(face.getMidX());
+            payloadOut.writeFloat(face.getMidY());
+            payloadOut.writeFloat(face.eyesDistance());
+            payloadOut.writeFloat(face.confidence());
+        }
+        return mJournal.frame(payloadStream.toByteArray());
+    }
+
+    /**
+     * 记录编码后的长度，key按modified UTF-8计算，这里只有路径，按UTF-8估算即可
+     */
+    private static int encodedLength(String key, Record record) {
+        int keyLength;
+        try {
+            keyLength = key.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            keyLength = key.length();
+        }
+        return RecordJournal.RECORD_OVERHEAD + 2 + keyLength + 4 + 4 + 2 + record.mFaces.length * 16;
+    }
+
+    /**
+     * 淘汰最久未使用的记录，然后用剩下的记录重写journal
+     */
+    private void trimAndRewrite() {
+        long maxLiveBytes = mMaxBytes / 2;
+        Iterator<Map.Entry<String, Record>> iterator = mRecords.entrySet().iterator();
+        while ((mRecords.size() > mMaxEntries || mLiveBytes > maxLiveBytes) && iterator.hasNext()) {
+            Map.Entry<String, Record> entry = iterator.next();
+            mLiveBytes -= encodedLength(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+        List<byte[]> records = new ArrayList<byte[]>(mRecords.size());
+        long length = 0;
+        try {
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                byte[] bytes = encodeRecord(entry.getKey(), entry.getValue());
+                records.add(bytes);
+                length += bytes.length;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "encode record failed", e);
+            return;
+        }
+        if (mJournal.rewrite(records)) {
+            mLiveBytes = length;
+        }
+    }
+}
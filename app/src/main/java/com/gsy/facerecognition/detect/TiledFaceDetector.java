@@ -0,0 +1,364 @@
+package com.gsy.facerecognition.detect;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngines;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.DetectionFrame;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+import com.gsy.facerecognition.utils.PixelMemoryGovernor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 大图的分块识别。系统人脸识别在1000左右的图上又快又准，整图缩小到1000时合影中小的脸会丢失，
+ * 因此用BitmapRegionDecoder把图片切成互相重叠的识别大小的块，多个线程并行识别，
+ * 所有块大小相同，使用系统引擎时每个线程从FaceDetectorPool中复用同样大小的detector，
+ * 另外对整图做一次粗识别，找出比一块还大的脸，最后用FaceMerger去掉块的接缝处和粗识别中重复的脸。
+ * 结果统一为原图摆正后的像素坐标
+ */
+public class TiledFaceDetector {
+    private static final String TAG = "TiledFaceDetector";
+    public static final int DEFAULT_TILE_SIZE = 1000;              // 每块解码后的大小
+    private static final int MAX_TILES_PER_SIDE = 4;                // 每个方向最多的块数(不计重叠)，超过时加大inSampleSize
+    private static final int OVERLAP_RATIO = 4;                     // 重叠部分为块大小的1/4，比这更大的脸由整图粗识别负责
+    private static final int MIN_TILING_RATIO = 2;                  // 图片的长边至少是识别大小的两倍才值得分块
+
+    private final FaceDetectionEngine mEngine;
+    private final BitmapPool mBitmapPool;
+    private final int mTileSize;
+    private final int mWorkerCount;
+    private final ExecutorService mExecutor;
+    private final FaceMerger mMerger = new FaceMerger();
+
+    /**
+     * 识别过程中查询请求是否已经取消，每一块开始之前查询一次，在识别线程中调用
+     */
+    public interface Cancellation {
+
+        boolean isCancelled();
+    }
+
+    public TiledFaceDetector(FaceDetectionEngine engine, BitmapPool bitmapPool) {
+        this(engine, bitmapPool, DEFAULT_TILE_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param engine      识别引擎，必须是线程安全的，由调用者负责释放
+     * @param bitmapPool  解码和识别图使用的对象池
+     * @param tileSize    每块解码后的宽高，1000左右最佳
+     * @param workerCount 并行识别的线程数，一般为CPU核数
+     */
+    public TiledFaceDetector(FaceDetectionEngine engine, BitmapPool bitmapPool, int tileSize, int workerCount) {
+        mEngine = engine;
+        mBitmapPool = bitmapPool;
+        mTileSize = tileSize;
+        mWorkerCount = Math.max(1, workerCount);
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(mWorkerCount + 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return 图片是否大到值得分块识别
+     */
+    public static boolean isWorthTiling(ImageHeaderParser.ImageHeader header, int detectMaxSide) {
+        return Math.max(header.getWidth(), header.getHeight()) >= detectMaxSide * MIN_TILING_RATIO;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * 分块识别，在调用线程中等待所有块完成
+     *
+     * @param filePath        图片路径
+     * @param header          图片头，由BitmapUtils.readHeader得到
+     * @param maxCountPerTile 每一块中最多的人脸数
+     * @param cancellation    取消后不再开始新的块，正在识别的块完成后返回null，为null时不能取消
+     * @return 合并后的识别结果，原图摆正后的坐标，失败、取消或者线程被中断时为null
+     */
+    public FaceInfo[] detect(String filePath, ImageHeaderParser.ImageHeader header, int maxCountPerTile
+            , @Nullable Cancellation cancellation) {
+        long start = System.nanoTime();
+        int width = header.getWidth();
+        int height = header.getHeight();
+        int sampleSize = computeTileSampleSize(Math.max(width, height), mTileSize);
+        int regionSize = mTileSize * sampleSize;
+        int overlap = regionSize / OVERLAP_RATIO;
+        int[] lefts = computeTileOrigins(width, regionSize, overlap);
+        int[] tops = computeTileOrigins(height, regionSize, overlap);
+        // 所有块大小相同
+        int regionWidth = Math.min(regionSize, width);
+        int regionHeight = Math.min(regionSize, height);
+        List<Rect> tiles = new ArrayList<Rect>(lefts.length * tops.length);
+        for (int top : tops) {
+            for (int left : lefts) {
+                tiles.add(new Rect(left, top, left + regionWidth, top + regionHeight));
+            }
+        }
+        List<Future<List<FaceInfo>>> futures = new ArrayList<Future<List<FaceInfo>>>(mWorkerCount + 1);
+        futures.add(mExecutor.submit(new CoarseTask(filePath, header, maxCountPerTile, cancellation)));
+        AtomicInteger nextTile = new AtomicInteger();
+        int workerCount = Math.min(mWorkerCount, tiles.size());
+        for (int i = 0; i < workerCount; i++) {
+            futures.add(mExecutor.submit(new TileWorker(filePath, header, tiles, nextTile, sampleSize
+                    , maxCountPerTile, cancellation)));
+        }
+        List<FaceInfo> faces = new ArrayList<FaceInfo>();
+        try {
+            for (Future<List<FaceInfo>> future : futures) {
+                faces.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Log.w(TAG, "tiled detect failed " + filePath, e.getCause());
+            return null;
+        }
+        if (isCancelled(cancellation)) {
+            Log.d(TAG, filePath + " tiled detect cancelled");
+            return null;
+        }
+        FaceInfo[] merged = mMerger.merge(faces);
+        Log.d(TAG, filePath + " tiles=" + tiles.size() + " sample=" + sampleSize + " raw=" + faces.size()
+                + " merged=" + merged.length + " time=" + (System.nanoTime() - start) / 1000000 + "ms");
+        return merged;
+    }
+
+    /**
+     * 释放线程池，释放后不能再识别
+     */
+    public void release() {
+        mExecutor.shutdownNow();
+    }
+
+    private static boolean isCancelled(Cancellation cancellation) {
+        return cancellation != null && cancellation.isCancelled();
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * 计算分块解码的inSampleSize，保证每个方向的块数不超过MAX_TILES_PER_SIDE
+     */
+    static int computeTileSampleSize(int maxSide, int tileSize) {
+        return Math.max(1, (int) Math.ceil(maxSide * 1f / (tileSize * MAX_TILES_PER_SIDE)));
+    }
+
+    /**
+     * 计算一个方向上每块的起点，相邻的块至少重叠overlap，最后一块和图片的边缘对齐，因此所有块的大小相同
+     *
+     * @param length     图片在这个方向上的长度
+     * @param tileLength 块的长度
+     * @param overlap    最小的重叠长度
+     * @return 每块的起点
+     */
+    static int[] computeTileOrigins(int length, int tileLength, int overlap) {
+        if (length <= tileLength) {
+            return new int[]{0};
+        }
+        int step = tileLength - overlap;
+        int count = (int) Math.ceil((length - tileLength) * 1f / step) + 1;
+        int[] origins = new int[count];
+        // 把多出来的重叠平均分到每一个间隔上
+        float actualStep = (length - tileLength) * 1f / (count - 1);
+        for (int i = 0; i < count; i++) {
+            origins[i] = Math.round(i * actualStep);
+        }
+        return origins;
+    }
+
+    /**
+     * 识别图中的结果换算到原图摆正后的坐标
+     *
+     * @param faces     识别结果，识别图的坐标
+     * @param transform 识别图坐标到摆正后坐标的变换，为null时不变换
+     * @param scaleX    水平方向的缩放
+     * @param scaleY    竖直方向的缩放
+     * @param dx        摆正后在原图中的水平偏移
+     * @param dy        摆正后在原图中的竖直偏移
+     * @param out       结果
+     */
+    static void toSource(FaceInfo[] faces, float[] transform, float scaleX, float scaleY, float dx, float dy
+            , List<FaceInfo> out) {
+        if (transform != null) {
+            faces = FaceFilter.mapFaces(faces, transform);
+        }
+        for (FaceInfo face : faces) {
+            out.add(new FaceInfo(dx + face.getMidX() * scaleX, dy + face.getMidY() * scaleY
+                    , face.eyesDistance() * scaleX, face.confidence()));
+        }
+    }
+
+    /**
+     * 对识别图进行识别，去掉在识别图中不完整的脸，块的接缝处被切开的脸在相邻的块中是完整的
+     */
+    private FaceInfo[] findFaces(Bitmap frame, int maxCount) {
+        FaceInfo[] faces = FaceDetectionEngines.detect(mEngine, frame, maxCount, BitmapUtils.getFramePool());
+        return FaceFilter.filterIncompleteFaces(faces, frame.getWidth(), frame.getHeight());
+    }
+
+    /**
+     * 整图缩小到识别大小后的粗识别，负责比一块还大的脸
+     */
+    private class CoarseTask implements Callable<List<FaceInfo>> {
+        private final String mFilePath;
+        private final ImageHeaderParser.ImageHeader mHeader;
+        private final int mMaxCount;
+        private final Cancellation mCancellation;
+
+        CoarseTask(String filePath, ImageHeaderParser.ImageHeader header, int maxCount, Cancellation cancellation) {
+            mFilePath = filePath;
+            mHeader = header;
+            mMaxCount = maxCount;
+            mCancellation = cancellation;
+        }
+
+        @Override
+        public List<FaceInfo> call() throws Exception {
+            List<FaceInfo> result = new ArrayList<FaceInfo>();
+            if (isCancelled(mCancellation)) {
+                return result;
+            }
+            DetectionFrame frame = BitmapUtils.decodeDetectionFrame(mFilePath, mHeader, mTileSize, mBitmapPool);
+            if (frame == null) {
+                return result;
+            }
+            FaceInfo[] faces;
+            try {
+                faces = findFaces(frame.getBitmap(), mMaxCount);
+            } finally {
+                frame.release(mBitmapPool);
+            }
+            toSource(faces, frame.getUprightTransform(), frame.getScaleToSourceX(), frame.getScaleToSourceY(), 0, 0
+                    , result);
+            return result;
+        }
+    }
+
+    /**
+     * 识别线程，每个线程有自己的区域解码器，依次取出还没有识别的块
+     */
+    private class TileWorker implements Callable<List<FaceInfo>> {
+        private final String mFilePath;
+        private final ImageHeaderParser.ImageHeader mHeader;
+        private final List<Rect> mTiles;
+        private final AtomicInteger mNextTile;
+        private final int mSampleSize;
+        private final int mMaxCount;
+        private final Cancellation mCancellation;
+        private final float[] mSourceTransform = new float[ExifOrientation.TRANSFORM_SIZE];
+
+        TileWorker(String filePath, ImageHeaderParser.ImageHeader header, List<Rect> tiles, AtomicInteger nextTile
+                , int sampleSize, int maxCount, Cancellation cancellation) {
+            mFilePath = filePath;
+            mHeader = header;
+            mTiles = tiles;
+            mNextTile = nextTile;
+            mSampleSize = sampleSize;
+            mMaxCount = maxCount;
+            mCancellation = cancellation;
+            ExifOrientation.toUpright(header.getOrientation(), header.getWidth(), header.getHeight()
+                    , mSourceTransform);
+        }
+
+        @Override
+        public List<FaceInfo> call() throws IOException {
+            List<FaceInfo> result = new ArrayList<FaceInfo>();
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(mFilePath, false);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inSampleSize = mSampleSize;
+            int orientation = mHeader.getOrientation();
+            try {
+                int index;
+                while ((index = mNextTile.getAndIncrement()) < mTiles.size()) {
+                    if (Thread.currentThread().isInterrupted() || isCancelled(mCancellation)) {
+                        break;
+                    }
+                    Rect tile = mTiles.get(index);
+                    // 所有块大小相同，预算不足时只等待，预留到这一块识别完成
+                    PixelMemoryGovernor.Grant grant = BitmapUtils.reserveDecode(tile.width(), tile.height()
+                            , mSampleSize, 2, PixelMemoryGovernor.DEGRADE_NONE);
+                    if (grant == null) {
+                        break;
+                    }
+                    Bitmap region = mBitmapPool.decodeRegion(decoder, tile, options);
+                    if (region == null) {
+                        BitmapUtils.releaseDecode(grant);
+                        continue;
+                    }
+                    int regionWidth = region.getWidth();
+                    int regionHeight = region.getHeight();
+                    Bitmap frame = BitmapUtils.prepareDetectionFrame(region, orientation, mBitmapPool);
+                    FaceInfo[] faces;
+                    try {
+                        faces = findFaces(frame, mMaxCount);
+                    } finally {
+                        if (frame != region) {
+                            mBitmapPool.put(frame);
+                        }
+                        mBitmapPool.put(region);
+                        BitmapUtils.releaseDecode(grant);
+                    }
+                    // 块在原图摆正后的位置：两个对角映射后取左上角
+                    float x0 = ExifOrientation.mapX(mSourceTransform, tile.left, tile.top);
+                    float y0 = ExifOrientation.mapY(mSourceTransform, tile.left, tile.top);
+                    float x1 = ExifOrientation.mapX(mSourceTransform, tile.right, tile.bottom);
+                    float y1 = ExifOrientation.mapY(mSourceTransform, tile.right, tile.bottom);
+                    float uprightTileWidth = ExifOrientation.uprightWidth(orientation, tile.width(), tile.height());
+                    float uprightTileHeight = ExifOrientation.uprightHeight(orientation, tile.width(), tile.height());
+                    float[] frameTransform = orientation != ExifOrientation.NORMAL
+                            && ExifOrientation.isUpright(orientation) ? ExifOrientation.toUpright(orientation
+                            , regionWidth, regionHeight, new float[ExifOrientation.TRANSFORM_SIZE]) : null;
+                    toSource(faces, frameTransform
+                            , uprightTileWidth / ExifOrientation.uprightWidth(orientation, regionWidth, regionHeight)
+                            , uprightTileHeight / ExifOrientation.uprightHeight(orientation, regionWidth, regionHeight)
+                            , Math.min(x0, x1), Math.min(y0, y1), result);
+                }
+            } finally {
+                decoder.recycle();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.gsy.facerecognition.detect.engine;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.media.FaceDetector;
+
+import com.gsy.facerecognition.detect.FaceDetectorPool;
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 系统android.media.FaceDetector的适配，detector从FaceDetectorPool中获取。
+ * 输入是宽为偶数的RGB_565 bitmap时直接识别，宽为偶数的Rgb565Buffer或者RGB_565 PixelFrame整块复制到对象池中的bitmap，
+ * 否则先把亮度转换到对象池中的RGB_565 bitmap
+ */
+public class AndroidFaceDetectionEngine implements FaceDetectionEngine {
+    public static final String NAME = "android";
+
+    private final FaceDetectorPool mDetectorPool;
+    private final BitmapPool mBitmapPool;
+
+    public AndroidFaceDetectionEngine(FaceDetectorPool detectorPool, BitmapPool bitmapPool) {
+        mDetectorPool = detectorPool;
+        mBitmapPool = bitmapPool;
+    }
+
+    @Override
+    public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+        Bitmap bitmap = buffer instanceof BitmapPixelBuffer ? ((BitmapPixelBuffer) buffer).getBitmap() : null;
+        boolean isConverted = bitmap == null || bitmap.getConfig() != Bitmap.Config.RGB_565
+                || bitmap.getWidth() % 2 != 0;
+        if (isConverted) {
+            long start = Metrics.start();
+            if (buffer.getWidth() % 2 == 0 && buffer instanceof Rgb565Buffer) {
+                bitmap = copyRgb565((Rgb565Buffer) buffer);
+            } else if (buffer.getWidth() % 2 == 0 && buffer instanceof PixelFrame
+                    && ((PixelFrame) buffer).getFormat() == PixelFrame.FORMAT_RGB_565) {
+                bitmap = copyRgb565((PixelFrame) buffer);
+            } else {
+                bitmap = toRgb565(buffer);
+            }
+            Metrics.end(Metrics.STAGE_PREPARE, start);
+            BitmapUtils.recordBitmapBytes(Metrics.STAGE_PREPARE, bitmap);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        FaceDetector.Face[] faces = new FaceDetector.Face[maxCount];
+        FaceDetector detector = mDetectorPool.acquire(width, height, maxCount);
+        int faceCount;
+        try {
+            faceCount = detector.findFaces(bitmap, faces);
+        } finally {
+            mDetectorPool.release(detector, width, height, maxCount);
+            if (isConverted) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+        return toFaceInfos(faces, faceCount);
+    }
+
+    /**
+     * 将系统的识别结果转换为FaceInfo
+     *
+     * @param faces     人脸识别结果
+     * @param faceCount 识别出的人脸数量
+     * @return FaceInfo数组
+     */
+    static FaceInfo[] toFaceInfos(FaceDetector.Face[] faces, int faceCount) {
+        FaceInfo[] faceInfos = new FaceInfo[faceCount];
+        PointF pointF = new PointF();
+        for (int i = 0; i < faceCount; i++) {
+            faces[i].getMidPoint(pointF);
+            faceInfos[i] = new FaceInfo(pointF.x, pointF.y, faces[i].eyesDistance(), faces[i].confidence());
+        }
+        return faceInfos;
+    }
+
+    /**
+     * RGB_565像素整块复制到同样大小的bitmap
+     */
+    private Bitmap copyRgb565(Rgb565Buffer buffer) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        Bitmap bitmap = mBitmapPool.getDirty(width, height, Bitmap.Config.RGB_565);
+        bitmap.copyPixelsFromBuffer(ShortBuffer.wrap(buffer.getRgb565(), 0, width * height));
+        return bitmap;
+    }
+
+    /**
+     * 堆外的RGB_565帧整块复制到同样大小的bitmap，内存布局和bitmap一致
+     */
+    private Bitmap copyRgb565(PixelFrame frame) {
+        Bitmap bitmap = mBitmapPool.getDirty(frame.getWidth(), frame.getHeight(), Bitmap.Config.RGB_565);
+        bitmap.copyPixelsFromBuffer(frame.getBuffer());
+        return bitmap;
+    }
+
+    /**
+     * 把亮度写入宽为偶数的灰度RGB_565 bitmap，宽为奇数时去掉最右边的一列
+     */
+    private Bitmap toRgb565(PixelBuffer buffer) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        int evenWidth = width / 2 * 2;
+        byte[] luma = new byte[width * height];
+        buffer.readLuma(luma);
+        Bitmap bitmap = mBitmapPool.getDirty(evenWidth, height, Bitmap.Config.RGB_565);
+        int[] row = new int[evenWidth];
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < evenWidth; x++) {
+                int gray = luma[offset + x] & 0xFF;
+                row[x] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+            }
+            bitmap.setPixels(row, 0, evenWidth, 0, y, evenWidth, 1);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * detector对象池是进程内共用的，不属于这个引擎，不在这里清空，内存紧张时由FaceDetectorPool.trimMemory释放
+     */
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,61 @@
+package com.gsy.facerecognition.detect.engine;
+
+/**
+ * 基于数组的亮度图，纯Java实现，可以在本地单元测试中直接构造
+ */
+public class ArrayPixelBuffer implements PixelBuffer {
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mLuma;
+
+    /**
+     * @param width  宽
+     * @param height 高
+     * @param luma   按行排列的亮度，不会被复制
+     */
+    public ArrayPixelBuffer(int width, int height, byte[] luma) {
+        if (luma.length < width * height) {
+            throw new IllegalArgumentException("luma length " + luma.length + " < " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mLuma = luma;
+    }
+
+    /**
+     * 从ARGB像素转换，和Bitmap.getPixels的格式一致
+     */
+    public static ArrayPixelBuffer fromArgb(int width, int height, int[] argb) {
+        byte[] luma = new byte[width * height];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) toLuma(argb[i]);
+        }
+        return new ArrayPixelBuffer(width, height, luma);
+    }
+
+    /**
+     * BT.601的亮度，定点计算
+     */
+    public static int toLuma(int argb) {
+        return ((argb >> 16 & 0xFF) * 77 + (argb >> 8 & 0xFF) * 150 + (argb & 0xFF) * 29) >> 8;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public byte[] getLuma() {
+        return mLuma;
+    }
+
+    @Override
+    public void readLuma(byte[] out) {
+        System.arraycopy(mLuma, 0, out, 0, mWidth * mHeight);
+    }
+}
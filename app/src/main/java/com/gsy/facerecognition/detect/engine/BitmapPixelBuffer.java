@@ -0,0 +1,43 @@
+package com.gsy.facerecognition.detect.engine;
+
+import android.graphics.Bitmap;
+
+/**
+ * 包装bitmap的PixelBuffer，Android引擎可以直接使用其中的bitmap，其他引擎按行读取亮度
+ */
+public class BitmapPixelBuffer implements PixelBuffer {
+    private final Bitmap mBitmap;
+
+    public BitmapPixelBuffer(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void readLuma(byte[] out) {
+        int width = mBitmap.getWidth();
+        int height = mBitmap.getHeight();
+        // 一次只读一行，避免再申请一整张图的int数组
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            mBitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                out[offset + x] = (byte) ArrayPixelBuffer.toLuma(row[x]);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+/**
+ * 人脸识别引擎，输入PixelBuffer，输出人脸的几何信息。
+ * 系统的android.media.FaceDetector是其中一个实现，另外有纯Java实现的JavaFaceDetectionEngine，
+ * 可以按设备选择更快的引擎，也可以在本地单元测试中运行。实现必须是线程安全的
+ */
+public interface FaceDetectionEngine {
+
+    /**
+     * 识别人脸，结果没有过滤不完整的脸
+     *
+     * @param buffer   输入
+     * @param maxCount 最多的人脸数
+     * @return 识别结果，buffer中的坐标，没有识别出人脸时为空数组
+     */
+    FaceInfo[] detect(PixelBuffer buffer, int maxCount);
+
+    /**
+     * @return 引擎的名字，用于日志和选择引擎
+     */
+    String getName();
+
+    /**
+     * 释放引擎持有的线程和缓存，释放后不能再使用
+     */
+    void release();
+}
@@ -0,0 +1,150 @@
+package com.gsy.facerecognition.detect.engine;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceDetectorPool;
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.utils.BitmapUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * 识别引擎的创建和选择
+ */
+public class FaceDetectionEngines {
+    private static final String TAG = "FaceDetectionEngines";
+    public static final String CASCADE_ASSET = "haarcascade_frontalface_default.xml";
+    private static final int PROBE_WIDTH = 1000;                    // 选择引擎时使用的测试图的大小
+    private static final int PROBE_HEIGHT = 750;
+
+    /**
+     * @return 系统android.media.FaceDetector的适配
+     */
+    public static FaceDetectionEngine createAndroid() {
+        return new AndroidFaceDetectionEngine(FaceDetectorPool.getInstance(), BitmapUtils.getBitmapPool());
+    }
+
+    /**
+     * @param cascadeXml OpenCV旧格式的级联分类器XML，不会被关闭
+     * @return 纯Java的引擎
+     */
+    public static FaceDetectionEngine createJava(InputStream cascadeXml) throws IOException {
+        return new JavaFaceDetectionEngine(HaarCascade.loadOpenCvXml(cascadeXml));
+    }
+
+    /**
+     * 马上返回，可以在主线程调用：先使用系统引擎，后台线程中pickDefault选出更快的引擎后再替换。
+     * 测试图的识别需要几百毫秒，不能阻塞界面
+     */
+    public static FaceDetectionEngine createDefault(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final SwitchingFaceDetectionEngine engine = new SwitchingFaceDetectionEngine(createAndroid());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                engine.switchTo(pickDefault(appContext));
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+        return engine;
+    }
+
+    /**
+     * assets中有CASCADE_ASSET时，在同样的测试图上比较系统引擎和纯Java引擎，使用更快的一个，否则使用系统引擎。
+     * 读取分类器和两次测试图的识别都在调用线程中完成，不要在主线程调用
+     */
+    public static FaceDetectionEngine pickDefault(Context context) {
+        FaceDetectionEngine androidEngine = createAndroid();
+        InputStream in = null;
+        try {
+            in = context.getAssets().open(CASCADE_ASSET);
+            FaceDetectionEngine javaEngine = createJava(in);
+            return pickFaster(createProbe(), 10, androidEngine, javaEngine);
+        } catch (IOException e) {
+            return androidEngine;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 引擎是否直接使用bitmap，是时不需要先转换成亮度帧
+     */
+    public static boolean isBitmapEngine(FaceDetectionEngine engine) {
+        return AndroidFaceDetectionEngine.NAME.equals(engine.getName());
+    }
+
+    /**
+     * 识别一张bitmap：直接使用bitmap的引擎传入bitmap，其他引擎先整块复制并转换到对象池中的堆外亮度帧，
+     * 不经过逐行getPixels
+     *
+     * @param engine    识别引擎
+     * @param bitmap    识别图
+     * @param maxCount  最多的人脸数
+     * @param framePool 亮度帧从这里分配，识别完成后归还
+     * @return 识别结果，没有过滤不完整的脸
+     */
+    public static FaceInfo[] detect(FaceDetectionEngine engine, Bitmap bitmap, int maxCount
+            , PixelFramePool framePool) {
+        if (isBitmapEngine(engine)) {
+            return engine.detect(new BitmapPixelBuffer(bitmap), maxCount);
+        }
+        PixelFrame luma = BitmapUtils.copyLumaToFrame(bitmap, framePool);
+        try {
+            return engine.detect(luma, maxCount);
+        } finally {
+            luma.release();
+        }
+    }
+
+    /**
+     * 在同一张图上依次运行每个引擎，返回耗时最少的一个，其他引擎被释放
+     *
+     * @param probe    测试图
+     * @param maxCount 最多的人脸数
+     * @param engines  候选的引擎
+     * @return 最快的引擎
+     */
+    public static FaceDetectionEngine pickFaster(PixelBuffer probe, int maxCount, FaceDetectionEngine... engines) {
+        FaceDetectionEngine fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        for (FaceDetectionEngine engine : engines) {
+            long start = System.nanoTime();
+            engine.detect(probe, maxCount);
+            long nanos = System.nanoTime() - start;
+            Log.d(TAG, engine.getName() + " probe=" + nanos / 1000000 + "ms");
+            if (nanos < fastestNanos) {
+                if (fastest != null) {
+                    fastest.release();
+                }
+                fastest = engine;
+                fastestNanos = nanos;
+            } else {
+                engine.release();
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * 带噪声的灰度图，两个引擎都需要扫描完整的图
+     */
+    private static PixelBuffer createProbe() {
+        byte[] luma = new byte[PROBE_WIDTH * PROBE_HEIGHT];
+        new Random(PROBE_WIDTH).nextBytes(luma);
+        return new ArrayPixelBuffer(PROBE_WIDTH, PROBE_HEIGHT, luma);
+    }
+}
@@ -0,0 +1,338 @@
+package com.gsy.facerecognition.detect.engine;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Haar特征的级联分类器，全部数据保存在基本类型的数组中。
+ * 每一级由若干个只有一个节点的弱分类器组成，弱分类器的值之和小于这一级的阈值时窗口被拒绝。
+ * 可以从OpenCV旧格式(opencv-haar-classifier)的XML中加载，只支持不倾斜的特征和只有一个节点的树，
+ * 例如haarcascade_frontalface_default.xml
+ */
+public class HaarCascade {
+    private final int mWindowWidth;
+    private final int mWindowHeight;
+    // 每一级
+    private final float[] mStageThresholds;
+    private final int[] mStageFirstNode;
+    private final int[] mStageNodeCount;
+    // 每个弱分类器
+    private final float[] mNodeThresholds;
+    private final float[] mNodeLeftValues;
+    private final float[] mNodeRightValues;
+    private final int[] mNodeFirstRect;
+    private final int[] mNodeRectCount;
+    // 每个矩形，原始窗口中的坐标
+    private final int[] mRectX;
+    private final int[] mRectY;
+    private final int[] mRectWidth;
+    private final int[] mRectHeight;
+    private final float[] mRectWeights;
+
+    private HaarCascade(Builder builder) {
+        mWindowWidth = builder.mWindowWidth;
+        mWindowHeight = builder.mWindowHeight;
+        mStageThresholds = toFloatArray(builder.mStageThresholds);
+        mStageFirstNode = toIntArray(builder.mStageFirstNode);
+        mStageNodeCount = toIntArray(builder.mStageNodeCount);
+        mNodeThresholds = toFloatArray(builder.mNodeThresholds);
+        mNodeLeftValues = toFloatArray(builder.mNodeLeftValues);
+        mNodeRightValues = toFloatArray(builder.mNodeRightValues);
+        mNodeFirstRect = toIntArray(builder.mNodeFirstRect);
+        mNodeRectCount = toIntArray(builder.mNodeRectCount);
+        mRectX = toIntArray(builder.mRectX);
+        mRectY = toIntArray(builder.mRectY);
+        mRectWidth = toIntArray(builder.mRectWidth);
+        mRectHeight = toIntArray(builder.mRectHeight);
+        mRectWeights = toFloatArray(builder.mRectWeights);
+    }
+
+    public int getWindowWidth() {
+        return mWindowWidth;
+    }
+
+    public int getWindowHeight() {
+        return mWindowHeight;
+    }
+
+    public int getStageCount() {
+        return mStageThresholds.length;
+    }
+
+    /**
+     * 生成某个缩放倍数下的分类器，矩形按倍数缩放并取整
+     */
+    public Scaled scale(float scale) {
+        return new Scaled(this, scale);
+    }
+
+    /**
+     * 缩放后的分类器，一个扫描线程使用一个
+     */
+    public static class Scaled {
+        private final HaarCascade mCascade;
+        private final int mWindowWidth;
+        private final int mWindowHeight;
+        private final float mInvArea;
+        private final int[] mRectX;
+        private final int[] mRectY;
+        private final int[] mRectWidth;
+        private final int[] mRectHeight;
+        private final float[] mRectWeights;
+
+        Scaled(HaarCascade cascade, float scale) {
+            mCascade = cascade;
+            mWindowWidth = Math.round(cascade.mWindowWidth * scale);
+            mWindowHeight = Math.round(cascade.mWindowHeight * scale);
+            mInvArea = 1f / (mWindowWidth * mWindowHeight);
+            int rectCount = cascade.mRectX.length;
+            mRectX = new int[rectCount];
+            mRectY = new int[rectCount];
+            mRectWidth = new int[rectCount];
+            mRectHeight = new int[rectCount];
+            mRectWeights = new float[rectCount];
+            for (int i = 0; i < rectCount; i++) {
+                mRectX[i] = Math.round(cascade.mRectX[i] * scale);
+                mRectY[i] = Math.round(cascade.mRectY[i] * scale);
+                mRectWidth[i] = Math.max(1, Math.round(cascade.mRectWidth[i] * scale));
+                mRectHeight[i] = Math.max(1, Math.round(cascade.mRectHeight[i] * scale));
+                mRectWeights[i] = cascade.mRectWeights[i];
+            }
+            // 取整后矩形的面积不再严格成比例，和OpenCV一样调整第一个矩形的权重，保证均匀的图像上特征值为0
+            for (int node = 0; node < cascade.mNodeFirstRect.length; node++) {
+                int first = cascade.mNodeFirstRect[node];
+                int count = cascade.mNodeRectCount[node];
+                float otherSum = 0;
+                for (int i = first + 1; i < first + count; i++) {
+                    otherSum += mRectWeights[i] * mRectWidth[i] * mRectHeight[i];
+                }
+                mRectWeights[first] = -otherSum / (mRectWidth[first] * mRectHeight[first]);
+            }
+        }
+
+        public int getWindowWidth() {
+            return mWindowWidth;
+        }
+
+        public int getWindowHeight() {
+            return mWindowHeight;
+        }
+
+        /**
+         * 判断以(x, y)为左上角的窗口是否为人脸
+         *
+         * @return 通过所有级时返回最后一级超出阈值的部分(不小于0)，被拒绝时返回-1
+         */
+        public float classify(IntegralImage image, int x, int y) {
+            float sum = image.rectSum(x, y, mWindowWidth, mWindowHeight);
+            float mean = sum * mInvArea;
+            float variance = image.rectSqSum(x, y, mWindowWidth, mWindowHeight) * mInvArea - mean * mean;
+            // 特征值按窗口的标准差归一化，对光照不敏感
+            float normFactor = variance > 1 ? (float) Math.sqrt(variance) : 1;
+            HaarCascade cascade = mCascade;
+            float margin = 0;
+            for (int stage = 0; stage < cascade.mStageThresholds.length; stage++) {
+                float stageSum = 0;
+                int firstNode = cascade.mStageFirstNode[stage];
+                int lastNode = firstNode + cascade.mStageNodeCount[stage];
+                for (int node = firstNode; node < lastNode; node++) {
+                    int firstRect = cascade.mNodeFirstRect[node];
+                    int lastRect = firstRect + cascade.mNodeRectCount[node];
+                    float featureSum = 0;
+                    for (int i = firstRect; i < lastRect; i++) {
+                        featureSum += mRectWeights[i] * image.rectSum(x + mRectX[i], y + mRectY[i], mRectWidth[i]
+                                , mRectHeight[i]);
+                    }
+                    stageSum += featureSum * mInvArea < cascade.mNodeThresholds[node] * normFactor
+                            ? cascade.mNodeLeftValues[node] : cascade.mNodeRightValues[node];
+                }
+                if (stageSum < cascade.mStageThresholds[stage]) {
+                    return -1;
+                }
+                margin = stageSum - cascade.mStageThresholds[stage];
+            }
+            return margin;
+        }
+    }
+
+    /**
+     * 从OpenCV旧格式的XML加载
+     *
+     * @param in XML的输入流，不会被关闭
+     * @return 分类器
+     * @throws IOException XML格式错误或者包含不支持的特征
+     */
+    public static HaarCascade loadOpenCvXml(InputStream in) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.toString());
+        } catch (SAXException e) {
+            throw new IOException(e.toString());
+        }
+        Element cascade = firstChildElement(document.getDocumentElement(), null);
+        if (cascade == null) {
+            throw new IOException("no cascade");
+        }
+        String[] size = requireChild(cascade, "size").getTextContent().trim().split("\\s+");
+        Builder builder = new Builder(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        for (Element stage : childElements(requireChild(cascade, "stages"))) {
+            builder.beginStage();
+            for (Element tree : childElements(requireChild(stage, "trees"))) {
+                List<Element> nodes = childElements(tree);
+                if (nodes.size() != 1) {
+                    throw new IOException("only stump trees are supported");
+                }
+                Element node = nodes.get(0);
+                Element feature = requireChild(node, "feature");
+                Element tilted = firstChildElement(feature, "tilted");
+                if (tilted != null && Integer.parseInt(tilted.getTextContent().trim()) != 0) {
+                    throw new IOException("tilted features are not supported");
+                }
+                if (firstChildElement(node, "left_val") == null || firstChildElement(node, "right_val") == null) {
+                    throw new IOException("only stump trees are supported");
+                }
+                builder.beginNode(parseFloat(node, "threshold"), parseFloat(node, "left_val")
+                        , parseFloat(node, "right_val"));
+                for (Element rect : childElements(requireChild(feature, "rects"))) {
+                    String[] values = rect.getTextContent().trim().split("\\s+");
+                    builder.addRect(Integer.parseInt(values[0]), Integer.parseInt(values[1])
+                            , Integer.parseInt(values[2]), Integer.parseInt(values[3]), Float.parseFloat(values[4]));
+                }
+            }
+            builder.endStage(parseFloat(stage, "stage_threshold"));
+        }
+        return builder.build();
+    }
+
+    private static float parseFloat(Element parent, String name) throws IOException {
+        try {
+            return Float.parseFloat(requireChild(parent, name).getTextContent().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("bad " + name);
+        }
+    }
+
+    private static Element requireChild(Element parent, String name) throws IOException {
+        Element child = firstChildElement(parent, name);
+        if (child == null) {
+            throw new IOException("missing " + name);
+        }
+        return child;
+    }
+
+    private static Element firstChildElement(Element parent, String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && (name == null || name.equals(child.getNodeName()))) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> childElements(Element parent) {
+        List<Element> elements = new ArrayList<Element>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) child);
+            }
+        }
+        return elements;
+    }
+
+    private static float[] toFloatArray(List<Float> list) {
+        float[] array = new float[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * 逐级构造分类器：beginStage，若干次beginNode和addRect，endStage
+     */
+    public static class Builder {
+        private final int mWindowWidth;
+        private final int mWindowHeight;
+        private final List<Float> mStageThresholds = new ArrayList<Float>();
+        private final List<Integer> mStageFirstNode = new ArrayList<Integer>();
+        private final List<Integer> mStageNodeCount = new ArrayList<Integer>();
+        private final List<Float> mNodeThresholds = new ArrayList<Float>();
+        private final List<Float> mNodeLeftValues = new ArrayList<Float>();
+        private final List<Float> mNodeRightValues = new ArrayList<Float>();
+        private final List<Integer> mNodeFirstRect = new ArrayList<Integer>();
+        private final List<Integer> mNodeRectCount = new ArrayList<Integer>();
+        private final List<Integer> mRectX = new ArrayList<Integer>();
+        private final List<Integer> mRectY = new ArrayList<Integer>();
+        private final List<Integer> mRectWidth = new ArrayList<Integer>();
+        private final List<Integer> mRectHeight = new ArrayList<Integer>();
+        private final List<Float> mRectWeights = new ArrayList<Float>();
+
+        public Builder(int windowWidth, int windowHeight) {
+            mWindowWidth = windowWidth;
+            mWindowHeight = windowHeight;
+        }
+
+        public Builder beginStage() {
+            mStageFirstNode.add(mNodeThresholds.size());
+            return this;
+        }
+
+        /**
+         * @param threshold  特征值(按窗口面积和标准差归一化)小于threshold时取leftValue，否则取rightValue
+         * @param leftValue  左值
+         * @param rightValue 右值
+         */
+        public Builder beginNode(float threshold, float leftValue, float rightValue) {
+            mNodeThresholds.add(threshold);
+            mNodeLeftValues.add(leftValue);
+            mNodeRightValues.add(rightValue);
+            mNodeFirstRect.add(mRectX.size());
+            mNodeRectCount.add(0);
+            return this;
+        }
+
+        public Builder addRect(int x, int y, int width, int height, float weight) {
+            mRectX.add(x);
+            mRectY.add(y);
+            mRectWidth.add(width);
+            mRectHeight.add(height);
+            mRectWeights.add(weight);
+            int last = mNodeRectCount.size() - 1;
+            mNodeRectCount.set(last, mNodeRectCount.get(last) + 1);
+            return this;
+        }
+
+        public Builder endStage(float stageThreshold) {
+            mStageThresholds.add(stageThreshold);
+            mStageNodeCount.add(mNodeThresholds.size() - mStageFirstNode.get(mStageFirstNode.size() - 1));
+            return this;
+        }
+
+        public HaarCascade build() {
+            if (mStageThresholds.isEmpty() || mStageThresholds.size() != mStageFirstNode.size()) {
+                throw new IllegalStateException("unfinished cascade");
+            }
+            return new HaarCascade(this);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.gsy.facerecognition.detect.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 积分图和平方积分图，任意矩形的像素和以及平方和都只需要4次查表。
+ * 数组比原图多一行一列，sum[(y + 1) * stride + (x + 1)]为(0, 0)到(x, y)的和
+ */
+public class IntegralImage {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final int[] mSum;                                       // 255 * 4096 * 4096以内不会溢出
+    private final long[] mSqSum;
+
+    private IntegralImage(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mStride = width + 1;
+        mSum = new int[mStride * (height + 1)];
+        mSqSum = new long[mStride * (height + 1)];
+    }
+
+    /**
+     * 计算亮度图的积分图
+     *
+     * @param luma   按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     * @return 积分图
+     */
+    public static IntegralImage compute(byte[] luma, int width, int height) {
+        return compute(ByteBuffer.wrap(luma), width, height);
+    }
+
+    /**
+     * 同compute(byte[], ...)，亮度在ByteBuffer中，例如PixelFrame的堆外内存，按绝对位置读取
+     */
+    public static IntegralImage compute(ByteBuffer luma, int width, int height) {
+        IntegralImage image = new IntegralImage(width, height);
+        int[] sum = image.mSum;
+        long[] sqSum = image.mSqSum;
+        int stride = image.mStride;
+        for (int y = 0; y < height; y++) {
+            int rowSum = 0;
+            long rowSqSum = 0;
+            int src = y * width;
+            int dst = (y + 1) * stride + 1;
+            for (int x = 0; x < width; x++) {
+                int value = luma.get(src + x) & 0xFF;
+                rowSum += value;
+                rowSqSum += value * value;
+                sum[dst + x] = sum[dst + x - stride] + rowSum;
+                sqSum[dst + x] = sqSum[dst + x - stride] + rowSqSum;
+            }
+        }
+        return image;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 左上角为(x, y)、宽高为width、height的矩形的像素和
+     */
+    public int rectSum(int x, int y, int width, int height) {
+        int topLeft = y * mStride + x;
+        int bottomLeft = topLeft + height * mStride;
+        return mSum[bottomLeft + width] - mSum[bottomLeft] - mSum[topLeft + width] + mSum[topLeft];
+    }
+
+    /**
+     * @return 左上角为(x, y)、宽高为width、height的矩形的像素平方和
+     */
+    public long rectSqSum(int x, int y, int width, int height) {
+        int topLeft = y * mStride + x;
+        int bottomLeft = topLeft + height * mStride;
+        return mSqSum[bottomLeft + width] - mSqSum[bottomLeft] - mSqSum[topLeft + width] + mSqSum[topLeft];
+    }
+}
@@ -0,0 +1,215 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.detect.FaceMerger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 纯Java的人脸识别引擎：积分图 + Haar级联分类器，不依赖android，可以在本地单元测试和服务器上运行。
+ * 按缩放倍数把扫描拆成多个任务并行执行，窗口从小到大按scaleFactor增长，
+ * 最后把互相接近的窗口聚合，邻居数不足minNeighbors的被丢弃
+ */
+public class JavaFaceDetectionEngine implements FaceDetectionEngine {
+    public static final String NAME = "java-haar";
+    public static final float DEFAULT_SCALE_FACTOR = 1.2f;
+    public static final int DEFAULT_MIN_NEIGHBORS = 3;
+    private static final float GROUP_EPS = 0.2f;                    // 聚合时位置和大小允许的相对偏差
+    private static final float EYES_Y_RATIO = 0.4f;                 // 两眼中点在窗口中的竖直位置
+    private static final float EYES_DISTANCE_RATIO = 0.4f;          // 两眼距离占窗口宽度的比例
+
+    private final HaarCascade mCascade;
+    private final ExecutorService mExecutor;
+    private final float mScaleFactor;
+    private final int mMinNeighbors;
+    private final FaceMerger mMerger = new FaceMerger();
+
+    public JavaFaceDetectionEngine(HaarCascade cascade) {
+        this(cascade, Runtime.getRuntime().availableProcessors(), DEFAULT_SCALE_FACTOR, DEFAULT_MIN_NEIGHBORS);
+    }
+
+    /**
+     * @param cascade      级联分类器
+     * @param threadCount  扫描的线程数
+     * @param scaleFactor  相邻两次扫描窗口大小的比例，大于1
+     * @param minNeighbors 聚合后至少需要的窗口数
+     */
+    public JavaFaceDetectionEngine(HaarCascade cascade, int threadCount, float scaleFactor, int minNeighbors) {
+        if (scaleFactor <= 1) {
+            throw new IllegalArgumentException("scaleFactor must be > 1");
+        }
+        mCascade = cascade;
+        mScaleFactor = scaleFactor;
+        mMinNeighbors = minNeighbors;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, NAME + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+        final int width = buffer.getWidth();
+        final int height = buffer.getHeight();
+        final IntegralImage image;
+        if (buffer instanceof PixelFrame && ((PixelFrame) buffer).getFormat() == PixelFrame.FORMAT_LUMA) {
+            // 直接读堆外的亮度，不复制到数组
+            image = IntegralImage.compute(((PixelFrame) buffer).getBuffer(), width, height);
+        } else {
+            byte[] luma = new byte[width * height];
+            buffer.readLuma(luma);
+            image = IntegralImage.compute(luma, width, height);
+        }
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        for (float scale = 1; mCascade.getWindowWidth() * scale <= width
+                && mCascade.getWindowHeight() * scale <= height; scale *= mScaleFactor) {
+            final HaarCascade.Scaled scaled = mCascade.scale(scale);
+            // 小窗口每隔两个像素扫描一次，大窗口的步长和倍数成正比
+            final int step = Math.max(2, Math.round(scale));
+            tasks.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return scan(image, scaled, step);
+                }
+            });
+        }
+        List<int[]> windows = new ArrayList<int[]>();
+        try {
+            for (Future<int[]> future : mExecutor.invokeAll(tasks)) {
+                windows.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FaceInfo[0];
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        FaceInfo[] faces = group(windows, mMinNeighbors);
+        return faces.length > maxCount ? Arrays.copyOf(faces, maxCount) : faces;
+    }
+
+    /**
+     * 扫描一个缩放倍数下的所有窗口
+     *
+     * @return 通过的窗口，每三个int为x、y、size
+     */
+    static int[] scan(IntegralImage image, HaarCascade.Scaled scaled, int step) {
+        int windowWidth = scaled.getWindowWidth();
+        int windowHeight = scaled.getWindowHeight();
+        int[] result = new int[48];
+        int count = 0;
+        for (int y = 0; y + windowHeight <= image.getHeight(); y += step) {
+            for (int x = 0; x + windowWidth <= image.getWidth(); x += step) {
+                if (scaled.classify(image, x, y) >= 0) {
+                    if (count + 3 > result.length) {
+                        result = Arrays.copyOf(result, result.length * 2);
+                    }
+                    result[count++] = x;
+                    result[count++] = y;
+                    result[count++] = windowWidth;
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * 聚合互相接近的窗口，类似OpenCV的groupRectangles，再用FaceMerger去掉包含在其他脸中的结果
+     *
+     * @param windows      每个缩放倍数的扫描结果
+     * @param minNeighbors 聚合后至少需要的窗口数
+     * @return 按可信度从高到低排列的人脸
+     */
+    FaceInfo[] group(List<int[]> windows, int minNeighbors) {
+        int total = 0;
+        for (int[] array : windows) {
+            total += array.length / 3;
+        }
+        int[] xs = new int[total];
+        int[] ys = new int[total];
+        int[] sizes = new int[total];
+        int index = 0;
+        for (int[] array : windows) {
+            for (int i = 0; i < array.length; i += 3, index++) {
+                xs[index] = array[i];
+                ys[index] = array[i + 1];
+                sizes[index] = array[i + 2];
+            }
+        }
+        // 并查集
+        int[] parents = new int[total];
+        for (int i = 0; i < total; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < total; i++) {
+            for (int j = i + 1; j < total; j++) {
+                float delta = GROUP_EPS * Math.min(sizes[i], sizes[j]) * 0.5f;
+                if (Math.abs(xs[i] - xs[j]) <= delta && Math.abs(ys[i] - ys[j]) <= delta
+                        && Math.abs(xs[i] + sizes[i] - xs[j] - sizes[j]) <= delta
+                        && Math.abs(ys[i] + sizes[i] - ys[j] - sizes[j]) <= delta) {
+                    int rootI = find(parents, i);
+                    int rootJ = find(parents, j);
+                    if (rootI != rootJ) {
+                        parents[rootJ] = rootI;
+                    }
+                }
+            }
+        }
+        int[] counts = new int[total];
+        long[] sumX = new long[total];
+        long[] sumY = new long[total];
+        long[] sumSize = new long[total];
+        for (int i = 0; i < total; i++) {
+            int root = find(parents, i);
+            counts[root]++;
+            sumX[root] += xs[i];
+            sumY[root] += ys[i];
+            sumSize[root] += sizes[i];
+        }
+        List<FaceInfo> faces = new ArrayList<FaceInfo>();
+        for (int i = 0; i < total; i++) {
+            if (counts[i] == 0 || counts[i] < minNeighbors) {
+                continue;
+            }
+            float x = sumX[i] * 1f / counts[i];
+            float y = sumY[i] * 1f / counts[i];
+            float size = sumSize[i] * 1f / counts[i];
+            // 窗口越多越可信
+            float confidence = counts[i] * 1f / (counts[i] + Math.max(1, minNeighbors));
+            faces.add(new FaceInfo(x + size / 2, y + size * EYES_Y_RATIO, size * EYES_DISTANCE_RATIO, confidence));
+        }
+        return mMerger.merge(faces);
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void release() {
+        mExecutor.shutdownNow();
+    }
+}
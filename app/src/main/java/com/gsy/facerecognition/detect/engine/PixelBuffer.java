@@ -0,0 +1,19 @@
+package com.gsy.facerecognition.detect.engine;
+
+/**
+ * 识别引擎的输入，只提供宽高和8位亮度，不依赖android.graphics，
+ * 设备上由BitmapPixelBuffer包装bitmap，本地测试和服务器上由ArrayPixelBuffer包装数组
+ */
+public interface PixelBuffer {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * 按行读取亮度，0到255
+     *
+     * @param out 结果，长度至少为width * height，第y行第x列为out[y * width + x]
+     */
+    void readLuma(byte[] out);
+}
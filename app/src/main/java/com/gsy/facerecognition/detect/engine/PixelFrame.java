@@ -0,0 +1,163 @@
+package com.gsy.facerecognition.detect.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 像素在Java堆外的一帧，由PixelFramePool从复用的direct ByteBuffer中分配。
+ * 设备上用Bitmap.copyPixelsToBuffer整块填充，识别、感知哈希和描述子直接读取ByteBuffer，不经过Java堆上的数组。
+ * 大部分识别只需要亮度，toLuma直接转换到另一个亮度帧，每像素只有1个字节，
+ * 比RGB_565少一半、比ARGB_8888少3/4的数据。
+ * 引用计数：acquire得到时为1，每多一个使用者retain一次，各自用完release，为0时归还到池中，之后不能再访问
+ */
+public class PixelFrame implements PixelBuffer {
+    public static final int FORMAT_LUMA = 1;                        // 8位亮度
+    public static final int FORMAT_RGB_565 = 2;                     // 本机字节序的16位，和Bitmap.Config.RGB_565的内存一致
+    public static final int FORMAT_ARGB_8888 = 4;                   // 和Bitmap.Config.ARGB_8888的内存一致，按字节为R、G、B、A
+
+    private final PixelFramePool mPool;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private volatile ByteBuffer mBuffer;                            // 归还后为null
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    PixelFrame(PixelFramePool pool, ByteBuffer buffer, int width, int height, int format) {
+        mPool = pool;
+        mBuffer = buffer;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+    }
+
+    /**
+     * @return 每像素字节数
+     */
+    public static int bytesPerPixel(int format) {
+        if (format != FORMAT_LUMA && format != FORMAT_RGB_565 && format != FORMAT_ARGB_8888) {
+            throw new IllegalArgumentException("format " + format);
+        }
+        return format;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return 像素数据的视图，position为0，limit为width * height * bytesPerPixel，本机字节序。
+     * 每次返回新的视图，多个线程可以同时读取
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("frame released");
+        }
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.nativeOrder());
+        view.clear();
+        view.limit(mWidth * mHeight * bytesPerPixel(mFormat));
+        return view;
+    }
+
+    /**
+     * 增加一个使用者
+     *
+     * @return this
+     */
+    public PixelFrame retain() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("frame released");
+            }
+        } while (!mRefCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * 一个使用者用完，最后一个使用者release时归还到池中
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count < 0) {
+            throw new IllegalStateException("frame released twice");
+        }
+        if (count == 0) {
+            ByteBuffer buffer = mBuffer;
+            mBuffer = null;
+            mPool.recycle(buffer);
+        }
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * 转换成亮度帧，本身就是亮度时retain后返回自己
+     *
+     * @param pool 亮度帧从这里分配
+     * @return 亮度帧，用完需要release
+     */
+    public PixelFrame toLuma(PixelFramePool pool) {
+        if (mFormat == FORMAT_LUMA) {
+            return retain();
+        }
+        PixelFrame luma = pool.acquire(mWidth, mHeight, FORMAT_LUMA);
+        convertToLuma(getBuffer(), mFormat, luma.getBuffer(), mWidth * mHeight);
+        return luma;
+    }
+
+    /**
+     * 需要数组的引擎使用，会复制到Java堆上，能直接读getBuffer时不要调用
+     */
+    @Override
+    public void readLuma(byte[] out) {
+        int count = mWidth * mHeight;
+        if (mFormat == FORMAT_LUMA) {
+            getBuffer().get(out, 0, count);
+        } else {
+            convertToLuma(getBuffer(), mFormat, ByteBuffer.wrap(out), count);
+        }
+    }
+
+    /**
+     * 按BT.601转换亮度，和ArrayPixelBuffer.toLuma一致，RGB_565先扩展到8位
+     *
+     * @param src    像素，position为0，本机字节序
+     * @param format src的格式，不能是FORMAT_LUMA
+     * @param dst    亮度，position为0
+     * @param count  像素数
+     */
+    static void convertToLuma(ByteBuffer src, int format, ByteBuffer dst, int count) {
+        if (format == FORMAT_RGB_565) {
+            for (int i = 0; i < count; i++) {
+                int pixel = src.getShort(i << 1);
+                int r = pixel >> 11 & 0x1F;
+                int g = pixel >> 5 & 0x3F;
+                int b = pixel & 0x1F;
+                dst.put(i, (byte) (((r << 3 | r >> 2) * 77 + (g << 2 | g >> 4) * 150 + (b << 3 | b >> 2) * 29) >> 8));
+            }
+        } else if (format == FORMAT_ARGB_8888) {
+            for (int i = 0; i < count; i++) {
+                int offset = i << 2;
+                dst.put(i, (byte) (((src.get(offset) & 0xFF) * 77 + (src.get(offset + 1) & 0xFF) * 150
+                        + (src.get(offset + 2) & 0xFF) * 29) >> 8));
+            }
+        } else {
+            throw new IllegalArgumentException("format " + format);
+        }
+    }
+}
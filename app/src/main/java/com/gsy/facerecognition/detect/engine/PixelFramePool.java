@@ -0,0 +1,122 @@
+package com.gsy.facerecognition.detect.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PixelFrame使用的direct ByteBuffer对象池，按容量分桶，取出时使用不小于需要、并且不超过需要两倍的最小的buffer。
+ * direct内存不在Java堆上，只有ByteBuffer对象被GC回收时才释放，频繁申请很容易耗尽，因此总是复用；
+ * 池中的总字节数有上限，超出时先丢弃最大的buffer
+ */
+public class PixelFramePool {
+    private static final int MAX_WASTE_FACTOR = 2;                  // 复用的buffer最多是需要的容量的倍数
+
+    private final long mMaxBytes;
+    private final TreeMap<Integer, ArrayDeque<ByteBuffer>> mBuffers = new TreeMap<Integer, ArrayDeque<ByteBuffer>>();
+    private long mSize;                                             // 池中buffer的总字节数
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * 按进程最大内存的1/32作为上限，帧都是识别图大小，比bitmap对象池小
+     */
+    public static PixelFramePool createDefault() {
+        return new PixelFramePool(Runtime.getRuntime().maxMemory() / 32);
+    }
+
+    public PixelFramePool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 分配一帧，内容是之前使用留下的，调用者会完全覆盖
+     *
+     * @param width  宽
+     * @param height 高
+     * @param format PixelFrame.FORMAT_XXX
+     * @return 引用计数为1的帧，用完需要release
+     */
+    public PixelFrame acquire(int width, int height, int format) {
+        int capacity = width * height * PixelFrame.bytesPerPixel(format);
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = poll(capacity);
+            if (buffer == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        return new PixelFrame(this, buffer, width, height, format);
+    }
+
+    /**
+     * 由PixelFrame.release调用
+     */
+    synchronized void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() > mMaxBytes / 2) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> buffers = mBuffers.get(buffer.capacity());
+        if (buffers == null) {
+            buffers = new ArrayDeque<ByteBuffer>();
+            mBuffers.put(buffer.capacity(), buffers);
+        }
+        buffers.push(buffer);
+        mSize += buffer.capacity();
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private ByteBuffer poll(int capacity) {
+        Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = mBuffers.ceilingEntry(capacity);
+        if (entry == null || entry.getKey() > (long) capacity * MAX_WASTE_FACTOR) {
+            return null;
+        }
+        ArrayDeque<ByteBuffer> buffers = entry.getValue();
+        ByteBuffer buffer = buffers.pop();
+        if (buffers.isEmpty()) {
+            mBuffers.remove(entry.getKey());
+        }
+        mSize -= buffer.capacity();
+        return buffer;
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Integer, ArrayDeque<ByteBuffer>>> iterator = mBuffers.descendingMap().entrySet()
+                .iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = iterator.next();
+            ArrayDeque<ByteBuffer> buffers = entry.getValue();
+            while (mSize > maxBytes && !buffers.isEmpty()) {
+                buffers.pop();
+                mSize -= entry.getKey();
+            }
+            if (buffers.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.gsy.facerecognition.detect.engine;
+
+/**
+ * 像素本来就是RGB_565的PixelBuffer，例如连续识别中预先分配的帧，
+ * Android引擎可以整块复制到RGB_565 bitmap，不用逐个像素转换亮度
+ */
+public interface Rgb565Buffer extends PixelBuffer {
+
+    /**
+     * @return 按行排列的RGB_565像素，第y行第x列为[y * width + x]，长度可能大于width * height
+     */
+    short[] getRgb565();
+}
@@ -0,0 +1,72 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+/**
+ * 可以在运行中替换的引擎：先用一个马上可用的引擎，后台选出更快的引擎后调用switchTo替换，
+ * 之后的detect使用新的引擎。持有者不需要知道替换，getName返回当前引擎的名字。
+ * 被替换的引擎会被释放，正在进行的识别可能还在使用它，因此初始引擎的release必须不影响正在进行的识别，
+ * 例如AndroidFaceDetectionEngine
+ */
+public class SwitchingFaceDetectionEngine implements FaceDetectionEngine {
+    private FaceDetectionEngine mEngine;                            // 以下由this保护
+    private boolean mIsReleased;
+
+    /**
+     * @param initial 替换之前使用的引擎
+     */
+    public SwitchingFaceDetectionEngine(FaceDetectionEngine initial) {
+        mEngine = initial;
+    }
+
+    /**
+     * 替换引擎，已经释放时直接释放新的引擎
+     *
+     * @param engine 新的引擎，和当前引擎相同时不做任何事
+     */
+    public void switchTo(FaceDetectionEngine engine) {
+        FaceDetectionEngine old;
+        synchronized (this) {
+            if (engine == mEngine) {
+                return;
+            }
+            if (mIsReleased) {
+                old = engine;
+            } else {
+                old = mEngine;
+                mEngine = engine;
+            }
+        }
+        old.release();
+    }
+
+    /**
+     * @return 当前使用的引擎
+     */
+    public synchronized FaceDetectionEngine getEngine() {
+        return mEngine;
+    }
+
+    @Override
+    public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+        return getEngine().detect(buffer, maxCount);
+    }
+
+    @Override
+    public String getName() {
+        return getEngine().getName();
+    }
+
+    @Override
+    public void release() {
+        FaceDetectionEngine engine;
+        synchronized (this) {
+            if (mIsReleased) {
+                return;
+            }
+            mIsReleased = true;
+            engine = mEngine;
+        }
+        engine.release();
+    }
+}
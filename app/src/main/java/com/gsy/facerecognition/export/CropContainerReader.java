@@ -0,0 +1,158 @@
+package com.gsy.facerecognition.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 读取CropContainerWriter写入的容器。有文件尾时只读索引；没有时从头逐条扫描记录并校验CRC，
+ * 到第一条不完整或者损坏的记录为止
+ */
+public class CropContainerReader implements Closeable {
+    private static final int MAX_META_LENGTH = 64 * 1024;           // 单条描述的最大长度，超出视为损坏
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<CropEntry> mEntries;
+    private final boolean mIsRecovered;
+
+    public CropContainerReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(CropContainerWriter.HEADER_SIZE);
+            if (!readFully(header, 0) || header.getInt(0) != CropContainerWriter.MAGIC
+                    || header.getInt(4) != CropContainerWriter.VERSION) {
+                throw new IOException("not a crop container " + file);
+            }
+            List<CropEntry> entries = readIndex();
+            mIsRecovered = entries == null;
+            mEntries = Collections.unmodifiableList(entries != null ? entries : scan());
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public List<CropEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return 是否没有索引，由扫描记录得到
+     */
+    public boolean isRecovered() {
+        return mIsRecovered;
+    }
+
+    /**
+     * @return 编码后的图片数据
+     */
+    public byte[] read(CropEntry entry) throws IOException {
+        byte[] data = new byte[entry.getDataLength()];
+        if (!readFully(ByteBuffer.wrap(data), entry.getDataOffset())) {
+            throw new IOException("truncated " + entry);
+        }
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * @return 索引中的条目，没有文件尾时为null
+     */
+    private List<CropEntry> readIndex() throws IOException {
+        long length = mChannel.size();
+        if (length < CropContainerWriter.HEADER_SIZE + CropContainerWriter.FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(CropContainerWriter.FOOTER_SIZE);
+        if (!readFully(footer, length - CropContainerWriter.FOOTER_SIZE)
+                || footer.getInt(12) != CropContainerWriter.FOOTER_MAGIC) {
+            return null;
+        }
+        long indexOffset = footer.getLong(0);
+        int count = footer.getInt(8);
+        long indexLength = length - CropContainerWriter.FOOTER_SIZE - indexOffset;
+        if (indexOffset < CropContainerWriter.HEADER_SIZE || indexLength < 8 || indexLength > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] index = new byte[(int) indexLength];
+        if (!readFully(ByteBuffer.wrap(index), indexOffset)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        if (in.readInt() != CropContainerWriter.INDEX_MAGIC || in.readInt() != count) {
+            return null;
+        }
+        List<CropEntry> entries = new ArrayList<CropEntry>(count);
+        for (int i = 0; i < count; i++) {
+            long dataOffset = in.readLong();
+            int dataLength = in.readInt();
+            CropEntry entry = CropEntry.readMeta(in);
+            entry.setData(dataOffset, dataLength);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private List<CropEntry> scan() throws IOException {
+        List<CropEntry> entries = new ArrayList<CropEntry>();
+        long length = mChannel.size();
+        long position = CropContainerWriter.HEADER_SIZE;
+        ByteBuffer head = ByteBuffer.allocate(CropContainerWriter.RECORD_HEADER_SIZE);
+        while (true) {
+            head.clear();
+            if (!readFully(head, position) || head.getInt(0) != CropContainerWriter.RECORD_MAGIC) {
+                break;
+            }
+            int metaLength = head.getInt(4);
+            int dataLength = head.getInt(8);
+            long recordLength = CropContainerWriter.RECORD_HEADER_SIZE + (long) metaLength + dataLength + 4;
+            if (metaLength <= 0 || metaLength > MAX_META_LENGTH || dataLength < 0
+                    || position + recordLength > length) {
+                break;
+            }
+            byte[] body = new byte[metaLength + dataLength + 4];
+            if (!readFully(ByteBuffer.wrap(body), position + CropContainerWriter.RECORD_HEADER_SIZE)) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, metaLength + dataLength);
+            if ((int) crc.getValue() != ByteBuffer.wrap(body, metaLength + dataLength, 4).getInt()) {
+                break;
+            }
+            CropEntry entry = CropEntry.readMeta(new DataInputStream(new ByteArrayInputStream(body, 0, metaLength)));
+            entry.setData(position + CropContainerWriter.RECORD_HEADER_SIZE + metaLength, dataLength);
+            entries.add(entry);
+            position += recordLength;
+        }
+        return entries;
+    }
+
+    /**
+     * @return 是否读满，到文件尾时为false
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+package com.gsy.facerecognition.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 把大量人脸缩略图打包写入一个文件，避免每张图一个文件的文件系统开销。
+ * 格式：文件头，之后每张图一条记录：魔数 + 描述长度 + 数据长度 + 描述 + 编码后的图片 + CRC32，
+ * finish时在最后写入索引和文件尾，读取时只需要读文件尾和索引。
+ * 多个线程可以同时append：每条记录先在锁内分配位置，再用FileChannel按位置写入，写入互不等待。
+ * 没有finish的文件没有索引，CropContainerReader逐条扫描记录恢复
+ */
+public class CropContainerWriter implements Closeable {
+    static final int MAGIC = 0x46434331;                            // "FCC1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;                              // 魔数 + 版本 + 保留
+    static final int RECORD_MAGIC = 0x43524F50;                     // "CROP"
+    static final int RECORD_HEADER_SIZE = 12;                       // 魔数 + 描述长度 + 数据长度
+    static final int INDEX_MAGIC = 0x494E4458;                      // "INDX"
+    static final int FOOTER_MAGIC = 0x46454E44;                     // "FEND"
+    static final int FOOTER_SIZE = 16;                              // 索引位置 + 条数 + 魔数
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<CropEntry> mEntries = new ArrayList<CropEntry>();    // 以下由this保护
+    private long mPosition = HEADER_SIZE;                           // 下一条记录的位置
+    private boolean mIsFinished;
+
+    /**
+     * 新建容器，已有的文件被覆盖
+     */
+    public CropContainerWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mFile.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 追加一张缩略图，可以在多个线程中同时调用
+     *
+     * @param entry  描述，写入后设置数据在文件中的位置
+     * @param data   编码后的图片
+     * @param length data中有效的长度
+     */
+    public void append(CropEntry entry, byte[] data, int length) throws IOException {
+        ByteArrayOutputStream metaBytes = new ByteArrayOutputStream(64);
+        DataOutputStream metaOut = new DataOutputStream(metaBytes);
+        entry.writeMeta(metaOut);
+        metaOut.flush();
+        byte[] meta = metaBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(meta);
+        crc.update(data, 0, length);
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_SIZE + meta.length);
+        head.putInt(RECORD_MAGIC).putInt(meta.length).putInt(length).put(meta).flip();
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        tail.putInt((int) crc.getValue()).flip();
+        long position;
+        synchronized (this) {
+            if (mIsFinished) {
+                throw new IllegalStateException("finished");
+            }
+            position = mPosition;
+            mPosition += head.remaining() + length + tail.remaining();
+        }
+        long dataOffset = position + head.remaining();
+        writeFully(head, position);
+        writeFully(ByteBuffer.wrap(data, 0, length), dataOffset);
+        writeFully(tail, dataOffset + length);
+        entry.setData(dataOffset, length);
+        synchronized (this) {
+            mEntries.add(entry);
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return 已经分配的文件长度
+     */
+    public synchronized long getBytesWritten() {
+        return mPosition;
+    }
+
+    /**
+     * 写入索引和文件尾并关闭，必须在所有append返回之后调用
+     */
+    public synchronized void finish() throws IOException {
+        if (mIsFinished) {
+            return;
+        }
+        mIsFinished = true;
+        try {
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(mEntries.size() * 64 + 8);
+            DataOutputStream out = new DataOutputStream(indexBytes);
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(mEntries.size());
+            for (CropEntry entry : mEntries) {
+                out.writeLong(entry.getDataOffset());
+                out.writeInt(entry.getDataLength());
+                entry.writeMeta(out);
+            }
+            out.writeLong(mPosition);
+            out.writeInt(mEntries.size());
+            out.writeInt(FOOTER_MAGIC);
+            out.flush();
+            writeFully(ByteBuffer.wrap(indexBytes.toByteArray()), mPosition);
+            mChannel.force(true);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * 不写索引直接关闭，例如导出被取消，已经写入的记录仍然可以扫描读取
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mIsFinished) {
+            mIsFinished = true;
+            mFile.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.gsy.facerecognition.export;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 容器文件中的一张人脸缩略图的描述，编码后的图片数据在容器中的位置由dataOffset和dataLength给出
+ */
+public class CropEntry {
+    private final String mPath;                                     // 原图路径
+    private final int mFaceIndex;                                   // 在识别结果中的下标
+    private final int mLeft;                                        // 人脸框，原图摆正后的坐标
+    private final int mTop;
+    private final int mRight;
+    private final int mBottom;
+    private final int mWidth;                                       // 缩略图的宽
+    private final int mHeight;                                      // 缩略图的高
+    private long mDataOffset;
+    private int mDataLength;
+
+    public CropEntry(String path, int faceIndex, int left, int top, int right, int bottom, int width, int height) {
+        mPath = path;
+        mFaceIndex = faceIndex;
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getFaceIndex() {
+        return mFaceIndex;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getRight() {
+        return mRight;
+    }
+
+    public int getBottom() {
+        return mBottom;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getDataOffset() {
+        return mDataOffset;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    void setData(long dataOffset, int dataLength) {
+        mDataOffset = dataOffset;
+        mDataLength = dataLength;
+    }
+
+    void writeMeta(DataOutput out) throws IOException {
+        out.writeUTF(mPath);
+        out.writeInt(mFaceIndex);
+        out.writeInt(mLeft);
+        out.writeInt(mTop);
+        out.writeInt(mRight);
+        out.writeInt(mBottom);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+    }
+
+    static CropEntry readMeta(DataInput in) throws IOException {
+        return new CropEntry(in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt()
+                , in.readInt(), in.readInt());
+    }
+
+    @Override
+    public String toString() {
+        return "CropEntry{" + mPath + "#" + mFaceIndex + ", rect=[" + mLeft + ", " + mTop + ", " + mRight + ", "
+                + mBottom + "], size=" + mWidth + "x" + mHeight + ", data=" + mDataOffset + "+" + mDataLength + '}';
+    }
+}
@@ -0,0 +1,452 @@
+package com.gsy.facerecognition.export;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.index.FaceIndexStore;
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+import com.gsy.facerecognition.utils.PixelMemoryGovernor;
+import com.gsy.facerecognition.utils.ScaleSizeUtils;
+import com.gsy.facerecognition.view.FaceOverlayGeometry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把索引中所有人脸导出为缩略图，写入一个CropContainerWriter容器。
+ * 每张图片只打开一个BitmapRegionDecoder，每张脸只解码人脸框附近的区域，并且用inSampleSize在解码时缩小，
+ * 不解码整张图片；解码、摆正、缩放和JPEG编码由固定数量的后台线程完成，同时存在的bitmap不超过线程数，
+ * 解码之前向PixelMemoryGovernor预留。无法打开或者解码的图片记为失败，不影响其他图片；
+ * 写容器失败时整个导出失败
+ */
+public class FaceCropExporter {
+    private static final String TAG = "FaceCropExporter";
+    public static final int DEFAULT_MAX_SIDE = 160;                 // 缩略图的最大边长
+    public static final int DEFAULT_QUALITY = 85;                   // JPEG质量
+
+    /**
+     * 一次导出的统计
+     */
+    public static class Stats {
+        private int mImages;                                        // 有人脸需要导出的图片数
+        private final AtomicInteger mExported = new AtomicInteger();    // 导出完成的图片数
+        private final AtomicInteger mFailed = new AtomicInteger();  // 无法打开、解码或者已经修改过的图片数
+        private final AtomicInteger mCrops = new AtomicInteger();   // 写入的缩略图数
+        private final AtomicLong mBytes = new AtomicLong();         // 缩略图编码后的总字节数
+        private final AtomicLong mBitmapBytes = new AtomicLong();   // 正在使用的bitmap字节数
+        private final AtomicLong mPeakBitmapBytes = new AtomicLong();
+        private final AtomicLong mPeakHeapBytes = new AtomicLong(); // 每张图片完成时采样的Java堆占用的最大值
+        private long mPeakReservedBytes;                            // PixelMemoryGovernor的预留峰值，进程内所有解码
+        private long mElapsedNanos;
+        private boolean mIsCompleted;
+
+        public int getImages() {
+            return mImages;
+        }
+
+        public int getExported() {
+            return mExported.get();
+        }
+
+        public int getFailed() {
+            return mFailed.get();
+        }
+
+        public int getCrops() {
+            return mCrops.get();
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        public long getPeakBitmapBytes() {
+            return mPeakBitmapBytes.get();
+        }
+
+        public long getPeakHeapBytes() {
+            return mPeakHeapBytes.get();
+        }
+
+        public long getPeakReservedBytes() {
+            return mPeakReservedBytes;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public float getCropsPerSecond() {
+            return mElapsedNanos > 0 ? getCrops() * 1e9f / mElapsedNanos : 0;
+        }
+
+        public boolean isCompleted() {
+            return mIsCompleted;
+        }
+
+        private void addBitmap(Bitmap bitmap) {
+            long bytes = mBitmapBytes.addAndGet(BitmapPool.byteCountOf(bitmap));
+            long peak;
+            while (bytes > (peak = mPeakBitmapBytes.get()) && !mPeakBitmapBytes.compareAndSet(peak, bytes)) {
+                // 重试
+            }
+        }
+
+        private void removeBitmap(Bitmap bitmap) {
+            mBitmapBytes.addAndGet(-BitmapPool.byteCountOf(bitmap));
+        }
+
+        private void sampleHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            long peak;
+            while (used > (peak = mPeakHeapBytes.get()) && !mPeakHeapBytes.compareAndSet(peak, used)) {
+                // 重试
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{images=" + mImages + ", exported=" + mExported + ", failed=" + mFailed
+                    + ", crops=" + mCrops + ", bytes=" + mBytes + ", cropsPerSecond=" + getCropsPerSecond()
+                    + ", peakBitmap=" + mPeakBitmapBytes.get() / 1024 + "KB, peakHeap="
+                    + mPeakHeapBytes.get() / 1024 + "KB, peakReserved=" + mPeakReservedBytes / 1024
+                    + "KB, completed=" + mIsCompleted + ", time=" + mElapsedNanos / 1000000 + "ms}";
+        }
+    }
+
+    private final FaceIndexStore mStore;
+    private final BitmapPool mBitmapPool;
+    private final int mMaxSide;
+    private final int mQuality;
+    private final int mWorkerCount;
+    private final ExecutorService mExecutor;
+    private volatile boolean mIsReleased;
+
+    /**
+     * 默认的缩略图大小和质量，工作线程数为CPU核数-1
+     */
+    public FaceCropExporter(FaceIndexStore store) {
+        this(store, DEFAULT_MAX_SIDE, DEFAULT_QUALITY, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * @param store       人脸索引，导出其中所有的人脸
+     * @param maxSide     缩略图的最大边长
+     * @param quality     JPEG质量
+     * @param workerCount 工作线程数，同时解码的区域不超过这个数
+     */
+    public FaceCropExporter(FaceIndexStore store, int maxSide, int quality, int workerCount) {
+        mStore = store;
+        mBitmapPool = BitmapUtils.getBitmapPool();
+        mMaxSide = maxSide;
+        mQuality = quality;
+        mWorkerCount = Math.max(1, workerCount);
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(mWorkerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 导出到容器文件，在调用线程中等待所有图片完成。没有完成时容器不写索引，已经写入的缩略图仍然可以扫描读取
+     *
+     * @param file 容器文件，已有的文件被覆盖
+     * @return 统计，被释放时isCompleted为false
+     * @throws IOException          写容器失败
+     * @throws InterruptedException 调用线程被中断
+     */
+    public Stats export(File file) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        List<String> paths = new ArrayList<String>();
+        List<FaceIndexStore.Record> records = new ArrayList<FaceIndexStore.Record>();
+        for (String path : mStore.getPaths()) {
+            FaceIndexStore.Record record = mStore.get(path);
+            if (record != null && !record.isFailed() && record.getFaces().length > 0) {
+                paths.add(path);
+                records.add(record);
+            }
+        }
+        stats.mImages = paths.size();
+        CropContainerWriter writer = new CropContainerWriter(file);
+        try {
+            stats.mIsCompleted = paths.isEmpty() || processAll(paths, records, writer, stats);
+            if (stats.mIsCompleted) {
+                writer.finish();
+            }
+        } finally {
+            writer.close();
+        }
+        stats.mPeakReservedBytes = BitmapUtils.getMemoryGovernor().getPeakReserved();
+        stats.mElapsedNanos = System.nanoTime() - start;
+        Log.d(TAG, stats.toString());
+        return stats;
+    }
+
+    /**
+     * 取消正在进行的导出并释放线程池，释放后export直接返回
+     */
+    public void release() {
+        mIsReleased = true;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return 是否所有图片都已经完成
+     */
+    private boolean processAll(List<String> paths, List<FaceIndexStore.Record> records, CropContainerWriter writer
+            , Stats stats) throws IOException, InterruptedException {
+        AtomicInteger nextImage = new AtomicInteger();
+        int workerCount = Math.min(mWorkerCount, paths.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workerCount);
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(mExecutor.submit(new Worker(paths, records, nextImage, writer, stats)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (RejectedExecutionException e) {
+            // 已经被释放
+            cancelAll(futures);
+            return false;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            Log.e(TAG, "export failed", e.getCause());
+            return false;
+        }
+        return !mIsReleased && stats.getExported() + stats.getFailed() == paths.size();
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * 编码输出，直接使用内部数组，避免每张缩略图复制一次
+     */
+    private static class CropBuffer extends ByteArrayOutputStream {
+        CropBuffer() {
+            super(32 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * 工作线程，依次取出还没有导出的图片
+     */
+    private class Worker implements Callable<Void> {
+        private final List<String> mPaths;
+        private final List<FaceIndexStore.Record> mRecords;
+        private final AtomicInteger mNextImage;
+        private final CropContainerWriter mWriter;
+        private final Stats mStats;
+        private final CropBuffer mBuffer = new CropBuffer();
+        private final float[] mFaceRect = new float[FaceOverlayGeometry.RECT_SIZE];
+        private final float[] mTransform = new float[ExifOrientation.TRANSFORM_SIZE];
+
+        Worker(List<String> paths, List<FaceIndexStore.Record> records, AtomicInteger nextImage
+                , CropContainerWriter writer, Stats stats) {
+            mPaths = paths;
+            mRecords = records;
+            mNextImage = nextImage;
+            mWriter = writer;
+            mStats = stats;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            int index;
+            while ((index = mNextImage.getAndIncrement()) < mPaths.size()) {
+                if (mIsReleased || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                String path = mPaths.get(index);
+                boolean isExported;
+                try {
+                    isExported = exportImage(path, mRecords.get(index));
+                } catch (RuntimeException e) {
+                    // 损坏的图片可能让解码器抛出各种异常，只跳过这一张
+                    Log.w(TAG, "export failed " + path, e);
+                    isExported = false;
+                }
+                if (mIsReleased || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (isExported) {
+                    mStats.mExported.incrementAndGet();
+                } else {
+                    mStats.mFailed.incrementAndGet();
+                }
+                mStats.sampleHeap();
+            }
+            return null;
+        }
+
+        /**
+         * @return 是否成功，图片无法打开、解码或者和索引时不一致时为false
+         * @throws IOException 写容器失败
+         */
+        private boolean exportImage(String path, FaceIndexStore.Record record) throws IOException {
+            ImageHeaderParser.ImageHeader header = BitmapUtils.readHeader(path);
+            if (header == null) {
+                return false;
+            }
+            int orientation = header.getOrientation();
+            if (ExifOrientation.uprightWidth(orientation, header.getWidth(), header.getHeight()) != record.getWidth()
+                    || ExifOrientation.uprightHeight(orientation, header.getWidth(), header.getHeight())
+                    != record.getHeight()) {
+                // 索引之后文件被修改，人脸坐标已经不对
+                Log.w(TAG, "stale index " + path);
+                return false;
+            }
+            BitmapRegionDecoder decoder;
+            try {
+                decoder = BitmapRegionDecoder.newInstance(path, false);
+            } catch (IOException e) {
+                Log.w(TAG, "open region decoder failed " + path, e);
+                return false;
+            }
+            try {
+                ExifOrientation.fromUpright(orientation, header.getWidth(), header.getHeight(), mTransform);
+                FaceInfo[] faces = record.getFaces();
+                for (int i = 0; i < faces.length; i++) {
+                    if (!exportFace(decoder, path, header, record, i)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                decoder.recycle();
+            }
+        }
+
+        /**
+         * @return 是否成功，人脸框在图片外时跳过，也算成功
+         */
+        private boolean exportFace(BitmapRegionDecoder decoder, String path, ImageHeaderParser.ImageHeader header
+                , FaceIndexStore.Record record, int faceIndex) throws IOException {
+            float[] r = mFaceRect;
+            if (!FaceOverlayGeometry.computeFaceRect(record.getFaces()[faceIndex], record.getWidth()
+                    , record.getHeight(), r)) {
+                return true;
+            }
+            // 摆正后的人脸框映射回图片数据的坐标，旋转和镜像之后对角还是对角
+            float x0 = ExifOrientation.mapX(mTransform, r[0], r[1]);
+            float y0 = ExifOrientation.mapY(mTransform, r[0], r[1]);
+            float x1 = ExifOrientation.mapX(mTransform, r[2], r[3]);
+            float y1 = ExifOrientation.mapY(mTransform, r[2], r[3]);
+            Rect region = new Rect(Math.max(0, (int) Math.floor(Math.min(x0, x1)))
+                    , Math.max(0, (int) Math.floor(Math.min(y0, y1)))
+                    , Math.min(header.getWidth(), (int) Math.ceil(Math.max(x0, x1)))
+                    , Math.min(header.getHeight(), (int) Math.ceil(Math.max(y0, y1))));
+            if (region.isEmpty()) {
+                return true;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            // 区域解码只支持2的幂，剩下的在缩放时完成
+            options.inSampleSize = Integer.highestOneBit(ScaleSizeUtils.computeSampleSize(region.width()
+                    , region.height(), mMaxSide, mMaxSide));
+            // 缩略图的大小固定，预算不足时只等待
+            PixelMemoryGovernor.Grant grant = BitmapUtils.reserveDecode(region.width(), region.height()
+                    , options.inSampleSize, 4, PixelMemoryGovernor.DEGRADE_NONE);
+            if (grant == null) {
+                return false;
+            }
+            Bitmap crop = null;
+            try {
+                long start = Metrics.start();
+                crop = mBitmapPool.decodeRegion(decoder, region, options);
+                Metrics.end(Metrics.STAGE_DECODE, start);
+                BitmapUtils.recordBitmapBytes(Metrics.STAGE_DECODE, crop);
+                if (crop == null) {
+                    Log.w(TAG, "decode region failed " + path + " " + region);
+                    return false;
+                }
+                mStats.addBitmap(crop);
+                crop = replace(crop, BitmapUtils.decodeBitmapByOrientation(crop, header.getOrientation(), false
+                        , mBitmapPool));
+                float scale = Math.min(1f, mMaxSide * 1f / Math.max(crop.getWidth(), crop.getHeight()));
+                if (scale < 1) {
+                    crop = replace(crop, Bitmap.createScaledBitmap(crop, Math.max(1, Math.round(crop.getWidth()
+                            * scale)), Math.max(1, Math.round(crop.getHeight() * scale)), true));
+                }
+                mBuffer.reset();
+                if (!crop.compress(Bitmap.CompressFormat.JPEG, mQuality, mBuffer)) {
+                    Log.w(TAG, "compress failed " + path);
+                    return false;
+                }
+                CropEntry entry = new CropEntry(path, faceIndex, Math.round(r[0]), Math.round(r[1])
+                        , Math.round(r[2]), Math.round(r[3]), crop.getWidth(), crop.getHeight());
+                mWriter.append(entry, mBuffer.array(), mBuffer.size());
+                mStats.mCrops.incrementAndGet();
+                mStats.mBytes.addAndGet(mBuffer.size());
+                return true;
+            } finally {
+                if (crop != null) {
+                    mStats.removeBitmap(crop);
+                    mBitmapPool.put(crop);
+                }
+                BitmapUtils.releaseDecode(grant);
+            }
+        }
+
+        /**
+         * 用新生成的bitmap替换旧的，旧的归还对象池
+         */
+        private Bitmap replace(Bitmap old, Bitmap result) {
+            if (result == old) {
+                return old;
+            }
+            mStats.addBitmap(result);
+            mStats.removeBitmap(old);
+            mBitmapPool.put(old);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.gsy.facerecognition.index;
+
+import android.graphics.Bitmap;
+
+import com.gsy.facerecognition.detect.engine.PixelFrame;
+import com.gsy.facerecognition.detect.engine.PixelFramePool;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+import com.gsy.facerecognition.utils.ScaleSizeUtils;
+
+/**
+ * 用很小的解码计算感知哈希：按computeScaleSize缩小到HASH_MAX_PIXELS左右，RGB_565，不摆正，
+ * 方向在计算哈希时处理。JPEG大倍数缩小时解码器直接按DCT缩放，比解码识别图快得多。
+ * 亮度转换到堆外的PixelFrame，哈希直接从帧中读取
+ */
+public class BitmapImageHasher implements DuplicateDetector.Hasher {
+    public static final int HASH_MAX_PIXELS = 128 * 128;            // 计算哈希的解码图的最大像素数
+
+    private final BitmapPool mBitmapPool;
+    private final PixelFramePool mFramePool;
+
+    public BitmapImageHasher(BitmapPool bitmapPool) {
+        this(bitmapPool, BitmapUtils.getFramePool());
+    }
+
+    public BitmapImageHasher(BitmapPool bitmapPool, PixelFramePool framePool) {
+        mBitmapPool = bitmapPool;
+        mFramePool = framePool;
+    }
+
+    @Override
+    public boolean hash(String path, long[] out) {
+        ImageHeaderParser.ImageHeader header = BitmapUtils.readHeader(path);
+        if (header == null) {
+            return false;
+        }
+        int sampleSize = ScaleSizeUtils.computeScaleSize(header.getWidth(), header.getHeight(), -1, HASH_MAX_PIXELS);
+        Bitmap bitmap = BitmapUtils.decodeBitmap(path, header, sampleSize, true, mBitmapPool);
+        if (bitmap == null) {
+            return false;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        PixelFrame luma;
+        try {
+            luma = BitmapUtils.copyLumaToFrame(bitmap, mFramePool);
+        } finally {
+            mBitmapPool.put(bitmap);
+        }
+        int orientation = header.getOrientation();
+        try {
+            out[0] = PerceptualHash.dHash(luma.getBuffer(), width, height, orientation);
+        } finally {
+            luma.release();
+        }
+        out[1] = ExifOrientation.uprightWidth(orientation, header.getWidth(), header.getHeight());
+        out[2] = ExifOrientation.uprightHeight(orientation, header.getWidth(), header.getHeight());
+        return true;
+    }
+}
@@ -0,0 +1,59 @@
+package com.gsy.facerecognition.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 递归遍历一个目录中的JPEG和PNG图片，跳过隐藏的文件和目录，按路径排序保证每次的顺序相同
+ */
+public class DirectoryImageSource implements ImageSource {
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png"};
+
+    private final File mRoot;
+
+    public DirectoryImageSource(File root) {
+        mRoot = root;
+    }
+
+    @Override
+    public List<ImageEntry> listImages() throws IOException {
+        if (!mRoot.isDirectory()) {
+            throw new IOException("not a directory " + mRoot);
+        }
+        List<ImageEntry> entries = new ArrayList<ImageEntry>();
+        collect(mRoot, entries);
+        return entries;
+    }
+
+    private static void collect(File dir, List<ImageEntry> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                collect(file, out);
+            } else if (isImage(file.getName())) {
+                out.add(new ImageEntry(file.getAbsolutePath(), file.length(), file.lastModified()));
+            }
+        }
+    }
+
+    private static boolean isImage(String name) {
+        String lowerName = name.toLowerCase(Locale.US);
+        for (String extension : EXTENSIONS) {
+            if (lowerName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,228 @@
+package com.gsy.facerecognition.index;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.recognize.FaceLibrary;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 识别之前的查重：先用很小的解码计算感知哈希，索引中已有汉明距离很近、宽高比相同的图片时，
+ * 直接复用那张图片的识别结果，人脸坐标按宽高缩放，不再解码识别图和识别；
+ * 否则交给实际的识别，结果带上哈希保存，之后的副本可以复用。
+ * 有FaceLibrary时同时复制原图的人脸描述子，原图没有描述子时不复用。
+ * 阈值要小：连拍中人物动了的照片哈希也很近，但人脸的位置已经不同
+ */
+public class DuplicateDetector implements FaceIndexer.Detector {
+    private static final String TAG = "DuplicateDetector";
+    public static final int DEFAULT_MAX_DISTANCE = 4;               // 视为同一张图片的最大汉明距离
+    private static final float MAX_ASPECT_DIFF = 0.02f;             // 宽高比的最大相对差，超出说明被裁剪过
+    public static final int HASH_SIZE = 3;                          // Hasher的输出：哈希、摆正后的宽、高
+
+    /**
+     * 感知哈希的计算，在多个工作线程中同时调用，必须是线程安全的
+     */
+    public interface Hasher {
+
+        /**
+         * @param path 图片路径
+         * @param out  输出，长度至少为HASH_SIZE：哈希、原图摆正后的宽、高
+         * @return 是否成功，无法解码时为false
+         */
+        boolean hash(String path, long[] out);
+    }
+
+    /**
+     * 累计的统计
+     */
+    public static class Stats {
+        private final AtomicInteger mHits = new AtomicInteger();    // 复用已有结果
+        private final AtomicInteger mMisses = new AtomicInteger();  // 实际识别
+        private final AtomicLong mHashNanos = new AtomicLong();     // 计算哈希和查找的总时间，每张图片都有
+        private final AtomicLong mDetectNanos = new AtomicLong();   // 实际识别的总时间
+
+        public int getHits() {
+            return mHits.get();
+        }
+
+        public int getMisses() {
+            return mMisses.get();
+        }
+
+        public float getHitRate() {
+            int total = getHits() + getMisses();
+            return total > 0 ? getHits() * 1f / total : 0;
+        }
+
+        public long getHashNanos() {
+            return mHashNanos.get();
+        }
+
+        public long getDetectNanos() {
+            return mDetectNanos.get();
+        }
+
+        /**
+         * @return 节省的时间：命中的图片按实际识别的平均时间估算，减去所有图片计算哈希的开销，可能为负
+         */
+        public long getSavedNanos() {
+            int misses = getMisses();
+            long avoided = misses > 0 ? getDetectNanos() / misses * getHits() : 0;
+            return avoided - getHashNanos();
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + mHits + ", misses=" + mMisses + ", hitRate=" + getHitRate()
+                    + ", hash=" + mHashNanos.get() / 1000000 + "ms, detect=" + mDetectNanos.get() / 1000000
+                    + "ms, saved=" + getSavedNanos() / 1000000 + "ms}";
+        }
+    }
+
+    private final FaceIndexer.Detector mDetector;
+    private final Hasher mHasher;
+    private final FaceIndexStore mStore;
+    private final FaceLibrary mLibrary;
+    private final int mMaxDistance;
+    private final Stats mStats = new Stats();
+    private final MultiIndexHash<String> mIndex = new MultiIndexHash<String>();    // 以下由mIndex保护
+    private final HashMap<String, Long> mHashes = new HashMap<String, Long>();      // 每个路径在mIndex中的哈希
+    private boolean mIsLoaded;
+
+    /**
+     * @param detector    没有命中时的实际识别
+     * @param hasher      感知哈希的计算
+     * @param store       和FaceIndexer使用的同一个索引，查找原图的结果
+     * @param library     和detector使用的同一个FaceLibrary，没有时为null
+     * @param maxDistance 视为同一张图片的最大汉明距离
+     */
+    public DuplicateDetector(FaceIndexer.Detector detector, Hasher hasher, FaceIndexStore store
+            , @Nullable FaceLibrary library, int maxDistance) {
+        mDetector = detector;
+        mHasher = hasher;
+        mStore = store;
+        mLibrary = library;
+        mMaxDistance = maxDistance;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public FaceIndexStore.Record detect(ImageEntry entry) {
+        long start = System.nanoTime();
+        long[] hash = new long[HASH_SIZE];
+        boolean isHashed = mHasher.hash(entry.getPath(), hash) && hash[0] != PerceptualHash.NO_HASH;
+        FaceIndexStore.Record record = null;
+        if (isHashed) {
+            record = findDuplicate(entry, hash[0], (int) hash[1], (int) hash[2]);
+        }
+        mStats.mHashNanos.addAndGet(System.nanoTime() - start);
+        if (record != null) {
+            mStats.mHits.incrementAndGet();
+        } else {
+            start = System.nanoTime();
+            record = mDetector.detect(entry);
+            mStats.mDetectNanos.addAndGet(System.nanoTime() - start);
+            mStats.mMisses.incrementAndGet();
+            if (record == null) {
+                return null;
+            }
+            if (isHashed) {
+                record = record.withHash(hash[0]);
+            }
+        }
+        if (isHashed) {
+            synchronized (mIndex) {
+                Long old = mHashes.put(entry.getPath(), hash[0]);
+                if (old != null) {
+                    mIndex.remove(old, entry.getPath());
+                }
+                mIndex.add(hash[0], entry.getPath());
+            }
+        }
+        return record;
+    }
+
+    /**
+     * @return 复用的结果，没有可以复用的图片时为null
+     */
+    private FaceIndexStore.Record findDuplicate(ImageEntry entry, long hash, int width, int height) {
+        List<MultiIndexHash.Item<String>> candidates;
+        synchronized (mIndex) {
+            ensureLoaded();
+            candidates = mIndex.search(hash, mMaxDistance);
+        }
+        for (MultiIndexHash.Item<String> candidate : candidates) {
+            String path = candidate.getValue();
+            FaceIndexStore.Record original = mStore.get(path);
+            if (original == null || original.getHash() != candidate.getHash() || original.isFailed()) {
+                // 已经删除或者重新识别过，索引中的哈希过时
+                continue;
+            }
+            float scaleX = width * 1f / original.getWidth();
+            float scaleY = height * 1f / original.getHeight();
+            if (Math.abs(scaleX - scaleY) > MAX_ASPECT_DIFF * Math.max(scaleX, scaleY)) {
+                continue;
+            }
+            FaceInfo[] faces = original.getFaces();
+            if (mLibrary != null && !copyDescriptors(path, entry.getPath(), faces.length)) {
+                continue;
+            }
+            FaceInfo[] scaled = new FaceInfo[faces.length];
+            for (int i = 0; i < faces.length; i++) {
+                FaceInfo face = faces[i];
+                scaled[i] = new FaceInfo(face.getMidX() * scaleX, face.getMidY() * scaleY
+                        , face.eyesDistance() * scaleX, face.confidence());
+            }
+            return new FaceIndexStore.Record(entry.getLength(), entry.getLastModified(), width, height, scaled, hash);
+        }
+        return null;
+    }
+
+    /**
+     * 描述子和缩放无关，直接复制
+     *
+     * @return 是否成功，原图的描述子不全时为false
+     */
+    private boolean copyDescriptors(String from, String to, int faceCount) {
+        byte[][] descriptors = new byte[faceCount][];
+        try {
+            for (int i = 0; i < faceCount; i++) {
+                descriptors[i] = mLibrary.getDescriptor(from, i);
+                if (descriptors[i] == null) {
+                    return false;
+                }
+            }
+            mLibrary.replace(to, descriptors);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "copy descriptors failed " + from + " -> " + to, e);
+            return false;
+        }
+    }
+
+    /**
+     * 第一次查找时从索引中已有的哈希建立mIndex
+     */
+    private void ensureLoaded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        for (String path : mStore.getPaths()) {
+            FaceIndexStore.Record record = mStore.get(path);
+            if (record != null && record.getHash() != PerceptualHash.NO_HASH && !mHashes.containsKey(path)) {
+                mHashes.put(path, record.getHash());
+                mIndex.add(record.getHash(), path);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.gsy.facerecognition.index;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceFilter;
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.detect.engine.BitmapPixelBuffer;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngines;
+import com.gsy.facerecognition.detect.engine.PixelBuffer;
+import com.gsy.facerecognition.detect.engine.PixelFrame;
+import com.gsy.facerecognition.detect.engine.PixelFramePool;
+import com.gsy.facerecognition.recognize.FaceLibrary;
+import com.gsy.facerecognition.recognize.LbpDescriptor;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.DetectionFrame;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.utils.ImageHeaderParser;
+
+import java.io.IOException;
+
+/**
+ * 索引使用的识别：直接解码出识别图，用识别引擎找出人脸，结果换算到原图摆正后的坐标。
+ * 不解码显示图也不分块，每张图片只占用一张识别图的内存。
+ * 有FaceLibrary时在释放识别图之前计算每张脸的描述子，替换这张图片在FaceLibrary中原有的脸。
+ * 只需要亮度的引擎和描述子共用一个堆外的亮度帧，识别图的像素只转换一次；系统引擎直接使用bitmap
+ */
+public class EngineImageDetector implements FaceIndexer.Detector {
+    private static final String TAG = "EngineImageDetector";
+    public static final int DEFAULT_MAX_SIDE = 1000;                // 识别图的最大宽高
+    public static final int DEFAULT_MAX_COUNT = 50;                 // 最多的人脸数
+
+    private final FaceDetectionEngine mEngine;
+    private final BitmapPool mBitmapPool;
+    private final int mMaxSide;
+    private final int mMaxCount;
+    private final FaceLibrary mLibrary;
+    private final PixelFramePool mFramePool;
+
+    public EngineImageDetector(FaceDetectionEngine engine, BitmapPool bitmapPool) {
+        this(engine, bitmapPool, DEFAULT_MAX_SIDE, DEFAULT_MAX_COUNT, null);
+    }
+
+    /**
+     * @param engine     识别引擎，必须是线程安全的，由调用者负责释放
+     * @param bitmapPool 识别图使用的对象池
+     * @param maxSide    识别图的最大宽高
+     * @param maxCount   最多的人脸数
+     * @param library    保存人脸描述子，为null时只识别
+     */
+    public EngineImageDetector(FaceDetectionEngine engine, BitmapPool bitmapPool, int maxSide, int maxCount
+            , @Nullable FaceLibrary library) {
+        mEngine = engine;
+        mBitmapPool = bitmapPool;
+        mMaxSide = maxSide;
+        mMaxCount = maxCount;
+        mLibrary = library;
+        mFramePool = BitmapUtils.getFramePool();
+    }
+
+    @Override
+    public FaceIndexStore.Record detect(ImageEntry entry) {
+        ImageHeaderParser.ImageHeader header = BitmapUtils.readHeader(entry.getPath());
+        if (header == null) {
+            return null;
+        }
+        DetectionFrame frame = BitmapUtils.decodeDetectionFrame(entry.getPath(), header, mMaxSide, mBitmapPool);
+        if (frame == null) {
+            return null;
+        }
+        FaceInfo[] faces;
+        byte[][] descriptors = null;
+        PixelFrame luma = null;
+        // 引擎可能在运行中被替换，每张图片重新判断
+        boolean isBitmapEngine = FaceDetectionEngines.isBitmapEngine(mEngine);
+        try {
+            if (!isBitmapEngine || mLibrary != null) {
+                luma = BitmapUtils.copyLumaToFrame(frame.getBitmap(), mFramePool);
+            }
+            PixelBuffer buffer = isBitmapEngine ? new BitmapPixelBuffer(frame.getBitmap()) : luma;
+            faces = mEngine.detect(buffer, mMaxCount);
+            faces = FaceFilter.filterIncompleteFaces(faces, frame.getWidth(), frame.getHeight());
+            if (mLibrary != null) {
+                descriptors = describe(luma, faces);
+            }
+        } finally {
+            if (luma != null) {
+                luma.release();
+            }
+            frame.release(mBitmapPool);
+        }
+        if (descriptors != null) {
+            try {
+                mLibrary.replace(entry.getPath(), descriptors);
+            } catch (IOException e) {
+                Log.w(TAG, "save descriptors failed " + entry.getPath(), e);
+            }
+        }
+        float[] transform = frame.getUprightTransform();
+        if (transform != null) {
+            faces = FaceFilter.mapFaces(faces, transform);
+        }
+        float scaleX = frame.getScaleToSourceX();
+        float scaleY = frame.getScaleToSourceY();
+        FaceInfo[] sourceFaces = new FaceInfo[faces.length];
+        for (int i = 0; i < faces.length; i++) {
+            FaceInfo face = faces[i];
+            sourceFaces[i] = new FaceInfo(face.getMidX() * scaleX, face.getMidY() * scaleY
+                    , face.eyesDistance() * scaleX, face.confidence());
+        }
+        int orientation = header.getOrientation();
+        return new FaceIndexStore.Record(entry.getLength(), entry.getLastModified()
+                , ExifOrientation.uprightWidth(orientation, header.getWidth(), header.getHeight())
+                , ExifOrientation.uprightHeight(orientation, header.getWidth(), header.getHeight()), sourceFaces);
+    }
+
+    /**
+     * 在识别图上计算描述子，识别图中的脸是正的，不需要先摆正
+     */
+    private static byte[][] describe(PixelFrame luma, FaceInfo[] faces) {
+        byte[][] descriptors = new byte[faces.length][];
+        for (int i = 0; i < faces.length; i++) {
+            descriptors[i] = LbpDescriptor.describe(luma.getBuffer(), luma.getWidth(), luma.getHeight(), faces[i]);
+        }
+        return descriptors;
+    }
+}
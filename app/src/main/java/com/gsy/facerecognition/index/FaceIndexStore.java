@@ -0,0 +1,302 @@
+package com.gsy.facerecognition.index;
+
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.utils.RecordJournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 图库人脸索引的持久化，和FaceResultCache一样保存在RecordJournal中，
+ * 每识别完一张图片就追加一条记录，因此这个文件本身就是索引的进度，进程被杀后下次运行跳过已经索引的图片。
+ * 删除的图片追加一条删除记录，失效的记录超过一半时重写journal。
+ * 和缓存不同，索引没有条数上限，不做淘汰
+ */
+public class FaceIndexStore {
+    private static final String TAG = "FaceIndexStore";
+    public static final String JOURNAL_NAME = "face_index.journal";
+    private static final String JOURNAL_TMP_NAME = "face_index.journal.tmp";
+    private static final int RECORD_MAGIC = 0x46494431;             // "FID1"
+    private static final int MIN_REWRITE_BYTES = 64 * 1024;         // journal小于这个长度时不重写
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    private final RecordJournal mJournal;
+    private final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    private boolean mIsLoaded;
+    private long mLiveBytes;                                        // 有效记录的总长度
+
+    /**
+     * 一张图片的索引结果
+     */
+    public static class Record {
+        private final long mLength;                                 // 识别时的文件大小
+        private final long mLastModified;                           // 识别时的修改时间
+        private final int mWidth;                                   // 原图摆正后的宽，无法解码时为0
+        private final int mHeight;                                  // 原图摆正后的高，无法解码时为0
+        private final FaceInfo[] mFaces;                            // 原图摆正后的坐标
+        private final long mHash;                                   // 感知哈希，没有计算时为PerceptualHash.NO_HASH
+        private int mEncodedLength;                                 // 在journal中的长度
+
+        public Record(long length, long lastModified, int width, int height, FaceInfo[] faces) {
+            this(length, lastModified, width, height, faces, PerceptualHash.NO_HASH);
+        }
+
+        public Record(long length, long lastModified, int width, int height, FaceInfo[] faces, long hash) {
+            mLength = length;
+            mLastModified = lastModified;
+            mWidth = width;
+            mHeight = height;
+            mFaces = faces;
+            mHash = hash;
+        }
+
+        /**
+         * 无法解码的图片也记录下来，文件没有变化时不再重试
+         */
+        public static Record failed(ImageEntry entry) {
+            return new Record(entry.getLength(), entry.getLastModified(), 0, 0, new FaceInfo[0]);
+        }
+
+        public boolean matches(ImageEntry entry) {
+            return mLength == entry.getLength() && mLastModified == entry.getLastModified();
+        }
+
+        public boolean isFailed() {
+            return mWidth == 0 || mHeight == 0;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public FaceInfo[] getFaces() {
+            return mFaces;
+        }
+
+        public long getHash() {
+            return mHash;
+        }
+
+        /**
+         * @return 相同的结果加上感知哈希
+         */
+        public Record withHash(long hash) {
+            return new Record(mLength, mLastModified, mWidth, mHeight, mFaces, hash);
+        }
+    }
+
+    /**
+     * 构造函数不读文件，第一次访问时才会加载，因此可以在主线程构造
+     *
+     * @param dir 索引目录，一般为Context.getFilesDir()，不能放在会被系统清理的缓存目录中
+     */
+    public FaceIndexStore(File dir) {
+        mJournal = new RecordJournal(new File(dir, JOURNAL_NAME), new File(dir, JOURNAL_TMP_NAME), RECORD_MAGIC);
+    }
+
+    public synchronized Record get(String path) {
+        ensureLoaded();
+        return mRecords.get(path);
+    }
+
+    /**
+     * @return 索引中这张图片的记录和文件一致，不需要重新识别
+     */
+    public synchronized boolean isUpToDate(ImageEntry entry) {
+        ensureLoaded();
+        Record record = mRecords.get(entry.getPath());
+        return record != null && record.matches(entry);
+    }
+
+    /**
+     * 保存一张图片的结果，写入journal后才返回
+     *
+     * @return 是否写入成功，失败时下次运行会重新识别
+     */
+    public synchronized boolean put(String path, Record record) {
+        ensureLoaded();
+        byte[] bytes;
+        try {
+            bytes = encodePut(path, record);
+        } catch (IOException e) {
+            Log.e(TAG, "encode record failed", e);
+            return false;
+        }
+        if (!mJournal.append(bytes)) {
+            return false;
+        }
+        record.mEncodedLength = bytes.length;
+        Record old = mRecords.put(path, record);
+        if (old != null) {
+            mLiveBytes -= old.mEncodedLength;
+        }
+        mLiveBytes += bytes.length;
+        rewriteIfNeeded();
+        return true;
+    }
+
+    /**
+     * 删除一张已经不存在的图片
+     */
+    public synchronized void remove(String path) {
+        ensureLoaded();
+        if (!mRecords.containsKey(path)) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = encodeRemove(path);
+        } catch (IOException e) {
+            Log.e(TAG, "encode record failed", e);
+            return;
+        }
+        if (!mJournal.append(bytes)) {
+            return;
+        }
+        mLiveBytes -= mRecords.remove(path).mEncodedLength;
+        rewriteIfNeeded();
+    }
+
+    /**
+     * @return 索引中所有图片路径的快照
+     */
+    public synchronized List<String> getPaths() {
+        ensureLoaded();
+        return new ArrayList<String>(mRecords.keySet());
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mRecords.size();
+    }
+
+    /**
+     * @return 索引中人脸的总数
+     */
+    public synchronized int getFaceCount() {
+        ensureLoaded();
+        int count = 0;
+        for (Record record : mRecords.values()) {
+            count += record.mFaces.length;
+        }
+        return count;
+    }
+
+    private void ensureLoaded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        mJournal.load(new RecordJournal.RecordReader() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                decodeRecord(payload);
+            }
+        });
+        rewriteIfNeeded();
+    }
+
+    private void decodeRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int op = in.readUnsignedByte();
+        String path = in.readUTF();
+        Record old;
+        if (op == OP_REMOVE) {
+            old = mRecords.remove(path);
+        } else {
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            int width = in.readInt();
+            int height = in.readInt();
+            int faceCount = in.readUnsignedShort();
+            FaceInfo[] faces = new FaceInfo[faceCount];
+            for (int i = 0; i < faceCount; i++) {
+                faces[i] = new FaceInfo(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+            }
+            // 早期的记录没有感知哈希
+            long hash = in.available() >= 8 ? in.readLong() : PerceptualHash.NO_HASH;
+            Record record = new Record(length, lastModified, width, height, faces, hash);
+            record.mEncodedLength = RecordJournal.RECORD_OVERHEAD + payload.length;
+            mLiveBytes += record.mEncodedLength;
+            old = mRecords.put(path, record);
+        }
+        if (old != null) {
+            mLiveBytes -= old.mEncodedLength;
+        }
+    }
+
+    private byte[] encodePut(String path, Record record) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream(72 + record.mFaces.length * 16);
+        DataOutputStream payloadOut = new DataOutputStream(payloadStream);
+        payloadOut.writeByte(OP_PUT);
+        payloadOut.writeUTF(path);
+        payloadOut.writeLong(record.mLength);
+        payloadOut.writeLong(record.mLastModified);
+        payloadOut.writeInt(record.mWidth);
+        payloadOut.writeInt(record.mHeight);
+        payloadOut.writeShort(record.mFaces.length);
+        for (FaceInfo face : record.mFaces) {
+            payloadOut.writeFloat(face.getMidX());
+            payloadOut.writeFloat(face.getMidY());
+            payloadOut.writeFloat(face.eyesDistance());
+            payloadOut.writeFloat(face.confidence());
+        }
+        payloadOut.writeLong(record.mHash);
+        return mJournal.frame(payloadStream.toByteArray());
+    }
+
+    private byte[] encodeRemove(String path) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream(64);
+        DataOutputStream payloadOut = new DataOutputStream(payloadStream);
+        payloadOut.writeByte(OP_REMOVE);
+        payloadOut.writeUTF(path);
+        return mJournal.frame(payloadStream.toByteArray());
+    }
+
+    private void rewriteIfNeeded() {
+        if (mJournal.getLength() > MIN_REWRITE_BYTES && mJournal.getLength() > mLiveBytes * 2) {
+            rewrite();
+        }
+    }
+
+    private void rewrite() {
+        List<byte[]> records = new ArrayList<byte[]>(mRecords.size());
+        long length = 0;
+        try {
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                byte[] bytes = encodePut(entry.getKey(), entry.getValue());
+                records.add(bytes);
+                length += bytes.length;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "encode record failed", e);
+            return;
+        }
+        if (mJournal.rewrite(records)) {
+            mLiveBytes = length;
+        }
+    }
+}
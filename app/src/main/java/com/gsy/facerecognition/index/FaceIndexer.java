@@ -0,0 +1,322 @@
+package com.gsy.facerecognition.index;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.recognize.FaceLibrary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图库的增量人脸索引。每次运行先从ImageSource列出所有图片，和FaceIndexStore对比找出新增和修改过的图片，
+ * 由固定数量的后台线程依次取出识别，每完成一张就写入journal，进程被杀后下次运行从没有完成的图片继续；
+ * 已经不存在的图片从索引和FaceLibrary中删除。每张图片开始之前检查PauseGate，暂停时已经开始的图片会做完。
+ * 同一时间只能有一次run
+ */
+public class FaceIndexer {
+    private static final String TAG = "FaceIndexer";
+
+    /**
+     * 一张图片的解码和识别，在多个工作线程中同时调用，必须是线程安全的
+     */
+    public interface Detector {
+
+        /**
+         * @param entry 图片
+         * @return 识别结果，原图摆正后的坐标；无法解码时为null，记为失败，文件没有变化时不再重试
+         */
+        FaceIndexStore.Record detect(ImageEntry entry);
+    }
+
+    /**
+     * 进度回调，在工作线程中调用
+     */
+    public interface OnProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * 一次运行的统计
+     */
+    public static class Stats {
+        private int mTotal;                                         // 图库中的图片数
+        private int mUpToDate;                                      // 索引中已有并且没有变化，跳过
+        private int mPending;                                       // 需要识别的图片数
+        private final AtomicInteger mIndexed = new AtomicInteger();  // 识别完成
+        private final AtomicInteger mFailed = new AtomicInteger();   // 无法解码
+        private int mRemoved;                                       // 已经不存在，从索引中删除
+        private long mElapsedNanos;
+        private boolean mIsCompleted;                               // 所有需要识别的图片都已经完成
+
+        public int getTotal() {
+            return mTotal;
+        }
+
+        public int getUpToDate() {
+            return mUpToDate;
+        }
+
+        public int getPending() {
+            return mPending;
+        }
+
+        public int getIndexed() {
+            return mIndexed.get();
+        }
+
+        public int getFailed() {
+            return mFailed.get();
+        }
+
+        public int getRemoved() {
+            return mRemoved;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public boolean isCompleted() {
+            return mIsCompleted;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{total=" + mTotal + ", upToDate=" + mUpToDate + ", pending=" + mPending
+                    + ", indexed=" + mIndexed + ", failed=" + mFailed + ", removed=" + mRemoved
+                    + ", completed=" + mIsCompleted + ", time=" + mElapsedNanos / 1000000 + "ms}";
+        }
+    }
+
+    private final ImageSource mImageSource;
+    private final FaceIndexStore mStore;
+    private final Detector mDetector;
+    private final FaceLibrary mLibrary;
+    private final PauseGate mPauseGate;
+    private final int mWorkerCount;
+    private final ExecutorService mExecutor;
+    private volatile OnProgressListener mProgressListener;
+    private volatile boolean mIsReleased;
+
+    /**
+     * 工作线程数为CPU核数-1，留一个核给前台
+     */
+    public FaceIndexer(ImageSource imageSource, FaceIndexStore store, Detector detector, PauseGate pauseGate) {
+        this(imageSource, store, detector, null, pauseGate);
+    }
+
+    public FaceIndexer(ImageSource imageSource, FaceIndexStore store, Detector detector
+            , @Nullable FaceLibrary library, PauseGate pauseGate) {
+        this(imageSource, store, detector, library, pauseGate, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    public FaceIndexer(ImageSource imageSource, FaceIndexStore store, Detector detector, PauseGate pauseGate
+            , int workerCount) {
+        this(imageSource, store, detector, null, pauseGate, workerCount);
+    }
+
+    /**
+     * @param imageSource 图片的枚举来源
+     * @param store       索引的持久化
+     * @param detector    解码和识别
+     * @param library     detector保存描述子的FaceLibrary，没有时为null
+     * @param pauseGate   暂停开关
+     * @param workerCount 工作线程数，同时解码的图片不超过这个数，决定了索引占用的内存上限
+     */
+    public FaceIndexer(ImageSource imageSource, FaceIndexStore store, Detector detector
+            , @Nullable FaceLibrary library, PauseGate pauseGate, int workerCount) {
+        mImageSource = imageSource;
+        mStore = store;
+        mDetector = detector;
+        mLibrary = library;
+        mPauseGate = pauseGate;
+        mWorkerCount = Math.max(1, workerCount);
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(mWorkerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setOnProgressListener(OnProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * 运行一次增量索引，在调用线程中等待所有图片完成
+     *
+     * @return 统计，被释放时isCompleted为false
+     * @throws IOException          无法枚举图片，索引不做任何修改
+     * @throws InterruptedException 调用线程被中断，已经完成的图片仍然保存在索引中
+     */
+    public Stats run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        List<ImageEntry> entries = mImageSource.listImages();
+        stats.mTotal = entries.size();
+        List<ImageEntry> pending = new ArrayList<ImageEntry>();
+        Set<String> paths = new HashSet<String>(entries.size() * 2);
+        for (ImageEntry entry : entries) {
+            paths.add(entry.getPath());
+            if (mStore.isUpToDate(entry)) {
+                stats.mUpToDate++;
+            } else {
+                pending.add(entry);
+            }
+        }
+        stats.mPending = pending.size();
+        for (String path : mStore.getPaths()) {
+            if (!paths.contains(path)) {
+                mStore.remove(path);
+                stats.mRemoved++;
+            }
+        }
+        if (mLibrary != null) {
+            removeFromLibrary(paths);
+        }
+        stats.mIsCompleted = pending.isEmpty() || processAll(pending, stats);
+        stats.mElapsedNanos = System.nanoTime() - start;
+        Log.d(TAG, stats.toString());
+        return stats;
+    }
+
+    /**
+     * FaceLibrary中不在图库中的图片也删除，不只是这次从索引中删除的，之前漏删的也一起清理。
+     * 失败时只影响查找同一个人，不影响索引
+     */
+    private void removeFromLibrary(Set<String> paths) {
+        try {
+            for (String path : mLibrary.getPaths()) {
+                if (!paths.contains(path)) {
+                    mLibrary.remove(path);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "remove deleted images from library failed", e);
+        }
+    }
+
+    /**
+     * 修改过的图片无法解码时，FaceLibrary中还是修改之前的脸，也要删除
+     */
+    private void removeFailedFromLibrary(String path) {
+        try {
+            mLibrary.remove(path);
+        } catch (IOException e) {
+            Log.w(TAG, "remove failed image from library failed", e);
+        }
+    }
+
+    /**
+     * 取消正在进行的索引并释放线程池，正在识别的图片不再保存，释放后run直接返回
+     */
+    public void release() {
+        mIsReleased = true;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return 是否所有图片都已经完成
+     */
+    private boolean processAll(List<ImageEntry> pending, Stats stats) throws InterruptedException {
+        AtomicInteger nextEntry = new AtomicInteger();
+        int workerCount = Math.min(mWorkerCount, pending.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workerCount);
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(mExecutor.submit(new Worker(pending, nextEntry, stats)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (RejectedExecutionException e) {
+            // 已经被释放
+            cancelAll(futures);
+            return false;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Log.e(TAG, "index failed", e.getCause());
+            return false;
+        }
+        return !mIsReleased && stats.getIndexed() + stats.getFailed() == pending.size();
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * 工作线程，依次取出还没有识别的图片
+     */
+    private class Worker implements Callable<Void> {
+        private final List<ImageEntry> mPending;
+        private final AtomicInteger mNextEntry;
+        private final Stats mStats;
+
+        Worker(List<ImageEntry> pending, AtomicInteger nextEntry, Stats stats) {
+            mPending = pending;
+            mNextEntry = nextEntry;
+            mStats = stats;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            int index;
+            while ((index = mNextEntry.getAndIncrement()) < mPending.size()) {
+                mPauseGate.awaitResumed();
+                if (mIsReleased || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                ImageEntry entry = mPending.get(index);
+                FaceIndexStore.Record record = mDetector.detect(entry);
+                if (mIsReleased || Thread.currentThread().isInterrupted()) {
+                    // 识别可能被中断而不完整，不能当作失败保存
+                    break;
+                }
+                if (record == null) {
+                    record = FaceIndexStore.Record.failed(entry);
+                    mStats.mFailed.incrementAndGet();
+                    if (mLibrary != null) {
+                        removeFailedFromLibrary(entry.getPath());
+                    }
+                } else {
+                    mStats.mIndexed.incrementAndGet();
+                }
+                mStore.put(entry.getPath(), record);
+                OnProgressListener listener = mProgressListener;
+                if (listener != null) {
+                    listener.onProgress(mStats.getIndexed() + mStats.getFailed(), mPending.size());
+                }
+            }
+            return null;
+        }
+    }
+}
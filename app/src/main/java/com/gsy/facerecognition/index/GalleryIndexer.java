@@ -0,0 +1,235 @@
+package com.gsy.facerecognition.index;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.recognize.FaceLibrary;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+
+import java.io.IOException;
+
+/**
+ * 在后台索引整个图库，屏幕亮着或者系统内存不足时暂停，不影响用户使用手机。
+ * 屏幕状态来自SCREEN_ON和SCREEN_OFF广播，内存不足来自onTrimMemory，
+ * 系统没有内存恢复的回调，暂停后定时检查ActivityManager.MemoryInfo，不再lowMemory时继续。
+ * 除了索引线程，其他方法都只在主线程调用
+ */
+public class GalleryIndexer {
+    private static final String TAG = "GalleryIndexer";
+    private static final long MEMORY_CHECK_INTERVAL = 30 * 1000;   // 内存不足暂停后检查的间隔，毫秒
+
+    private final Context mContext;
+    private final FaceIndexStore mStore;
+    private final FaceLibrary mLibrary;
+    private final DuplicateDetector mDuplicateDetector;             // 查重的统计，没有查重时为null
+    private static FaceLibrary sSharedLibrary;                      // 同一组文件只能有一个FaceLibrary写入
+    private static FaceIndexStore sSharedStore;                     // 同一个journal只能有一个FaceIndexStore写入
+    private final PauseGate mPauseGate = new PauseGate();
+    private final FaceIndexer mIndexer;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ActivityManager.MemoryInfo mMemoryInfo = new ActivityManager.MemoryInfo();
+    private Thread mThread;
+    private boolean mIsStarted;
+
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mPauseGate.setPaused(PauseGate.REASON_SCREEN_ON, Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                pauseForMemory();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            pauseForMemory();
+        }
+    };
+
+    private final Runnable mMemoryCheck = new Runnable() {
+        @Override
+        public void run() {
+            ActivityManager activityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            activityManager.getMemoryInfo(mMemoryInfo);
+            if (mMemoryInfo.lowMemory) {
+                mMainHandler.postDelayed(this, MEMORY_CHECK_INTERVAL);
+            } else {
+                BitmapUtils.getMemoryGovernor().restoreBudget();
+                mPauseGate.setPaused(PauseGate.REASON_LOW_MEMORY, false);
+            }
+        }
+    };
+
+    /**
+     * @param context    任意context，只使用ApplicationContext
+     * @param engine     识别引擎，必须是线程安全的，由调用者负责释放，在release之后才能释放
+     * @param bitmapPool 识别图使用的对象池
+     */
+    public GalleryIndexer(Context context, FaceDetectionEngine engine, BitmapPool bitmapPool) {
+        this(context, engine, bitmapPool, getSharedLibrary(context), getSharedStore(context));
+    }
+
+    private GalleryIndexer(Context context, FaceDetectionEngine engine, BitmapPool bitmapPool, FaceLibrary library
+            , FaceIndexStore store) {
+        this(context, new MediaStoreImageSource(context.getContentResolver()), new DuplicateDetector(
+                new EngineImageDetector(engine, bitmapPool, EngineImageDetector.DEFAULT_MAX_SIDE
+                        , EngineImageDetector.DEFAULT_MAX_COUNT, library), new BitmapImageHasher(bitmapPool)
+                , store, library, DuplicateDetector.DEFAULT_MAX_DISTANCE), store, library);
+    }
+
+    /**
+     * @param library 和detector使用的同一个FaceLibrary，没有时为null
+     */
+    public GalleryIndexer(Context context, ImageSource imageSource, FaceIndexer.Detector detector
+            , @Nullable FaceLibrary library) {
+        this(context, imageSource, detector, getSharedStore(context), library);
+    }
+
+    /**
+     * @param store 索引，detector是DuplicateDetector时必须是它使用的同一个
+     */
+    private GalleryIndexer(Context context, ImageSource imageSource, FaceIndexer.Detector detector
+            , FaceIndexStore store, @Nullable FaceLibrary library) {
+        mContext = context.getApplicationContext();
+        mStore = store;
+        mLibrary = library;
+        mDuplicateDetector = detector instanceof DuplicateDetector ? (DuplicateDetector) detector : null;
+        mIndexer = new FaceIndexer(imageSource, mStore, detector, library, mPauseGate);
+    }
+
+    /**
+     * 查询索引结果，读文件，不要在主线程第一次调用
+     */
+    public FaceIndexStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * @return 进程内共用的FaceLibrary，Activity重建后新的GalleryIndexer继续使用同一个
+     */
+    public static synchronized FaceLibrary getSharedLibrary(Context context) {
+        if (sSharedLibrary == null) {
+            sSharedLibrary = new FaceLibrary(context.getApplicationContext().getFilesDir());
+        }
+        return sSharedLibrary;
+    }
+
+    /**
+     * @return 进程内共用的FaceIndexStore，Activity重建后新的GalleryIndexer继续使用同一个
+     */
+    public static synchronized FaceIndexStore getSharedStore(Context context) {
+        if (sSharedStore == null) {
+            sSharedStore = new FaceIndexStore(context.getApplicationContext().getFilesDir());
+        }
+        return sSharedStore;
+    }
+
+    /**
+     * 查找同一个人的照片，读文件，不要在主线程调用
+     */
+    @Nullable
+    public FaceLibrary getLibrary() {
+        return mLibrary;
+    }
+
+    /**
+     * @return 查重的命中率和节省的时间，没有查重时为null
+     */
+    @Nullable
+    public DuplicateDetector.Stats getDuplicateStats() {
+        return mDuplicateDetector != null ? mDuplicateDetector.getStats() : null;
+    }
+
+    public PauseGate getPauseGate() {
+        return mPauseGate;
+    }
+
+    /**
+     * 开始一次增量索引，已经索引过并且没有变化的图片直接跳过
+     */
+    public void start() {
+        if (mIsStarted) {
+            return;
+        }
+        mIsStarted = true;
+        mPauseGate.setPaused(PauseGate.REASON_SCREEN_ON, isScreenOn());
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mScreenReceiver, filter);
+        mContext.registerComponentCallbacks(mMemoryCallbacks);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FaceIndexer.Stats stats = mIndexer.run();
+                    Log.i(TAG, "index finished " + stats + " images=" + mStore.size()
+                            + " faces=" + mStore.getFaceCount());
+                    if (mDuplicateDetector != null) {
+                        Log.i(TAG, "duplicates " + mDuplicateDetector.getStats());
+                    }
+                    if (mLibrary != null) {
+                        mLibrary.flush();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "list images failed", e);
+                } catch (InterruptedException e) {
+                    // release
+                }
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 停止索引并释放线程池，释放后不能再start。已经完成的图片保存在索引中，下次运行时跳过
+     */
+    public void release() {
+        mIndexer.release();
+        if (!mIsStarted) {
+            return;
+        }
+        mIsStarted = false;
+        mContext.unregisterReceiver(mScreenReceiver);
+        mContext.unregisterComponentCallbacks(mMemoryCallbacks);
+        mMainHandler.removeCallbacks(mMemoryCheck);
+        mThread.interrupt();
+    }
+
+    private void pauseForMemory() {
+        mPauseGate.setPaused(PauseGate.REASON_LOW_MEMORY, true);
+        mMainHandler.removeCallbacks(mMemoryCheck);
+        mMainHandler.postDelayed(mMemoryCheck, MEMORY_CHECK_INTERVAL);
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ? powerManager.isInteractive()
+                : powerManager.isScreenOn();
+    }
+}
@@ -0,0 +1,33 @@
+package com.gsy.facerecognition.index;
+
+/**
+ * 图库中的一张图片，文件被修改后大小或者修改时间会变化，以此判断是否需要重新识别
+ */
+public class ImageEntry {
+    private final String mPath;
+    private final long mLength;                                     // 文件大小
+    private final long mLastModified;                               // 修改时间，毫秒
+
+    public ImageEntry(String path, long length, long lastModified) {
+        mPath = path;
+        mLength = length;
+        mLastModified = lastModified;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageEntry{" + mPath + ", length=" + mLength + ", lastModified=" + mLastModified + '}';
+    }
+}
@@ -0,0 +1,19 @@
+package com.gsy.facerecognition.index;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 图片的枚举来源，设备上为MediaStore，测试时为普通目录。
+ * 同一个索引必须一直使用同一种来源，不同来源的修改时间精度不同
+ */
+public interface ImageSource {
+
+    /**
+     * 列出所有图片，在后台线程调用
+     *
+     * @return 所有图片，路径不重复
+     * @throws IOException 无法枚举时抛出，此时不能把索引中的图片当作已删除
+     */
+    List<ImageEntry> listImages() throws IOException;
+}
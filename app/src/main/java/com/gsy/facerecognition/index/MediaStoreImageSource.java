@@ -0,0 +1,54 @@
+package com.gsy.facerecognition.index;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 从MediaStore查询设备上的所有图片，只读取路径、大小和修改时间三列，
+ * DATE_MODIFIED的单位为秒，换算成毫秒
+ */
+public class MediaStoreImageSource implements ImageSource {
+    private static final String[] PROJECTION = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.SIZE
+            , MediaStore.Images.Media.DATE_MODIFIED};
+
+    private final ContentResolver mContentResolver;
+
+    public MediaStoreImageSource(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    @Override
+    public List<ImageEntry> listImages() throws IOException {
+        Cursor cursor;
+        try {
+            cursor = mContentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, null, null
+                    , MediaStore.Images.Media.DATA);
+        } catch (SecurityException e) {
+            throw new IOException("no permission to read images", e);
+        }
+        if (cursor == null) {
+            throw new IOException("query media store failed");
+        }
+        try {
+            List<ImageEntry> entries = new ArrayList<ImageEntry>(cursor.getCount());
+            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+            int sizeColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE);
+            int dateColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(dataColumn);
+                if (path == null) {
+                    continue;
+                }
+                entries.add(new ImageEntry(path, cursor.getLong(sizeColumn), cursor.getLong(dateColumn) * 1000));
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+}
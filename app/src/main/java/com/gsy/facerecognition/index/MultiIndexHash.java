@@ -0,0 +1,176 @@
+package com.gsy.facerecognition.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * 64位哈希按汉明距离查找的多索引哈希(multi-index hashing)。哈希分成4段16位，每段一张哈希表；
+ * 两个哈希的距离不超过r时，至少有一段的距离不超过r / 4，查询时每段只需要枚举这个半径内的取值，
+ * 再逐个验证完整的距离，不需要和所有哈希比较。r小于4时只查每段完全相同的桶。
+ * 不是线程安全的
+ */
+public class MultiIndexHash<T> {
+    private static final int CHUNK_COUNT = 4;
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final List<HashMap<Integer, List<Item<T>>>> mTables;
+    private int mSize;
+
+    /**
+     * 查询结果
+     */
+    public static class Item<T> {
+        private final long mHash;
+        private final T mValue;
+        private int mDistance;                                      // 和最近一次查询的距离，只在查询结果中有效
+
+        Item(long hash, T value) {
+            mHash = hash;
+            mValue = value;
+        }
+
+        public long getHash() {
+            return mHash;
+        }
+
+        public T getValue() {
+            return mValue;
+        }
+
+        public int getDistance() {
+            return mDistance;
+        }
+    }
+
+    private static final Comparator<Item<?>> BY_DISTANCE = new Comparator<Item<?>>() {
+        @Override
+        public int compare(Item<?> a, Item<?> b) {
+            return a.mDistance - b.mDistance;
+        }
+    };
+
+    public MultiIndexHash() {
+        mTables = new ArrayList<HashMap<Integer, List<Item<T>>>>(CHUNK_COUNT);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            mTables.add(new HashMap<Integer, List<Item<T>>>());
+        }
+    }
+
+    public void add(long hash, T value) {
+        Item<T> item = new Item<T>(hash, value);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            HashMap<Integer, List<Item<T>>> table = mTables.get(i);
+            Integer key = chunk(hash, i);
+            List<Item<T>> bucket = table.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Item<T>>(2);
+                table.put(key, bucket);
+            }
+            bucket.add(item);
+        }
+        mSize++;
+    }
+
+    /**
+     * @return 是否找到并删除，value用equals比较
+     */
+    public boolean remove(long hash, T value) {
+        boolean isRemoved = false;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            HashMap<Integer, List<Item<T>>> table = mTables.get(i);
+            Integer key = chunk(hash, i);
+            List<Item<T>> bucket = table.get(key);
+            if (bucket == null) {
+                continue;
+            }
+            for (int j = 0; j < bucket.size(); j++) {
+                if (bucket.get(j).mValue.equals(value)) {
+                    bucket.remove(j);
+                    isRemoved = true;
+                    break;
+                }
+            }
+            if (bucket.isEmpty()) {
+                table.remove(key);
+            }
+        }
+        if (isRemoved) {
+            mSize--;
+        }
+        return isRemoved;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param hash        查询的哈希
+     * @param maxDistance 最大汉明距离
+     * @return 距离不超过maxDistance的所有项，按距离从近到远
+     */
+    public List<Item<T>> search(long hash, int maxDistance) {
+        int chunkRadius = Math.min(maxDistance / CHUNK_COUNT, CHUNK_BITS);
+        IdentityHashMap<Item<T>, Boolean> found = new IdentityHashMap<Item<T>, Boolean>();
+        List<Item<T>> result = new ArrayList<Item<T>>();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            probe(mTables.get(i), chunk(hash, i), 0, chunkRadius, hash, maxDistance, found, result);
+        }
+        Collections.sort(result, BY_DISTANCE);
+        return result;
+    }
+
+    /**
+     * 逐个比较所有哈希，和search的结果相同，用于验证和比较速度
+     */
+    public List<Item<T>> searchLinear(long hash, int maxDistance) {
+        IdentityHashMap<Item<T>, Boolean> found = new IdentityHashMap<Item<T>, Boolean>();
+        List<Item<T>> result = new ArrayList<Item<T>>();
+        for (List<Item<T>> bucket : mTables.get(0).values()) {
+            collect(bucket, hash, maxDistance, found, result);
+        }
+        Collections.sort(result, BY_DISTANCE);
+        return result;
+    }
+
+    /**
+     * 枚举和key距离不超过radius的段值，只翻转lowestBit及以上的位，每个值只枚举一次
+     */
+    private void probe(HashMap<Integer, List<Item<T>>> table, int key, int lowestBit, int radius, long hash
+            , int maxDistance, IdentityHashMap<Item<T>, Boolean> found, List<Item<T>> result) {
+        List<Item<T>> bucket = table.get(key);
+        if (bucket != null) {
+            collect(bucket, hash, maxDistance, found, result);
+        }
+        if (radius == 0) {
+            return;
+        }
+        for (int bit = lowestBit; bit < CHUNK_BITS; bit++) {
+            probe(table, key ^ (1 << bit), bit + 1, radius - 1, hash, maxDistance, found, result);
+        }
+    }
+
+    private static <T> void collect(List<Item<T>> bucket, long hash, int maxDistance
+            , IdentityHashMap<Item<T>, Boolean> found, List<Item<T>> result) {
+        for (Item<T> item : bucket) {
+            if (found.containsKey(item)) {
+                continue;
+            }
+            found.put(item, Boolean.TRUE);
+            int distance = PerceptualHash.distance(hash, item.mHash);
+            if (distance <= maxDistance) {
+                item.mDistance = distance;
+                result.add(item);
+            }
+        }
+    }
+
+    private static int chunk(long hash, int index) {
+        return (int) (hash >>> (index * CHUNK_BITS)) & CHUNK_MASK;
+    }
+}
@@ -0,0 +1,49 @@
+package com.gsy.facerecognition.index;
+
+/**
+ * 索引的暂停开关，可以同时有多个暂停的原因，全部解除后才继续。
+ * 工作线程在每张图片之前调用awaitResumed，已经开始的图片会做完
+ */
+public class PauseGate {
+    public static final int REASON_SCREEN_ON = 1;                   // 屏幕亮着，用户在使用手机
+    public static final int REASON_LOW_MEMORY = 1 << 1;             // 系统内存不足
+    public static final int REASON_USER = 1 << 2;                   // 调用者主动暂停
+
+    private int mReasons;
+
+    /**
+     * 设置或者解除一个暂停原因
+     *
+     * @param reason   REASON_*
+     * @param isPaused true为暂停
+     */
+    public synchronized void setPaused(int reason, boolean isPaused) {
+        if (isPaused) {
+            mReasons |= reason;
+        } else {
+            mReasons &= ~reason;
+            if (mReasons == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return mReasons != 0;
+    }
+
+    public synchronized int getReasons() {
+        return mReasons;
+    }
+
+    /**
+     * 暂停时阻塞，直到所有原因都解除
+     *
+     * @throws InterruptedException 等待时线程被中断，即索引被取消
+     */
+    public synchronized void awaitResumed() throws InterruptedException {
+        while (mReasons != 0) {
+            wait();
+        }
+    }
+}
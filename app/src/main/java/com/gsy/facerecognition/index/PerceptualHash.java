@@ -0,0 +1,73 @@
+package com.gsy.facerecognition.index;
+
+import com.gsy.facerecognition.utils.ExifOrientation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64位的dHash感知哈希：把摆正后的图片按面积平均缩小到9x8的亮度格子，每行相邻两格比较得到8位。
+ * 缩放、重新压缩和轻微的亮度变化基本不改变哈希，同一张图片的不同副本汉明距离很小。
+ * 只用亮度计算
+ */
+public class PerceptualHash {
+    public static final long NO_HASH = 0;                           // 没有计算或者无法计算，不参与查重
+    public static final int BITS = 64;
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    /**
+     * @param luma        亮度，图片数据的坐标，没有摆正
+     * @param width       宽
+     * @param height      高
+     * @param orientation EXIF方向，按摆正后的图片计算，方向不同的同一张图片哈希相同
+     * @return 哈希，图片小于9x8时为NO_HASH
+     */
+    public static long dHash(byte[] luma, int width, int height, int orientation) {
+        return dHash(ByteBuffer.wrap(luma), width, height, orientation);
+    }
+
+    /**
+     * 同dHash(byte[], ...)，亮度在ByteBuffer中，例如PixelFrame的堆外内存，按绝对位置读取
+     */
+    public static long dHash(ByteBuffer luma, int width, int height, int orientation) {
+        int uprightWidth = ExifOrientation.uprightWidth(orientation, width, height);
+        int uprightHeight = ExifOrientation.uprightHeight(orientation, width, height);
+        if (uprightWidth < GRID_WIDTH || uprightHeight < GRID_HEIGHT) {
+            return NO_HASH;
+        }
+        float[] t = ExifOrientation.toUpright(orientation, width, height
+                , new float[ExifOrientation.TRANSFORM_SIZE]);
+        long[] sums = new long[GRID_WIDTH * GRID_HEIGHT];
+        int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+        float cellX = GRID_WIDTH * 1f / uprightWidth;
+        float cellY = GRID_HEIGHT * 1f / uprightHeight;
+        for (int y = 0; y < height; y++) {
+            float py = y + 0.5f;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                float px = x + 0.5f;
+                int gx = Math.min(GRID_WIDTH - 1, (int) ((t[0] * px + t[1] * py + t[2]) * cellX));
+                int gy = Math.min(GRID_HEIGHT - 1, (int) ((t[3] * px + t[4] * py + t[5]) * cellY));
+                int cell = gy * GRID_WIDTH + gx;
+                sums[cell] += luma.get(offset + x) & 0xFF;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            for (int gx = 0; gx < GRID_WIDTH - 1; gx++) {
+                int left = gy * GRID_WIDTH + gx;
+                // 平均值比较，交叉相乘避免除法
+                hash <<= 1;
+                if (sums[left] * counts[left + 1] > sums[left + 1] * counts[left]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
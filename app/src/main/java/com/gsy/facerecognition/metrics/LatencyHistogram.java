@@ -0,0 +1,103 @@
+package com.gsy.facerecognition.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按2的次幂分桶的耗时直方图，第i个桶记录[2^i, 2^(i+1))纳秒的次数。
+ * record只做几次原子加法，不分配对象，可以在任意线程的热路径上调用
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * @param nanos 一次耗时，小于0时按0记录
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * 复制当前的值，并发记录时各个值之间可能相差最近的几次记录
+     *
+     * @param buckets 长度为BUCKET_COUNT，输出每个桶的次数
+     * @return {次数, 总耗时, 最大耗时}
+     */
+    long[] copyTo(long[] buckets) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new long[]{mCount.get(), mTotalNanos.get(), mMaxNanos.get()};
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param percentile 0到100
+     * @return 耗时的估计值，所在桶的上界，不超过最大耗时，没有记录时为0
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] buckets = new long[BUCKET_COUNT];
+        long maxNanos = copyTo(buckets)[2];
+        return percentileOf(buckets, maxNanos, percentile);
+    }
+
+    static long percentileOf(long[] buckets, long maxNanos, double percentile) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(upper, maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+}
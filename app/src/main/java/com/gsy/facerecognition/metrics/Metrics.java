@@ -0,0 +1,131 @@
+package com.gsy.facerecognition.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 加载、识别和显示各阶段的耗时直方图和bitmap字节数，默认关闭，可以在运行时打开。用法：
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.end(Metrics.STAGE_DECODE, start);
+ * </pre>
+ * start和end只读一次volatile变量和做几次原子加法，不分配对象；关闭时start不读时钟，end直接返回
+ */
+public class Metrics {
+    public static final int STAGE_LOAD_BITMAP = 0;                  // BitmapUtils.loadBitmap整体
+    public static final int STAGE_HEADER = 1;                       // 读文件头，主要是I/O
+    public static final int STAGE_DECODE = 2;                       // 解码
+    public static final int STAGE_ORIENTATION = 3;                  // 旋转像素矫正方向
+    public static final int STAGE_PREPARE = 4;                      // 识别图准备：摆正、裁剪、灰度转换
+    public static final int STAGE_FIND_FACES = 5;                   // 人脸识别
+    public static final int STAGE_FILTER = 6;                       // 过滤和映射识别结果
+    public static final int STAGE_SET_DRAWABLE = 7;                 // MyImageView.setImageDrawable
+    public static final int STAGE_DRAW = 8;                         // MyImageView.onDraw
+    public static final int STAGE_TILE_DECODE = 9;                  // 放大显示时分块的区域解码
+    public static final int STAGE_PREVIEW = 10;                     // 预览图的解码，EXIF缩略图或者大倍数缩小
+    public static final int STAGE_FIRST_PIXEL = 11;                 // 从提交识别请求到预览图交给主线程
+    public static final int STAGE_MEMORY_WAIT = 12;                 // 解码之前等待PixelMemoryGovernor的预算
+    public static final int STAGE_MEMORY_DEGRADE = 13;              // 预算不足降级的解码，bitmap数为次数，字节数为节省的字节
+    public static final int STAGE_COUNT = 14;
+    private static final String[] STAGE_NAMES = {"loadBitmap", "header", "decode", "orientation", "prepare"
+            , "findFaces", "filter", "setImageDrawable", "onDraw", "tileDecode", "preview", "firstPixel"
+            , "memoryWait", "memoryDegrade"};
+    private static final long DISABLED = Long.MIN_VALUE;            // 关闭时start的返回值
+
+    private static volatile boolean sIsEnabled;
+    private static final LatencyHistogram[] sHistograms = new LatencyHistogram[STAGE_COUNT];
+    private static final AtomicLongArray sBitmapBytes = new AtomicLongArray(STAGE_COUNT);
+    private static final AtomicLongArray sBitmapCounts = new AtomicLongArray(STAGE_COUNT);
+
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    /**
+     * 打开或关闭收集，关闭时已经收集的数据保留
+     */
+    public static void setEnabled(boolean isEnabled) {
+        sIsEnabled = isEnabled;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * @return 阶段开始的时间，传给end
+     */
+    public static long start() {
+        return sIsEnabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * 记录阶段的耗时，start时没有打开收集的不记录
+     *
+     * @param stage 阶段，STAGE_XXX
+     * @param start start的返回值
+     */
+    public static void end(int stage, long start) {
+        if (start != DISABLED) {
+            sHistograms[stage].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 记录调用者已经测量好的耗时，用于本来就按阶段计时的代码，例如FaceDetectPipeline
+     *
+     * @param stage 阶段，STAGE_XXX
+     * @param nanos 耗时
+     */
+    public static void record(int stage, long nanos) {
+        if (sIsEnabled) {
+            sHistograms[stage].record(nanos);
+        }
+    }
+
+    /**
+     * 记录阶段中新生成的bitmap的字节数，包括从对象池中取出复用的
+     *
+     * @param stage 阶段，STAGE_XXX
+     * @param bytes bitmap的字节数
+     */
+    public static void addBitmapBytes(int stage, long bytes) {
+        if (sIsEnabled) {
+            sBitmapBytes.addAndGet(stage, bytes);
+            sBitmapCounts.incrementAndGet(stage);
+        }
+    }
+
+    /**
+     * @return 当前所有阶段的数据的副本
+     */
+    public static MetricsSnapshot snapshot() {
+        long[][] buckets = new long[STAGE_COUNT][LatencyHistogram.BUCKET_COUNT];
+        long[][] summaries = new long[STAGE_COUNT][];
+        long[] bitmapBytes = new long[STAGE_COUNT];
+        long[] bitmapCounts = new long[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            summaries[i] = sHistograms[i].copyTo(buckets[i]);
+            bitmapBytes[i] = sBitmapBytes.get(i);
+            bitmapCounts[i] = sBitmapCounts.get(i);
+        }
+        return new MetricsSnapshot(STAGE_NAMES, buckets, summaries, bitmapBytes, bitmapCounts);
+    }
+
+    /**
+     * 清空所有阶段的数据
+     */
+    public static void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sHistograms[i].reset();
+            sBitmapBytes.set(i, 0);
+            sBitmapCounts.set(i, 0);
+        }
+    }
+}
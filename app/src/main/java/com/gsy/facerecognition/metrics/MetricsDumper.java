@@ -0,0 +1,54 @@
+package com.gsy.facerecognition.metrics;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * 把Metrics的快照输出到logcat或者文件
+ */
+public class MetricsDumper {
+    public static final String TAG = "FaceMetrics";
+
+    /**
+     * 每个阶段输出一行到logcat
+     */
+    public static void dumpToLogcat() {
+        String text = Metrics.snapshot().toString();
+        for (String line : text.split("\n")) {
+            if (line.length() > 0) {
+                Log.i(TAG, line);
+            }
+        }
+    }
+
+    /**
+     * 追加到文件，每次输出前有一行时间戳
+     *
+     * @param file 文件
+     * @return 是否成功
+     */
+    public static boolean dumpToFile(File file) {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write("# " + System.currentTimeMillis() + "\n");
+            Metrics.snapshot().writeTo(writer);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "dump metrics to " + file + " failed", e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
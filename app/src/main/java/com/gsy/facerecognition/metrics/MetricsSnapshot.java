@@ -0,0 +1,91 @@
+package com.gsy.facerecognition.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Metrics某一时刻的副本，百分位按直方图的桶估计，结果是所在桶的上界
+ */
+public class MetricsSnapshot {
+    private final String[] mStageNames;
+    private final long[][] mBuckets;
+    private final long[][] mSummaries;                              // 每个阶段的{次数, 总耗时, 最大耗时}
+    private final long[] mBitmapBytes;
+    private final long[] mBitmapCounts;
+
+    MetricsSnapshot(String[] stageNames, long[][] buckets, long[][] summaries, long[] bitmapBytes
+            , long[] bitmapCounts) {
+        mStageNames = stageNames;
+        mBuckets = buckets;
+        mSummaries = summaries;
+        mBitmapBytes = bitmapBytes;
+        mBitmapCounts = bitmapCounts;
+    }
+
+    public int getStageCount() {
+        return mStageNames.length;
+    }
+
+    public long getCount(int stage) {
+        return mSummaries[stage][0];
+    }
+
+    public long getTotalNanos(int stage) {
+        return mSummaries[stage][1];
+    }
+
+    public long getMaxNanos(int stage) {
+        return mSummaries[stage][2];
+    }
+
+    public long getBitmapBytes(int stage) {
+        return mBitmapBytes[stage];
+    }
+
+    public long getBitmapCount(int stage) {
+        return mBitmapCounts[stage];
+    }
+
+    /**
+     * @param stage      阶段
+     * @param percentile 0到100
+     * @return 耗时的估计值，不超过最大耗时，没有记录时为0
+     */
+    public long getPercentileNanos(int stage, double percentile) {
+        return LatencyHistogram.percentileOf(mBuckets[stage], getMaxNanos(stage), percentile);
+    }
+
+    /**
+     * 每个有记录的阶段输出一行，耗时单位为毫秒
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < mStageNames.length; i++) {
+            long count = getCount(i);
+            if (count == 0 && mBitmapCounts[i] == 0) {
+                continue;
+            }
+            writer.write(String.format(Locale.US
+                    , "%s count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms bitmaps=%d bitmapBytes=%d\n"
+                    , mStageNames[i], count, count == 0 ? 0 : toMs(getTotalNanos(i) / count)
+                    , toMs(getPercentileNanos(i, 50)), toMs(getPercentileNanos(i, 90))
+                    , toMs(getPercentileNanos(i, 99)), toMs(getMaxNanos(i)), mBitmapCounts[i], mBitmapBytes[i]));
+        }
+    }
+
+    private static double toMs(long nanos) {
+        return nanos / 1000000d;
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeTo(writer);
+        } catch (IOException e) {
+            // StringWriter不会抛出
+        }
+        return writer.toString();
+    }
+}
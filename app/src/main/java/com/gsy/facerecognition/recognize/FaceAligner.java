@@ -0,0 +1,60 @@
+package com.gsy.facerecognition.recognize;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按两眼中点和两眼距离把脸裁剪成固定大小的灰度图，不同大小、不同位置的同一张脸裁剪后基本对齐。
+ * FaceInfo没有眼睛的连线角度，只对齐平移和缩放；系统的识别本来就只能识别出接近正的脸
+ */
+public class FaceAligner {
+    public static final int CROP_SIZE = 64;                         // 裁剪结果的边长
+    static final float CROP_SCALE = 2.2f;                           // 裁剪区域边长相对于两眼距离
+    static final float CROP_OFFSET_Y = 0.4f;                        // 裁剪区域中心在两眼中点下方，相对于两眼距离
+
+    /**
+     * 双线性插值裁剪，超出图片的部分使用边缘的像素
+     *
+     * @param luma   按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     * @param face   luma坐标中的脸
+     * @param out    长度为CROP_SIZE * CROP_SIZE，输出按行排列的亮度
+     */
+    public static void crop(byte[] luma, int width, int height, FaceInfo face, byte[] out) {
+        crop(ByteBuffer.wrap(luma), width, height, face, out);
+    }
+
+    /**
+     * 同crop(byte[], ...)，亮度在ByteBuffer中，例如PixelFrame的堆外内存，按绝对位置读取
+     */
+    public static void crop(ByteBuffer luma, int width, int height, FaceInfo face, byte[] out) {
+        float side = CROP_SCALE * face.eyesDistance();
+        float step = side / CROP_SIZE;
+        // 采样点在每个输出像素的中心
+        float left = face.getMidX() - side / 2 + step / 2;
+        float top = face.getMidY() + CROP_OFFSET_Y * face.eyesDistance() - side / 2 + step / 2;
+        for (int y = 0; y < CROP_SIZE; y++) {
+            float sy = clamp(top + y * step, height);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            for (int x = 0; x < CROP_SIZE; x++) {
+                float sx = clamp(left + x * step, width);
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+                float topValue = (luma.get(y0 * width + x0) & 0xFF) * (1 - fx)
+                        + (luma.get(y0 * width + x1) & 0xFF) * fx;
+                float bottomValue = (luma.get(y1 * width + x0) & 0xFF) * (1 - fx)
+                        + (luma.get(y1 * width + x1) & 0xFF) * fx;
+                out[y * CROP_SIZE + x] = (byte) Math.round(topValue * (1 - fy) + bottomValue * fy);
+            }
+        }
+    }
+
+    private static float clamp(float value, int size) {
+        return value < 0 ? 0 : value > size - 1 ? size - 1 : value;
+    }
+}
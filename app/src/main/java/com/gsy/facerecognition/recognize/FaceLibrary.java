@@ -0,0 +1,315 @@
+package com.gsy.facerecognition.recognize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 图库中所有人脸的描述子，用来查找同一个人的照片。描述子保存在HnswIndex中，标签是图片编号和脸在图片中的下标；
+ * 图片编号和路径的对应关系保存在追加写的文本文件中，每行是"A 第一个节点 路径"(分配下一个编号，
+ * 一张图片的脸是连续的节点)或者"R 编号"(删除)。
+ * 图片重新识别时先删除旧的编号再分配新的，HNSW不支持删除节点，旧的节点留在图中，查询时跳过。
+ * 分配编号的行先于节点写入，节点没有写入(添加失败或者进程被杀)的编号在打开时当作已删除。
+ * 第一次使用时打开，不要在主线程调用。所有方法由this同步
+ */
+public class FaceLibrary implements Closeable {
+    public static final String INDEX_NAME = "faces.hnsw";
+    public static final String PATHS_NAME = "faces.paths";
+    private static final int FACE_BITS = 16;                        // 标签中脸的下标所占的位数
+    private static final int MIN_EF = 64;
+
+    private final File mIndexFile;
+    private final File mPathsFile;
+    private HnswIndex mIndex;
+    private FileOutputStream mPathsOut;
+    private final List<String> mPaths = new ArrayList<String>();     // 下标为图片编号
+    private final List<Integer> mFirstNodes = new ArrayList<Integer>();
+    private final HashMap<String, Integer> mPathIds = new HashMap<String, Integer>();
+    private final BitSet mRemoved = new BitSet();
+
+    /**
+     * 一个查询结果
+     */
+    public static class Match {
+        private final String mPath;
+        private final int mFaceIndex;                               // 在FaceIndexStore.Record.getFaces中的下标
+        private final int mDistance;
+
+        Match(String path, int faceIndex, int distance) {
+            mPath = path;
+            mFaceIndex = faceIndex;
+            mDistance = distance;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public int getFaceIndex() {
+            return mFaceIndex;
+        }
+
+        public int getDistance() {
+            return mDistance;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{" + mPath + "#" + mFaceIndex + ", distance=" + mDistance + '}';
+        }
+    }
+
+    /**
+     * @param dir 索引文件所在的目录
+     */
+    public FaceLibrary(File dir) {
+        mIndexFile = new File(dir, INDEX_NAME);
+        mPathsFile = new File(dir, PATHS_NAME);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mIndex != null) {
+            return;
+        }
+        loadPaths();
+        mIndex = new HnswIndex(mIndexFile, LbpDescriptor.LENGTH);
+        removeMissingNodes();
+        mPathsOut = new FileOutputStream(mPathsFile, true);
+    }
+
+    /**
+     * 第一个节点不存在或者标签不是这个编号的图片，脸没有写入索引，当作已删除。
+     * 之后的图片从索引的末尾分配节点，这样的编号不会再被节点使用，每次打开的结果相同
+     */
+    private void removeMissingNodes() {
+        int size = mIndex.size();
+        for (int id = 0; id < mPaths.size(); id++) {
+            if (mRemoved.get(id)) {
+                continue;
+            }
+            int firstNode = mFirstNodes.get(id);
+            if (firstNode >= 0 && firstNode < size && mIndex.getLabel(firstNode) >>> FACE_BITS == id) {
+                continue;
+            }
+            mRemoved.set(id);
+            if (Integer.valueOf(id).equals(mPathIds.get(mPaths.get(id)))) {
+                mPathIds.remove(mPaths.get(id));
+            }
+        }
+    }
+
+    /**
+     * 读取路径文件，最后一行没有换行符时是写到一半被中断的，截掉
+     */
+    private void loadPaths() throws IOException {
+        mPaths.clear();
+        mFirstNodes.clear();
+        mPathIds.clear();
+        mRemoved.clear();
+        if (!mPathsFile.exists()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) mPathsFile.length());
+        FileInputStream in = new FileInputStream(mPathsFile);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        String content = bytes.toString("UTF-8");
+        int end = content.lastIndexOf('\n') + 1;
+        for (int start = 0; start < end; ) {
+            int lineEnd = content.indexOf('\n', start);
+            String line = content.substring(start, lineEnd);
+            start = lineEnd + 1;
+            if (line.startsWith("A ")) {
+                int space = line.indexOf(' ', 2);
+                try {
+                    int firstNode = Integer.parseInt(line.substring(2, space));
+                    String path = line.substring(space + 1);
+                    mPathIds.put(path, mPaths.size());
+                    mPaths.add(path);
+                    mFirstNodes.add(firstNode);
+                } catch (RuntimeException e) {
+                    // 忽略损坏的行
+                }
+            } else if (line.startsWith("R ")) {
+                try {
+                    int id = Integer.parseInt(line.substring(2));
+                    if (id >= 0 && id < mPaths.size()) {
+                        mRemoved.set(id);
+                        if (Integer.valueOf(id).equals(mPathIds.get(mPaths.get(id)))) {
+                            mPathIds.remove(mPaths.get(id));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // 忽略损坏的行
+                }
+            }
+        }
+        if (end < bytes.size()) {
+            RandomAccessFile raf = new RandomAccessFile(mPathsFile, "rw");
+            try {
+                raf.setLength(content.substring(0, end).getBytes("UTF-8").length);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void appendLine(String line) throws IOException {
+        mPathsOut.write((line + "\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * 替换一张图片的所有脸，没有脸时只删除旧的
+     *
+     * @param path        图片路径
+     * @param descriptors 每张脸的描述子，下标和识别结果中的下标相同
+     */
+    public synchronized void replace(String path, byte[][] descriptors) throws IOException {
+        ensureOpen();
+        if (path.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("path contains a line break: " + path);
+        }
+        Integer oldId = mPathIds.remove(path);
+        if (oldId != null) {
+            appendLine("R " + oldId);
+            mRemoved.set(oldId);
+        }
+        if (descriptors.length == 0) {
+            return;
+        }
+        int id = mPaths.size();
+        int firstNode = mIndex.size();
+        appendLine("A " + firstNode + " " + path);
+        mPaths.add(path);
+        mFirstNodes.add(firstNode);
+        mPathIds.put(path, id);
+        int faceCount = Math.min(descriptors.length, 1 << FACE_BITS);
+        try {
+            for (int i = 0; i < faceCount; i++) {
+                mIndex.add((long) id << FACE_BITS | i, descriptors[i]);
+            }
+        } catch (IOException e) {
+            // 只添加了一部分脸，不能当作已经完整保存
+            mPathIds.remove(path);
+            mRemoved.set(id);
+            appendLine("R " + id);
+            throw e;
+        }
+    }
+
+    /**
+     * 删除一张图片的所有脸
+     */
+    public synchronized void remove(String path) throws IOException {
+        replace(path, new byte[0][]);
+    }
+
+    /**
+     * @return 有脸的所有图片路径的快照
+     */
+    public synchronized List<String> getPaths() throws IOException {
+        ensureOpen();
+        return new ArrayList<String>(mPathIds.keySet());
+    }
+
+    /**
+     * @param path      图片路径
+     * @param faceIndex 脸在识别结果中的下标
+     * @return 索引中这张脸的描述子，没有时为null
+     */
+    public synchronized byte[] getDescriptor(String path, int faceIndex) throws IOException {
+        ensureOpen();
+        Integer id = mPathIds.get(path);
+        if (id == null || faceIndex < 0) {
+            return null;
+        }
+        int node = mFirstNodes.get(id) + faceIndex;
+        // 下一张图片的脸从下一个编号开始
+        int end = id + 1 < mFirstNodes.size() ? mFirstNodes.get(id + 1) : mIndex.size();
+        if (node >= end || node >= mIndex.size()) {
+            return null;
+        }
+        byte[] descriptor = new byte[LbpDescriptor.LENGTH];
+        mIndex.getVector(node, descriptor);
+        return descriptor;
+    }
+
+    /**
+     * 查找同一个人的照片
+     *
+     * @param descriptor  要查找的脸的描述子
+     * @param maxDistance 最大的平方距离，例如LbpDescriptor.DEFAULT_MAX_DISTANCE
+     * @param limit       最多的图片数
+     * @return 按距离从小到大排列，每张图片只返回最近的一张脸
+     */
+    public synchronized List<Match> findPerson(byte[] descriptor, int maxDistance, int limit) throws IOException {
+        ensureOpen();
+        List<Match> matches = new ArrayList<Match>();
+        // 删除的节点和同一张图片的其他脸也会占用名额，多取一些
+        int k = Math.min(mIndex.size(), limit * 2 + 8);
+        long[] labels = new long[k];
+        int[] distances = new int[k];
+        int count = mIndex.search(descriptor, k, Math.max(MIN_EF, k), labels, distances, null);
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < count && matches.size() < limit; i++) {
+            if (distances[i] > maxDistance) {
+                break;
+            }
+            int id = (int) (labels[i] >>> FACE_BITS);
+            if (mRemoved.get(id) || !seen.add(id)) {
+                continue;
+            }
+            matches.add(new Match(mPaths.get(id), (int) (labels[i] & ((1 << FACE_BITS) - 1)), distances[i]));
+        }
+        return matches;
+    }
+
+    /**
+     * @return 索引中的脸数，包括已经删除的
+     */
+    public synchronized int getIndexedFaceCount() throws IOException {
+        ensureOpen();
+        return mIndex.size();
+    }
+
+    /**
+     * 把索引写入存储，例如一次索引完成后
+     */
+    public synchronized void flush() throws IOException {
+        if (mIndex != null) {
+            mIndex.flush();
+            mPathsOut.getFD().sync();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mIndex == null) {
+            return;
+        }
+        try {
+            mIndex.close();
+        } finally {
+            mIndex = null;
+            mPathsOut.close();
+            mPathsOut = null;
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package com.gsy.facerecognition.recognize;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 无符号byte向量的近似最近邻索引(HNSW，分层可导航小世界图)，按平方欧氏距离比较。
+ * 图直接保存在内存映射的文件中：每个节点是固定长度的记录，包括标签、层数、第0层的邻居和向量，
+ * 第1层以上的邻居只有少数节点有，保存在另一个映射文件中。打开索引只读取文件头，不重建也不反序列化，
+ * 查询时由系统按需加载访问到的页，冷启动后第一次查询就可以使用。
+ * 添加节点时先写节点和邻居，最后写文件头中的节点数，进程在中途被杀时多写的部分在下次打开时被忽略：
+ * 读取邻居时跳过编号不小于节点数的节点。写入依赖系统回写映射的页，flush时强制写入存储。
+ * 所有方法由this同步
+ */
+public class HnswIndex implements Closeable {
+    public static final int DEFAULT_M = 12;                         // 第1层以上每个节点的最多邻居数，第0层是两倍
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;          // 添加节点时搜索的候选数
+    public static final String UPPER_SUFFIX = ".upper";             // 第1层以上的邻居所在文件的后缀
+
+    private static final int MAGIC = 0x484E5357;                    // "HNSW"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_DIMENSION = 8;
+    private static final int HEADER_M = 12;
+    private static final int HEADER_COUNT = 16;
+    private static final int HEADER_ENTRY = 20;                     // 最高层的入口节点
+    private static final int HEADER_MAX_LEVEL = 24;
+    private static final int HEADER_UPPER_USED = 28;                // 第1层以上的邻居已经使用的字节数
+    private static final int NODE_LABEL = 0;
+    private static final int NODE_LEVEL = 8;
+    private static final int NODE_UPPER_OFFSET = 12;
+    private static final int NODE_LINKS = 16;                       // 第0层的邻居数和邻居
+    private static final int MAX_LEVEL = 16;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final File mFile;
+    private final File mUpperFile;
+    private final int mDimension;
+    private final int mM;
+    private final int mEfConstruction;
+    private final int mRecordSize;
+    private final int mVectorOffset;
+    private final double mLevelFactor;
+    private final Random mRandom;
+    private RandomAccessFile mRaf;
+    private RandomAccessFile mUpperRaf;
+    private MappedByteBuffer mNodes;
+    private MappedByteBuffer mUpper;
+    private ByteBuffer mVectorReader;                               // mNodes的副本，读取向量时修改position
+    private int mCapacity;                                          // mNodes能容纳的节点数
+    private int mCount;
+    private int mEntry = -1;
+    private int mMaxLevel = -1;
+    private int mUpperUsed;
+    private final byte[] mScratch;
+    private int[] mVisited = new int[0];                            // 每次搜索的标记，等于mVisitTag表示已经访问
+    private int mVisitTag;
+    private final Heap mCandidates = new Heap(false);
+    private final Heap mResults = new Heap(true);
+    private int[] mLinks;
+
+    /**
+     * 打开或者创建索引
+     *
+     * @param file      节点文件，第1层以上的邻居在同一目录下加上UPPER_SUFFIX的文件中
+     * @param dimension 向量长度，和已有的索引不同时抛出IOException
+     * @throws IOException 文件不是索引或者参数不同
+     */
+    public HnswIndex(File file, int dimension) throws IOException {
+        this(file, dimension, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    public HnswIndex(File file, int dimension, int m, int efConstruction) throws IOException {
+        mFile = file;
+        mUpperFile = new File(file.getPath() + UPPER_SUFFIX);
+        mDimension = dimension;
+        mM = m;
+        mEfConstruction = efConstruction;
+        mVectorOffset = NODE_LINKS + 4 + 2 * m * 4;
+        mRecordSize = (mVectorOffset + dimension + 7) & ~7;
+        mLevelFactor = 1 / Math.log(m);
+        mScratch = new byte[dimension];
+        mLinks = new int[2 * m + 1];
+        mRaf = new RandomAccessFile(file, "rw");
+        mUpperRaf = new RandomAccessFile(mUpperFile, "rw");
+        try {
+            open();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+        mRandom = new Random(0x5EED ^ mCount);
+    }
+
+    private void open() throws IOException {
+        long length = mRaf.length();
+        if (length < HEADER_SIZE) {
+            mapNodes(MIN_CAPACITY);
+            mNodes.putInt(HEADER_MAGIC, MAGIC);
+            mNodes.putInt(HEADER_VERSION, VERSION);
+            mNodes.putInt(HEADER_DIMENSION, mDimension);
+            mNodes.putInt(HEADER_M, mM);
+            writeHeader();
+            mapUpper(MIN_CAPACITY * (4 + mM * 4));
+            return;
+        }
+        mapNodes((int) ((length - HEADER_SIZE) / mRecordSize));
+        if (mNodes.getInt(HEADER_MAGIC) != MAGIC || mNodes.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException("not an index " + mFile);
+        }
+        if (mNodes.getInt(HEADER_DIMENSION) != mDimension || mNodes.getInt(HEADER_M) != mM) {
+            throw new IOException("index " + mFile + " has dimension " + mNodes.getInt(HEADER_DIMENSION) + " m "
+                    + mNodes.getInt(HEADER_M) + ", expected " + mDimension + " " + mM);
+        }
+        mCount = mNodes.getInt(HEADER_COUNT);
+        mEntry = mNodes.getInt(HEADER_ENTRY);
+        mMaxLevel = mNodes.getInt(HEADER_MAX_LEVEL);
+        mUpperUsed = mNodes.getInt(HEADER_UPPER_USED);
+        if (mCount < 0 || mCount > mCapacity || mEntry >= mCount || mUpperUsed < 0
+                || mUpperUsed > mUpperRaf.length()) {
+            throw new IOException("corrupted index " + mFile);
+        }
+        mapUpper((int) Math.max(mUpperRaf.length(), MIN_CAPACITY * (4 + mM * 4)));
+    }
+
+    private void mapNodes(int capacity) throws IOException {
+        mNodes = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0
+                , HEADER_SIZE + (long) capacity * mRecordSize);
+        mVectorReader = mNodes.duplicate();
+        mCapacity = capacity;
+    }
+
+    private void mapUpper(int size) throws IOException {
+        mUpper = mUpperRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void writeHeader() {
+        mNodes.putInt(HEADER_COUNT, mCount);
+        mNodes.putInt(HEADER_ENTRY, mEntry);
+        mNodes.putInt(HEADER_MAX_LEVEL, mMaxLevel);
+        mNodes.putInt(HEADER_UPPER_USED, mUpperUsed);
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public int getDimension() {
+        return mDimension;
+    }
+
+    public synchronized long getLabel(int node) {
+        checkNode(node);
+        return mNodes.getLong(nodeOffset(node) + NODE_LABEL);
+    }
+
+    /**
+     * @param out 长度为dimension，输出节点的向量
+     */
+    public synchronized void getVector(int node, byte[] out) {
+        checkNode(node);
+        readVector(node, out);
+    }
+
+    /**
+     * 添加一个向量
+     *
+     * @param label  调用者定义的标签，查询结果中返回
+     * @param vector 长度为dimension
+     * @return 节点编号，从0开始连续分配
+     * @throws IOException 扩大文件失败
+     */
+    public synchronized int add(long label, byte[] vector) throws IOException {
+        checkOpen();
+        if (vector.length != mDimension) {
+            throw new IllegalArgumentException("vector length " + vector.length + " != " + mDimension);
+        }
+        if (mCount == mCapacity) {
+            mapNodes(mCapacity * 2);
+        }
+        int node = mCount;
+        int level = randomLevel();
+        int offset = nodeOffset(node);
+        mNodes.putLong(offset + NODE_LABEL, label);
+        mNodes.putInt(offset + NODE_LEVEL, level);
+        mNodes.putInt(offset + NODE_UPPER_OFFSET, level > 0 ? allocateUpper(level) : -1);
+        mNodes.putInt(offset + NODE_LINKS, 0);
+        for (int l = 1; l <= level; l++) {
+            mUpper.putInt(linksOffset(node, l), 0);
+        }
+        ByteBuffer writer = mNodes.duplicate();
+        writer.position(offset + mVectorOffset);
+        writer.put(vector);
+        if (mEntry < 0) {
+            mEntry = node;
+            mMaxLevel = level;
+            mCount = 1;
+            writeHeader();
+            return node;
+        }
+        // 新节点还没有计入mCount，搜索时不会访问到自己
+        int entry = mEntry;
+        int entryDistance = distanceTo(vector, entry);
+        for (int l = mMaxLevel; l > level; l--) {
+            int[] closest = greedy(vector, entry, entryDistance, l);
+            entry = closest[0];
+            entryDistance = closest[1];
+        }
+        for (int l = Math.min(level, mMaxLevel); l >= 0; l--) {
+            searchLayer(vector, entry, entryDistance, mEfConstruction, l);
+            int resultCount = mResults.size();
+            int[] ids = new int[resultCount];
+            int[] distances = new int[resultCount];
+            mResults.drainAscending(ids, distances);
+            int neighborCount = selectNeighbors(ids, distances, resultCount, mM);
+            writeLinks(node, l, ids, neighborCount);
+            for (int i = 0; i < neighborCount; i++) {
+                connect(ids[i], node, distances[i], l);
+            }
+            entry = ids[0];
+            entryDistance = distances[0];
+        }
+        mCount++;
+        if (level > mMaxLevel) {
+            mEntry = node;
+            mMaxLevel = level;
+        }
+        writeHeader();
+        return node;
+    }
+
+    /**
+     * 近似的k个最近邻
+     *
+     * @param query     长度为dimension
+     * @param k         最多返回的个数
+     * @param ef        第0层搜索的候选数，不小于k，越大越准也越慢
+     * @param labels    长度不小于k，按距离从小到大输出标签
+     * @param distances 长度不小于k，输出对应的平方距离
+     * @param nodes     长度不小于k，输出对应的节点编号，可以为null
+     * @return 结果数
+     */
+    public synchronized int search(byte[] query, int k, int ef, long[] labels, int[] distances, int[] nodes) {
+        checkOpen();
+        if (mCount == 0 || k <= 0) {
+            return 0;
+        }
+        int entry = mEntry;
+        int entryDistance = distanceTo(query, entry);
+        for (int l = mMaxLevel; l > 0; l--) {
+            int[] closest = greedy(query, entry, entryDistance, l);
+            entry = closest[0];
+            entryDistance = closest[1];
+        }
+        searchLayer(query, entry, entryDistance, Math.max(ef, k), 0);
+        int resultCount = mResults.size();
+        int[] ids = new int[resultCount];
+        int[] resultDistances = new int[resultCount];
+        mResults.drainAscending(ids, resultDistances);
+        int count = Math.min(k, resultCount);
+        for (int i = 0; i < count; i++) {
+            labels[i] = mNodes.getLong(nodeOffset(ids[i]) + NODE_LABEL);
+            distances[i] = resultDistances[i];
+            if (nodes != null) {
+                nodes[i] = ids[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 逐个比较所有节点的精确k个最近邻，用于检查search的召回率和很小的索引
+     */
+    public synchronized int bruteForce(byte[] query, int k, long[] labels, int[] distances) {
+        checkOpen();
+        Heap results = new Heap(true);
+        for (int node = 0; node < mCount; node++) {
+            int distance = distanceTo(query, node);
+            if (results.size() < k) {
+                results.push(node, distance);
+            } else if (distance < results.peekDistance()) {
+                results.pop();
+                results.push(node, distance);
+            }
+        }
+        int count = results.size();
+        int[] ids = new int[count];
+        int[] resultDistances = new int[count];
+        results.drainAscending(ids, resultDistances);
+        for (int i = 0; i < count; i++) {
+            labels[i] = mNodes.getLong(nodeOffset(ids[i]) + NODE_LABEL);
+            distances[i] = resultDistances[i];
+        }
+        return count;
+    }
+
+    /**
+     * 把映射的页强制写入存储
+     */
+    public synchronized void flush() {
+        checkOpen();
+        mNodes.force();
+        mUpper.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mRaf == null) {
+            return;
+        }
+        mNodes.force();
+        mUpper.force();
+        closeFiles();
+    }
+
+    private void closeFiles() throws IOException {
+        mNodes = null;
+        mUpper = null;
+        mVectorReader = null;
+        try {
+            mRaf.close();
+        } finally {
+            mRaf = null;
+            mUpperRaf.close();
+            mUpperRaf = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (mRaf == null) {
+            throw new IllegalStateException("closed " + mFile);
+        }
+    }
+
+    private void checkNode(int node) {
+        checkOpen();
+        if (node < 0 || node >= mCount) {
+            throw new IndexOutOfBoundsException("node " + node + " of " + mCount);
+        }
+    }
+
+    private int randomLevel() {
+        double r = 1 - mRandom.nextDouble();
+        return Math.min(MAX_LEVEL, (int) (-Math.log(r) * mLevelFactor));
+    }
+
+    private int allocateUpper(int level) throws IOException {
+        int size = level * (4 + mM * 4);
+        if (mUpperUsed + size > mUpper.capacity()) {
+            mapUpper(Math.max(mUpper.capacity() * 2, mUpperUsed + size));
+        }
+        int offset = mUpperUsed;
+        mUpperUsed += size;
+        return offset;
+    }
+
+    private int nodeOffset(int node) {
+        return HEADER_SIZE + node * mRecordSize;
+    }
+
+    /**
+     * @return 第level层邻居数的位置，第0层在mNodes中，其他在mUpper中
+     */
+    private int linksOffset(int node, int level) {
+        if (level == 0) {
+            return nodeOffset(node) + NODE_LINKS;
+        }
+        return mNodes.getInt(nodeOffset(node) + NODE_UPPER_OFFSET) + (level - 1) * (4 + mM * 4);
+    }
+
+    private ByteBuffer linksBuffer(int level) {
+        return level == 0 ? mNodes : mUpper;
+    }
+
+    /**
+     * @param out 长度不小于2M + 1
+     * @return 邻居数，跳过没有写完的节点
+     */
+    private int readLinks(int node, int level, int[] out) {
+        ByteBuffer buffer = linksBuffer(level);
+        int offset = linksOffset(node, level);
+        int count = buffer.getInt(offset);
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            int neighbor = buffer.getInt(offset + 4 + i * 4);
+            if (neighbor < mCount) {
+                out[valid++] = neighbor;
+            }
+        }
+        return valid;
+    }
+
+    private void writeLinks(int node, int level, int[] ids, int count) {
+        ByteBuffer buffer = linksBuffer(level);
+        int offset = linksOffset(node, level);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(offset + 4 + i * 4, ids[i]);
+        }
+        // 最后写邻居数，读到的邻居都是完整的
+        buffer.putInt(offset, count);
+    }
+
+    /**
+     * 把node加入neighbor的邻居，超出上限时按启发式重新选择
+     */
+    private void connect(int neighbor, int node, int distance, int level) {
+        int maxLinks = level == 0 ? 2 * mM : mM;
+        ByteBuffer buffer = linksBuffer(level);
+        int offset = linksOffset(neighbor, level);
+        int count = buffer.getInt(offset);
+        if (count < maxLinks) {
+            buffer.putInt(offset + 4 + count * 4, node);
+            buffer.putInt(offset, count + 1);
+            return;
+        }
+        int linkCount = readLinks(neighbor, level, mLinks);
+        int[] ids = new int[linkCount + 1];
+        int[] distances = new int[linkCount + 1];
+        byte[] base = new byte[mDimension];
+        readVector(neighbor, base);
+        for (int i = 0; i < linkCount; i++) {
+            ids[i] = mLinks[i];
+            distances[i] = distanceTo(base, mLinks[i]);
+        }
+        ids[linkCount] = node;
+        distances[linkCount] = distance;
+        sortByDistance(ids, distances, linkCount + 1);
+        writeLinks(neighbor, level, ids, selectNeighbors(ids, distances, linkCount + 1, maxLinks));
+    }
+
+    /**
+     * HNSW论文中的启发式：按距离从小到大，候选离基准点比离任何一个已选的邻居都近时才选中，
+     * 邻居分布在不同的方向上，图的连通性更好；不够时再用被跳过的候选补足
+     *
+     * @param ids       按距离从小到大排列的候选，输出时前面的是选中的邻居
+     * @param distances 候选到基准点的距离，和ids一起重排
+     * @return 选中的个数
+     */
+    private int selectNeighbors(int[] ids, int[] distances, int count, int max) {
+        if (count <= max) {
+            return count;
+        }
+        int[] skippedIds = new int[count];
+        int[] skippedDistances = new int[count];
+        int skipped = 0;
+        int selected = 0;
+        byte[] candidate = new byte[mDimension];
+        for (int i = 0; i < count && selected < max; i++) {
+            readVector(ids[i], candidate);
+            boolean isDiverse = true;
+            for (int j = 0; j < selected; j++) {
+                if (distanceTo(candidate, ids[j]) < distances[i]) {
+                    isDiverse = false;
+                    break;
+                }
+            }
+            if (isDiverse) {
+                ids[selected] = ids[i];
+                distances[selected] = distances[i];
+                selected++;
+            } else {
+                skippedIds[skipped] = ids[i];
+                skippedDistances[skipped] = distances[i];
+                skipped++;
+            }
+        }
+        for (int i = 0; i < skipped && selected < max; i++) {
+            ids[selected] = skippedIds[i];
+            distances[selected] = skippedDistances[i];
+            selected++;
+        }
+        return selected;
+    }
+
+    /**
+     * 在一层中从entry出发贪心地走向最近的节点
+     *
+     * @return {最近的节点, 距离}
+     */
+    private int[] greedy(byte[] query, int entry, int entryDistance, int level) {
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+            int count = readLinks(entry, level, mLinks);
+            for (int i = 0; i < count; i++) {
+                int distance = distanceTo(query, mLinks[i]);
+                if (distance < entryDistance) {
+                    entry = mLinks[i];
+                    entryDistance = distance;
+                    isChanged = true;
+                }
+            }
+        }
+        return new int[]{entry, entryDistance};
+    }
+
+    /**
+     * 在一层中搜索ef个最近的节点，结果留在mResults中
+     */
+    private void searchLayer(byte[] query, int entry, int entryDistance, int ef, int level) {
+        if (mVisited.length < mCapacity) {
+            mVisited = new int[mCapacity];
+            mVisitTag = 0;
+        }
+        if (++mVisitTag == 0) {
+            Arrays.fill(mVisited, 0);
+            mVisitTag = 1;
+        }
+        mCandidates.clear();
+        mResults.clear();
+        mVisited[entry] = mVisitTag;
+        mCandidates.push(entry, entryDistance);
+        mResults.push(entry, entryDistance);
+        while (mCandidates.size() > 0) {
+            int distance = mCandidates.peekDistance();
+            if (distance > mResults.peekDistance() && mResults.size() >= ef) {
+                break;
+            }
+            int current = mCandidates.pop();
+            int count = readLinks(current, level, mLinks);
+            for (int i = 0; i < count; i++) {
+                int neighbor = mLinks[i];
+                if (mVisited[neighbor] == mVisitTag) {
+                    continue;
+                }
+                mVisited[neighbor] = mVisitTag;
+                int neighborDistance = distanceTo(query, neighbor);
+                if (mResults.size() < ef || neighborDistance < mResults.peekDistance()) {
+                    mCandidates.push(neighbor, neighborDistance);
+                    mResults.push(neighbor, neighborDistance);
+                    if (mResults.size() > ef) {
+                        mResults.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    private void readVector(int node, byte[] out) {
+        mVectorReader.position(nodeOffset(node) + mVectorOffset);
+        mVectorReader.get(out, 0, mDimension);
+    }
+
+    private int distanceTo(byte[] query, int node) {
+        readVector(node, mScratch);
+        int sum = 0;
+        for (int i = 0; i < mDimension; i++) {
+            int d = (query[i] & 0xFF) - (mScratch[i] & 0xFF);
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static void sortByDistance(int[] ids, int[] distances, int count) {
+        // 邻居数很少，插入排序
+        for (int i = 1; i < count; i++) {
+            int id = ids[i];
+            int distance = distances[i];
+            int j = i - 1;
+            while (j >= 0 && distances[j] > distance) {
+                ids[j + 1] = ids[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            distances[j + 1] = distance;
+        }
+    }
+
+    /**
+     * 按距离排序的二叉堆，元素是节点编号和距离
+     */
+    private static class Heap {
+        private final boolean mIsMax;
+        private int[] mIds = new int[64];
+        private int[] mDistances = new int[64];
+        private int mSize;
+
+        Heap(boolean isMax) {
+            mIsMax = isMax;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        int peekDistance() {
+            return mDistances[0];
+        }
+
+        void push(int id, int distance) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                mDistances = Arrays.copyOf(mDistances, mSize * 2);
+            }
+            int i = mSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(distance, mDistances[parent])) {
+                    break;
+                }
+                mIds[i] = mIds[parent];
+                mDistances[i] = mDistances[parent];
+                i = parent;
+            }
+            mIds[i] = id;
+            mDistances[i] = distance;
+        }
+
+        /**
+         * @return 堆顶的节点编号
+         */
+        int pop() {
+            int top = mIds[0];
+            int id = mIds[--mSize];
+            int distance = mDistances[mSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize && before(mDistances[child + 1], mDistances[child])) {
+                    child++;
+                }
+                if (!before(mDistances[child], distance)) {
+                    break;
+                }
+                mIds[i] = mIds[child];
+                mDistances[i] = mDistances[child];
+                i = child;
+            }
+            mIds[i] = id;
+            mDistances[i] = distance;
+            return top;
+        }
+
+        /**
+         * 取出所有元素，按距离从小到大输出
+         */
+        void drainAscending(int[] ids, int[] distances) {
+            int count = mSize;
+            for (int i = 0; i < count; i++) {
+                int index = mIsMax ? count - 1 - i : i;
+                distances[index] = mDistances[0];
+                ids[index] = pop();
+            }
+        }
+
+        private boolean before(int a, int b) {
+            return mIsMax ? a > b : a < b;
+        }
+    }
+}
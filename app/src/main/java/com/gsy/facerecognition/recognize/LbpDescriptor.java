@@ -0,0 +1,106 @@
+package com.gsy.facerecognition.recognize;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 人脸的LBP描述子：对齐后的脸分成GRID x GRID个格子，每个格子统计59种uniform LBP的直方图，
+ * 直方图归一化后开平方(Hellinger)，每个格子是一个单位向量，乘以255存为无符号byte。
+ * 两个描述子之间用平方欧氏距离比较，每个格子的距离是2 * 255^2 * (1 - 余弦相似度)。
+ * LBP只比较相邻像素的大小，对光照的单调变化不敏感
+ */
+public class LbpDescriptor {
+    public static final int GRID = 4;
+    public static final int BINS = 59;                              // 58种uniform模式和1个其他
+    public static final int LENGTH = GRID * GRID * BINS;
+    /**
+     * 同一个人的默认最大距离，相当于各个格子的平均余弦相似度不低于0.75
+     */
+    public static final int DEFAULT_MAX_DISTANCE = GRID * GRID * 2 * 255 * 255 / 4;
+
+    private static final byte[] UNIFORM_BINS = new byte[256];       // LBP编码对应的直方图下标
+
+    static {
+        int bin = 0;
+        for (int code = 0; code < 256; code++) {
+            // 循环一圈0和1最多变化两次的是uniform模式
+            int transitions = Integer.bitCount((code ^ (code >> 1 | (code & 1) << 7)) & 0xFF);
+            UNIFORM_BINS[code] = (byte) (transitions <= 2 ? bin++ : BINS - 1);
+        }
+    }
+
+    /**
+     * 裁剪对齐并计算一张脸的描述子
+     *
+     * @param luma   按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     * @param face   luma坐标中的脸
+     * @return 长度为LENGTH的描述子
+     */
+    public static byte[] describe(byte[] luma, int width, int height, FaceInfo face) {
+        return describe(ByteBuffer.wrap(luma), width, height, face);
+    }
+
+    /**
+     * 同describe(byte[], ...)，亮度在ByteBuffer中，例如PixelFrame的堆外内存
+     */
+    public static byte[] describe(ByteBuffer luma, int width, int height, FaceInfo face) {
+        byte[] crop = new byte[FaceAligner.CROP_SIZE * FaceAligner.CROP_SIZE];
+        FaceAligner.crop(luma, width, height, face, crop);
+        byte[] descriptor = new byte[LENGTH];
+        compute(crop, FaceAligner.CROP_SIZE, descriptor);
+        return descriptor;
+    }
+
+    /**
+     * @param crop 按行排列的size x size的亮度
+     * @param size 边长
+     * @param out  长度为LENGTH
+     */
+    public static void compute(byte[] crop, int size, byte[] out) {
+        int[] histogram = new int[LENGTH];
+        // 最外一圈像素没有完整的8邻域
+        int inner = size - 2;
+        for (int y = 1; y < size - 1; y++) {
+            int cellY = (y - 1) * GRID / inner;
+            for (int x = 1; x < size - 1; x++) {
+                int center = crop[y * size + x] & 0xFF;
+                int code = 0;
+                code |= (crop[(y - 1) * size + x - 1] & 0xFF) >= center ? 1 : 0;
+                code |= (crop[(y - 1) * size + x] & 0xFF) >= center ? 2 : 0;
+                code |= (crop[(y - 1) * size + x + 1] & 0xFF) >= center ? 4 : 0;
+                code |= (crop[y * size + x + 1] & 0xFF) >= center ? 8 : 0;
+                code |= (crop[(y + 1) * size + x + 1] & 0xFF) >= center ? 16 : 0;
+                code |= (crop[(y + 1) * size + x] & 0xFF) >= center ? 32 : 0;
+                code |= (crop[(y + 1) * size + x - 1] & 0xFF) >= center ? 64 : 0;
+                code |= (crop[y * size + x - 1] & 0xFF) >= center ? 128 : 0;
+                int cell = cellY * GRID + (x - 1) * GRID / inner;
+                histogram[cell * BINS + UNIFORM_BINS[code]]++;
+            }
+        }
+        for (int cell = 0; cell < GRID * GRID; cell++) {
+            int total = 0;
+            for (int i = 0; i < BINS; i++) {
+                total += histogram[cell * BINS + i];
+            }
+            for (int i = 0; i < BINS; i++) {
+                double p = total == 0 ? 0 : (double) histogram[cell * BINS + i] / total;
+                out[cell * BINS + i] = (byte) Math.round(Math.sqrt(p) * 255);
+            }
+        }
+    }
+
+    /**
+     * @return 两个描述子的平方欧氏距离
+     */
+    public static int distance(byte[] a, byte[] b) {
+        int sum = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+            sum += d * d;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,343 @@
+package com.gsy.facerecognition.stream;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 连续帧之间的人脸跟踪。关键帧上用完整识别的结果建立模板，之后的帧只在上一次位置附近用归一化互相关(NCC)
+ * 搜索模板，耗时和人脸大小无关，比完整识别小几个数量级。每隔keyframeInterval帧，或者任何一张脸的相关系数
+ * 低于阈值时需要重新识别，识别结果按距离和已有的跟踪关联，因此同一张脸的id在帧之间保持不变。
+ * 只按两眼中点平移，不跟踪缩放，缩放在下一个关键帧修正。不是线程安全的，帧必须按顺序输入
+ */
+public class FaceTracker {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 15;
+    public static final float DEFAULT_MIN_SCORE = 0.6f;
+
+    private static final int GRID = 16;                             // 模板每边的采样点数
+    private static final float PATCH_SCALE = 2f;                    // 模板边长相对于两眼距离
+    private static final float PATCH_OFFSET_Y = 0.5f;               // 模板中心在两眼中点下方，相对于两眼距离
+    private static final float SEARCH_RADIUS = 0.6f;                // 每帧的搜索半径，相对于两眼距离
+    private static final float MATCH_GATE = 0.75f;                  // 关键帧关联的最大距离，相对于两眼距离
+    private static final float SWITCH_GATE = 2f;                    // 新的id离没有关联上的跟踪这么近时算作一次切换
+    private static final int MAX_MISSES = 1;                        // 连续这么多个关键帧没有识别到时结束跟踪
+
+    private static final Comparator<float[]> BY_DISTANCE = new Comparator<float[]>() {
+        @Override
+        public int compare(float[] a, float[] b) {
+            return Float.compare(a[0], b[0]);
+        }
+    };
+
+    /**
+     * 一张被跟踪的脸
+     */
+    public static class TrackedFace {
+        private final int mId;
+        private final FaceInfo mFace;
+        private final float mScore;                                 // 跟踪的相关系数，关键帧上为1
+
+        TrackedFace(int id, FaceInfo face, float score) {
+            mId = id;
+            mFace = face;
+            mScore = score;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public FaceInfo getFace() {
+            return mFace;
+        }
+
+        public float getScore() {
+            return mScore;
+        }
+    }
+
+    private static class Track {
+        final int mId;
+        FaceInfo mFace;
+        int mMisses;                                                // 连续没有识别到的关键帧数，大于0时不输出
+        final float[] mTemplate = new float[GRID * GRID];           // 去掉均值并归一化的采样
+
+        Track(int id) {
+            mId = id;
+        }
+    }
+
+    private final int mKeyframeInterval;
+    private final float mMinScore;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    private final float[] mPatch = new float[GRID * GRID];
+    private int mNextId = 1;
+    private int mFramesSinceKeyframe;
+    private boolean mHasKeyframe;
+    private long mIdSwitches;
+
+    public FaceTracker() {
+        this(DEFAULT_KEYFRAME_INTERVAL, DEFAULT_MIN_SCORE);
+    }
+
+    /**
+     * @param keyframeInterval 最多每隔多少帧完整识别一次
+     * @param minScore         跟踪的最小相关系数，低于这个值时需要重新识别
+     */
+    public FaceTracker(int keyframeInterval, float minScore) {
+        mKeyframeInterval = Math.max(1, keyframeInterval);
+        mMinScore = minScore;
+    }
+
+    /**
+     * @return 下一帧是否需要完整识别
+     */
+    public boolean needsKeyframe() {
+        return !mHasKeyframe || mFramesSinceKeyframe + 1 >= mKeyframeInterval;
+    }
+
+    /**
+     * 关键帧：用完整识别的结果更新跟踪，和已有的跟踪按距离贪心关联，没有关联上的识别结果分配新的id
+     *
+     * @param luma   这一帧按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     * @param faces  这一帧的识别结果
+     * @return 这一帧的人脸，顺序和faces相同
+     */
+    public TrackedFace[] onKeyframe(byte[] luma, int width, int height, FaceInfo[] faces) {
+        mHasKeyframe = true;
+        mFramesSinceKeyframe = 0;
+        // 所有在距离阈值内的组合，按距离从小到大关联
+        List<float[]> pairs = new ArrayList<float[]>();
+        for (int t = 0; t < mTracks.size(); t++) {
+            FaceInfo tracked = mTracks.get(t).mFace;
+            for (int f = 0; f < faces.length; f++) {
+                float distance = distance(tracked, faces[f]);
+                if (distance <= MATCH_GATE * Math.max(tracked.eyesDistance(), faces[f].eyesDistance())) {
+                    pairs.add(new float[]{distance, t, f});
+                }
+            }
+        }
+        Collections.sort(pairs, BY_DISTANCE);
+        Track[] assigned = new Track[faces.length];
+        boolean[] matched = new boolean[mTracks.size()];
+        for (float[] pair : pairs) {
+            int t = (int) pair[1];
+            int f = (int) pair[2];
+            if (!matched[t] && assigned[f] == null) {
+                matched[t] = true;
+                assigned[f] = mTracks.get(t);
+            }
+        }
+        List<Track> unmatched = new ArrayList<Track>();
+        for (int t = 0; t < mTracks.size(); t++) {
+            if (!matched[t]) {
+                unmatched.add(mTracks.get(t));
+            }
+        }
+        List<Track> tracks = new ArrayList<Track>(faces.length + unmatched.size());
+        TrackedFace[] result = new TrackedFace[faces.length];
+        for (int f = 0; f < faces.length; f++) {
+            Track track = assigned[f];
+            if (track == null) {
+                track = new Track(mNextId++);
+                for (Track lost : unmatched) {
+                    if (distance(lost.mFace, faces[f]) <= SWITCH_GATE * MATCH_GATE * faces[f].eyesDistance()) {
+                        mIdSwitches++;
+                        break;
+                    }
+                }
+            }
+            track.mFace = faces[f];
+            track.mMisses = 0;
+            sample(luma, width, height, faces[f].getMidX(), faces[f].getMidY(), faces[f].eyesDistance()
+                    , track.mTemplate);
+            tracks.add(track);
+            result[f] = new TrackedFace(track.mId, track.mFace, 1f);
+        }
+        // 识别偶尔漏掉的脸保留到下一个关键帧，避免重新出现时换了id
+        for (Track lost : unmatched) {
+            if (++lost.mMisses <= MAX_MISSES) {
+                tracks.add(lost);
+            }
+        }
+        mTracks.clear();
+        mTracks.addAll(tracks);
+        return result;
+    }
+
+    /**
+     * 非关键帧：在上一次位置附近搜索每张脸的模板
+     *
+     * @param luma   这一帧按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     * @return 这一帧的人脸；任何一张脸跟丢时返回null，这一帧需要完整识别
+     */
+    public TrackedFace[] track(byte[] luma, int width, int height) {
+        if (!mHasKeyframe) {
+            return null;
+        }
+        List<TrackedFace> result = new ArrayList<TrackedFace>(mTracks.size());
+        for (Track track : mTracks) {
+            if (track.mMisses > 0) {
+                continue;
+            }
+            FaceInfo face = track.mFace;
+            float eyesDistance = face.eyesDistance();
+            float[] best = search(luma, width, height, track.mTemplate, face.getMidX(), face.getMidY()
+                    , eyesDistance);
+            if (best[2] < mMinScore || best[0] < 0 || best[1] < 0 || best[0] >= width || best[1] >= height) {
+                return null;
+            }
+            track.mFace = new FaceInfo(best[0], best[1], eyesDistance, face.confidence());
+            result.add(new TrackedFace(track.mId, track.mFace, best[2]));
+        }
+        mFramesSinceKeyframe++;
+        return result.toArray(new TrackedFace[result.size()]);
+    }
+
+    /**
+     * @return 新识别到的脸被分配新id，而附近有一个没有关联上的旧跟踪的次数，即同一张脸可能换了id
+     */
+    public long getIdSwitches() {
+        return mIdSwitches;
+    }
+
+    /**
+     * @return 正在跟踪的脸数，不包括暂时没有识别到的
+     */
+    public int getTrackCount() {
+        int count = 0;
+        for (Track track : mTracks) {
+            if (track.mMisses == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 清除所有跟踪，下一帧需要完整识别，例如帧的宽高变化时
+     */
+    public void reset() {
+        mTracks.clear();
+        mHasKeyframe = false;
+        mFramesSinceKeyframe = 0;
+    }
+
+    /**
+     * 由粗到细搜索：先在搜索半径内按采样间隔搜索，再每次把间隔减半，在最好的位置周围搜索
+     *
+     * @return {x, y, 相关系数}
+     */
+    private float[] search(byte[] luma, int width, int height, float[] template, float midX, float midY
+            , float eyesDistance) {
+        float step = Math.max(1f, PATCH_SCALE * eyesDistance / GRID);
+        float radius = Math.max(step, SEARCH_RADIUS * eyesDistance);
+        int steps = (int) (radius / step);
+        float bestX = midX;
+        float bestY = midY;
+        float bestScore = -2f;
+        for (int dy = -steps; dy <= steps; dy++) {
+            for (int dx = -steps; dx <= steps; dx++) {
+                float x = midX + dx * step;
+                float y = midY + dy * step;
+                float score = correlate(luma, width, height, template, x, y, eyesDistance);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+        for (step /= 2; step >= 0.5f; step /= 2) {
+            float centerX = bestX;
+            float centerY = bestY;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dx == 0 && dy == 0) {
+                        continue;
+                    }
+                    float x = centerX + dx * step;
+                    float y = centerY + dy * step;
+                    float score = correlate(luma, width, height, template, x, y, eyesDistance);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestX = x;
+                        bestY = y;
+                    }
+                }
+            }
+        }
+        return new float[]{bestX, bestY, bestScore};
+    }
+
+    private float correlate(byte[] luma, int width, int height, float[] template, float midX, float midY
+            , float eyesDistance) {
+        if (!sample(luma, width, height, midX, midY, eyesDistance, mPatch)) {
+            return 0f;
+        }
+        float sum = 0;
+        for (int i = 0; i < mPatch.length; i++) {
+            sum += mPatch[i] * template[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 以两眼中点为基准，在脸部的方形区域内取GRID x GRID个最近的像素，去掉均值并归一化为单位长度，
+     * 两个采样的点积就是相关系数。超出图片的点使用边缘的像素
+     *
+     * @return 区域内亮度是否有变化，没有变化时无法比较
+     */
+    static boolean sample(byte[] luma, int width, int height, float midX, float midY, float eyesDistance
+            , float[] out) {
+        float side = PATCH_SCALE * eyesDistance;
+        float step = side / GRID;
+        float left = midX - side / 2 + step / 2;
+        float top = midY + PATCH_OFFSET_Y * eyesDistance - side / 2 + step / 2;
+        float sum = 0;
+        for (int gy = 0; gy < GRID; gy++) {
+            int y = clamp(Math.round(top + gy * step), height);
+            int row = y * width;
+            for (int gx = 0; gx < GRID; gx++) {
+                int x = clamp(Math.round(left + gx * step), width);
+                float value = luma[row + x] & 0xFF;
+                out[gy * GRID + gx] = value;
+                sum += value;
+            }
+        }
+        float mean = sum / out.length;
+        float squares = 0;
+        for (int i = 0; i < out.length; i++) {
+            float value = out[i] - mean;
+            out[i] = value;
+            squares += value * value;
+        }
+        if (squares < 1e-3f) {
+            Arrays.fill(out, 0f);
+            return false;
+        }
+        float scale = (float) (1 / Math.sqrt(squares));
+        for (int i = 0; i < out.length; i++) {
+            out[i] *= scale;
+        }
+        return true;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    private static float distance(FaceInfo a, FaceInfo b) {
+        float dx = a.getMidX() - b.getMidX();
+        float dy = a.getMidY() - b.getMidY();
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
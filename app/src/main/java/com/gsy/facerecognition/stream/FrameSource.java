@@ -0,0 +1,18 @@
+package com.gsy.facerecognition.stream;
+
+import java.io.IOException;
+
+/**
+ * 连续识别的帧来源，例如相机预览回调或者一组解码好的图片
+ */
+public interface FrameSource {
+
+    /**
+     * 把下一帧填入frame，包括宽高，时间戳可以不设置
+     *
+     * @param frame 预先分配的帧
+     * @return 是否还有帧，false时frame没有被修改
+     * @throws IOException 读取失败
+     */
+    boolean next(StreamFrame frame) throws IOException;
+}
@@ -0,0 +1,101 @@
+package com.gsy.facerecognition.stream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 按文件名顺序读取一个目录中的二进制PGM(P5)灰度图，每个文件一帧。
+ * 格式简单，可以用任何工具从视频导出，不依赖android的解码，可以在本地单元测试中运行
+ */
+public class PgmFrameSource implements FrameSource {
+    private final File[] mFiles;
+    private byte[] mLuma = new byte[0];
+    private int mNextFile;
+
+    public PgmFrameSource(File dir) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase(Locale.US).endsWith(".pgm");
+            }
+        });
+        if (files == null) {
+            throw new IOException("not a directory " + dir);
+        }
+        Arrays.sort(files);
+        mFiles = files;
+    }
+
+    public int getFrameCount() {
+        return mFiles.length;
+    }
+
+    @Override
+    public boolean next(StreamFrame frame) throws IOException {
+        if (mNextFile >= mFiles.length) {
+            return false;
+        }
+        File file = mFiles[mNextFile++];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (!"P5".equals(readToken(in))) {
+                throw new IOException("not a binary pgm " + file);
+            }
+            int width = Integer.parseInt(readToken(in));
+            int height = Integer.parseInt(readToken(in));
+            int maxValue = Integer.parseInt(readToken(in));
+            if (maxValue <= 0 || maxValue > 255) {
+                throw new IOException("unsupported max value " + maxValue + " in " + file);
+            }
+            int count = width * height;
+            if (mLuma.length < count) {
+                mLuma = new byte[count];
+            }
+            // 头部最后一个数字之后只有一个空白字符，readToken已经读过
+            in.readFully(mLuma, 0, count);
+            if (maxValue != 255) {
+                for (int i = 0; i < count; i++) {
+                    mLuma[i] = (byte) ((mLuma[i] & 0xFF) * 255 / maxValue);
+                }
+            }
+            frame.setLuma(mLuma, width, height);
+            return true;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad pgm header " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 读取头部的一个字段，跳过前面的空白和#开头的注释，并且读掉后面的一个空白字符
+     */
+    private static String readToken(InputStream in) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '#' && token.length() == 0) {
+                while ((c = in.read()) != -1 && c != '\n') {
+                    // 注释
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    break;
+                }
+            } else {
+                token.append((char) c);
+            }
+        }
+        if (token.length() == 0) {
+            throw new IOException("unexpected end of pgm header");
+        }
+        return token.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.gsy.facerecognition.stream;
+
+import com.gsy.facerecognition.detect.engine.ArrayPixelBuffer;
+import com.gsy.facerecognition.detect.engine.Rgb565Buffer;
+
+/**
+ * 连续识别中的一帧，RGB_565像素数组按最大宽高预先分配，由StreamingFaceDetector循环使用，不再为每帧申请内存。
+ * 生产者从obtainFrame得到一帧，填入像素、宽高和时间戳后submit，之后不能再访问
+ */
+public class StreamFrame implements Rgb565Buffer {
+    private final short[] mPixels;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;                                   // 采集时间，System.nanoTime的时间基准
+    private long mSequence;                                         // 提交的顺序，由StreamingFaceDetector设置
+
+    public StreamFrame(int maxWidth, int maxHeight) {
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        mPixels = new short[maxWidth * maxHeight];
+        mWidth = maxWidth;
+        mHeight = maxHeight;
+    }
+
+    /**
+     * 设置这一帧实际的宽高，像素按这个宽度连续排列
+     */
+    public void setSize(int width, int height) {
+        if (width <= 0 || height <= 0 || width > mMaxWidth || height > mMaxHeight) {
+            throw new IllegalArgumentException("frame " + width + "x" + height + " exceeds " + mMaxWidth + "x"
+                    + mMaxHeight);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * 用8位亮度填充，每个像素转换为灰色的RGB_565
+     *
+     * @param luma   按行排列的亮度
+     * @param width  宽
+     * @param height 高
+     */
+    public void setLuma(byte[] luma, int width, int height) {
+        setSize(width, height);
+        int count = width * height;
+        for (int i = 0; i < count; i++) {
+            int gray = luma[i] & 0xFF;
+            mPixels[i] = (short) ((gray >> 3) << 11 | (gray >> 2) << 5 | gray >> 3);
+        }
+    }
+
+    public int getMaxWidth() {
+        return mMaxWidth;
+    }
+
+    public int getMaxHeight() {
+        return mMaxHeight;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @param timestampNanos 采集时间，System.nanoTime的时间基准，为0时提交时使用当前时间
+     */
+    public void setTimestampNanos(long timestampNanos) {
+        mTimestampNanos = timestampNanos;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    @Override
+    public short[] getRgb565() {
+        return mPixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void readLuma(byte[] out) {
+        int count = mWidth * mHeight;
+        for (int i = 0; i < count; i++) {
+            int pixel = mPixels[i] & 0xFFFF;
+            int r = pixel >> 11;
+            int g = pixel >> 5 & 0x3F;
+            int b = pixel & 0x1F;
+            // 5位和6位扩展到8位，高位复制到低位
+            int argb = (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+            out[i] = (byte) ArrayPixelBuffer.toLuma(argb);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.gsy.facerecognition.stream;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.gsy.facerecognition.view.MyImageView;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把连续识别的结果显示到MyImageView上。识别线程只保存最新的结果，主线程最多排队一次更新，
+ * 主线程忙时中间的结果直接被覆盖，不会堆积。帧的宽高变化时重新设置占位图，否则只更新人脸框，缩放和位置不变
+ */
+public class StreamOverlayPublisher implements StreamingFaceDetector.OnStreamResultListener {
+    private final MyImageView mImageView;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicReference<StreamingFaceDetector.StreamResult> mPending =
+            new AtomicReference<StreamingFaceDetector.StreamResult>();
+    private int mWidth;                                             // 以下只在主线程访问
+    private int mHeight;
+    private long mShownTimestampNanos;                              // 正在显示的结果的帧时间戳
+
+    private final Runnable mApply = new Runnable() {
+        @Override
+        public void run() {
+            StreamingFaceDetector.StreamResult result = mPending.getAndSet(null);
+            if (result == null) {
+                return;
+            }
+            if (result.getWidth() != mWidth || result.getHeight() != mHeight) {
+                mWidth = result.getWidth();
+                mHeight = result.getHeight();
+                mImageView.setFacesPreview(mWidth, mHeight, result.getFaces(), 1f);
+            } else {
+                mImageView.updateFaces(result.getFaces(), 1f);
+            }
+            mShownTimestampNanos = result.getTimestampNanos();
+        }
+    };
+
+    public StreamOverlayPublisher(MyImageView imageView) {
+        mImageView = imageView;
+    }
+
+    /**
+     * @return 正在显示的结果的帧时间戳，只在主线程调用
+     */
+    public long getShownTimestampNanos() {
+        return mShownTimestampNanos;
+    }
+
+    @Override
+    public void onStreamResult(StreamingFaceDetector.StreamResult result) {
+        if (mPending.getAndSet(result) == null) {
+            mMainHandler.post(mApply);
+        }
+    }
+}
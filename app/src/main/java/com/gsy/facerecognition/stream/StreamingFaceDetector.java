@@ -0,0 +1,556 @@
+package com.gsy.facerecognition.stream;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.gsy.facerecognition.detect.FaceFilter;
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连续帧的人脸识别，例如相机预览。帧从预先分配的池中取出，提交后进入有上限的队列，
+ * 队列满时丢弃最旧的帧，只保留最新的，因此识别跟不上时延迟不会越积越大，生产者也不会被阻塞。
+ * 多个识别线程共用同一个线程安全的引擎，结果按帧的顺序发布，比已经发布的帧更旧的结果直接丢弃。
+ * 记录吞吐、丢帧数和从采集到发布的端到端延迟。
+ * 使用FaceTracker时只有一个识别线程，只在关键帧完整识别，其余的帧只跟踪上一帧的人脸，结果带有稳定的id
+ */
+public class StreamingFaceDetector {
+    private static final String TAG = "StreamingFaceDetector";
+
+    /**
+     * 识别结果的回调，在识别线程中按帧的顺序调用
+     */
+    public interface OnStreamResultListener {
+        void onStreamResult(StreamResult result);
+    }
+
+    /**
+     * 一帧的识别结果，帧本身已经回到池中，这里只保留需要的信息
+     */
+    public static class StreamResult {
+        private final long mSequence;
+        private final long mTimestampNanos;
+        private final int mWidth;
+        private final int mHeight;
+        private final FaceInfo[] mFaces;                            // 帧中的坐标
+        private final int[] mTrackIds;                              // 和mFaces对应的跟踪id，没有跟踪时为null
+        private final boolean mIsKeyframe;                          // 是否完整识别
+        private final long mLatencyNanos;                           // 从采集到发布
+
+        StreamResult(long sequence, long timestampNanos, int width, int height, FaceInfo[] faces, int[] trackIds
+                , boolean isKeyframe, long latencyNanos) {
+            mSequence = sequence;
+            mTimestampNanos = timestampNanos;
+            mWidth = width;
+            mHeight = height;
+            mFaces = faces;
+            mTrackIds = trackIds;
+            mIsKeyframe = isKeyframe;
+            mLatencyNanos = latencyNanos;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public FaceInfo[] getFaces() {
+            return mFaces;
+        }
+
+        /**
+         * @return 和getFaces对应的跟踪id，同一张脸在帧之间不变；没有使用FaceTracker时为null
+         */
+        @Nullable
+        public int[] getTrackIds() {
+            return mTrackIds;
+        }
+
+        public boolean isKeyframe() {
+            return mIsKeyframe;
+        }
+
+        public long getLatencyNanos() {
+            return mLatencyNanos;
+        }
+    }
+
+    /**
+     * 某一时刻的统计
+     */
+    public static class Stats {
+        private final long mSubmitted;
+        private final long mPublished;
+        private final long mDropped;                                // 在队列中被更新的帧挤掉，没有识别
+        private final long mStale;                                  // 识别完成时已经有更新的结果发布
+        private final long mFailed;                                 // 识别时引擎抛出异常，没有发布
+        private final long mElapsedNanos;                           // 第一次提交到最近一次发布
+        private final long mLatencyP50Nanos;
+        private final long mLatencyP90Nanos;
+        private final long mLatencyMaxNanos;
+        private final long mDetectMeanNanos;
+        private final long mKeyframes;                              // 发布的帧中完整识别的
+        private final long mTrackedFrames;                          // 发布的帧中只跟踪的
+        private final long mTrackMeanNanos;                         // 每次跟踪的平均耗时，包括跟丢的
+        private final long mIdSwitches;
+
+        Stats(long submitted, long published, long dropped, long stale, long failed, long elapsedNanos
+                , LatencyHistogram latency
+                , LatencyHistogram detect, long keyframes, long trackedFrames, LatencyHistogram track
+                , long idSwitches) {
+            mSubmitted = submitted;
+            mPublished = published;
+            mDropped = dropped;
+            mStale = stale;
+            mFailed = failed;
+            mElapsedNanos = elapsedNanos;
+            mLatencyP50Nanos = latency.getPercentileNanos(50);
+            mLatencyP90Nanos = latency.getPercentileNanos(90);
+            mLatencyMaxNanos = latency.getMaxNanos();
+            mDetectMeanNanos = detect.getCount() == 0 ? 0 : detect.getTotalNanos() / detect.getCount();
+            mKeyframes = keyframes;
+            mTrackedFrames = trackedFrames;
+            mTrackMeanNanos = track.getCount() == 0 ? 0 : track.getTotalNanos() / track.getCount();
+            mIdSwitches = idSwitches;
+        }
+
+        public long getSubmitted() {
+            return mSubmitted;
+        }
+
+        public long getPublished() {
+            return mPublished;
+        }
+
+        public long getDropped() {
+            return mDropped;
+        }
+
+        public long getStale() {
+            return mStale;
+        }
+
+        public long getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * @return 每秒发布的结果数
+         */
+        public double getThroughput() {
+            return mElapsedNanos <= 0 ? 0 : mPublished * 1e9 / mElapsedNanos;
+        }
+
+        public long getLatencyP50Nanos() {
+            return mLatencyP50Nanos;
+        }
+
+        public long getLatencyP90Nanos() {
+            return mLatencyP90Nanos;
+        }
+
+        public long getLatencyMaxNanos() {
+            return mLatencyMaxNanos;
+        }
+
+        public long getDetectMeanNanos() {
+            return mDetectMeanNanos;
+        }
+
+        public long getKeyframes() {
+            return mKeyframes;
+        }
+
+        public long getTrackedFrames() {
+            return mTrackedFrames;
+        }
+
+        public long getTrackMeanNanos() {
+            return mTrackMeanNanos;
+        }
+
+        /**
+         * @return 完整识别一帧的耗时是跟踪一帧的多少倍，没有跟踪时为0
+         */
+        public double getCostRatio() {
+            return mTrackMeanNanos == 0 ? 0 : (double) mDetectMeanNanos / mTrackMeanNanos;
+        }
+
+        /**
+         * @see FaceTracker#getIdSwitches()
+         */
+        public long getIdSwitches() {
+            return mIdSwitches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Stats{submitted=%d, published=%d, dropped=%d, stale=%d, failed=%d"
+                    + ", fps=%.1f, latencyP50=%.2fms, latencyP90=%.2fms, latencyMax=%.2fms, detect=%.2fms"
+                    + ", keyframes=%d, tracked=%d, track=%.3fms, costRatio=%.1f, idSwitches=%d}", mSubmitted
+                    , mPublished, mDropped, mStale, mFailed, getThroughput(), mLatencyP50Nanos / 1e6
+                    , mLatencyP90Nanos / 1e6, mLatencyMaxNanos / 1e6, mDetectMeanNanos / 1e6, mKeyframes
+                    , mTrackedFrames, mTrackMeanNanos / 1e6, getCostRatio(), mIdSwitches);
+        }
+    }
+
+    private final FaceDetectionEngine mEngine;
+    private final int mMaxCount;
+    private final int mQueueCapacity;
+    private final OnStreamResultListener mListener;
+    private final FaceTracker mTracker;                             // 只在唯一的识别线程中访问
+    private final ExecutorService mExecutor;
+    private final Object mLock = new Object();
+    private final ArrayDeque<StreamFrame> mFreeFrames;              // 以下由mLock保护
+    private final ArrayDeque<StreamFrame> mQueue;
+    private int mInFlight;                                          // 正在识别的帧数
+    private long mNextSequence;
+    private long mSubmitted;
+    private long mDropped;
+    private long mFailed;
+    private long mFirstSubmitNanos;
+    private volatile boolean mIsReleased;
+    private final Object mPublishLock = new Object();
+    private long mLastPublished = -1;                               // 以下由mPublishLock保护
+    private long mPublished;
+    private long mStale;
+    private long mLastPublishNanos;
+    private long mKeyframes;
+    private long mTrackedFrames;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mDetectTime = new LatencyHistogram();
+    private final LatencyHistogram mTrackTime = new LatencyHistogram();
+
+    /**
+     * @param engine        识别引擎，必须是线程安全的，由调用者负责释放
+     * @param maxWidth      帧的最大宽
+     * @param maxHeight     帧的最大高
+     * @param queueCapacity 等待识别的最多帧数，1表示只识别最新的一帧
+     * @param workerCount   识别线程数
+     * @param maxCount      每帧最多的人脸数
+     * @param listener      结果的回调
+     */
+    public StreamingFaceDetector(FaceDetectionEngine engine, int maxWidth, int maxHeight, int queueCapacity
+            , int workerCount, int maxCount, OnStreamResultListener listener) {
+        this(engine, maxWidth, maxHeight, queueCapacity, workerCount, maxCount, null, listener);
+    }
+
+    /**
+     * @param tracker 帧之间的跟踪，不为null时workerCount必须为1，跟踪需要按顺序处理每一帧
+     */
+    public StreamingFaceDetector(FaceDetectionEngine engine, int maxWidth, int maxHeight, int queueCapacity
+            , int workerCount, int maxCount, @Nullable FaceTracker tracker, OnStreamResultListener listener) {
+        if (tracker != null && workerCount > 1) {
+            throw new IllegalArgumentException("tracking needs a single worker, got " + workerCount);
+        }
+        mEngine = engine;
+        mTracker = tracker;
+        mMaxCount = maxCount;
+        mQueueCapacity = Math.max(1, queueCapacity);
+        mListener = listener;
+        workerCount = Math.max(1, workerCount);
+        // 队列中、识别中和生产者正在填充的帧，不会再多
+        int frameCount = mQueueCapacity + workerCount + 1;
+        mFreeFrames = new ArrayDeque<StreamFrame>(frameCount);
+        mQueue = new ArrayDeque<StreamFrame>(mQueueCapacity + 1);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeFrames.add(new StreamFrame(maxWidth, maxHeight));
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < workerCount; i++) {
+            mExecutor.execute(new Worker());
+        }
+    }
+
+    /**
+     * 取出一个空闲的帧用来填充。没有空闲的帧时丢弃队列中最旧的一帧，只有多个生产者同时填充时才会等待
+     *
+     * @return 预先分配的帧，时间戳已经清零，填充后submit，不使用时recycle
+     * @throws InterruptedException 等待时线程被中断
+     */
+    public StreamFrame obtainFrame() throws InterruptedException {
+        synchronized (mLock) {
+            while (true) {
+                if (mIsReleased) {
+                    throw new IllegalStateException("released");
+                }
+                StreamFrame frame = mFreeFrames.pollFirst();
+                if (frame == null) {
+                    frame = mQueue.pollFirst();
+                    if (frame != null) {
+                        mDropped++;
+                    }
+                }
+                if (frame != null) {
+                    // 复用的帧还带着上一次的时间戳，生产者没有设置时submit要用当前时间
+                    frame.setTimestampNanos(0);
+                    return frame;
+                }
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * 提交一帧等待识别，队列满时丢弃最旧的一帧。提交后不能再访问这一帧
+     */
+    public void submit(StreamFrame frame) {
+        if (frame.getTimestampNanos() == 0) {
+            frame.setTimestampNanos(System.nanoTime());
+        }
+        synchronized (mLock) {
+            if (mIsReleased) {
+                mFreeFrames.addLast(frame);
+                return;
+            }
+            if (mSubmitted++ == 0) {
+                mFirstSubmitNanos = frame.getTimestampNanos();
+            }
+            frame.setSequence(mNextSequence++);
+            mQueue.addLast(frame);
+            while (mQueue.size() > mQueueCapacity) {
+                mFreeFrames.addLast(mQueue.pollFirst());
+                mDropped++;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 归还没有提交的帧
+     */
+    public void recycle(StreamFrame frame) {
+        synchronized (mLock) {
+            mFreeFrames.addLast(frame);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 从帧来源中依次读取并提交，在调用线程中运行
+     *
+     * @param source             帧来源
+     * @param frameIntervalNanos 两帧之间的间隔，模拟相机的帧率，为0时尽快提交
+     * @return 提交的帧数
+     */
+    public int play(FrameSource source, long frameIntervalNanos) throws IOException, InterruptedException {
+        int count = 0;
+        long next = System.nanoTime();
+        while (true) {
+            StreamFrame frame = obtainFrame();
+            if (!source.next(frame)) {
+                recycle(frame);
+                return count;
+            }
+            submit(frame);
+            count++;
+            if (frameIntervalNanos > 0) {
+                next += frameIntervalNanos;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待队列中和正在识别的帧全部完成
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mIsReleased && (!mQueue.isEmpty() || mInFlight > 0)) {
+                mLock.wait();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        long submitted;
+        long dropped;
+        long failed;
+        long firstSubmitNanos;
+        synchronized (mLock) {
+            submitted = mSubmitted;
+            dropped = mDropped;
+            failed = mFailed;
+            firstSubmitNanos = mFirstSubmitNanos;
+        }
+        long idSwitches = 0;
+        if (mTracker != null) {
+            synchronized (mTracker) {
+                idSwitches = mTracker.getIdSwitches();
+            }
+        }
+        synchronized (mPublishLock) {
+            return new Stats(submitted, mPublished, dropped, mStale, failed
+                    , mPublished == 0 ? 0 : mLastPublishNanos - firstSubmitNanos, mLatency, mDetectTime, mKeyframes
+                    , mTrackedFrames, mTrackTime, idSwitches);
+        }
+    }
+
+    /**
+     * 停止识别线程，队列中的帧不再识别，正在识别的帧完成后不再发布
+     */
+    public void release() {
+        synchronized (mLock) {
+            mIsReleased = true;
+            while (!mQueue.isEmpty()) {
+                mFreeFrames.addLast(mQueue.pollFirst());
+            }
+            mLock.notifyAll();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void publish(StreamFrame frame, FaceInfo[] faces, @Nullable int[] trackIds, boolean isKeyframe) {
+        synchronized (mPublishLock) {
+            if (frame.getSequence() <= mLastPublished) {
+                mStale++;
+                return;
+            }
+            long now = System.nanoTime();
+            mLastPublished = frame.getSequence();
+            mPublished++;
+            mLastPublishNanos = now;
+            if (isKeyframe) {
+                mKeyframes++;
+            } else {
+                mTrackedFrames++;
+            }
+            long latency = now - frame.getTimestampNanos();
+            mLatency.record(latency);
+            mListener.onStreamResult(new StreamResult(frame.getSequence(), frame.getTimestampNanos()
+                    , frame.getWidth(), frame.getHeight(), faces, trackIds, isKeyframe, latency));
+        }
+    }
+
+    private FaceInfo[] detect(StreamFrame frame) {
+        long start = System.nanoTime();
+        FaceInfo[] faces = mEngine.detect(frame, mMaxCount);
+        faces = FaceFilter.filterIncompleteFaces(faces, frame.getWidth(), frame.getHeight());
+        mDetectTime.record(System.nanoTime() - start);
+        return faces;
+    }
+
+    /**
+     * 识别线程，依次取出队列中最旧的帧
+     */
+    private class Worker implements Runnable {
+        private byte[] mLuma;                                       // 跟踪使用的亮度，只在这个线程中访问
+        private int mWidth;
+        private int mHeight;
+
+        @Override
+        public void run() {
+            while (true) {
+                StreamFrame frame;
+                synchronized (mLock) {
+                    while (mQueue.isEmpty() && !mIsReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (mIsReleased) {
+                        return;
+                    }
+                    frame = mQueue.pollFirst();
+                    mInFlight++;
+                }
+                try {
+                    if (mTracker != null) {
+                        detectAndTrack(frame);
+                    } else {
+                        FaceInfo[] faces = detect(frame);
+                        if (!mIsReleased) {
+                            publish(frame, faces, null, true);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // 引擎或者跟踪出错时只丢掉这一帧，工作线程继续处理后面的帧
+                    Log.w(TAG, "detect frame failed", e);
+                    synchronized (mLock) {
+                        mFailed++;
+                    }
+                } finally {
+                    synchronized (mLock) {
+                        mInFlight--;
+                        mFreeFrames.addLast(frame);
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * 需要关键帧或者跟丢时完整识别，否则只跟踪
+         */
+        private void detectAndTrack(StreamFrame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            if (mLuma == null || mLuma.length < width * height) {
+                mLuma = new byte[frame.getMaxWidth() * frame.getMaxHeight()];
+            }
+            frame.readLuma(mLuma);
+            FaceTracker.TrackedFace[] tracked = null;
+            boolean isKeyframe;
+            synchronized (mTracker) {
+                if (width != mWidth || height != mHeight) {
+                    mWidth = width;
+                    mHeight = height;
+                    mTracker.reset();
+                }
+                if (!mTracker.needsKeyframe()) {
+                    long start = System.nanoTime();
+                    tracked = mTracker.track(mLuma, width, height);
+                    mTrackTime.record(System.nanoTime() - start);
+                }
+                isKeyframe = tracked == null;
+                if (isKeyframe) {
+                    tracked = mTracker.onKeyframe(mLuma, width, height, detect(frame));
+                }
+            }
+            FaceInfo[] faces = new FaceInfo[tracked.length];
+            int[] trackIds = new int[tracked.length];
+            for (int i = 0; i < tracked.length; i++) {
+                faces[i] = tracked[i].getFace();
+                trackIds[i] = tracked[i].getId();
+            }
+            if (!mIsReleased) {
+                publish(frame, faces, trackIds, isKeyframe);
+            }
+        }
+    }
+}
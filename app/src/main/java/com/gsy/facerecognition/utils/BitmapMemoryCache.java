@@ -0,0 +1,234 @@
+package com.gsy.facerecognition.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 解码后bitmap的内存缓存，以(路径, 修改时间, inSampleSize, Config)为key，按bitmap实际占用的字节数淘汰。
+ * ARGB_8888和RGB_565分开统计，各自有独立的字节上限，避免大的ARGB图把识别用的565图全部挤出去。
+ * 用完的bitmap通过put交给缓存，take取出后归调用者所有，同一个bitmap不会同时在缓存中和缓存外被使用，
+ * 因此淘汰的bitmap可以归还到对象池，作为之后解码的inBitmap
+ */
+public class BitmapMemoryCache {
+    private final Segment mArgbSegment;                             // ARGB_8888以及其他格式
+    private final Segment mRgb565Segment;                           // RGB_565
+
+    /**
+     * 按进程最大内存的1/8作为总上限，ARGB_8888占3/4，RGB_565占1/4
+     *
+     * @param bitmapPool 淘汰的bitmap归还到的对象池
+     */
+    public static BitmapMemoryCache createDefault(@Nullable BitmapPool bitmapPool) {
+        long budget = Runtime.getRuntime().maxMemory() / 8;
+        return new BitmapMemoryCache(budget * 3 / 4, budget / 4, bitmapPool);
+    }
+
+    /**
+     * @param argbMaxBytes   ARGB_8888的字节上限
+     * @param rgb565MaxBytes RGB_565的字节上限
+     * @param bitmapPool     淘汰的bitmap归还到的对象池，为null时交给GC
+     */
+    public BitmapMemoryCache(long argbMaxBytes, long rgb565MaxBytes, @Nullable BitmapPool bitmapPool) {
+        mArgbSegment = new Segment("ARGB_8888", argbMaxBytes, bitmapPool);
+        mRgb565Segment = new Segment("RGB_565", rgb565MaxBytes, bitmapPool);
+    }
+
+    /**
+     * 生成缓存的key
+     *
+     * @param filePath   图片路径
+     * @param lastModify 文件的修改时间，文件被修改后缓存自然失效
+     * @param sampleSize 解码时的inSampleSize
+     * @param config     解码的格式
+     * @return key
+     */
+    public static String buildKey(String filePath, long lastModify, int sampleSize, Bitmap.Config config) {
+        return filePath + '|' + lastModify + '|' + sampleSize + '|' + config;
+    }
+
+    /**
+     * 取出缓存的bitmap，之后归调用者所有，不再留在缓存中
+     *
+     * @param config key中的格式
+     * @return bitmap，没有时为null
+     */
+    @Nullable
+    public Bitmap take(String key, Bitmap.Config config) {
+        return segmentOf(config).take(key);
+    }
+
+    /**
+     * 把用完的bitmap交给缓存，之后调用者不能再使用
+     */
+    public void put(String key, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        segmentOf(bitmap.getConfig()).put(key, bitmap);
+    }
+
+    /**
+     * 根据系统的内存等级缩小缓存，在onTrimMemory中调用
+     *
+     * @param level ComponentCallbacks2中的TRIM_MEMORY_XXX
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mArgbSegment.trimToSize(mArgbSegment.mMaxBytes / 2);
+            mRgb565Segment.trimToSize(mRgb565Segment.mMaxBytes / 2);
+        }
+    }
+
+    public void evictAll() {
+        mArgbSegment.trimToSize(0);
+        mRgb565Segment.trimToSize(0);
+    }
+
+    public long getHitCount() {
+        return mArgbSegment.getHitCount() + mRgb565Segment.getHitCount();
+    }
+
+    public long getMissCount() {
+        return mArgbSegment.getMissCount() + mRgb565Segment.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return mArgbSegment.getEvictionCount() + mRgb565Segment.getEvictionCount();
+    }
+
+    public Segment getArgbSegment() {
+        return mArgbSegment;
+    }
+
+    public Segment getRgb565Segment() {
+        return mRgb565Segment;
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapMemoryCache{" + mArgbSegment + ", " + mRgb565Segment + '}';
+    }
+
+    private Segment segmentOf(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? mRgb565Segment : mArgbSegment;
+    }
+
+    /**
+     * 同一种格式的LRU缓存
+     */
+    public static class Segment {
+        private final String mName;
+        private final long mMaxBytes;
+        private final BitmapPool mBitmapPool;
+        // accessOrder为true，遍历的顺序即为最久未使用到最近使用
+        private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private long mSize;                                         // 当前缓存的字节数
+        private long mHitCount;
+        private long mMissCount;
+        private long mEvictionCount;
+
+        Segment(String name, long maxBytes, BitmapPool bitmapPool) {
+            mName = name;
+            mMaxBytes = maxBytes;
+            mBitmapPool = bitmapPool;
+        }
+
+        synchronized Bitmap take(String key) {
+            Entry entry = mEntries.remove(key);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mSize -= entry.byteCount;
+            mHitCount++;
+            return entry.bitmap;
+        }
+
+        synchronized void put(String key, Bitmap bitmap) {
+            int byteCount = bitmap.getByteCount();
+            if (byteCount > mMaxBytes) {
+                recycle(bitmap);
+                return;
+            }
+            Entry old = mEntries.put(key, new Entry(bitmap, byteCount));
+            if (old != null) {
+                mSize -= old.byteCount;
+                if (old.bitmap != bitmap) {
+                    recycle(old.bitmap);
+                }
+            }
+            mSize += byteCount;
+            trimToSize(mMaxBytes);
+        }
+
+        /**
+         * 淘汰最久未使用的bitmap直到不超过maxBytes，缓存中的bitmap只有缓存在使用，淘汰后归还到对象池
+         */
+        synchronized void trimToSize(long maxBytes) {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mSize > maxBytes && iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                iterator.remove();
+                mSize -= entry.byteCount;
+                mEvictionCount++;
+                recycle(entry.bitmap);
+            }
+        }
+
+        private void recycle(Bitmap bitmap) {
+            if (mBitmapPool != null) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+
+        public synchronized long getSize() {
+            return mSize;
+        }
+
+        public long getMaxBytes() {
+            return mMaxBytes;
+        }
+
+        public synchronized int getCount() {
+            return mEntries.size();
+        }
+
+        public synchronized long getHitCount() {
+            return mHitCount;
+        }
+
+        public synchronized long getMissCount() {
+            return mMissCount;
+        }
+
+        public synchronized long getEvictionCount() {
+            return mEvictionCount;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + "{size=" + mSize + "/" + mMaxBytes + ", count=" + mEntries.size() + ", hit=" + mHitCount
+                    + ", miss=" + mMissCount + ", eviction=" + mEvictionCount + '}';
+        }
+    }
+
+    /**
+     * 记录放入时的字节数，淘汰时不用再访问bitmap
+     */
+    private static class Entry {
+        final Bitmap bitmap;
+        final int byteCount;
+
+        Entry(Bitmap bitmap, int byteCount) {
+            this.bitmap = bitmap;
+            this.byteCount = byteCount;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.gsy.facerecognition.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 可复用bitmap的对象池，按(宽, 高, Config)分桶，总字节数有上限，超出时淘汰最久未使用的桶中的bitmap。
+ * 池中的bitmap用于BitmapFactory.Options.inBitmap解码，以及旋转、裁剪时的临时bitmap，避免频繁申请大块内存。
+ * 从池中取出的bitmap用完后必须调用put归还，没有归还就被回收的bitmap会被当做泄漏打印出来
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private final long mMaxBytes;
+    // accessOrder为true，遍历的顺序即为最久未使用到最近使用
+    private final LinkedHashMap<Key, ArrayDeque<Bitmap>> mBuckets = new LinkedHashMap<Key, ArrayDeque<Bitmap>>(16, 0.75f, true);
+    private long mSize;                                             // 池中bitmap的总字节数
+    private long mHitCount;
+    private long mMissCount;
+    private long mLeakCount;
+    // 借出但还没有归还的bitmap，key为identityHashCode，用来检测泄漏
+    private final HashMap<Integer, List<TrackedReference>> mOutstanding = new HashMap<Integer, List<TrackedReference>>();
+    private final ReferenceQueue<Bitmap> mReferenceQueue = new ReferenceQueue<Bitmap>();
+    private boolean mIsTrackStack;                                  // 是否记录借出时的调用栈，调试时使用
+
+    /**
+     * 按进程最大内存的1/16作为上限
+     */
+    public static BitmapPool createDefault() {
+        return new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 设置是否记录借出时的调用栈，打开后泄漏日志中会带上借出的位置
+     */
+    public synchronized void setTrackStack(boolean isTrackStack) {
+        mIsTrackStack = isTrackStack;
+    }
+
+    /**
+     * 获取一个指定大小和格式的可写bitmap，内容已经清空，池中没有时新建一个
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getDirty(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * 获取一个指定大小和格式的可写bitmap，内容是之前使用留下的，调用者会完全覆盖时使用
+     */
+    public Bitmap getDirty(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = poll(new Key(width, height, config));
+            if (bitmap == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        track(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 为解码设置inBitmap，options中的outWidth和outHeight必须已经是图片的原始宽高。
+     * 4.4以下要求inBitmap和解码结果大小完全一致并且inSampleSize为1，4.4及以上只要inBitmap足够大即可
+     *
+     * @param options 解码使用的options
+     * @return 是否设置了inBitmap
+     */
+    public boolean applyInBitmap(BitmapFactory.Options options) {
+        options.inMutable = true;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            int height = (options.outHeight + sampleSize - 1) / sampleSize;
+            synchronized (this) {
+                bitmap = pollFit(width, height, config);
+            }
+        } else if (sampleSize == 1) {
+            synchronized (this) {
+                bitmap = poll(new Key(options.outWidth, options.outHeight, config));
+            }
+        } else {
+            bitmap = null;
+        }
+        synchronized (this) {
+            if (bitmap == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+        }
+        options.inBitmap = bitmap;
+        return bitmap != null;
+    }
+
+    /**
+     * 使用池中的bitmap解码，inBitmap不合适导致解码失败时不使用inBitmap重新解码
+     *
+     * @param filePath 图片路径
+     * @param options  解码使用的options，outWidth和outHeight必须已经是图片的原始宽高
+     * @return 图片，失败时为null
+     */
+    public Bitmap decodeFile(String filePath, BitmapFactory.Options options) {
+        boolean isReuse = applyInBitmap(options);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(filePath, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "decode with inBitmap failed", e);
+        }
+        if (bitmap == null && isReuse) {
+            put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(filePath, options);
+        }
+        options.inBitmap = null;
+        if (bitmap != null) {
+            track(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 使用池中的bitmap解码一块区域，4.1以下BitmapRegionDecoder不支持inBitmap，直接解码
+     *
+     * @param decoder 区域解码器
+     * @param rect    解码的区域，图片数据中的坐标
+     * @param options 解码使用的options
+     * @return 图片，失败时为null
+     */
+    public Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, BitmapFactory.Options options) {
+        boolean isReuse = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            options.outWidth = rect.width();
+            options.outHeight = rect.height();
+            isReuse = applyInBitmap(options);
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = decoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "decode region with inBitmap failed", e);
+        }
+        if (bitmap == null && isReuse) {
+            put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decoder.decodeRegion(rect, options);
+        }
+        options.inBitmap = null;
+        if (bitmap != null) {
+            track(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 归还bitmap，不可写或者已经recycle的bitmap会被直接recycle而不进入池中
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (this) {
+            untrack(bitmap);
+            if (bitmap.isRecycled()) {
+                return;
+            }
+            if (bitmap.isMutable() && byteCountOf(bitmap) <= mMaxBytes / 2) {
+                Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+                ArrayDeque<Bitmap> bitmaps = mBuckets.get(key);
+                if (bitmaps == null) {
+                    bitmaps = new ArrayDeque<Bitmap>();
+                    mBuckets.put(key, bitmaps);
+                }
+                bitmaps.push(bitmap);
+                mSize += byteCountOf(bitmap);
+                trimToSize(mMaxBytes);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * 根据系统的内存等级缩小对象池，在onTrimMemory中调用
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return 检测到的泄漏数量，即借出后没有归还就被回收的bitmap数量
+     */
+    public synchronized long getLeakCount() {
+        drainLeaks();
+        return mLeakCount;
+    }
+
+    /**
+     * 打印借出时间超过maxAgeMillis还没有归还的bitmap
+     *
+     * @return 这样的bitmap的数量
+     */
+    public synchronized int reportOutstanding(long maxAgeMillis) {
+        drainLeaks();
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (List<TrackedReference> references : mOutstanding.values()) {
+            for (TrackedReference reference : references) {
+                if (now - reference.acquireTime > maxAgeMillis) {
+                    count++;
+                    Log.w(TAG, "bitmap " + reference.description + " not returned for "
+                            + (now - reference.acquireTime) + "ms", reference.stack);
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{size=" + mSize + "/" + mMaxBytes + ", hit=" + mHitCount + ", miss=" + mMissCount
+                + ", outstanding=" + mOutstanding.size() + ", leak=" + mLeakCount + '}';
+    }
+
+    /**
+     * bitmap实际占用的字节数，4.4以上复用的bitmap可能比当前宽高需要的更大
+     */
+    public static int byteCountOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private Bitmap poll(Key key) {
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(key);
+        if (bitmaps == null) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.pop();
+        if (bitmaps.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mSize -= byteCountOf(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 找一个同格式并且足够大的bitmap，优先大小完全一致的，其次是字节数最接近的
+     */
+    private Bitmap pollFit(int width, int height, Bitmap.Config config) {
+        Key exactKey = new Key(width, height, config);
+        if (mBuckets.containsKey(exactKey)) {
+            return poll(exactKey);
+        }
+        long needBytes = (long) width * height * Key.bytesPerPixel(config);
+        Key bestKey = null;
+        long bestBytes = Long.MAX_VALUE;
+        for (Map.Entry<Key, ArrayDeque<Bitmap>> entry : mBuckets.entrySet()) {
+            Key key = entry.getKey();
+            long bytes = byteCountOf(entry.getValue().peek());
+            // 太大的bitmap浪费内存，超过两倍不使用
+            if (key.config == config && bytes >= needBytes && bytes < bestBytes && bytes <= needBytes * 2) {
+                bestKey = key;
+                bestBytes = bytes;
+            }
+        }
+        return bestKey == null ? null : poll(bestKey);
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Key, ArrayDeque<Bitmap>>> iterator = mBuckets.entrySet().iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            ArrayDeque<Bitmap> bitmaps = iterator.next().getValue();
+            while (mSize > maxBytes && !bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.pollLast();
+                mSize -= byteCountOf(bitmap);
+                bitmap.recycle();
+            }
+            if (bitmaps.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void track(Bitmap bitmap) {
+        drainLeaks();
+        TrackedReference reference = new TrackedReference(bitmap, mReferenceQueue, mIsTrackStack);
+        Integer hash = System.identityHashCode(bitmap);
+        List<TrackedReference> references = mOutstanding.get(hash);
+        if (references == null) {
+            references = new ArrayList<TrackedReference>(1);
+            mOutstanding.put(hash, references);
+        }
+        references.add(reference);
+    }
+
+    private void untrack(Bitmap bitmap) {
+        drainLeaks();
+        Integer hash = System.identityHashCode(bitmap);
+        List<TrackedReference> references = mOutstanding.get(hash);
+        if (references == null) {
+            return;
+        }
+        for (Iterator<TrackedReference> iterator = references.iterator(); iterator.hasNext(); ) {
+            TrackedReference reference = iterator.next();
+            if (reference.get() == bitmap) {
+                reference.clear();
+                iterator.remove();
+            }
+        }
+        if (references.isEmpty()) {
+            mOutstanding.remove(hash);
+        }
+    }
+
+    /**
+     * 处理已经被回收的借出bitmap，这些bitmap没有归还，即为泄漏
+     */
+    private void drainLeaks() {
+        TrackedReference reference;
+        while ((reference = (TrackedReference) mReferenceQueue.poll()) != null) {
+            List<TrackedReference> references = mOutstanding.get(reference.identityHash);
+            if (references == null || !references.remove(reference)) {
+                continue;
+            }
+            if (references.isEmpty()) {
+                mOutstanding.remove(reference.identityHash);
+            }
+            mLeakCount++;
+            Log.w(TAG, "pooled bitmap " + reference.description + " was never returned", reference.stack);
+        }
+    }
+
+    private static final class TrackedReference extends WeakReference<Bitmap> {
+        final int identityHash;
+        final long acquireTime;
+        final String description;
+        final Throwable stack;                                      // 借出时的调用栈，没有打开时为null
+
+        TrackedReference(Bitmap bitmap, ReferenceQueue<Bitmap> queue, boolean isTrackStack) {
+            super(bitmap, queue);
+            identityHash = System.identityHashCode(bitmap);
+            acquireTime = System.currentTimeMillis();
+            description = bitmap.getWidth() + "x" + bitmap.getHeight() + " " + bitmap.getConfig();
+            stack = isTrackStack ? new Throwable("acquired here") : null;
+        }
+    }
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        static int bytesPerPixel(Bitmap.Config config) {
+            if (config == Bitmap.Config.ALPHA_8) {
+                return 1;
+            } else if (config == Bitmap.Config.RGB_565) {
+                return 2;
+            }
+            // ARGB_4444已经废弃，4.4及以上按ARGB_8888创建
+            return 4;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + (config == null ? 0 : config.hashCode());
+        }
+    }
+}
@@ -2,15 +2,127 @@ package com.gsy.facerecognition.utils;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.media.ExifInterface;
 import android.support.annotation.Nullable;
 
+import com.gsy.facerecognition.detect.engine.BitmapPixelBuffer;
+import com.gsy.facerecognition.detect.engine.PixelFrame;
+import com.gsy.facerecognition.detect.engine.PixelFramePool;
+import com.gsy.facerecognition.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
 /**
  * 图片的Utils类，提供从SD卡加载图片的功能，注意，需要权限，不然返回的bitmap会为null
  */
 
 public class BitmapUtils {
+    private static final float THUMBNAIL_ASPECT_TOLERANCE = 0.02f;  // 缩略图和原图宽高比的最大相对误差
+    private static BitmapMemoryCache sMemoryCache;
+    private static BitmapPool sBitmapPool;
+    private static PixelMemoryGovernor sMemoryGovernor;
+    private static PixelFramePool sFramePool;
+
+    /**
+     * 获取用完的显示图的内存缓存，没有设置时按默认大小创建，淘汰的bitmap归还到getBitmapPool
+     */
+    public static synchronized BitmapMemoryCache getMemoryCache() {
+        if (sMemoryCache == null) {
+            sMemoryCache = BitmapMemoryCache.createDefault(getBitmapPool());
+        }
+        return sMemoryCache;
+    }
+
+    /**
+     * 设置内存缓存，用来调整缓存的大小
+     */
+    public static synchronized void setMemoryCache(BitmapMemoryCache memoryCache) {
+        sMemoryCache = memoryCache;
+    }
+
+    /**
+     * 获取解码和旋转、裁剪使用的bitmap对象池，没有设置时按默认大小创建
+     */
+    public static synchronized BitmapPool getBitmapPool() {
+        if (sBitmapPool == null) {
+            sBitmapPool = BitmapPool.createDefault();
+        }
+        return sBitmapPool;
+    }
+
+    /**
+     * 设置bitmap对象池，用来调整对象池的大小
+     */
+    public static synchronized void setBitmapPool(BitmapPool bitmapPool) {
+        sBitmapPool = bitmapPool;
+    }
+
+    /**
+     * 获取所有解码共用的像素内存预算，没有设置时按默认大小创建
+     */
+    public static synchronized PixelMemoryGovernor getMemoryGovernor() {
+        if (sMemoryGovernor == null) {
+            sMemoryGovernor = PixelMemoryGovernor.createDefault();
+        }
+        return sMemoryGovernor;
+    }
+
+    /**
+     * 设置像素内存预算，用来调整预算的大小
+     */
+    public static synchronized void setMemoryGovernor(PixelMemoryGovernor memoryGovernor) {
+        sMemoryGovernor = memoryGovernor;
+    }
+
+    /**
+     * 获取识别、感知哈希和描述子共用的堆外帧对象池，没有设置时按默认大小创建
+     */
+    public static synchronized PixelFramePool getFramePool() {
+        if (sFramePool == null) {
+            sFramePool = PixelFramePool.createDefault();
+        }
+        return sFramePool;
+    }
+
+    /**
+     * 设置堆外帧对象池，用来调整对象池的大小
+     */
+    public static synchronized void setFramePool(PixelFramePool framePool) {
+        sFramePool = framePool;
+    }
+
+    /**
+     * 解码之前向PixelMemoryGovernor预留内存，可能阻塞，用完调用releaseDecode
+     *
+     * @param width         原图或者区域的宽
+     * @param height        原图或者区域的高
+     * @param sampleSize    请求的inSampleSize
+     * @param bytesPerPixel 请求的每像素字节数
+     * @param degradeFlags  允许的降级方式，PixelMemoryGovernor.DEGRADE_XXX
+     * @return 实际的方案，等待时线程被中断返回null，此时不要解码
+     */
+    @Nullable
+    public static PixelMemoryGovernor.Grant reserveDecode(int width, int height, int sampleSize, int bytesPerPixel
+            , int degradeFlags) {
+        try {
+            return getMemoryGovernor().acquire(width, height, sampleSize, bytesPerPixel, degradeFlags);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * 释放reserveDecode的预留
+     */
+    public static void releaseDecode(@Nullable PixelMemoryGovernor.Grant grant) {
+        getMemoryGovernor().release(grant);
+    }
 
     /**
      * 从sd卡中加载图片
@@ -23,16 +135,27 @@ public class BitmapUtils {
      */
     private static Bitmap decodeSDCardPic(String picPath, int minSide, int maxPixels, int sampleScale) {
         BitmapFactory.Options options = new BitmapFactory.Options();
-        // 仅读取图片的大小
-        options.inJustDecodeBounds = true;
+        // 仅读取图片的大小和方向，不解码
+        ImageHeaderParser.ImageHeader header = readHeader(picPath);
+        if (header == null) {
+            return null;
+        }
+        options.outWidth = header.getWidth();
+        options.outHeight = header.getHeight();
         Bitmap resBitmap;
         options.inSampleSize = sampleScale > 0 ? sampleScale : computeScaleSize(options, minSide, maxPixels);
         options.inPurgeable = true;
         options.inInputShareable = true;
         options.inJustDecodeBounds = false;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        long start = Metrics.start();
         Bitmap tmpBitmap = BitmapFactory.decodeFile(picPath, options);
-        int orientation = getPicOrientation(picPath);
+        Metrics.end(Metrics.STAGE_DECODE, start);
+        recordBitmapBytes(Metrics.STAGE_DECODE, tmpBitmap);
+        if (tmpBitmap == null) {
+            return null;
+        }
+        int orientation = header.getOrientation();
         resBitmap = orientation != 1 ? decodeBitmapByOrientation(tmpBitmap, orientation, true) : tmpBitmap;
         return resBitmap;
     }
@@ -46,40 +169,33 @@ public class BitmapUtils {
      * @return 缩小倍数
      */
     public static int computeScaleSize(BitmapFactory.Options options, int minSide, int maxPixels) {
-        int initSize = computeInitScaleSize(options, minSide, maxPixels);
-        int roundSize;
-        if (initSize <= 8) {
-            roundSize = 1;
-            while (roundSize < initSize) {
-                roundSize <<= 1;
-            }
-        } else {
-            roundSize = (initSize + 7) / 8 * 8;
-        }
-        return roundSize;
+        return ScaleSizeUtils.computeScaleSize(options.outWidth, options.outHeight, minSide, maxPixels);
     }
 
     /**
-     * 计算缩小倍数
+     * 读取图片的宽高和方向，只读一次文件头。不是JPEG或者PNG时退回到inJustDecodeBounds解码和ExifInterface
      *
-     * @param minSide   最小显示区，默认为 -1
-     * @param maxPixels 像素数量最大值
-     * @return 缩小倍数
+     * @param filePath 图片路径
+     * @return 图片头，文件无法解码时为null
      */
-    private static int computeInitScaleSize(BitmapFactory.Options options, int minSide, int maxPixels) {
-        int upperLimit = (minSide == -1) ? 128 : (int) Math.min(Math.floor(options.outWidth / minSide)
-                , Math.floor(options.outHeight / minSide));
-        int lowerLimit = (maxPixels == -1) ? 1 : (int) Math.ceil(Math.sqrt(options.outWidth
-                * options.outHeight / maxPixels));
-        if (upperLimit < lowerLimit) {
-            return lowerLimit;
-        }
-        if ((maxPixels == -1) && (minSide == -1)) {
-            return 1;
-        } else if (minSide == -1) {
-            return lowerLimit;
-        } else {
-            return upperLimit;
+    @Nullable
+    public static ImageHeaderParser.ImageHeader readHeader(String filePath) {
+        long start = Metrics.start();
+        try {
+            ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(filePath);
+            if (header != null && header.getWidth() > 0 && header.getHeight() > 0) {
+                return header;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(filePath, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            return new ImageHeaderParser.ImageHeader(ImageHeaderParser.TYPE_UNKNOWN, options.outWidth
+                    , options.outHeight, getPicOrientation(filePath), -1, 0);
+        } finally {
+            Metrics.end(Metrics.STAGE_HEADER, start);
         }
     }
 
@@ -111,54 +227,182 @@ public class BitmapUtils {
      * @return bitmap对象
      */
     public static Bitmap decodeBitmapByOrientation(Bitmap srcBitmap, int orientation, boolean isNeedRelease) {
+        return decodeBitmapByOrientation(srcBitmap, orientation, isNeedRelease, null);
+    }
+
+    /**
+     * 根据orientation生成bitmap，结果bitmap从对象池中获取，需要释放的源bitmap归还到对象池
+     *
+     * @param srcBitmap     原来不带方向信息的bitmap
+     * @param orientation   方向信息
+     * @param isNeedRelease 是否需要释放源bitmap
+     * @param bitmapPool    对象池，为null时和不带对象池的方法一致
+     * @return bitmap对象，使用对象池时用完需要归还
+     */
+    public static Bitmap decodeBitmapByOrientation(Bitmap srcBitmap, int orientation, boolean isNeedRelease
+            , @Nullable BitmapPool bitmapPool) {
+        if (orientation == ExifOrientation.NORMAL) {
+            return srcBitmap;
+        }
+        long start = Metrics.start();
+        Matrix matrix = buildOrientationMatrix(orientation, srcBitmap.getWidth(), srcBitmap.getHeight(), new Matrix());
         Bitmap resBitmap;
-        if (orientation != 1) {
-            Matrix matrix = new Matrix();
-            switch (orientation) {
-                case 2:
-                    matrix.preScale(-1, 1);
-                    break;
-                case 3:
-                    matrix.preRotate(180);
-                    break;
-                case 4:
-                    matrix.preScale(1, -1);
-                    break;
-                case 5:
-                    matrix.preRotate(90);
-                    matrix.preScale(-1, 1);
-                    break;
-                case 6:
-                    matrix.preRotate(90);
-                    break;
-                case 7:
-                    matrix.preScale(-1, 1);
-                    matrix.preRotate(90);
-                    break;
-                case 8:
-                    matrix.preRotate(270);
-                    break;
-                default:
-                    break;
-            }
-            if (matrix.isIdentity()) {
-                resBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth()
-                        , srcBitmap.getHeight(), null, false);
+        if (matrix.isIdentity()) {
+            resBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth()
+                    , srcBitmap.getHeight(), null, false);
+        } else if (bitmapPool != null) {
+            resBitmap = drawWithMatrix(srcBitmap, matrix, ExifOrientation.uprightWidth(orientation
+                    , srcBitmap.getWidth(), srcBitmap.getHeight()), ExifOrientation.uprightHeight(orientation
+                    , srcBitmap.getWidth(), srcBitmap.getHeight()), srcBitmap.getConfig(), bitmapPool);
+        } else {
+            resBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth()
+                    , srcBitmap.getHeight(), matrix, true);
+        }
+        if (isNeedRelease && resBitmap != srcBitmap) {
+            if (bitmapPool != null) {
+                bitmapPool.put(srcBitmap);
             } else {
-                resBitmap = Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth()
-                        , srcBitmap.getHeight(), matrix, true);
-            }
-            if (isNeedRelease && resBitmap != srcBitmap) {
                 srcBitmap.recycle();
             }
-        } else {
+        }
+        Metrics.end(Metrics.STAGE_ORIENTATION, start);
+        recordBitmapBytes(Metrics.STAGE_ORIENTATION, resBitmap);
+        return resBitmap;
+    }
+
+    /**
+     * 生成把宽高为width、height的图片摆正的Matrix，包含平移，变换后的图片在左上角。
+     * 显示时可以直接concat到绘制的Matrix上，代替旋转像素
+     *
+     * @param orientation 方向信息
+     * @param width       图片数据的宽
+     * @param height      图片数据的高
+     * @param matrix      结果
+     * @return matrix
+     */
+    public static Matrix buildOrientationMatrix(int orientation, float width, float height, Matrix matrix) {
+        float[] values = ExifOrientation.toMatrixValues(ExifOrientation.toUpright(orientation, width, height
+                , new float[ExifOrientation.TRANSFORM_SIZE]), new float[9]);
+        matrix.setValues(values);
+        return matrix;
+    }
+
+    /**
+     * 把srcBitmap按matrix绘制到对象池中宽高为width、height的bitmap上，超出的部分被裁掉
+     */
+    private static Bitmap drawWithMatrix(Bitmap srcBitmap, Matrix matrix, int width, int height
+            , Bitmap.Config config, BitmapPool bitmapPool) {
+        // 旋转和镜像都是整像素的变换，会完全覆盖目标bitmap，不需要清空
+        Bitmap resBitmap = bitmapPool.getDirty(width, height, config == null ? Bitmap.Config.ARGB_8888 : config);
+        Canvas canvas = new Canvas(resBitmap);
+        canvas.drawBitmap(srcBitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        canvas.setBitmap(null);
+        return resBitmap;
+    }
+
+    /**
+     * 生成系统人脸识别使用的识别图：人脸是正的、宽为偶数，摆正和裁剪合并为一次绘制。
+     * 方向为1或2(只有左右镜像，人脸仍然是正的)时直接在源bitmap上识别，宽为偶数时不复制任何像素，
+     * 此时识别结果是源bitmap中的坐标，需要用ExifOrientation映射到摆正后的坐标
+     *
+     * @param srcBitmap   解码得到的不带方向信息的bitmap，不会被释放，可以继续用于显示
+     * @param orientation 方向信息
+     * @param bitmapPool  对象池，识别图从对象池中获取
+     * @return 识别图，可能就是srcBitmap，不是srcBitmap时用完需要归还到对象池
+     */
+    public static Bitmap prepareDetectionFrame(Bitmap srcBitmap, int orientation, BitmapPool bitmapPool) {
+        int width = srcBitmap.getWidth();
+        int height = srcBitmap.getHeight();
+        boolean isUpright = ExifOrientation.isUpright(orientation);
+        if (isUpright && width % 2 == 0) {
             return srcBitmap;
         }
+        long start = Metrics.start();
+        Matrix matrix = isUpright ? new Matrix() : buildOrientationMatrix(orientation, width, height, new Matrix());
+        int frameWidth = isUpright ? width : ExifOrientation.uprightWidth(orientation, width, height);
+        int frameHeight = isUpright ? height : ExifOrientation.uprightHeight(orientation, width, height);
+        // 宽为奇数时去掉最右边的一列
+        Bitmap frame = drawWithMatrix(srcBitmap, matrix, frameWidth / 2 * 2, frameHeight
+                , srcBitmap.getConfig() == null ? Bitmap.Config.RGB_565 : srcBitmap.getConfig(), bitmapPool);
+        Metrics.end(Metrics.STAGE_PREPARE, start);
+        recordBitmapBytes(Metrics.STAGE_PREPARE, frame);
+        return frame;
+    }
+
+    /**
+     * 直接解码出系统人脸识别可以使用的识别图：按maxSide计算inSampleSize，RGB_565，摆正并且宽为偶数，
+     * 解码和识别图都使用对象池中的bitmap，识别完成后调用DetectionFrame.release归还
+     *
+     * @param filePath   路径
+     * @param header     图片头，由readHeader得到
+     * @param maxSide    识别图的最大宽高，1000左右最佳
+     * @param bitmapPool 对象池
+     * @return 识别图，解码失败时为null
+     */
+    @Nullable
+    public static DetectionFrame decodeDetectionFrame(String filePath, ImageHeaderParser.ImageHeader header
+            , int maxSide, BitmapPool bitmapPool) {
+        // 识别图一直用到识别完成，预留到DetectionFrame.release
+        PixelMemoryGovernor.Grant grant = reserveDecode(header.getWidth(), header.getHeight()
+                , computeSampleSize(header, maxSide, maxSide), 2, PixelMemoryGovernor.DEGRADE_SAMPLE_SIZE);
+        if (grant == null) {
+            return null;
+        }
+        Bitmap decoded = decodeGranted(filePath, header, grant, bitmapPool);
+        if (decoded == null) {
+            releaseDecode(grant);
+            return null;
+        }
+        int decodedWidth = decoded.getWidth();
+        int decodedHeight = decoded.getHeight();
+        Bitmap frame = prepareDetectionFrame(decoded, header.getOrientation(), bitmapPool);
+        if (frame != decoded) {
+            // 摆正和裁剪后解码图不再需要
+            bitmapPool.put(decoded);
+        }
+        return new DetectionFrame(frame, false, header.getOrientation(), decodedWidth, decodedHeight, header, grant);
+    }
+
+    /**
+     * 用已经解码的图片生成识别图，例如显示图和识别图使用同一次解码时。decoded不会被释放
+     *
+     * @param decoded    不带方向信息的RGB_565解码图
+     * @param header     图片头，提供原图的宽高和方向
+     * @param bitmapPool 对象池，需要复制时识别图从对象池中获取
+     * @return 识别图，可能和decoded共用同一个bitmap
+     */
+    public static DetectionFrame createDetectionFrame(Bitmap decoded, ImageHeaderParser.ImageHeader header
+            , BitmapPool bitmapPool) {
+        Bitmap frame = prepareDetectionFrame(decoded, header.getOrientation(), bitmapPool);
+        return new DetectionFrame(frame, frame == decoded, header.getOrientation(), decoded.getWidth()
+                , decoded.getHeight(), header, null);
+    }
+
+    /**
+     * 系统人脸识别要求bitmap的宽为偶数，宽为奇数时去掉最右边的一列
+     *
+     * @param srcBitmap  源bitmap
+     * @param bitmapPool 对象池，结果bitmap从对象池中获取，源bitmap会归还到对象池
+     * @return 宽为偶数的bitmap
+     */
+    public static Bitmap cropToEvenWidth(Bitmap srcBitmap, BitmapPool bitmapPool) {
+        if (srcBitmap.getWidth() % 2 == 0) {
+            return srcBitmap;
+        }
+        long start = Metrics.start();
+        Bitmap.Config config = srcBitmap.getConfig() == null ? Bitmap.Config.RGB_565 : srcBitmap.getConfig();
+        Bitmap resBitmap = bitmapPool.getDirty(srcBitmap.getWidth() - 1, srcBitmap.getHeight(), config);
+        Canvas canvas = new Canvas(resBitmap);
+        canvas.drawBitmap(srcBitmap, 0, 0, null);
+        canvas.setBitmap(null);
+        bitmapPool.put(srcBitmap);
+        Metrics.end(Metrics.STAGE_PREPARE, start);
+        recordBitmapBytes(Metrics.STAGE_PREPARE, resBitmap);
         return resBitmap;
     }
 
     /**
-     * 获取图片
+     * 获取摆正的图片
      *
      * @param filePath          路径
      * @param maxWidth          最大宽
@@ -167,36 +411,324 @@ public class BitmapUtils {
      * @return 图片
      */
     public static Bitmap loadBitmap(String filePath, int maxWidth, int maxHeight, boolean isFaceRecognition) {
-        if (maxWidth == 0 || maxHeight == 0) {
-            return BitmapUtils.decodeSDCardPic(filePath, -1, -1, -1);
+        long start = Metrics.start();
+        try {
+            if (maxWidth == 0 || maxHeight == 0) {
+                return BitmapUtils.decodeSDCardPic(filePath, -1, -1, -1);
+            }
+            ImageHeaderParser.ImageHeader header = readHeader(filePath);
+            if (header == null) {
+                return null;
+            }
+            int sampleSize = computeSampleSize(header, maxWidth, maxHeight);
+            PixelMemoryGovernor.Grant grant = reserveDecode(header, sampleSize, isFaceRecognition);
+            if (grant == null) {
+                return null;
+            }
+            Bitmap bitmap;
+            try {
+                bitmap = decodeGranted(filePath, header, grant, null);
+            } finally {
+                releaseDecode(grant);
+            }
+            if (bitmap == null) {
+                return null;
+            }
+            if (header.getOrientation() != 1) {
+                bitmap = decodeBitmapByOrientation(bitmap, header.getOrientation(), true);
+            }
+            return bitmap;
+        } finally {
+            Metrics.end(Metrics.STAGE_LOAD_BITMAP, start);
+        }
+    }
+
+    /**
+     * 按最大宽高解码图片，不处理方向信息，方向需要调用者通过decodeBitmapByOrientation处理
+     *
+     * @param filePath          路径
+     * @param maxWidth          最大宽
+     * @param maxHeight         最大高
+     * @param isFaceRecognition 系统人脸识别只认565格式
+     * @return 图片，解码失败时为null
+     */
+    @Nullable
+    public static Bitmap decodeBitmap(String filePath, int maxWidth, int maxHeight, boolean isFaceRecognition) {
+        ImageHeaderParser.ImageHeader header = readHeader(filePath);
+        if (header == null) {
+            return null;
+        }
+        return decodeBitmap(filePath, header, computeSampleSize(header, maxWidth, maxHeight), isFaceRecognition, null);
+    }
+
+    /**
+     * 按指定的inSampleSize解码图片，不处理方向信息，使用对象池中的bitmap作为inBitmap
+     *
+     * @param filePath          路径
+     * @param header            图片头，由readHeader得到，提供inBitmap需要的宽高
+     * @param sampleSize        inSampleSize，一般由computeSampleSize计算得到
+     * @param isFaceRecognition 系统人脸识别只认565格式
+     * @param bitmapPool        对象池，为null时不复用
+     * @return 图片，解码失败时为null，使用对象池时用完需要归还
+     */
+    @Nullable
+    public static Bitmap decodeBitmap(String filePath, ImageHeaderParser.ImageHeader header, int sampleSize
+            , boolean isFaceRecognition, @Nullable BitmapPool bitmapPool) {
+        PixelMemoryGovernor.Grant grant = reserveDecode(header, sampleSize, isFaceRecognition);
+        if (grant == null) {
+            return null;
+        }
+        try {
+            return decodeGranted(filePath, header, grant, bitmapPool);
+        } finally {
+            releaseDecode(grant);
+        }
+    }
+
+    /**
+     * 生成解码结果在内存缓存中的key，按请求的inSampleSize和格式
+     *
+     * @param filePath          路径，key中包含文件的修改时间，文件被修改后缓存自然失效
+     * @param sampleSize        请求的inSampleSize
+     * @param isFaceRecognition 和decodeBitmap的参数相同
+     */
+    public static String buildCacheKey(String filePath, int sampleSize, boolean isFaceRecognition) {
+        return BitmapMemoryCache.buildKey(filePath, new File(filePath).lastModified(), sampleSize
+                , configOf(isFaceRecognition));
+    }
+
+    /**
+     * 从内存缓存中取出之前用完的解码结果，取出后和decodeBitmap的结果一样归调用者所有
+     *
+     * @param cacheKey buildCacheKey得到的key
+     * @return bitmap，没有缓存时为null
+     */
+    @Nullable
+    public static Bitmap takeCachedBitmap(String cacheKey, boolean isFaceRecognition) {
+        return getMemoryCache().take(cacheKey, configOf(isFaceRecognition));
+    }
+
+    /**
+     * decodeBitmap的结果是否达到请求的inSampleSize和格式，预算不足降级的解码不能放入缓存，否则会被当成请求的质量返回。
+     * 降级至少把inSampleSize加大一倍，宽不到请求的2/3即为降级
+     */
+    public static boolean isRequestedQuality(ImageHeaderParser.ImageHeader header, int sampleSize
+            , boolean isFaceRecognition, Bitmap bitmap) {
+        return bitmap.getConfig() == configOf(isFaceRecognition)
+                && bitmap.getWidth() * 3 > header.getWidth() / sampleSize * 2;
+    }
+
+    /**
+     * 用完的解码结果放入内存缓存，再次打开同一张图片时不用解码
+     *
+     * @param cacheKey   buildCacheKey得到的key，为null时直接归还到对象池
+     * @param bitmap     之后调用者不能再使用
+     * @param bitmapPool 对象池
+     */
+    public static void recycleBitmap(@Nullable String cacheKey, @Nullable Bitmap bitmap, BitmapPool bitmapPool) {
+        if (cacheKey != null && bitmap != null) {
+            getMemoryCache().put(cacheKey, bitmap);
+        } else {
+            bitmapPool.put(bitmap);
         }
+    }
+
+    private static Bitmap.Config configOf(boolean isFaceRecognition) {
+        return isFaceRecognition ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 预留整张图片的解码，预算不足时显示图可以换成565或者缩小，识别结果按实际的宽高换算，不受影响
+     */
+    @Nullable
+    private static PixelMemoryGovernor.Grant reserveDecode(ImageHeaderParser.ImageHeader header, int sampleSize
+            , boolean isFaceRecognition) {
+        return reserveDecode(header.getWidth(), header.getHeight(), sampleSize, isFaceRecognition ? 2 : 4
+                , isFaceRecognition ? PixelMemoryGovernor.DEGRADE_SAMPLE_SIZE
+                        : PixelMemoryGovernor.DEGRADE_CONFIG | PixelMemoryGovernor.DEGRADE_SAMPLE_SIZE);
+    }
+
+    /**
+     * 按预留的方案解码
+     */
+    @Nullable
+    private static Bitmap decodeGranted(String filePath, ImageHeaderParser.ImageHeader header
+            , PixelMemoryGovernor.Grant grant, @Nullable BitmapPool bitmapPool) {
         final BitmapFactory.Options opts = new BitmapFactory.Options();
-        opts.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, opts);
-        opts.inJustDecodeBounds = false;
         opts.inPreferQualityOverSpeed = true;
-        opts.inSampleSize = (int) Math.max(Math.ceil(opts.outWidth * 1f / maxWidth)
-                , Math.ceil(opts.outHeight * 1f / maxHeight));
-        if (isFaceRecognition) {
+        opts.inSampleSize = grant.getSampleSize();
+        if (grant.getBytesPerPixel() == 2) {
             opts.inPreferredConfig = Bitmap.Config.RGB_565;
         }
-        Bitmap bitmap = BitmapFactory.decodeFile(filePath, opts);
-        return adjustOrientation(filePath, bitmap);
+        long start = Metrics.start();
+        Bitmap bitmap;
+        if (bitmapPool == null) {
+            bitmap = BitmapFactory.decodeFile(filePath, opts);
+        } else {
+            opts.outWidth = header.getWidth();
+            opts.outHeight = header.getHeight();
+            bitmap = bitmapPool.decodeFile(filePath, opts);
+        }
+        Metrics.end(Metrics.STAGE_DECODE, start);
+        recordBitmapBytes(Metrics.STAGE_DECODE, bitmap);
+        return bitmap;
     }
 
     /**
-     * 调整方向
+     * 解码打开图片时立即显示的预览图：优先使用EXIF中的缩略图，没有或者宽高比和原图不一致时按2的次幂大倍数缩小解码。
+     * 不处理方向信息，RGB_565，可以直接用于识别
      *
-     * @param filePath 图片路径
-     * @param bitmap   图片
-     * @return 调整后的bitmap
+     * @param filePath   路径
+     * @param header     图片头，由readHeader得到
+     * @param maxSide    缩小解码时的最大宽高
+     * @param bitmapPool 对象池，为null时不复用
+     * @return 预览图，失败时为null，用完归还到对象池
      */
     @Nullable
-    private static Bitmap adjustOrientation(String filePath, Bitmap bitmap) {
-        int orientation = getPicOrientation(filePath);
-        if (orientation != 1) {
-            bitmap = decodeBitmapByOrientation(bitmap, orientation, false);
+    public static Bitmap decodePreview(String filePath, ImageHeaderParser.ImageHeader header, int maxSide
+            , @Nullable BitmapPool bitmapPool) {
+        long start = Metrics.start();
+        Bitmap preview = header.hasThumbnail() ? decodeThumbnail(filePath, header) : null;
+        if (preview == null) {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            // JPEG按2的次幂缩小在解码过程中完成，比其他倍数快
+            int sampleSize = 1;
+            while (sampleSize < computeSampleSize(header, maxSide, maxSide)) {
+                sampleSize <<= 1;
+            }
+            opts.inSampleSize = sampleSize;
+            PixelMemoryGovernor.Grant grant = reserveDecode(header.getWidth(), header.getHeight(), sampleSize, 2
+                    , PixelMemoryGovernor.DEGRADE_NONE);
+            if (grant != null) {
+                try {
+                    if (bitmapPool == null) {
+                        preview = BitmapFactory.decodeFile(filePath, opts);
+                    } else {
+                        opts.outWidth = header.getWidth();
+                        opts.outHeight = header.getHeight();
+                        preview = bitmapPool.decodeFile(filePath, opts);
+                    }
+                } finally {
+                    releaseDecode(grant);
+                }
+            }
         }
-        return bitmap;
+        Metrics.end(Metrics.STAGE_PREVIEW, start);
+        recordBitmapBytes(Metrics.STAGE_PREVIEW, preview);
+        return preview;
+    }
+
+    /**
+     * 解码EXIF中的JPEG缩略图，有的相机的缩略图是固定的宽高加上黑边，宽高比和原图不一致时不使用
+     */
+    @Nullable
+    private static Bitmap decodeThumbnail(String filePath, ImageHeaderParser.ImageHeader header) {
+        byte[] data = new byte[header.getThumbnailLength()];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filePath, "r");
+            file.seek(header.getThumbnailOffset());
+            file.readFully(data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (thumbnail == null) {
+            return null;
+        }
+        float thumbnailAspect = thumbnail.getWidth() * 1f / thumbnail.getHeight();
+        float aspect = header.getWidth() * 1f / header.getHeight();
+        if (Math.abs(thumbnailAspect - aspect) > aspect * THUMBNAIL_ASPECT_TOLERANCE) {
+            thumbnail.recycle();
+            return null;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * 收集打开时，记录阶段中生成的bitmap的字节数
+     *
+     * @param stage  Metrics.STAGE_XXX
+     * @param bitmap 生成的bitmap，为null时不记录
+     */
+    public static void recordBitmapBytes(int stage, @Nullable Bitmap bitmap) {
+        if (bitmap != null && Metrics.isEnabled()) {
+            Metrics.addBitmapBytes(stage, BitmapPool.byteCountOf(bitmap));
+        }
+    }
+
+    /**
+     * 根据图片的宽高计算解码时的inSampleSize，保证解码后的图片不超过最大宽高
+     *
+     * @param header    图片头，由readHeader得到
+     * @param maxWidth  最大宽
+     * @param maxHeight 最大高
+     * @return inSampleSize
+     */
+    public static int computeSampleSize(ImageHeaderParser.ImageHeader header, int maxWidth, int maxHeight) {
+        return ScaleSizeUtils.computeSampleSize(header.getWidth(), header.getHeight(), maxWidth, maxHeight);
+    }
+
+    /**
+     * 用copyPixelsToBuffer把bitmap的像素整块复制到堆外的帧，不经过Java堆
+     *
+     * @param bitmap    RGB_565或者ARGB_8888的bitmap
+     * @param framePool 帧从这里分配
+     * @return 和bitmap格式相同的帧，用完需要release；其他格式或者行之间有填充时为null
+     */
+    @Nullable
+    public static PixelFrame copyToFrame(Bitmap bitmap, PixelFramePool framePool) {
+        int format;
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            format = PixelFrame.FORMAT_RGB_565;
+        } else if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            format = PixelFrame.FORMAT_ARGB_8888;
+        } else {
+            return null;
+        }
+        if (bitmap.getRowBytes() != bitmap.getWidth() * PixelFrame.bytesPerPixel(format)) {
+            return null;
+        }
+        PixelFrame frame = framePool.acquire(bitmap.getWidth(), bitmap.getHeight(), format);
+        bitmap.copyPixelsToBuffer(frame.getBuffer());
+        return frame;
+    }
+
+    /**
+     * 生成bitmap的亮度帧：像素先整块复制到堆外，再直接转换到亮度帧，识别只需要亮度时使用
+     *
+     * @param bitmap    任意格式的bitmap，不是RGB_565或者ARGB_8888时按行读取
+     * @param framePool 帧从这里分配
+     * @return 亮度帧，用完需要release
+     */
+    public static PixelFrame copyLumaToFrame(Bitmap bitmap, PixelFramePool framePool) {
+        long start = Metrics.start();
+        PixelFrame pixels = copyToFrame(bitmap, framePool);
+        PixelFrame luma;
+        if (pixels != null) {
+            try {
+                luma = pixels.toLuma(framePool);
+            } finally {
+                pixels.release();
+            }
+        } else {
+            byte[] values = new byte[bitmap.getWidth() * bitmap.getHeight()];
+            new BitmapPixelBuffer(bitmap).readLuma(values);
+            luma = framePool.acquire(bitmap.getWidth(), bitmap.getHeight(), PixelFrame.FORMAT_LUMA);
+            luma.getBuffer().put(values);
+        }
+        Metrics.end(Metrics.STAGE_PREPARE, start);
+        return luma;
     }
 }
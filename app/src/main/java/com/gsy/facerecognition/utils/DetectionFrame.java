@@ -0,0 +1,99 @@
+package com.gsy.facerecognition.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * 系统人脸识别使用的识别图，RGB_565并且宽为偶数，由BitmapUtils.decodeDetectionFrame或者createDetectionFrame生成。
+ * 记录识别图和原图之间的缩放，识别结果可以准确地换算到原图或者另一个尺寸的显示图上
+ */
+public class DetectionFrame {
+    private final Bitmap mBitmap;
+    private final boolean mIsShared;                                // bitmap是否就是调用者传入的解码图，是时不能归还
+    private final int mOrientation;
+    private final int mDecodedWidth, mDecodedHeight;                // 解码后摆正的宽高，裁剪之前
+    private final int mSourceWidth, mSourceHeight;                  // 原图摆正后的宽高
+    private final float[] mTransform;                               // 识别图坐标到摆正后坐标的变换，已经摆正时为null
+    private PixelMemoryGovernor.Grant mGrant;                       // 解码时预留的内存，release时释放
+
+    DetectionFrame(Bitmap bitmap, boolean isShared, int orientation, int decodedWidth, int decodedHeight
+            , ImageHeaderParser.ImageHeader header, PixelMemoryGovernor.Grant grant) {
+        mBitmap = bitmap;
+        mGrant = grant;
+        mIsShared = isShared;
+        mOrientation = orientation;
+        mDecodedWidth = ExifOrientation.uprightWidth(orientation, decodedWidth, decodedHeight);
+        mDecodedHeight = ExifOrientation.uprightHeight(orientation, decodedWidth, decodedHeight);
+        mSourceWidth = ExifOrientation.uprightWidth(orientation, header.getWidth(), header.getHeight());
+        mSourceHeight = ExifOrientation.uprightHeight(orientation, header.getWidth(), header.getHeight());
+        // 只有方向为2时识别图没有摆正，只是左右镜像
+        mTransform = orientation != ExifOrientation.NORMAL && ExifOrientation.isUpright(orientation)
+                ? ExifOrientation.toUpright(orientation, decodedWidth, decodedHeight
+                , new float[ExifOrientation.TRANSFORM_SIZE]) : null;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * @return 解码后摆正的宽，识别结果映射到摆正后的坐标所在的空间，比识别图的宽可能多一列
+     */
+    public int getDecodedWidth() {
+        return mDecodedWidth;
+    }
+
+    public int getDecodedHeight() {
+        return mDecodedHeight;
+    }
+
+    /**
+     * @return 识别图中的一个像素在原图中的水平宽度，按实际解码的宽高计算，不是inSampleSize
+     */
+    public float getScaleToSourceX() {
+        return mSourceWidth * 1f / mDecodedWidth;
+    }
+
+    public float getScaleToSourceY() {
+        return mSourceHeight * 1f / mDecodedHeight;
+    }
+
+    /**
+     * 计算识别结果换算到另一个尺寸的摆正图上的系数，即MyImageView的矫正系数
+     *
+     * @param uprightWidth 同一张图片另外解码的摆正后的宽，例如显示图的宽
+     * @return 矫正系数
+     */
+    public float getScaleTo(int uprightWidth) {
+        return uprightWidth * 1f / mDecodedWidth;
+    }
+
+    /**
+     * @return 识别结果需要用ExifOrientation映射到摆正后的坐标时返回变换，否则为null
+     */
+    public float[] getUprightTransform() {
+        return mTransform;
+    }
+
+    /**
+     * 识别完成后归还识别图，和解码图共用时不归还，同时释放解码时预留的内存
+     */
+    public void release(BitmapPool bitmapPool) {
+        if (!mIsShared) {
+            bitmapPool.put(mBitmap);
+        }
+        BitmapUtils.releaseDecode(mGrant);
+        mGrant = null;
+    }
+}
@@ -0,0 +1,143 @@
+package com.gsy.facerecognition.utils;
+
+/**
+ * EXIF方向在坐标空间中的变换。
+ * 变换用仿射矩阵{a, b, tx, c, d, ty}表示：x' = a * x + b * y + tx，y' = c * x + d * y + ty，
+ * 把图片数据中的坐标(宽高为width、height)映射到摆正后的坐标。
+ * 各方向的含义：
+ * 1 不变，2 水平镜像，3 旋转180度，4 竖直镜像，
+ * 5 沿主对角线转置，6 顺时针旋转90度，7 沿副对角线转置，8 顺时针旋转270度
+ */
+public class ExifOrientation {
+    public static final int NORMAL = 1;
+    public static final int TRANSFORM_SIZE = 6;
+
+    /**
+     * @return 是否需要交换宽高，即方向5到8
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * @return 图片数据中的人脸是否是正的，即方向1和2(只有左右镜像)，不需要摆正就可以识别
+     */
+    public static boolean isUpright(int orientation) {
+        return orientation < 3 || orientation > 8;
+    }
+
+    public static int uprightWidth(int orientation, int width, int height) {
+        return isTransposed(orientation) ? height : width;
+    }
+
+    public static int uprightHeight(int orientation, int width, int height) {
+        return isTransposed(orientation) ? width : height;
+    }
+
+    /**
+     * 计算从图片数据坐标到摆正后坐标的变换
+     *
+     * @param orientation EXIF方向，不合法的值按1处理
+     * @param width       图片数据的宽
+     * @param height      图片数据的高
+     * @param out         结果，长度至少为6
+     * @return out
+     */
+    public static float[] toUpright(int orientation, float width, float height, float[] out) {
+        switch (orientation) {
+            case 2:
+                set(out, -1, 0, width, 0, 1, 0);
+                break;
+            case 3:
+                set(out, -1, 0, width, 0, -1, height);
+                break;
+            case 4:
+                set(out, 1, 0, 0, 0, -1, height);
+                break;
+            case 5:
+                set(out, 0, 1, 0, 1, 0, 0);
+                break;
+            case 6:
+                set(out, 0, -1, height, 1, 0, 0);
+                break;
+            case 7:
+                set(out, 0, -1, height, -1, 0, width);
+                break;
+            case 8:
+                set(out, 0, 1, 0, -1, 0, width);
+                break;
+            default:
+                set(out, 1, 0, 0, 0, 1, 0);
+                break;
+        }
+        return out;
+    }
+
+    /**
+     * 计算从摆正后坐标回到图片数据坐标的变换，即toUpright的逆变换
+     */
+    public static float[] fromUpright(int orientation, float width, float height, float[] out) {
+        toUpright(orientation, width, height, out);
+        return invert(out, out);
+    }
+
+    /**
+     * 仿射变换求逆，这里的变换都是正交的整数矩阵，行列式为1或者-1
+     */
+    public static float[] invert(float[] src, float[] out) {
+        float a = src[0], b = src[1], tx = src[2], c = src[3], d = src[4], ty = src[5];
+        float det = a * d - b * c;
+        float ia = d / det, ib = -b / det, ic = -c / det, id = a / det;
+        set(out, ia, ib, -(ia * tx + ib * ty), ic, id, -(ic * tx + id * ty));
+        return out;
+    }
+
+    public static float mapX(float[] transform, float x, float y) {
+        return transform[0] * x + transform[1] * y + transform[2];
+    }
+
+    public static float mapY(float[] transform, float x, float y) {
+        return transform[3] * x + transform[4] * y + transform[5];
+    }
+
+    /**
+     * 原地变换一组点，points为x0, y0, x1, y1...
+     */
+    public static void mapPoints(float[] transform, float[] points, int count) {
+        for (int i = 0; i < count * 2; i += 2) {
+            float x = points[i];
+            float y = points[i + 1];
+            points[i] = mapX(transform, x, y);
+            points[i + 1] = mapY(transform, x, y);
+        }
+    }
+
+    /**
+     * 转换为android.graphics.Matrix.setValues需要的3x3矩阵
+     *
+     * @param transform 仿射变换
+     * @param values    结果，长度至少为9
+     * @return values
+     */
+    public static float[] toMatrixValues(float[] transform, float[] values) {
+        values[0] = transform[0];
+        values[1] = transform[1];
+        values[2] = transform[2];
+        values[3] = transform[3];
+        values[4] = transform[4];
+        values[5] = transform[5];
+        values[6] = 0;
+        values[7] = 0;
+        values[8] = 1;
+        return values;
+    }
+
+    private static void set(float[] out, float a, float b, float tx, float c, float d, float ty) {
+        out[0] = a;
+        out[1] = b;
+        out[2] = tx;
+        out[3] = c;
+        out[4] = d;
+        out[5] = ty;
+    }
+}
@@ -0,0 +1,353 @@
+package com.gsy.facerecognition.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 轻量的图片头解析，只打开一次文件，顺序读取JPEG的marker段或者PNG的IHDR，
+ * 得到图片的宽高、EXIF中的方向信息以及EXIF缩略图在文件中的位置，不解码任何像素。
+ * 代替inJustDecodeBounds解码加ExifInterface的两次读文件
+ */
+public class ImageHeaderParser {
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_JPEG = 1;
+    public static final int TYPE_PNG = 2;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;         // JPEGInterchangeFormat
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;         // JPEGInterchangeFormatLength
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * 图片头的解析结果
+     */
+    public static class ImageHeader {
+        private final int mType;
+        private final int mWidth;                                   // 图片数据的宽，不考虑方向
+        private final int mHeight;                                  // 图片数据的高，不考虑方向
+        private final int mOrientation;                             // EXIF方向，1到8，没有时为1
+        private final long mThumbnailOffset;                        // EXIF缩略图在文件中的偏移，没有时为-1
+        private final int mThumbnailLength;
+
+        public ImageHeader(int type, int width, int height, int orientation, long thumbnailOffset
+                , int thumbnailLength) {
+            mType = type;
+            mWidth = width;
+            mHeight = height;
+            mOrientation = orientation;
+            mThumbnailOffset = thumbnailOffset;
+            mThumbnailLength = thumbnailLength;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        /**
+         * @return 方向5到8需要旋转90度，宽高互换
+         */
+        public boolean isTransposed() {
+            return mOrientation >= 5 && mOrientation <= 8;
+        }
+
+        public boolean hasThumbnail() {
+            return mThumbnailOffset >= 0 && mThumbnailLength > 0;
+        }
+
+        public long getThumbnailOffset() {
+            return mThumbnailOffset;
+        }
+
+        public int getThumbnailLength() {
+            return mThumbnailLength;
+        }
+
+        @Override
+        public String toString() {
+            return "ImageHeader{type=" + mType + ", size=" + mWidth + "x" + mHeight + ", orientation=" + mOrientation
+                    + ", thumbnail=" + mThumbnailOffset + "+" + mThumbnailLength + '}';
+        }
+    }
+
+    /**
+     * 解析图片文件的头
+     *
+     * @param filePath 图片路径
+     * @return 解析结果，不是JPEG或者PNG，或者文件损坏时为null
+     */
+    public static ImageHeader parse(String filePath) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(filePath), BUFFER_SIZE);
+            return parse(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 从流的开头解析图片头，只读取到宽高所在的位置为止
+     */
+    public static ImageHeader parse(InputStream in) throws IOException {
+        Reader reader = new Reader(in);
+        int first = reader.readByte();
+        int second = reader.readByte();
+        if (first == 0xFF && second == 0xD8) {
+            return parseJpeg(reader);
+        }
+        if (first == (PNG_SIGNATURE[0] & 0xFF) && second == PNG_SIGNATURE[1]) {
+            return parsePng(reader);
+        }
+        return null;
+    }
+
+    private static ImageHeader parseJpeg(Reader reader) throws IOException {
+        int orientation = 1;
+        long thumbnailOffset = -1;
+        int thumbnailLength = 0;
+        while (true) {
+            int marker = reader.readByte();
+            if (marker != 0xFF) {
+                return null;
+            }
+            // 跳过填充的0xFF
+            do {
+                marker = reader.readByte();
+            } while (marker == 0xFF);
+            if (marker == 0xD9 || marker == 0xDA) {
+                // EOI或者SOS，后面是图片数据，没有找到SOF
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // 没有长度的marker
+                continue;
+            }
+            int length = reader.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            if (isStartOfFrame(marker)) {
+                reader.skip(1);                                     // 精度
+                int height = reader.readUnsignedShort();
+                int width = reader.readUnsignedShort();
+                return new ImageHeader(TYPE_JPEG, width, height, orientation, thumbnailOffset, thumbnailLength);
+            }
+            if (marker == 0xE1 && length > 8) {
+                long segmentOffset = reader.getPosition();
+                byte[] segment = new byte[length - 2];
+                reader.readFully(segment);
+                if (isExif(segment)) {
+                    // TIFF头在"Exif\0\0"之后，EXIF中的偏移都是相对TIFF头的
+                    Exif exif = parseExif(segment, 6);
+                    if (exif != null) {
+                        orientation = exif.orientation;
+                        if (exif.thumbnailOffset >= 0) {
+                            thumbnailOffset = segmentOffset + 6 + exif.thumbnailOffset;
+                            thumbnailLength = exif.thumbnailLength;
+                        }
+                    }
+                }
+            } else {
+                reader.skip(length - 2);
+            }
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // C4(DHT)、C8(JPG)、CC(DAC)不是SOF
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean isExif(byte[] segment) {
+        return segment.length > 14 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    private static class Exif {
+        int orientation = 1;
+        long thumbnailOffset = -1;
+        int thumbnailLength;
+    }
+
+    /**
+     * 解析TIFF结构，IFD0中读取方向，IFD1中读取缩略图的位置
+     *
+     * @param data  APP1段的数据
+     * @param start TIFF头在data中的位置
+     */
+    static Exif parseExif(byte[] data, int start) {
+        boolean isLittleEndian;
+        if (data[start] == 'I' && data[start + 1] == 'I') {
+            isLittleEndian = true;
+        } else if (data[start] == 'M' && data[start + 1] == 'M') {
+            isLittleEndian = false;
+        } else {
+            return null;
+        }
+        int tiffLength = data.length - start;
+        if (readShort(data, start + 2, isLittleEndian) != 42) {
+            return null;
+        }
+        Exif exif = new Exif();
+        long ifd0 = readInt(data, start + 4, isLittleEndian) & 0xFFFFFFFFL;
+        long ifd1 = readIfd(data, start, tiffLength, ifd0, true, isLittleEndian, exif);
+        if (ifd1 > 0) {
+            readIfd(data, start, tiffLength, ifd1, false, isLittleEndian, exif);
+        }
+        // 缩略图必须完整地在APP1段中，损坏的长度不能让解码缩略图时申请过大的数组
+        if (exif.thumbnailOffset >= 0 && (exif.thumbnailLength <= 0
+                || exif.thumbnailOffset + exif.thumbnailLength > tiffLength)) {
+            exif.thumbnailOffset = -1;
+            exif.thumbnailLength = 0;
+        }
+        return exif;
+    }
+
+    /**
+     * 读取一个IFD中需要的tag
+     *
+     * @param isIfd0 方向只从IFD0读取，IFD1中的方向描述的是缩略图
+     * @return 下一个IFD的偏移，没有时为0
+     */
+    private static long readIfd(byte[] data, int start, int tiffLength, long ifdOffset, boolean isIfd0
+            , boolean isLittleEndian, Exif exif) {
+        if (ifdOffset < 8 || ifdOffset + 2 > tiffLength) {
+            return 0;
+        }
+        int position = start + (int) ifdOffset;
+        int entryCount = readShort(data, position, isLittleEndian);
+        position += 2;
+        if (ifdOffset + 2 + entryCount * 12L + 4 > tiffLength) {
+            return 0;
+        }
+        for (int i = 0; i < entryCount; i++, position += 12) {
+            int tag = readShort(data, position, isLittleEndian);
+            int format = readShort(data, position + 2, isLittleEndian);
+            // SHORT的值在value字段的前两个字节，LONG占满四个字节
+            int value = format == 3 ? readShort(data, position + 8, isLittleEndian)
+                    : readInt(data, position + 8, isLittleEndian);
+            if (tag == TAG_ORIENTATION && isIfd0) {
+                exif.orientation = value >= 1 && value <= 8 ? value : 1;
+            } else if (tag == TAG_THUMBNAIL_OFFSET) {
+                exif.thumbnailOffset = value & 0xFFFFFFFFL;
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                exif.thumbnailLength = value;
+            }
+        }
+        return readInt(data, position, isLittleEndian) & 0xFFFFFFFFL;
+    }
+
+    private static ImageHeader parsePng(Reader reader) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (reader.readByte() != (PNG_SIGNATURE[i] & 0xFF)) {
+                return null;
+            }
+        }
+        // 第一个chunk必须是IHDR
+        reader.skip(4);
+        if (reader.readByte() != 'I' || reader.readByte() != 'H' || reader.readByte() != 'D'
+                || reader.readByte() != 'R') {
+            return null;
+        }
+        int width = reader.readInt();
+        int height = reader.readInt();
+        return new ImageHeader(TYPE_PNG, width, height, 1, -1, 0);
+    }
+
+    private static int readShort(byte[] data, int position, boolean isLittleEndian) {
+        if (isLittleEndian) {
+            return (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8;
+        }
+        return (data[position] & 0xFF) << 8 | (data[position + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int position, boolean isLittleEndian) {
+        if (isLittleEndian) {
+            return readShort(data, position, true) | readShort(data, position + 2, true) << 16;
+        }
+        return readShort(data, position, false) << 16 | readShort(data, position + 2, false);
+    }
+
+    /**
+     * 大端读取，并记录读到的位置，用来计算缩略图在文件中的偏移
+     */
+    private static class Reader {
+        private final InputStream mIn;
+        private long mPosition;
+
+        Reader(InputStream in) {
+            mIn = in;
+        }
+
+        long getPosition() {
+            return mPosition;
+        }
+
+        int readByte() throws IOException {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            mPosition++;
+            return b;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return readByte() << 8 | readByte();
+        }
+
+        int readInt() throws IOException {
+            return readUnsignedShort() << 16 | readUnsignedShort();
+        }
+
+        void readFully(byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int count = mIn.read(buffer, offset, buffer.length - offset);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                offset += count;
+            }
+            mPosition += buffer.length;
+        }
+
+        void skip(long count) throws IOException {
+            long remain = count;
+            while (remain > 0) {
+                long skipped = mIn.skip(remain);
+                if (skipped <= 0) {
+                    // skip不保证跳过，读一个字节判断是否到了文件末尾
+                    readByte();
+                    skipped = 1;
+                } else {
+                    mPosition += skipped;
+                }
+                remain -= skipped;
+            }
+        }
+    }
+}
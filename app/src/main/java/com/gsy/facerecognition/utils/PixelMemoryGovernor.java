@@ -0,0 +1,249 @@
+package com.gsy.facerecognition.utils;
+
+import android.content.ComponentCallbacks2;
+
+import com.gsy.facerecognition.metrics.Metrics;
+
+/**
+ * 进程内所有解码共用的像素内存预算。图库索引、分块和预览同时在多个线程解码时，解码出的像素可能超出堆的上限，
+ * 因此每次解码之前按 宽 x 高 x 每像素字节数 预留，放不下时先等待别的解码释放，等待超时后按调用者允许的方式降级：
+ * 先换成RGB_565，再加大inSampleSize，仍然放不下时使用最低的方案一直等待。
+ * 没有任何预留时总是放得下，因此比预算还大的单次解码不会死锁。
+ * 预留只覆盖解码和解码线程中的处理，交给显示、TileCache或者对象池之后由它们自己的上限负责
+ */
+public class PixelMemoryGovernor {
+    public static final int DEGRADE_NONE = 0;                       // 只等待，例如分块必须是固定的大小
+    public static final int DEGRADE_CONFIG = 1;                     // 允许ARGB_8888换成RGB_565
+    public static final int DEGRADE_SAMPLE_SIZE = 1 << 1;           // 允许加大inSampleSize
+    public static final int MAX_DEGRADE_FACTOR = 4;                 // inSampleSize最多加大到原来的倍数
+    private static final long DEFAULT_MAX_WAIT_NANOS = 300 * 1000000L;   // 降级之前最多等待的时间
+    private static final long RECOVER_NANOS = 60 * 1000000000L;     // 缩小预算后这么久没有再缩小，恢复原来的预算
+
+    private final long mMaxBudget;
+    private final long mMaxWaitNanos;
+    private long mBudget;
+    private long mReserved;                                         // 当前预留的总字节数
+    private long mPeakReserved;
+    private long mTrimTime;                                         // 最近一次缩小预算的时间
+    private int mWaitCount;
+    private int mDegradeCount;
+
+    /**
+     * 一次预留的结果，降级时inSampleSize和每像素字节数和请求的不同，调用者按这里的值解码
+     */
+    public static class Grant {
+        private final int mSampleSize;
+        private final int mBytesPerPixel;
+        private final long mBytes;
+        private final boolean mIsDegraded;
+
+        Grant(int sampleSize, int bytesPerPixel, long bytes, boolean isDegraded) {
+            mSampleSize = sampleSize;
+            mBytesPerPixel = bytesPerPixel;
+            mBytes = bytes;
+            mIsDegraded = isDegraded;
+        }
+
+        public int getSampleSize() {
+            return mSampleSize;
+        }
+
+        public int getBytesPerPixel() {
+            return mBytesPerPixel;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public boolean isDegraded() {
+            return mIsDegraded;
+        }
+    }
+
+    /**
+     * 按进程最大内存的1/4作为预算，剩下的留给显示图、缓存和对象池
+     */
+    public static PixelMemoryGovernor createDefault() {
+        return new PixelMemoryGovernor(Runtime.getRuntime().maxMemory() / 4, DEFAULT_MAX_WAIT_NANOS);
+    }
+
+    /**
+     * @param budget       预留的总字节数上限
+     * @param maxWaitNanos 放不下时降级之前最多等待的时间，调用者不允许降级时一直等待
+     */
+    public PixelMemoryGovernor(long budget, long maxWaitNanos) {
+        mMaxBudget = budget;
+        mBudget = budget;
+        mMaxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * 按BitmapFactory的规则计算解码后的字节数，inSampleSize除不尽时向上取整
+     */
+    public static long byteCountOf(int width, int height, int sampleSize, int bytesPerPixel) {
+        return (long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize)
+                * bytesPerPixel;
+    }
+
+    /**
+     * 解码之前预留内存，可能阻塞，解码和处理完成后必须调用release
+     *
+     * @param width         原图或者区域的宽
+     * @param height        原图或者区域的高
+     * @param sampleSize    请求的inSampleSize
+     * @param bytesPerPixel 请求的每像素字节数，ARGB_8888为4，RGB_565为2
+     * @param degradeFlags  允许的降级方式，DEGRADE_XXX的组合
+     * @return 实际预留的方案
+     * @throws InterruptedException 等待时线程被中断，没有预留
+     */
+    public synchronized Grant acquire(int width, int height, int sampleSize, int bytesPerPixel, int degradeFlags)
+            throws InterruptedException {
+        recoverIfNeeded();
+        long bytes = byteCountOf(width, height, sampleSize, bytesPerPixel);
+        if (fits(bytes)) {
+            return reserve(sampleSize, bytesPerPixel, bytes, false);
+        }
+        long start = System.nanoTime();
+        mWaitCount++;
+        try {
+            if (degradeFlags == DEGRADE_NONE) {
+                awaitFits(bytes, Long.MAX_VALUE);
+                return reserve(sampleSize, bytesPerPixel, bytes, false);
+            }
+            if (awaitFits(bytes, mMaxWaitNanos)) {
+                return reserve(sampleSize, bytesPerPixel, bytes, false);
+            }
+            // 依次尝试更低的方案，第一个放得下的即为结果，都放不下时等待最低的方案
+            int degradedBytesPerPixel = bytesPerPixel;
+            int degradedSampleSize = sampleSize;
+            long degradedBytes = bytes;
+            int maxSampleSize = (degradeFlags & DEGRADE_SAMPLE_SIZE) != 0 ? sampleSize * MAX_DEGRADE_FACTOR
+                    : sampleSize;
+            while (!fits(degradedBytes)) {
+                if ((degradeFlags & DEGRADE_CONFIG) != 0 && degradedBytesPerPixel > 2) {
+                    degradedBytesPerPixel = 2;
+                } else if (degradedSampleSize * 2 <= maxSampleSize) {
+                    degradedSampleSize *= 2;
+                } else {
+                    awaitFits(degradedBytes, Long.MAX_VALUE);
+                    break;
+                }
+                degradedBytes = byteCountOf(width, height, degradedSampleSize, degradedBytesPerPixel);
+            }
+            boolean isDegraded = degradedBytes != bytes;
+            if (isDegraded) {
+                mDegradeCount++;
+                // 降级的次数记为bitmap个数，节省的字节数记为bitmap字节数
+                Metrics.addBitmapBytes(Metrics.STAGE_MEMORY_DEGRADE, bytes - degradedBytes);
+            }
+            return reserve(degradedSampleSize, degradedBytesPerPixel, degradedBytes, isDegraded);
+        } finally {
+            Metrics.record(Metrics.STAGE_MEMORY_WAIT, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 释放预留，唤醒等待的解码
+     *
+     * @param grant acquire的返回值，为null时忽略
+     */
+    public synchronized void release(Grant grant) {
+        if (grant == null) {
+            return;
+        }
+        mReserved -= grant.mBytes;
+        notifyAll();
+    }
+
+    /**
+     * 根据系统的内存等级缩小预算，在onTrimMemory中调用。只是界面不可见时不缩小，后台索引正是这时运行
+     */
+    public synchronized void trimMemory(int level) {
+        long budget;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            budget = mMaxBudget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            budget = mMaxBudget / 2;
+        } else {
+            return;
+        }
+        mBudget = Math.min(mBudget, budget);
+        mTrimTime = System.nanoTime();
+    }
+
+    /**
+     * 恢复原来的预算，例如确认系统不再内存不足时。不调用时缩小后RECOVER_NANOS自动恢复
+     */
+    public synchronized void restoreBudget() {
+        mBudget = mMaxBudget;
+        notifyAll();
+    }
+
+    public synchronized long getBudget() {
+        return mBudget;
+    }
+
+    public synchronized long getReserved() {
+        return mReserved;
+    }
+
+    public synchronized long getPeakReserved() {
+        return mPeakReserved;
+    }
+
+    /**
+     * @return 放不下需要等待或者降级的次数
+     */
+    public synchronized int getWaitCount() {
+        return mWaitCount;
+    }
+
+    public synchronized int getDegradeCount() {
+        return mDegradeCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PixelMemoryGovernor{reserved=" + mReserved + "/" + mBudget + ", peak=" + mPeakReserved
+                + ", wait=" + mWaitCount + ", degrade=" + mDegradeCount + '}';
+    }
+
+    private boolean fits(long bytes) {
+        return mReserved == 0 || mReserved + bytes <= mBudget;
+    }
+
+    /**
+     * 等待直到放得下或者超时
+     *
+     * @return 是否放得下
+     */
+    private boolean awaitFits(long bytes, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos;
+        while (!fits(bytes)) {
+            if (deadline == Long.MAX_VALUE) {
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining / 1000000, (int) (remaining % 1000000));
+        }
+        return true;
+    }
+
+    private Grant reserve(int sampleSize, int bytesPerPixel, long bytes, boolean isDegraded) {
+        mReserved += bytes;
+        mPeakReserved = Math.max(mPeakReserved, mReserved);
+        return new Grant(sampleSize, bytesPerPixel, bytes, isDegraded);
+    }
+
+    private void recoverIfNeeded() {
+        if (mBudget < mMaxBudget && System.nanoTime() - mTrimTime > RECOVER_NANOS) {
+            mBudget = mMaxBudget;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.gsy.facerecognition.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写的记录文件，每条记录格式为：魔数 + 长度 + 内容 + CRC32。
+ * 打开时顺序读取，遇到不完整或者校验失败的记录(例如写到一半进程被杀)便截断文件；
+ * 追加失败时马上截掉写了一半的记录，之后追加的记录不会跟在它后面。
+ * 重写时先写临时文件，sync后rename覆盖，重写过程中进程被杀，旧的文件仍然完整。
+ * 内容的格式和内存中的状态由使用者维护，不是线程安全的，由使用者同步
+ */
+public class RecordJournal {
+    private static final String TAG = "RecordJournal";
+    public static final int RECORD_OVERHEAD = 4 + 4 + 4;            // 魔数、长度和CRC32
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;         // 单条记录最大长度，超出视为文件损坏
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final int mMagic;
+    private long mLength;                                           // 文件中完整记录的总长度
+
+    /**
+     * 读取时每条完整的记录回调一次
+     */
+    public interface RecordReader {
+
+        /**
+         * @param payload 记录的内容
+         * @throws IOException 内容无法解析，从这条记录开始截断
+         */
+        void onRecord(byte[] payload) throws IOException;
+    }
+
+    /**
+     * @param file    记录文件
+     * @param tmpFile 重写时使用的临时文件，和file在同一个目录
+     * @param magic   每条记录开头的魔数，区分不同的文件格式
+     */
+    public RecordJournal(File file, File tmpFile, int magic) {
+        mFile = file;
+        mTmpFile = tmpFile;
+        mMagic = magic;
+    }
+
+    /**
+     * 顺序读取所有完整的记录，截掉后面不完整或者损坏的部分
+     */
+    public void load(RecordReader reader) {
+        mLength = 0;
+        if (!mFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                int length = readRecordLength(in);
+                if (length < 0) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int crc = in.readInt();
+                if (crc != crc32(payload)) {
+                    Log.w(TAG, mFile.getName() + " crc mismatch at " + validLength);
+                    break;
+                }
+                reader.onRecord(payload);
+                validLength += RECORD_OVERHEAD + length;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录不完整，截断即可
+        } catch (IOException e) {
+            Log.e(TAG, "read " + mFile.getName() + " failed", e);
+        } finally {
+            closeQuietly(in);
+        }
+        mLength = validLength;
+        if (validLength != mFile.length()) {
+            truncate(validLength);
+        }
+    }
+
+    /**
+     * 加上记录头和校验，整条记录拼好后一次写入
+     */
+    public byte[] frame(byte[] payload) throws IOException {
+        ByteArrayOutputStream recordStream = new ByteArrayOutputStream(payload.length + RECORD_OVERHEAD);
+        DataOutputStream recordOut = new DataOutputStream(recordStream);
+        recordOut.writeInt(mMagic);
+        recordOut.writeInt(payload.length);
+        recordOut.write(payload);
+        recordOut.writeInt(crc32(payload));
+        return recordStream.toByteArray();
+    }
+
+    /**
+     * 追加一条frame得到的记录
+     *
+     * @return 是否写入成功，失败时文件保持原来的长度
+     */
+    public boolean append(byte[] record) {
+        FileOutputStream out = null;
+        try {
+            File parent = mFile.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                return false;
+            }
+            out = new FileOutputStream(mFile, true);
+            out.write(record);
+            out.flush();
+            mLength += record.length;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "append " + mFile.getName() + " failed", e);
+            // 马上截掉写了一半的记录，否则之后追加的记录都在它后面，下次打开时会和它一起被截掉
+            closeQuietly(out);
+            out = null;
+            truncate(mLength);
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 用给定的记录替换整个文件
+     *
+     * @param records frame得到的记录
+     * @return 是否成功，失败时原来的文件不变
+     */
+    public boolean rewrite(List<byte[]> records) {
+        FileOutputStream out = null;
+        try {
+            long length = 0;
+            out = new FileOutputStream(mTmpFile);
+            for (byte[] record : records) {
+                out.write(record);
+                length += record.length;
+            }
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!mTmpFile.renameTo(mFile)) {
+                throw new IOException("rename " + mTmpFile.getName() + " failed");
+            }
+            mLength = length;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "rewrite " + mFile.getName() + " failed", e);
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 删除文件
+     */
+    public void delete() {
+        mLength = 0;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "delete " + mFile.getName() + " failed");
+        }
+    }
+
+    /**
+     * @return 文件中完整记录的总长度
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * 读取记录头，魔数不对或者长度不合法时返回-1
+     */
+    private int readRecordLength(DataInputStream in) throws IOException {
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+        if (magic != mMagic) {
+            return -1;
+        }
+        int length = in.readInt();
+        return length > 0 && length <= MAX_RECORD_LENGTH ? length : -1;
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "truncate " + mFile.getName() + " failed", e);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
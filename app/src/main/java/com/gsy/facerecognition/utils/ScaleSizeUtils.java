@@ -0,0 +1,68 @@
+package com.gsy.facerecognition.utils;
+
+/**
+ * 加载图片时缩小倍数的计算，只依赖图片的宽高
+ */
+public class ScaleSizeUtils {
+
+    /**
+     * 根据图片的宽高计算scale，不超过8时为2的次幂，否则为8的倍数
+     *
+     * @param width     图片的宽
+     * @param height    图片的高
+     * @param minSide   最小显示区，默认为 -1
+     * @param maxPixels 最大的像素数量
+     * @return 缩小倍数
+     */
+    public static int computeScaleSize(int width, int height, int minSide, int maxPixels) {
+        int initSize = computeInitScaleSize(width, height, minSide, maxPixels);
+        int roundSize;
+        if (initSize <= 8) {
+            roundSize = 1;
+            while (roundSize < initSize) {
+                roundSize <<= 1;
+            }
+        } else {
+            roundSize = (initSize + 7) / 8 * 8;
+        }
+        return roundSize;
+    }
+
+    /**
+     * 计算缩小倍数
+     *
+     * @param width     图片的宽
+     * @param height    图片的高
+     * @param minSide   最小显示区，默认为 -1
+     * @param maxPixels 像素数量最大值
+     * @return 缩小倍数
+     */
+    public static int computeInitScaleSize(int width, int height, int minSide, int maxPixels) {
+        int upperLimit = (minSide == -1) ? 128 : (int) Math.min(Math.floor(width / minSide)
+                , Math.floor(height / minSide));
+        int lowerLimit = (maxPixels == -1) ? 1 : (int) Math.ceil(Math.sqrt(width * height / maxPixels));
+        if (upperLimit < lowerLimit) {
+            return lowerLimit;
+        }
+        if ((maxPixels == -1) && (minSide == -1)) {
+            return 1;
+        } else if (minSide == -1) {
+            return lowerLimit;
+        } else {
+            return upperLimit;
+        }
+    }
+
+    /**
+     * 计算inSampleSize，解码后的宽高不超过maxWidth、maxHeight，不要求为2的次幂
+     *
+     * @param width     图片的宽
+     * @param height    图片的高
+     * @param maxWidth  最大宽
+     * @param maxHeight 最大高
+     * @return inSampleSize，最小为1
+     */
+    public static int computeSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        return Math.max(1, (int) Math.max(Math.ceil(width * 1f / maxWidth), Math.ceil(height * 1f / maxHeight)));
+    }
+}
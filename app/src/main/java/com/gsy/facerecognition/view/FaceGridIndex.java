@@ -0,0 +1,243 @@
+package com.gsy.facerecognition.view;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import java.util.Arrays;
+
+/**
+ * 人脸框的均匀网格索引。
+ * 人脸框只在设置识别结果时按显示图的坐标计算一次，按列保存在几个float数组中；
+ * 每个格子记录和它相交的人脸，格子和人脸的对应关系按CSR格式保存在两个int数组中。
+ * 查询时只遍历矩形四条边经过的格子，耗时和边附近的人脸数成正比，和人脸总数无关。
+ * 同时按Canvas.drawLines的格式预先算好每个框的四条边，绘制时只需要复制
+ */
+public class FaceGridIndex {
+    private static final int MAX_CELLS_PER_FACE = 4;                // 格子总数不超过人脸数的这个倍数，限制内存
+    private static final int MIN_CELLS_PER_SIDE = 1;
+    public static final int LINE_FLOATS_PER_FACE = 16;             // 每个框四条边，每条边两个点
+
+    private final int mCount;
+    private final float[] mLeft;                                    // 人脸框，显示图的坐标
+    private final float[] mTop;
+    private final float[] mRight;
+    private final float[] mBottom;
+    private final float[] mLines;                                   // 所有框的边，每个框LINE_FLOATS_PER_FACE个float
+    private final float mOriginX, mOriginY;                         // 网格的左上角
+    private final float mCellSize;
+    private final int mColumns, mRows;
+    private final int[] mCellStart;                                 // 第i个格子的人脸在mCellFaces中的范围为[start[i], start[i + 1])
+    private final int[] mCellFaces;
+    private final int[] mStamps;                                    // 查询时去重，值为最近一次返回这个人脸的查询序号
+    private int mQueryStamp;
+
+    /**
+     * @param faces         人脸识别结果，可以包含null
+     * @param adjustScale   识别坐标到显示图坐标的矫正系数
+     * @param verticalRatio 竖直方向上相对于眼睛的距离，水平方向为一个两眼距离
+     */
+    public FaceGridIndex(FaceInfo[] faces, float adjustScale, float verticalRatio) {
+        int count = 0;
+        for (FaceInfo face : faces) {
+            if (face != null) count++;
+        }
+        mCount = count;
+        mLeft = new float[count];
+        mTop = new float[count];
+        mRight = new float[count];
+        mBottom = new float[count];
+        mStamps = new int[count];
+        mLines = new float[count * LINE_FLOATS_PER_FACE];
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        float sizeSum = 0;
+        int index = 0;
+        for (FaceInfo face : faces) {
+            if (face == null) continue;
+            float midX = face.getMidX() * adjustScale;
+            float midY = face.getMidY() * adjustScale;
+            float distance = face.eyesDistance() * adjustScale;
+            mLeft[index] = midX - distance;
+            mTop[index] = midY - verticalRatio * distance;
+            mRight[index] = midX + distance;
+            mBottom[index] = midY + verticalRatio * distance;
+            minX = Math.min(minX, mLeft[index]);
+            minY = Math.min(minY, mTop[index]);
+            maxX = Math.max(maxX, mRight[index]);
+            maxY = Math.max(maxY, mBottom[index]);
+            sizeSum += Math.max(mRight[index] - mLeft[index], mBottom[index] - mTop[index]);
+            packLines(mLeft[index], mTop[index], mRight[index], mBottom[index], mLines, index * LINE_FLOATS_PER_FACE);
+            index++;
+        }
+        if (count == 0) {
+            mOriginX = mOriginY = 0;
+            mCellSize = 1;
+            mColumns = mRows = MIN_CELLS_PER_SIDE;
+            mCellStart = new int[2];
+            mCellFaces = new int[0];
+            return;
+        }
+        // 格子的边长约为人脸框的平均大小，一张脸一般只落在几个格子中
+        float width = Math.max(maxX - minX, 1);
+        float height = Math.max(maxY - minY, 1);
+        float cellSize = Math.max(sizeSum / count, 1);
+        while ((long) cellCount(width, cellSize) * cellCount(height, cellSize) > (long) count * MAX_CELLS_PER_FACE
+                && cellSize < Math.max(width, height)) {
+            cellSize *= 2;
+        }
+        mOriginX = minX;
+        mOriginY = minY;
+        mCellSize = cellSize;
+        mColumns = cellCount(width, cellSize);
+        mRows = cellCount(height, cellSize);
+        // 先数出每个格子的人脸数，再填充
+        mCellStart = new int[mColumns * mRows + 1];
+        for (int i = 0; i < count; i++) {
+            for (int row = rowOf(mTop[i]); row <= rowOf(mBottom[i]); row++) {
+                for (int column = columnOf(mLeft[i]); column <= columnOf(mRight[i]); column++) {
+                    mCellStart[row * mColumns + column + 1]++;
+                }
+            }
+        }
+        for (int i = 1; i < mCellStart.length; i++) {
+            mCellStart[i] += mCellStart[i - 1];
+        }
+        mCellFaces = new int[mCellStart[mCellStart.length - 1]];
+        int[] fill = Arrays.copyOf(mCellStart, mCellStart.length - 1);
+        for (int i = 0; i < count; i++) {
+            for (int row = rowOf(mTop[i]); row <= rowOf(mBottom[i]); row++) {
+                for (int column = columnOf(mLeft[i]); column <= columnOf(mRight[i]); column++) {
+                    mCellFaces[fill[row * mColumns + column]++] = i;
+                }
+            }
+        }
+    }
+
+    private static void packLines(float left, float top, float right, float bottom, float[] lines, int offset) {
+        // 上、右、下、左，首尾相接
+        lines[offset] = left;
+        lines[offset + 1] = top;
+        lines[offset + 2] = right;
+        lines[offset + 3] = top;
+        lines[offset + 4] = right;
+        lines[offset + 5] = top;
+        lines[offset + 6] = right;
+        lines[offset + 7] = bottom;
+        lines[offset + 8] = right;
+        lines[offset + 9] = bottom;
+        lines[offset + 10] = left;
+        lines[offset + 11] = bottom;
+        lines[offset + 12] = left;
+        lines[offset + 13] = bottom;
+        lines[offset + 14] = left;
+        lines[offset + 15] = top;
+    }
+
+    private static int cellCount(float length, float cellSize) {
+        return Math.max(MIN_CELLS_PER_SIDE, (int) Math.ceil(length / cellSize));
+    }
+
+    private int columnOf(float x) {
+        return Math.max(0, Math.min(mColumns - 1, (int) ((x - mOriginX) / mCellSize)));
+    }
+
+    private int rowOf(float y) {
+        return Math.max(0, Math.min(mRows - 1, (int) ((y - mOriginY) / mCellSize)));
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public float getLeft(int face) {
+        return mLeft[face];
+    }
+
+    public float getTop(int face) {
+        return mTop[face];
+    }
+
+    public float getRight(int face) {
+        return mRight[face];
+    }
+
+    public float getBottom(int face) {
+        return mBottom[face];
+    }
+
+    /**
+     * 把一组框预先算好的边复制到out中，可以直接传给Canvas.drawLines
+     *
+     * @param faces 人脸的序号
+     * @param count 人脸数量
+     * @param out   输出，长度至少为count * LINE_FLOATS_PER_FACE
+     * @return 输出的float数量
+     */
+    public int copyLines(int[] faces, int count, float[] out) {
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(mLines, faces[i] * LINE_FLOATS_PER_FACE, out, i * LINE_FLOATS_PER_FACE
+                    , LINE_FLOATS_PER_FACE);
+        }
+        return count * LINE_FLOATS_PER_FACE;
+    }
+
+    /**
+     * 查询跨过矩形边界的人脸框：和矩形相交，但是没有完全在矩形内。
+     * 矩形为view在显示图中的范围时，结果就是超出显示范围、并且还能看到一部分的脸。不分配对象
+     *
+     * @param left   矩形，显示图的坐标
+     * @param top    矩形
+     * @param right  矩形
+     * @param bottom 矩形
+     * @param out    输出人脸的序号，长度至少为size()
+     * @return 输出的人脸数量
+     */
+    public int queryEdges(float left, float top, float right, float bottom, int[] out) {
+        if (mCount == 0 || left > right || top > bottom) {
+            return 0;
+        }
+        if (++mQueryStamp == 0) {
+            // 序号溢出后清空，避免和旧的值相同
+            Arrays.fill(mStamps, 0);
+            mQueryStamp = 1;
+        }
+        int firstColumn = columnOf(left), lastColumn = columnOf(right);
+        int firstRow = rowOf(top), lastRow = rowOf(bottom);
+        // 跨过边界的框一定和某条边相交，只需要遍历四条边经过的格子
+        int resultCount = queryCells(firstColumn, firstColumn, firstRow, lastRow, left, top, right, bottom, out, 0);
+        resultCount = queryCells(lastColumn, lastColumn, firstRow, lastRow, left, top, right, bottom, out
+                , resultCount);
+        resultCount = queryCells(firstColumn, lastColumn, firstRow, firstRow, left, top, right, bottom, out
+                , resultCount);
+        resultCount = queryCells(firstColumn, lastColumn, lastRow, lastRow, left, top, right, bottom, out
+                , resultCount);
+        return resultCount;
+    }
+
+    private int queryCells(int firstColumn, int lastColumn, int firstRow, int lastRow, float left, float top
+            , float right, float bottom, int[] out, int resultCount) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * mColumns + column;
+                for (int i = mCellStart[cell]; i < mCellStart[cell + 1]; i++) {
+                    int face = mCellFaces[i];
+                    if (mStamps[face] == mQueryStamp) continue;
+                    mStamps[face] = mQueryStamp;
+                    if (crossesEdge(face, left, top, right, bottom)) {
+                        out[resultCount++] = face;
+                    }
+                }
+            }
+        }
+        return resultCount;
+    }
+
+    /**
+     * 和矩形相交，并且超出矩形的任意一边，和FaceOverlayGeometry.checkFaces的判断相同
+     */
+    boolean crossesEdge(int face, float left, float top, float right, float bottom) {
+        boolean isIntersect = mLeft[face] <= right && mRight[face] >= left
+                && mTop[face] <= bottom && mBottom[face] >= top;
+        boolean isInside = mLeft[face] >= left && mRight[face] <= right
+                && mTop[face] >= top && mBottom[face] <= bottom;
+        return isIntersect && !isInside;
+    }
+}
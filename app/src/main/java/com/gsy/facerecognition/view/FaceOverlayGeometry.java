@@ -0,0 +1,191 @@
+package com.gsy.facerecognition.view;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+/**
+ * MyImageView中人脸框的几何计算。
+ * Matrix使用android.graphics.Matrix.getValues的9个float的排列，矩形使用{left, top, right, bottom}
+ */
+public class FaceOverlayGeometry {
+    public static final float FACE_VERTICAL = 2f;                   // 竖直方向上相对于眼睛的距离
+    public static final int MSCALE_X = 0;
+    public static final int MSKEW_X = 1;
+    public static final int MTRANS_X = 2;
+    public static final int MSKEW_Y = 3;
+    public static final int MSCALE_Y = 4;
+    public static final int MTRANS_Y = 5;
+    public static final int RECT_SIZE = 4;
+
+    /**
+     * 和Matrix.mapRect相同，映射矩形的四个角，结果为包含它们的最小矩形
+     *
+     * @param values Matrix的值
+     * @param rect   输入和输出的矩形
+     */
+    public static void mapRect(float[] values, float[] rect) {
+        float left = rect[0], top = rect[1], right = rect[2], bottom = rect[3];
+        float sx = values[MSCALE_X], kx = values[MSKEW_X], tx = values[MTRANS_X];
+        float ky = values[MSKEW_Y], sy = values[MSCALE_Y], ty = values[MTRANS_Y];
+        if (kx == 0 && ky == 0) {
+            // 只有缩放和平移，手势操作的Matrix都是这种情况
+            float x0 = left * sx + tx, x1 = right * sx + tx;
+            float y0 = top * sy + ty, y1 = bottom * sy + ty;
+            rect[0] = Math.min(x0, x1);
+            rect[1] = Math.min(y0, y1);
+            rect[2] = Math.max(x0, x1);
+            rect[3] = Math.max(y0, y1);
+            return;
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            float x = (i & 1) == 0 ? left : right;
+            float y = (i & 2) == 0 ? top : bottom;
+            float mappedX = x * sx + y * kx + tx;
+            float mappedY = x * ky + y * sy + ty;
+            minX = Math.min(minX, mappedX);
+            minY = Math.min(minY, mappedY);
+            maxX = Math.max(maxX, mappedX);
+            maxY = Math.max(maxY, mappedY);
+        }
+        rect[0] = minX;
+        rect[1] = minY;
+        rect[2] = maxX;
+        rect[3] = maxY;
+    }
+
+    /**
+     * 和MyImageView.getMatrixRectF相同，图片经过Matrix后的范围
+     *
+     * @param values 显示图片的Matrix的值
+     * @param width  图片摆正后的宽
+     * @param height 图片摆正后的高
+     * @param out    输出的矩形
+     */
+    public static void getMatrixRect(float[] values, int width, int height, float[] out) {
+        out[0] = 0;
+        out[1] = 0;
+        out[2] = width;
+        out[3] = height;
+        mapRect(values, out);
+    }
+
+    /**
+     * 把view的范围反向映射到图片中，每帧只需要计算一次，之后在图片的坐标中判断每张脸
+     *
+     * @param values     显示图片的Matrix的值
+     * @param viewWidth  view的宽
+     * @param viewHeight view的高
+     * @param out        输出的矩形，图片的坐标；Matrix不可逆时为空矩形
+     */
+    public static void viewportInImage(float[] values, int viewWidth, int viewHeight, float[] out) {
+        float sx = values[MSCALE_X], kx = values[MSKEW_X], tx = values[MTRANS_X];
+        float ky = values[MSKEW_Y], sy = values[MSCALE_Y], ty = values[MTRANS_Y];
+        float determinant = sx * sy - kx * ky;
+        if (determinant == 0) {
+            out[0] = out[1] = out[2] = out[3] = 0;
+            return;
+        }
+        // 逆矩阵只是临时值，直接展开计算，不分配数组
+        float isx = sy / determinant, ikx = -kx / determinant;
+        float iky = -ky / determinant, isy = sx / determinant;
+        float itx = -(isx * tx + ikx * ty), ity = -(iky * tx + isy * ty);
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            float x = (i & 1) == 0 ? 0 : viewWidth;
+            float y = (i & 2) == 0 ? 0 : viewHeight;
+            float mappedX = x * isx + y * ikx + itx;
+            float mappedY = x * iky + y * isy + ity;
+            minX = Math.min(minX, mappedX);
+            minY = Math.min(minY, mappedY);
+            maxX = Math.max(maxX, mappedX);
+            maxY = Math.max(maxY, mappedY);
+        }
+        out[0] = minX;
+        out[1] = minY;
+        out[2] = maxX;
+        out[3] = maxY;
+    }
+
+    /**
+     * 检查每张脸是否超出显示范围，脸的两眼中点距离view的边界不足一个两眼距离(竖直方向为FACE_VERTICAL个)时超出
+     *
+     * @param faces           人脸识别结果，可以包含null
+     * @param faceCount       人脸的数量
+     * @param adjustScale     识别坐标到显示图坐标的矫正系数
+     * @param values          显示图片的Matrix的值
+     * @param intrinsicWidth  图片摆正后的宽
+     * @param intrinsicHeight 图片摆正后的高
+     * @param viewWidth       view的宽
+     * @param viewHeight      view的高
+     * @param rect            临时使用的矩形，长度至少为RECT_SIZE
+     * @param outNeedDraws    输出每张脸是否需要绘制，null的脸不修改
+     */
+    public static void checkFaces(FaceInfo[] faces, int faceCount, float adjustScale, float[] values
+            , int intrinsicWidth, int intrinsicHeight, int viewWidth, int viewHeight, float[] rect
+            , boolean[] outNeedDraws) {
+        getMatrixRect(values, intrinsicWidth, intrinsicHeight, rect);
+        float displayScale = (rect[2] - rect[0]) / intrinsicWidth;
+        for (int i = 0; i < faceCount; i++) {
+            FaceInfo face = faces[i];
+            if (face == null) continue;
+            rect[0] = 0;
+            rect[1] = 0;
+            rect[2] = face.getMidX() * adjustScale;
+            rect[3] = face.getMidY() * adjustScale;
+            mapRect(values, rect);
+            float eyesDistance = face.eyesDistance() * adjustScale * displayScale;
+            float distanceH = rect[2];
+            float distanceV = rect[3];
+            outNeedDraws[i] = distanceH > viewWidth - eyesDistance                                      // 右边超出
+                    || distanceH < eyesDistance                                                         // 左边超出
+                    || distanceV > viewHeight - eyesDistance * FACE_VERTICAL                            // 下边超出
+                    || distanceV < eyesDistance * FACE_VERTICAL;                                        // 上边超出
+        }
+    }
+
+    /**
+     * 计算需要绘制的人脸框，坐标为显示图的坐标，绘制时再经过显示的Matrix
+     *
+     * @param faces       人脸识别结果，可以包含null
+     * @param faceCount   人脸的数量
+     * @param needDraws   每张脸是否需要绘制
+     * @param adjustScale 识别坐标到显示图坐标的矫正系数
+     * @param outRects    输出的矩形，每RECT_SIZE个float一个，长度至少为faceCount * RECT_SIZE
+     * @return 输出的矩形数量
+     */
+    public static int computeFaceRects(FaceInfo[] faces, int faceCount, boolean[] needDraws, float adjustScale
+            , float[] outRects) {
+        int count = 0;
+        for (int i = 0; i < faceCount; i++) {
+            FaceInfo face = faces[i];
+            if (face == null || !needDraws[i]) continue;
+            float midX = face.getMidX() * adjustScale;
+            float midY = face.getMidY() * adjustScale;
+            float distance = face.eyesDistance() * adjustScale;
+            int offset = count++ * RECT_SIZE;
+            outRects[offset] = midX - distance;
+            outRects[offset + 1] = midY - FACE_VERTICAL * distance;
+            outRects[offset + 2] = midX + distance;
+            outRects[offset + 3] = midY + FACE_VERTICAL * distance;
+        }
+        return count;
+    }
+
+    /**
+     * 一张脸的人脸框，和computeFaceRects相同，再裁剪到图片范围内，用于导出人脸的缩略图
+     *
+     * @param face   人脸，图片坐标
+     * @param width  图片的宽
+     * @param height 图片的高
+     * @param out    输出的矩形，长度至少为RECT_SIZE
+     * @return 裁剪后是否还有面积
+     */
+    public static boolean computeFaceRect(FaceInfo face, int width, int height, float[] out) {
+        float distance = face.eyesDistance();
+        out[0] = Math.max(0, face.getMidX() - distance);
+        out[1] = Math.max(0, face.getMidY() - FACE_VERTICAL * distance);
+        out[2] = Math.min(width, face.getMidX() + distance);
+        out[3] = Math.min(height, face.getMidY() + FACE_VERTICAL * distance);
+        return out[2] > out[0] && out[3] > out[1];
+    }
+}
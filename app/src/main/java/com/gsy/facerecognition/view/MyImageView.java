@@ -9,47 +9,67 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PointF;
 import android.graphics.RectF;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.media.FaceDetector;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.ViewGroup;
 import android.view.animation.DecelerateInterpolator;
 import android.widget.ImageView;
 
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.ExifOrientation;
+import com.gsy.facerecognition.view.tile.TileCache;
+import com.gsy.facerecognition.view.tile.TileGrid;
+import com.gsy.facerecognition.view.tile.TileLoader;
+
 /**
- * 自定义的ImageView，实现图片的拖动，缩放，显示人脸识别的结果
+ * 自定义的ImageView，实现图片的拖动，缩放，显示人脸识别的结果。
+ * 设置原图后放大到显示图不够清晰时，按需区域解码原图的分块，画在显示图上面
  */
 public class MyImageView extends ImageView {
-    private static final int SINGLE_OPERATION = 0;                  // 单指触控
-    private static final int COUPLE_OPERATION = 1;                  // 双指缩放
-    private static final int NONE_OPERATION = -1;                   // 点击事件默认值
     private static final int BORDER_BACK_DURATION = 200;            // 边界回弹的时间
-    public static final float FACE_VERTICAL = 2f;                   // 竖直方向上相对于眼睛的距离
-    public static final float THE_MAX_SCALE = 3f;                   // 放大为view的最大倍数值
-    private int mIntrinsicWidth, mIntrinsicHeight;                  // 图片原始的宽高
-    private int mLastX, mLastY;                                     // 上一次触摸事件的位置
-    private FaceDetector.Face[] mFaces;                             // 人脸识别结果
-    private boolean[] mIsNeedDraws;                                 // 是否需要绘制
-    private PointF mPoint;                                          // 眼睛所在位置
+    private static final int TILE_WORKER_COUNT = 2;                 // 分块解码的线程数
+    private static final float REPLACE_ASPECT_TOLERANCE = 0.02f;    // 替换的图片和当前图片宽高比的最大相对误差
+    public static final float FACE_VERTICAL = FaceOverlayGeometry.FACE_VERTICAL;
+    public static final float THE_MAX_SCALE = ZoomPanController.MAX_SCALE;
+    private int mIntrinsicWidth, mIntrinsicHeight;                  // 图片摆正后的宽高
+    private int mOrientation = ExifOrientation.NORMAL;              // 图片的EXIF方向，绘制时通过mOrientationMatrix摆正
+    private Matrix mOrientationMatrix = new Matrix();               // 把图片数据摆正的Matrix，在mDrawMatrix之前concat
+    private FaceInfo[] mFaces;                                      // 人脸识别结果，替换图片时按新的大小重新计算人脸框
+    private FaceGridIndex mFaceIndex;                               // 人脸框的网格索引，显示图的坐标
+    private int[] mDrawFaces;                                       // 需要绘制的人脸在mFaceIndex中的序号
+    private int mDrawFaceCount;                                     // 需要绘制的人脸数量
+    private int[] mQueryFaces;                                      // 每次检查时查询的结果，和mDrawFaces不同时交换
+    private float[] mDrawLines;                                     // 需要绘制的框的边，drawLines一次画完
+    private int mDrawLineFloats;                                    // mDrawLines中有效的float数量
     private Paint mPaint;                                           // 画笔，用来绘制人脸识别的结果
-    private int mTouchMode;                                         // 触摸的类型，单指或者双指
-    private PointF mMidPoint = new PointF();                        // 双指的中点
-    private Matrix mDrawMatrix = new Matrix();
-    private Matrix mSavedMatrix = new Matrix();
-    private Matrix mTempMatrix = new Matrix();
-    private RectF mTempRectF;
-    private float mResetScale;                                      // 当达到缩放极限时的矫正scale
-    private boolean mIsVerticalFit;                                 // 图片是否为竖直填充
-    private boolean mIsCheckRAndL;                                  // 标志是否需要检查左右方向居中状态
-    private boolean mIsCheckBAndT;                                  // 标志是否需要检查上下方向居中状态
-    private boolean mIsMove;                                        // 是否有位移
-    private float mLastDist;                                        // 两个手刚按下时的距离
+    private Matrix mDrawMatrix = new Matrix();                      // 显示图片的Matrix，值来自mZoomPan
+    private ZoomPanController mZoomPan = new ZoomPanController();   // 拖动、缩放、回弹的计算，触摸事件中不分配对象
+    private ValueAnimator mBounceAnimator;                          // 边界回弹的动画，第一次回弹时创建，之后复用
+    private float[] mViewport = new float[FaceOverlayGeometry.RECT_SIZE];               // view在显示图中的范围
     private int mFaceCount;                                         // 识别出的人脸数量，不一定能正确识别
-    // 矫正系数，当人脸识别使用的bitmap缩放大小和ImageView使用的bitmap大小不一致时，需要有矫正系数，此demo因
-    // 为识别和使用的bitmap是同一个bitmap，因此矫正系数为 识别scale / imageView的scale = 1f,从Activity中传入
+    private boolean mIsReplacing;                                   // 正在替换同一张图片，保持当前的缩放和位置
+    private TileGrid mTileGrid;                                     // 原图的分块金字塔，没有设置原图时为null
+    private TileCache mTileCache;
+    private TileLoader mTileLoader;
+    private float mTileSampleSize;                                  // 原图的宽 / 显示图的宽
+    private int mTileLevel = -1;                                    // 当前绘制的层，显示图足够清晰时为-1
+    private int[] mVisibleTiles;                                    // 当前可见的块
+    private int mVisibleTileCount;
+    private int[] mPrefetchTiles;                                   // 移动方向上预取的块
+    private float[] mFromUpright = new float[ExifOrientation.TRANSFORM_SIZE];           // 摆正后的坐标到图片数据的坐标
+    private float mLastTileCenterX, mLastTileCenterY;               // 上一次可见范围的中心，用来判断移动方向
+    private int[] mTileRect = new int[FaceOverlayGeometry.RECT_SIZE];
+    private RectF mTileDst = new RectF();
+    private Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    // 矫正系数，当人脸识别使用的bitmap缩放大小和ImageView使用的bitmap大小不一致时，需要有矫正系数，
+    // 即 显示图的宽 / 识别图的宽，由DetectionFrame.getScaleTo按实际解码的宽高计算，从Activity中传入
     private float mAdjustScale;
 
 
@@ -65,31 +85,152 @@ public class MyImageView extends ImageView {
         super(context, attrs, defStyleAttr);
     }
 
-    public void setImageBitmap(Bitmap bm, FaceDetector.Face[] faces, float adjustScale) {
+    public void setImageBitmap(Bitmap bm, FaceInfo[] faces, float adjustScale) {
+        setImageBitmap(bm, ExifOrientation.NORMAL, faces, adjustScale);
+    }
+
+    /**
+     * 设置没有摆正的图片，绘制时通过Matrix摆正，不需要旋转像素
+     *
+     * @param bm          保持图片数据原来方向的bitmap
+     * @param orientation 图片的EXIF方向
+     * @param faces       人脸识别结果，摆正后的坐标
+     * @param adjustScale 矫正系数
+     */
+    public void setImageBitmap(Bitmap bm, int orientation, FaceInfo[] faces, float adjustScale) {
+        setFaces(faces, adjustScale);
+        mOrientation = orientation;
+        setImageBitmap(bm);
+    }
+
+    /**
+     * 用同一张图片另一个尺寸的bitmap替换当前的图片，例如预览图换成显示图，当前的缩放和位置保持不变，没有跳动。
+     * Matrix按两张图片的宽的比例换算；还没有图片或者宽高比不一致时和setImageBitmap相同
+     *
+     * @param bm          保持图片数据原来方向的bitmap
+     * @param orientation 图片的EXIF方向
+     * @param faces       新的人脸识别结果，为null时保留当前的结果，矫正系数按两张图片的比例换算
+     * @param adjustScale 新的矫正系数，faces为null时不使用
+     */
+    public void replaceImageBitmap(Bitmap bm, int orientation, @Nullable FaceInfo[] faces, float adjustScale) {
+        int width = ExifOrientation.uprightWidth(orientation, bm.getWidth(), bm.getHeight());
+        int height = ExifOrientation.uprightHeight(orientation, bm.getWidth(), bm.getHeight());
+        if (getDrawable() == null || !isSameAspect(width, height, mIntrinsicWidth, mIntrinsicHeight)) {
+            setImageBitmap(bm, orientation, faces != null ? faces : mFaces, faces != null ? adjustScale
+                    : mAdjustScale * width / Math.max(1, mIntrinsicWidth));
+            return;
+        }
+        if (faces == null) {
+            // 人脸框是显示图的坐标，换算到新的图片上
+            faces = mFaces;
+            adjustScale = mAdjustScale * width / mIntrinsicWidth;
+        }
+        setFaces(faces, adjustScale);
+        mOrientation = orientation;
+        mIsReplacing = true;
+        try {
+            setImageBitmap(bm);
+        } finally {
+            mIsReplacing = false;
+        }
+    }
+
+    private static boolean isSameAspect(int width, int height, int otherWidth, int otherHeight) {
+        if (height <= 0 || otherHeight <= 0) {
+            return false;
+        }
+        float aspect = width * 1f / height;
+        float otherAspect = otherWidth * 1f / otherHeight;
+        return Math.abs(aspect - otherAspect) <= otherAspect * REPLACE_ASPECT_TOLERANCE;
+    }
+
+    /**
+     * 图片还没有解码时，先按图片的宽高显示人脸的位置，例如识别结果命中缓存时。
+     * 之后调用setImageBitmap设置同样宽高的图片即可
+     *
+     * @param width       图片的宽
+     * @param height      图片的高
+     * @param faces       人脸识别结果
+     * @param adjustScale 矫正系数
+     */
+    public void setFacesPreview(int width, int height, FaceInfo[] faces, float adjustScale) {
+        setFaces(faces, adjustScale);
+        mOrientation = ExifOrientation.NORMAL;
+        setImageDrawable(new PlaceholderDrawable(width, height));
+    }
+
+    /**
+     * 只更新人脸识别结果，图片、缩放和位置不变，例如连续帧识别时每帧的结果
+     *
+     * @param faces       人脸识别结果，为null时不显示
+     * @param adjustScale 矫正系数
+     */
+    public void updateFaces(@Nullable FaceInfo[] faces, float adjustScale) {
+        setFaces(faces, adjustScale);
+        if (getDrawable() != null) {
+            onViewportChanged();
+        }
+        invalidate();
+    }
+
+    private void setFaces(FaceInfo[] faces, float adjustScale) {
+        if (faces == null) {
+            faces = new FaceInfo[0];
+        }
         mFaces = faces;
-        mIsNeedDraws = new boolean[faces.length];
-        mPoint = new PointF();
+        // 人脸框只在这里计算一次，之后每次移动只查询view边界附近的脸
+        mFaceIndex = new FaceGridIndex(faces, adjustScale, FACE_VERTICAL);
+        mDrawFaces = new int[mFaceIndex.size()];
+        mQueryFaces = new int[mFaceIndex.size()];
+        mDrawLines = new float[mFaceIndex.size() * FaceGridIndex.LINE_FLOATS_PER_FACE];
+        mDrawFaceCount = 0;
+        mDrawLineFloats = 0;
         mPaint = new Paint();
         mPaint.setStrokeWidth(2);
         mPaint.setColor(Color.BLUE);
         mPaint.setStyle(Paint.Style.STROKE);
+        // 用drawLines画框，方头让相邻的两条边在角上接上
+        mPaint.setStrokeCap(Paint.Cap.SQUARE);
         mAdjustScale = adjustScale;
-        mFaceCount = faces.length;
-        setImageBitmap(bm);
+        mFaceCount = mFaceIndex.size();
     }
 
     @Override
     public void setImageDrawable(Drawable drawable) {
-        mLastX = mLastY = 0;
-        mIntrinsicWidth = drawable.getIntrinsicWidth();
-        mIntrinsicHeight = drawable.getIntrinsicHeight();
-        centerCropImage();
-        mTempRectF = getMatrixRectF();
-        // 判断图片的宽高view的宽高FitCenter状态是竖直fit还是水平fit，如果不能理解可以查看IamgeView源码中的CenterCrop
-        // 和FitCenter这两个属性，其实这里是照搬源码
-        mIsVerticalFit = mIntrinsicWidth * getLayoutParams().height < getLayoutParams().width * mIntrinsicHeight;
-        checkFace();
+        // 分块属于之前的图片
+        releaseTiles();
+        if (drawable == null) {
+            super.setImageDrawable(null);
+            return;
+        }
+        long start = Metrics.start();
+        int drawableWidth = drawable.getIntrinsicWidth();
+        int drawableHeight = drawable.getIntrinsicHeight();
+        BitmapUtils.buildOrientationMatrix(mOrientation, drawableWidth, drawableHeight, mOrientationMatrix);
+        mIntrinsicWidth = ExifOrientation.uprightWidth(mOrientation, drawableWidth, drawableHeight);
+        mIntrinsicHeight = ExifOrientation.uprightHeight(mOrientation, drawableWidth, drawableHeight);
+        if (mIsReplacing) {
+            // 同一张图片，手势和回弹动画继续进行
+            mZoomPan.rescaleImage(mIntrinsicWidth, mIntrinsicHeight);
+        } else {
+            if (mBounceAnimator != null) {
+                mBounceAnimator.cancel();
+            }
+            mZoomPan.setImage(mIntrinsicWidth, mIntrinsicHeight, getLayoutParams().width, getLayoutParams().height);
+        }
+        mDrawMatrix.setValues(mZoomPan.getValues());
+        onViewportChanged();
         super.setImageDrawable(drawable);
+        Metrics.end(Metrics.STAGE_SET_DRAWABLE, start);
+    }
+
+    @Override
+    public void setLayoutParams(ViewGroup.LayoutParams params) {
+        super.setLayoutParams(params);
+        if (mZoomPan != null) {
+            // 只在这里读取LayoutParams的宽高，触摸事件中直接使用
+            mZoomPan.setViewSize(params.width, params.height);
+        }
     }
 
     @Override
@@ -97,328 +238,223 @@ public class MyImageView extends ImageView {
         if (!isEnabled()) return false;
         final int action = ev.getAction();
         switch (action & MotionEvent.ACTION_MASK) {
-            case MotionEvent.ACTION_DOWN: {
-                mTouchMode = SINGLE_OPERATION;
-                mSavedMatrix.set(mDrawMatrix);
-                mLastX = (int) ev.getX();
-                mLastY = (int) ev.getY();
+            case MotionEvent.ACTION_DOWN:
+                mZoomPan.onDown(ev.getX(), ev.getY());
                 break;
-            }
-            case MotionEvent.ACTION_POINTER_DOWN: {
-                mTouchMode = COUPLE_OPERATION;
-                mLastDist = spacing(ev);
-                mSavedMatrix.set(mDrawMatrix);
-                setMidPoint(ev);
+            case MotionEvent.ACTION_POINTER_DOWN:
+                mZoomPan.onPointerDown(ev.getX(0), ev.getY(0), ev.getX(1), ev.getY(1));
                 break;
-            }
-
             case MotionEvent.ACTION_MOVE: {
-                if (mTouchMode == COUPLE_OPERATION) {
-                    mTempMatrix.set(mSavedMatrix);
-                    float newDist = spacing(ev);
-                    float scale = newDist / mLastDist;
-                    mTempMatrix.postScale(scale, scale, mMidPoint.x, mMidPoint.y);
-                    mDrawMatrix.set(mTempMatrix);
-                    this.setImageMatrix(mDrawMatrix);
-                    // 缩放到极限时设置恢复scale
-                    boolean isOut = mIsVerticalFit
-                            ? getMatrixRectF().width() / getLayoutParams().width > THE_MAX_SCALE
-                            : getMatrixRectF().height() / getLayoutParams().height > THE_MAX_SCALE;
-                    if (scale >= 1 && isOut) {
-                        if (mIsVerticalFit) {
-                            // 竖直fit取宽
-                            mResetScale = THE_MAX_SCALE * getLayoutParams().width / getMatrixRectF().width();
-                        } else {
-                            // 水平fit取高
-                            mResetScale = THE_MAX_SCALE * getLayoutParams().height / getMatrixRectF().height();
-                        }
-                    } else if (scale <= 1 && (int) getMatrixRectF().width() <= getLayoutParams().width
-                            && (int) getMatrixRectF().height() <= getLayoutParams().height) {
-                        // 保证当图片全部缩小在显示范围内便不能再缩小
-                        if (mIsVerticalFit) {
-                            // 竖直取高
-                            mResetScale = getLayoutParams().height / getMatrixRectF().height();
-                        } else {
-                            // 水平取宽
-                            mResetScale = getLayoutParams().width / getMatrixRectF().width();
-                        }
-                    } else {
-                        mResetScale = 0;
-                    }
-
-                } else if (mTouchMode == SINGLE_OPERATION) {
-                    mTempMatrix.set(mSavedMatrix);
-                    float tx = ev.getX() - mLastX;
-                    float ty = ev.getY() - mLastY;
-                    mIsMove = true;
-                    RectF rectF = getMatrixRectF();
-                    mIsCheckRAndL = (int) rectF.width() <= getLayoutParams().width;
-                    mIsCheckBAndT = (int) rectF.height() <= getLayoutParams().height;
-                    mTempMatrix.postTranslate(tx, ty);
-                    mDrawMatrix.set(mTempMatrix);
-                    this.setImageMatrix(mDrawMatrix);
+                boolean isMulti = ev.getPointerCount() > 1;
+                if (mZoomPan.onMove(ev.getX(0), ev.getY(0), isMulti ? ev.getX(1) : 0, isMulti ? ev.getY(1) : 0)) {
+                    applyDrawMatrix();
                 }
-                checkFace();
+                onViewportChanged();
                 break;
             }
-
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_POINTER_UP:
-                if (mTouchMode == COUPLE_OPERATION) {
-                    if (mResetScale != 0) {
-                        mTempMatrix.postScale(mResetScale, mResetScale, mMidPoint.x, mMidPoint.y);
-                        mResetScale = 0;
-                    }
-                    mDrawMatrix.set(mTempMatrix);
-                    center(true, true);
-                    this.setImageMatrix(mDrawMatrix);
-                    checkFace();
+                int result = mZoomPan.onUp();
+                if (result == ZoomPanController.UP_SETTLED) {
+                    applyDrawMatrix();
+                    onViewportChanged();
                     invalidate();
-                    if (getMatrixRectF().left > 0 || getMatrixRectF().top > 0) {
-                        mTempRectF = getMatrixRectF();
-                    }
-                } else if (mTouchMode == SINGLE_OPERATION && mIsMove) {
-                    float[] dxDyBounds = checkDxDyBounds();
-                    if (dxDyBounds == null) {
-                        mTempMatrix.postTranslate(0, 0);
-                        mDrawMatrix.set(mTempMatrix);
-                        this.setImageMatrix(mDrawMatrix);
-                        checkFace();
-                    } else {
-                        setAnimation(dxDyBounds);
-                    }
+                } else if (result == ZoomPanController.UP_BOUNCE) {
+                    startBounceAnimation();
                 }
-                mIsMove = false;
-                mTouchMode = NONE_OPERATION;
                 break;
         }
         return true;
     }
 
-    /**
-     * 根据当前图片的Matrix获得图片的范围
-     * 这里获取的是当前显示的图片的大小。
-     * 图片放大后，获取的就是图片放大后的图片的大小。
-     * 图片缩小后，获取的就是图片缩小后的图片的大小。
-     *
-     * @return 缩放后的图片RectF
-     */
-    private RectF getMatrixRectF() {
-        Matrix m = mDrawMatrix;
-        RectF rect = new RectF();
-        rect.set(0, 0, mIntrinsicWidth, mIntrinsicHeight);
-        m.mapRect(rect);
-        return rect;
+    private void applyDrawMatrix() {
+        mDrawMatrix.setValues(mZoomPan.getValues());
+        setImageMatrix(mDrawMatrix);
     }
 
     /**
-     * 计算两个点击点之间的距离
-     *
-     * @return 两个点之间的距离
+     * 开始边界回弹的动画，偏移量由mZoomPan在松手时计算好
      */
-    private float spacing(MotionEvent ev) {
-        float x = ev.getX(0) - ev.getX(1);
-        float y = ev.getY(0) - ev.getY(1);
-        return (float) Math.sqrt(x * x + y * y);
+    private void startBounceAnimation() {
+        setEnabled(false);
+        if (mBounceAnimator == null) {
+            mBounceAnimator = new ValueAnimator();
+            mBounceAnimator.setInterpolator(new DecelerateInterpolator());
+            mBounceAnimator.setFloatValues(0, 1);
+            mBounceAnimator.setDuration(BORDER_BACK_DURATION);
+            mBounceAnimator.addListener(new AnimatorListenerAdapter() {
+                @Override
+                public void onAnimationEnd(Animator animation) {
+                    setEnabled(true);
+                    onViewportChanged();
+                }
+            });
+            mBounceAnimator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+                @Override
+                public void onAnimationUpdate(ValueAnimator animation) {
+                    mZoomPan.applyBounce(animation.getAnimatedFraction());
+                    applyDrawMatrix();
+                    onViewportChanged();
+                }
+            });
+        }
+        mBounceAnimator.start();
     }
 
     /**
-     * 给两个点击点之间中点设值
+     * 设置显示图对应的原图，放大后按需解码原图的分块，在setImageBitmap之后调用。
+     * 显示图的像素已经旋转过时，原图的方向和显示图不一致，不能使用
+     *
+     * @param filePath     原图路径
+     * @param sourceWidth  原图数据的宽，没有摆正
+     * @param sourceHeight 原图数据的高
+     * @param bitmapPool   分块使用的对象池
      */
-    public void setMidPoint(MotionEvent ev) {
-        float x = ev.getX(0) + ev.getX(1);
-        float y = ev.getY(0) + ev.getY(1);
-        mMidPoint.set(x / 2, y / 2);
+    public void setTileSource(String filePath, int sourceWidth, int sourceHeight, BitmapPool bitmapPool) {
+        releaseTiles();
+        Drawable drawable = getDrawable();
+        if (drawable == null || filePath == null || sourceWidth <= 0 || sourceHeight <= 0) {
+            return;
+        }
+        float sampleSize = sourceWidth * 1f / drawable.getIntrinsicWidth();
+        int levelCount = TileGrid.levelCountFor(sampleSize);
+        if (levelCount == 0) {
+            // 显示图就是原图
+            return;
+        }
+        mTileSampleSize = sampleSize;
+        mTileGrid = new TileGrid(sourceWidth, sourceHeight, TileGrid.DEFAULT_TILE_SIZE, levelCount);
+        mTileCache = TileCache.createDefault(mTileGrid, bitmapPool);
+        mTileLoader = new TileLoader(filePath, mTileGrid, mTileCache, bitmapPool, TILE_WORKER_COUNT
+                , new TileLoader.OnTileLoadedListener() {
+            @Override
+            public void onTileLoaded(int index) {
+                invalidate();
+            }
+        });
+        mVisibleTiles = new int[mTileGrid.getTileCount()];
+        mPrefetchTiles = new int[mTileGrid.getTileCount()];
+        ExifOrientation.fromUpright(mOrientation, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight()
+                , mFromUpright);
+        mLastTileCenterX = mLastTileCenterY = Float.NaN;
+        onViewportChanged();
     }
 
-
     /**
-     * 横向、纵向 图片居中
+     * 根据系统的内存等级释放分块，在onTrimMemory中调用
      */
-    protected void center(boolean horizontal, boolean vertical) {
-        RectF rect = getMatrixRectF();
-        float deltaX = 0, deltaY = 0;
-        float height = rect.height();
-        float width = rect.width();
-        if (vertical) {
-            // 图片小于屏幕大小，则居中显示，大于屏幕，如果图片上方留空则往上移，图片下方留空则往下移
-            int viewHeight = getLayoutParams().height;
-            if (height < viewHeight) {
-                deltaY = (viewHeight - height) / 2 - rect.top;
-            } else if (rect.top > 0) {
-                deltaY = -rect.top;
-            } else if (rect.bottom < viewHeight) {
-                deltaY = this.getHeight() - rect.bottom;
-            }
+    public void trimMemory(int level) {
+        if (mTileCache != null) {
+            mTileCache.trimMemory(level);
         }
-        if (horizontal) {
-            int viewWidth = getLayoutParams().width;
-            if (width < viewWidth) {
-                deltaX = (viewWidth - width) / 2 - rect.left;
-            } else if (rect.left > 0) {
-                deltaX = -rect.left;
-            } else if (rect.right < viewWidth) {
-                deltaX = viewWidth - rect.right;
-            }
+    }
+
+    private void releaseTiles() {
+        if (mTileLoader == null) {
+            return;
         }
-        mDrawMatrix.postTranslate(deltaX, deltaY);
+        mTileLoader.release();
+        mTileCache.clear();
+        mTileLoader = null;
+        mTileCache = null;
+        mTileGrid = null;
+        mTileLevel = -1;
+        mVisibleTileCount = 0;
     }
 
     /**
-     * 检测图片偏离屏幕两边的距离
-     * 然后平移，是图片边缘在屏幕边，
-     * 使图片周围没有空白
+     * 显示的范围变化后重新检查人脸和分块
      */
-    private float[] checkDxDyBounds() {
-        RectF rectF = getMatrixRectF();
-        float dx = 0.0f, dy = 0.0f;
-        /*
-         * 如果图片的左侧大于零，说明图片左侧向右
-         * 偏离了左侧屏幕，则左移偏离的距离.
-         * rectF.left的值，是基于左侧坐标计算的。
-         * 图片正常情况下，该值为0.
-         * 当图片向右侧拖动以后，该值大于0.
-         * 当图片向左侧拖动以后，该值小于0.
-         */
-        if (rectF.left > 0) {
-            dx = -rectF.left;
-            if (mIsCheckRAndL) {
-                dx = dx + mTempRectF.left;
-            }
-        }
-        /*
-         * 如果图片的右侧偏离屏幕的右侧，则
-         * 图片右移图片的宽度与图片显示的宽度的差.
-         * rectF.right的值，是基于左侧计算的，图片没有缩放旋转情况下，
-         * 该值==touchImageView.getWidth()图片的宽度。
-         * 当拖动图片以后，该值变化，等于显示的图片的宽度
-         */
-        if (rectF.right < this.getWidth()) {
-            dx = this.getWidth() - rectF.right;
-            if (mIsCheckRAndL) {
-                dx = dx - mTempRectF.left;
-            }
-        }
-        /*
-         * 当图片顶部大于0，说明图片向下偏离屏幕顶部，
-         * 则图片向上回弹偏离的距离。
-         * rectF.top的值基于顶部坐标，
-         * 图片正常情况下，该值=0.
-         */
-        if (rectF.top > 0) {
-            dy = -rectF.top;
-            if (mIsCheckBAndT) {
-                dy = dy + mTempRectF.top;
-            }
-        }
-        /*
-         * 当图片底部小于图片高度时，图片偏离屏幕底部
-         * 则图片回弹图片的高度与显示的图片的高度之差。
-         * rectF.bottom的值，基于顶部坐标。
-         * 图片正常情况下，该值=图片的高度。
-         */
-        if (rectF.bottom < this.getHeight()) {
-            dy = this.getHeight() - rectF.bottom;
-            if (mIsCheckBAndT) {
-                dy = dy - mTempRectF.top;
-            }
-        }
-        if (dx != 0 || dy != 0) {
-            return new float[]{dx, dy};
-        }
-        return null;
+    private void onViewportChanged() {
+        // view的范围反向映射到显示图中，人脸和分块都在这个范围中查询
+        FaceOverlayGeometry.viewportInImage(mZoomPan.getValues(), mZoomPan.getViewWidth(), mZoomPan.getViewHeight()
+                , mViewport);
+        checkFace();
+        checkTiles();
     }
 
     /**
-     * 设置边界回弹的动画
-     *
-     * @param bounds 需要回弹的偏移量
+     * 选择当前缩放需要的层，请求可见的块和移动方向上的块
      */
-    private void setAnimation(float[] bounds) {
-        setEnabled(false);
-        final float floatDx = bounds[0];
-        final float floatDy = bounds[1];
-        ValueAnimator animator = new ValueAnimator();
-        animator.setInterpolator(new DecelerateInterpolator());
-        animator.setFloatValues(0, 1);
-        animator.addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationEnd(Animator animation) {
-                setEnabled(true);
-                checkFace();
-            }
-        });
-        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            float lastDx = 0;
-            float lastDy = 0;
-
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                float offsetX = floatDx * animation.getAnimatedFraction() - lastDx;
-                float offsetY = floatDy * animation.getAnimatedFraction() - lastDy;
-                lastDx += offsetX;
-                lastDy += offsetY;
-                mTempMatrix.postTranslate(offsetX, offsetY);
-                mDrawMatrix.set(mTempMatrix);
-                MyImageView.this.setImageMatrix(mDrawMatrix);
-            }
-        });
-        animator.setDuration(BORDER_BACK_DURATION).start();
+    private void checkTiles() {
+        if (mTileLoader == null) return;
+        float[] values = mZoomPan.getValues();
+        // 屏幕上一个像素对应原图的像素数，手势只有等比缩放
+        mTileLevel = mTileGrid.levelFor(mTileSampleSize / Math.abs(values[FaceOverlayGeometry.MSCALE_X]));
+        if (mTileLevel < 0) {
+            mVisibleTileCount = 0;
+            return;
+        }
+        // 摆正后的可见范围换算到原图数据的坐标，方向的变换是正交的，两个对角即可确定范围
+        float x0 = ExifOrientation.mapX(mFromUpright, mViewport[0], mViewport[1]) * mTileSampleSize;
+        float y0 = ExifOrientation.mapY(mFromUpright, mViewport[0], mViewport[1]) * mTileSampleSize;
+        float x1 = ExifOrientation.mapX(mFromUpright, mViewport[2], mViewport[3]) * mTileSampleSize;
+        float y1 = ExifOrientation.mapY(mFromUpright, mViewport[2], mViewport[3]) * mTileSampleSize;
+        float left = Math.min(x0, x1), top = Math.min(y0, y1), right = Math.max(x0, x1), bottom = Math.max(y0, y1);
+        mVisibleTileCount = mTileGrid.queryTiles(mTileLevel, left, top, right, bottom, mVisibleTiles, 0);
+        float centerX = (left + right) / 2, centerY = (top + bottom) / 2;
+        int prefetchCount = 0;
+        if (!Float.isNaN(mLastTileCenterX)) {
+            prefetchCount = mTileGrid.queryPrefetch(mTileLevel, left, top, right, bottom, centerX - mLastTileCenterX
+                    , centerY - mLastTileCenterY, mPrefetchTiles);
+        }
+        mLastTileCenterX = centerX;
+        mLastTileCenterY = centerY;
+        mTileLoader.update(mVisibleTiles, mVisibleTileCount, mPrefetchTiles, prefetchCount);
     }
 
     /**
      * 检查是否有人脸超出显示范围
      */
     private void checkFace() {
-        for (int i = 0; i < mFaceCount; i++) {
-            if (mFaces[i] == null) continue;
-            mFaces[i].getMidPoint(mPoint);
-            RectF rectF = new RectF(0, 0, mPoint.x * mAdjustScale, mPoint.y * mAdjustScale);
-            mDrawMatrix.mapRect(rectF);
-            float eyesDistance = mFaces[i].eyesDistance() * mAdjustScale * getMatrixRectF().width() / mIntrinsicWidth;
-            float distanceH = rectF.left + rectF.width();
-            float distanceV = rectF.top + rectF.height();
-            mIsNeedDraws[i] = distanceH > getLayoutParams().width - eyesDistance                    // 右边超出
-                    || distanceH < eyesDistance                                                     // 左边超出
-                    || distanceV > getLayoutParams().height - eyesDistance * FACE_VERTICAL          // 下边超出
-                    || distanceV < eyesDistance * FACE_VERTICAL;                                    // 上边超出
+        if (mFaceCount == 0) return;
+        // 超出显示范围的脸就是跨过mViewport边界的框，完全看不到的脸不需要绘制
+        int count = mFaceIndex.queryEdges(mViewport[0], mViewport[1], mViewport[2], mViewport[3], mQueryFaces);
+        if (isSameFaces(mQueryFaces, count, mDrawFaces, mDrawFaceCount)) {
+            return;
+        }
+        // 需要绘制的脸变化时才重新复制框的边
+        int[] faces = mDrawFaces;
+        mDrawFaces = mQueryFaces;
+        mQueryFaces = faces;
+        mDrawFaceCount = count;
+        mDrawLineFloats = mFaceIndex.copyLines(mDrawFaces, mDrawFaceCount, mDrawLines);
+    }
+
+    private static boolean isSameFaces(int[] faces, int count, int[] otherFaces, int otherCount) {
+        if (count != otherCount) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (faces[i] != otherFaces[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * CenterCrop，照搬源码
+     * 在显示图上面绘制已经解码的分块，坐标为图片数据的坐标，和显示图一样经过方向的Matrix。
+     * 还没有解码的块显示下面的显示图，分块和人脸框使用同一个Matrix，因此切换层时人脸框的位置不变
      */
-    private void centerCropImage() {
-        int dwidth = mIntrinsicWidth;
-        int dheight = mIntrinsicHeight;
-        int vwidth = getLayoutParams().width;
-        int vheight = getLayoutParams().height;
-        float dx = 0, dy = 0, scaleFactor;
-        if (dwidth * vheight > vwidth * dheight) {
-            scaleFactor = (float) vheight / (float) dheight;
-            dx = (vwidth - dwidth * scaleFactor) * 0.5f;
-        } else {
-            scaleFactor = (float) vwidth / (float) dwidth;
-            dy = (vheight - dheight * scaleFactor) * 0.5f;
+    private void drawTiles(Canvas canvas) {
+        for (int i = 0; i < mVisibleTileCount; i++) {
+            int index = mVisibleTiles[i];
+            Bitmap tile = mTileCache.get(index);
+            if (tile == null) continue;
+            mTileGrid.getTileRect(index, mTileRect);
+            mTileDst.set(mTileRect[0] / mTileSampleSize, mTileRect[1] / mTileSampleSize
+                    , mTileRect[2] / mTileSampleSize, mTileRect[3] / mTileSampleSize);
+            canvas.drawBitmap(tile, null, mTileDst, mTilePaint);
         }
-        mDrawMatrix.setScale(scaleFactor, scaleFactor);
-        mDrawMatrix.postTranslate(Math.round(dx), Math.round(dy));
     }
 
     /**
      * 绘制超过显示区域的人脸矩形
      */
     private void drawFace(Canvas canvas) {
-        for (int i = 0; i < mFaceCount; i++) {
-            if (mFaces[i] != null && mIsNeedDraws[i]) {
-                mFaces[i].getMidPoint(mPoint);
-                float distance = mFaces[i].eyesDistance() * mAdjustScale;
-                RectF rectF = new RectF(mPoint.x * mAdjustScale - distance
-                        , mPoint.y * mAdjustScale - FACE_VERTICAL * distance
-                        , mPoint.x * mAdjustScale + distance
-                        , mPoint.y * mAdjustScale + FACE_VERTICAL * distance);
-                canvas.drawRect(rectF, mPaint);
-            }
+        if (mDrawLineFloats > 0) {
+            canvas.drawLines(mDrawLines, 0, mDrawLineFloats, mPaint);
         }
     }
 
@@ -426,12 +462,43 @@ public class MyImageView extends ImageView {
     public void onDraw(Canvas canvas) {
         final Drawable drawable = getDrawable();
         if (drawable != null) {
+            long start = Metrics.start();
             canvas.save();                                          // 保存画布，接下来的操作在新的图层绘制
             canvas.translate(getPaddingLeft(), getPaddingTop());
             canvas.concat(mDrawMatrix);
+            // 人脸的坐标是摆正后的，只有图片需要经过方向的Matrix
+            int saveCount = canvas.save();
+            canvas.concat(mOrientationMatrix);
             drawable.draw(canvas);
+            drawTiles(canvas);
+            canvas.restoreToCount(saveCount);
             drawFace(canvas);
             canvas.restore();                                       // 合并图层
+            Metrics.end(Metrics.STAGE_DRAW, start);
+        }
+    }
+
+    /**
+     * 图片解码前的占位图，只提供宽高，不绘制任何内容
+     */
+    private static class PlaceholderDrawable extends ColorDrawable {
+        private final int mWidth;
+        private final int mHeight;
+
+        PlaceholderDrawable(int width, int height) {
+            super(Color.TRANSPARENT);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
         }
     }
 
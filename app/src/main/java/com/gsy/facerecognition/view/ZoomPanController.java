@@ -0,0 +1,341 @@
+package com.gsy.facerecognition.view;
+
+/**
+ * MyImageView的拖动、缩放、松手回弹的计算。
+ * 手势只产生缩放和平移，所以Matrix只保存scale、transX、transY三个值，需要时按Matrix.getValues的排列输出。
+ * 所有状态都是基本类型的字段和预先分配的数组，处理触摸事件时不分配对象
+ */
+public class ZoomPanController {
+    public static final float MAX_SCALE = 3f;                       // 放大为view的最大倍数值
+    public static final int UP_NONE = 0;                            // 松手后不需要处理
+    public static final int UP_SETTLED = 1;                         // 松手后Matrix已经确定，需要重新设置
+    public static final int UP_BOUNCE = 2;                          // 松手后需要回弹动画，动画中调用applyBounce
+    private static final int SINGLE_OPERATION = 0;                  // 单指触控
+    private static final int COUPLE_OPERATION = 1;                  // 双指缩放
+    private static final int NONE_OPERATION = -1;                   // 点击事件默认值
+
+    private float mScale = 1, mTransX, mTransY;                     // 当前显示的Matrix
+    private float mSavedScale = 1, mSavedTransX, mSavedTransY;      // 按下时的Matrix
+    private float mTempScale = 1, mTempTransX, mTempTransY;         // 手势过程中计算的Matrix
+    private final float[] mValues = new float[9];                   // 当前Matrix的值
+    private final float[] mBounds = new float[FaceOverlayGeometry.RECT_SIZE];          // 图片当前的范围
+    private final float[] mCenteredBounds = new float[FaceOverlayGeometry.RECT_SIZE];  // 居中时图片的范围
+    private int mIntrinsicWidth, mIntrinsicHeight;                  // 图片摆正后的宽高
+    private int mViewWidth, mViewHeight;                            // view的宽高，取自LayoutParams
+    private int mTouchMode = NONE_OPERATION;                        // 触摸的类型，单指或者双指
+    private int mLastX, mLastY;                                     // 上一次触摸事件的位置
+    private float mMidX, mMidY;                                     // 双指的中点
+    private float mLastDist;                                        // 两个手刚按下时的距离
+    private float mResetScale;                                      // 当达到缩放极限时的矫正scale
+    private boolean mIsVerticalFit;                                 // 图片是否为竖直填充
+    private boolean mIsCheckRAndL;                                  // 标志是否需要检查左右方向居中状态
+    private boolean mIsCheckBAndT;                                  // 标志是否需要检查上下方向居中状态
+    private boolean mIsMove;                                        // 是否有位移
+    private float mBounceDx, mBounceDy;                             // 回弹的总偏移量
+    private float mBounceLastDx, mBounceLastDy;                     // 回弹已经完成的偏移量
+
+    /**
+     * 设置新的图片，按CenterCrop显示
+     *
+     * @param intrinsicWidth  图片摆正后的宽
+     * @param intrinsicHeight 图片摆正后的高
+     * @param viewWidth       view的宽
+     * @param viewHeight      view的高
+     */
+    public void setImage(int intrinsicWidth, int intrinsicHeight, int viewWidth, int viewHeight) {
+        mIntrinsicWidth = intrinsicWidth;
+        mIntrinsicHeight = intrinsicHeight;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mLastX = mLastY = 0;
+        centerCropImage();
+        updateBounds();
+        System.arraycopy(mBounds, 0, mCenteredBounds, 0, mBounds.length);
+        // 判断图片的宽高view的宽高FitCenter状态是竖直fit还是水平fit，如果不能理解可以查看IamgeView源码中的CenterCrop
+        // 和FitCenter这两个属性，其实这里是照搬源码
+        mIsVerticalFit = mIntrinsicWidth * viewHeight < viewWidth * mIntrinsicHeight;
+    }
+
+    /**
+     * 换成同一张图片另一个尺寸的bitmap，例如预览图换成显示图，图片在view中的位置和大小不变。
+     * 手势进行中或者回弹动画中也可以调用，按下时保存的Matrix一起换算
+     *
+     * @param intrinsicWidth  新的图片摆正后的宽
+     * @param intrinsicHeight 新的图片摆正后的高
+     */
+    public void rescaleImage(int intrinsicWidth, int intrinsicHeight) {
+        // 平移不变，缩放按宽的比例换算，图片的左上角和宽度都保持不变
+        float ratio = mIntrinsicWidth * 1f / intrinsicWidth;
+        mScale *= ratio;
+        mSavedScale *= ratio;
+        mTempScale *= ratio;
+        mIntrinsicWidth = intrinsicWidth;
+        mIntrinsicHeight = intrinsicHeight;
+        mIsVerticalFit = mIntrinsicWidth * mViewHeight < mViewWidth * mIntrinsicHeight;
+        updateBounds();
+    }
+
+    /**
+     * LayoutParams改变时更新view的宽高，不改变当前的Matrix
+     */
+    public void setViewSize(int viewWidth, int viewHeight) {
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+    }
+
+    public void onDown(float x, float y) {
+        mTouchMode = SINGLE_OPERATION;
+        saveMatrix();
+        mLastX = (int) x;
+        mLastY = (int) y;
+    }
+
+    public void onPointerDown(float x0, float y0, float x1, float y1) {
+        mTouchMode = COUPLE_OPERATION;
+        mLastDist = spacing(x0, y0, x1, y1);
+        saveMatrix();
+        mMidX = (x0 + x1) / 2;
+        mMidY = (y0 + y1) / 2;
+    }
+
+    /**
+     * 处理移动事件，单指时只使用第一个点
+     *
+     * @return Matrix是否改变
+     */
+    public boolean onMove(float x0, float y0, float x1, float y1) {
+        if (mTouchMode == COUPLE_OPERATION) {
+            setTempToSaved();
+            float scale = spacing(x0, y0, x1, y1) / mLastDist;
+            postScaleTemp(scale, mMidX, mMidY);
+            setDrawToTemp();
+            // 缩放到极限时设置恢复scale
+            float width = mBounds[2] - mBounds[0];
+            float height = mBounds[3] - mBounds[1];
+            boolean isOut = mIsVerticalFit ? width / mViewWidth > MAX_SCALE : height / mViewHeight > MAX_SCALE;
+            if (scale >= 1 && isOut) {
+                // 竖直fit取宽，水平fit取高
+                mResetScale = mIsVerticalFit ? MAX_SCALE * mViewWidth / width : MAX_SCALE * mViewHeight / height;
+            } else if (scale <= 1 && (int) width <= mViewWidth && (int) height <= mViewHeight) {
+                // 保证当图片全部缩小在显示范围内便不能再缩小，竖直取高，水平取宽
+                mResetScale = mIsVerticalFit ? mViewHeight / height : mViewWidth / width;
+            } else {
+                mResetScale = 0;
+            }
+            return true;
+        } else if (mTouchMode == SINGLE_OPERATION) {
+            setTempToSaved();
+            mIsMove = true;
+            mIsCheckRAndL = (int) (mBounds[2] - mBounds[0]) <= mViewWidth;
+            mIsCheckBAndT = (int) (mBounds[3] - mBounds[1]) <= mViewHeight;
+            mTempTransX += x0 - mLastX;
+            mTempTransY += y0 - mLastY;
+            setDrawToTemp();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 处理抬起事件
+     *
+     * @return UP_NONE、UP_SETTLED或者UP_BOUNCE
+     */
+    public int onUp() {
+        int result = UP_NONE;
+        if (mTouchMode == COUPLE_OPERATION) {
+            if (mResetScale != 0) {
+                postScaleTemp(mResetScale, mMidX, mMidY);
+                mResetScale = 0;
+            }
+            setDrawToTemp();
+            center();
+            if (mBounds[0] > 0 || mBounds[1] > 0) {
+                System.arraycopy(mBounds, 0, mCenteredBounds, 0, mBounds.length);
+            }
+            result = UP_SETTLED;
+        } else if (mTouchMode == SINGLE_OPERATION && mIsMove) {
+            if (checkDxDyBounds()) {
+                mBounceLastDx = mBounceLastDy = 0;
+                result = UP_BOUNCE;
+            } else {
+                setDrawToTemp();
+                result = UP_SETTLED;
+            }
+        }
+        mIsMove = false;
+        mTouchMode = NONE_OPERATION;
+        return result;
+    }
+
+    /**
+     * 回弹动画的一帧
+     *
+     * @param fraction 动画进度，0到1
+     */
+    public void applyBounce(float fraction) {
+        float offsetX = mBounceDx * fraction - mBounceLastDx;
+        float offsetY = mBounceDy * fraction - mBounceLastDy;
+        mBounceLastDx += offsetX;
+        mBounceLastDy += offsetY;
+        mTempTransX += offsetX;
+        mTempTransY += offsetY;
+        setDrawToTemp();
+    }
+
+    /**
+     * @return 当前Matrix的值，按Matrix.getValues的排列，调用者不能修改
+     */
+    public float[] getValues() {
+        return mValues;
+    }
+
+    /**
+     * @return 图片当前的范围{left, top, right, bottom}，调用者不能修改
+     */
+    public float[] getBounds() {
+        return mBounds;
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    /**
+     * CenterCrop，照搬源码
+     */
+    private void centerCropImage() {
+        int dwidth = mIntrinsicWidth;
+        int dheight = mIntrinsicHeight;
+        int vwidth = mViewWidth;
+        int vheight = mViewHeight;
+        float dx = 0, dy = 0, scaleFactor;
+        if (dwidth * vheight > vwidth * dheight) {
+            scaleFactor = (float) vheight / (float) dheight;
+            dx = (vwidth - dwidth * scaleFactor) * 0.5f;
+        } else {
+            scaleFactor = (float) vwidth / (float) dwidth;
+            dy = (vheight - dheight * scaleFactor) * 0.5f;
+        }
+        mScale = scaleFactor;
+        mTransX = Math.round(dx);
+        mTransY = Math.round(dy);
+    }
+
+    /**
+     * 横向、纵向 图片居中。图片小于view则居中显示，大于view时如果一边留空则往这一边移
+     */
+    private void center() {
+        float deltaX = 0, deltaY = 0;
+        float width = mBounds[2] - mBounds[0];
+        float height = mBounds[3] - mBounds[1];
+        if (height < mViewHeight) {
+            deltaY = (mViewHeight - height) / 2 - mBounds[1];
+        } else if (mBounds[1] > 0) {
+            deltaY = -mBounds[1];
+        } else if (mBounds[3] < mViewHeight) {
+            deltaY = mViewHeight - mBounds[3];
+        }
+        if (width < mViewWidth) {
+            deltaX = (mViewWidth - width) / 2 - mBounds[0];
+        } else if (mBounds[0] > 0) {
+            deltaX = -mBounds[0];
+        } else if (mBounds[2] < mViewWidth) {
+            deltaX = mViewWidth - mBounds[2];
+        }
+        mTransX += deltaX;
+        mTransY += deltaY;
+        updateBounds();
+    }
+
+    /**
+     * 检测图片偏离view边界的距离，结果保存在mBounceDx、mBounceDy，
+     * 按这个距离平移后图片周围没有空白；图片小于view的方向上回到居中时的位置
+     *
+     * @return 是否需要平移
+     */
+    private boolean checkDxDyBounds() {
+        float dx = 0.0f, dy = 0.0f;
+        // 图片左侧向右偏离了view的左侧，左移偏离的距离
+        if (mBounds[0] > 0) {
+            dx = -mBounds[0];
+            if (mIsCheckRAndL) {
+                dx = dx + mCenteredBounds[0];
+            }
+        }
+        // 图片右侧偏离了view的右侧，右移偏离的距离
+        if (mBounds[2] < mViewWidth) {
+            dx = mViewWidth - mBounds[2];
+            if (mIsCheckRAndL) {
+                dx = dx - mCenteredBounds[0];
+            }
+        }
+        // 图片顶部向下偏离了view的顶部，上移偏离的距离
+        if (mBounds[1] > 0) {
+            dy = -mBounds[1];
+            if (mIsCheckBAndT) {
+                dy = dy + mCenteredBounds[1];
+            }
+        }
+        // 图片底部偏离了view的底部，下移偏离的距离
+        if (mBounds[3] < mViewHeight) {
+            dy = mViewHeight - mBounds[3];
+            if (mIsCheckBAndT) {
+                dy = dy - mCenteredBounds[1];
+            }
+        }
+        mBounceDx = dx;
+        mBounceDy = dy;
+        return dx != 0 || dy != 0;
+    }
+
+    private static float spacing(float x0, float y0, float x1, float y1) {
+        float x = x0 - x1;
+        float y = y0 - y1;
+        return (float) Math.sqrt(x * x + y * y);
+    }
+
+    private void saveMatrix() {
+        mSavedScale = mScale;
+        mSavedTransX = mTransX;
+        mSavedTransY = mTransY;
+    }
+
+    private void setTempToSaved() {
+        mTempScale = mSavedScale;
+        mTempTransX = mSavedTransX;
+        mTempTransY = mSavedTransY;
+    }
+
+    /**
+     * 和Matrix.postScale(scale, scale, px, py)相同
+     */
+    private void postScaleTemp(float scale, float px, float py) {
+        mTempScale *= scale;
+        mTempTransX = mTempTransX * scale + px * (1 - scale);
+        mTempTransY = mTempTransY * scale + py * (1 - scale);
+    }
+
+    private void setDrawToTemp() {
+        mScale = mTempScale;
+        mTransX = mTempTransX;
+        mTransY = mTempTransY;
+        updateBounds();
+    }
+
+    /**
+     * Matrix改变后更新mValues和mBounds，每次改变只计算一次
+     */
+    private void updateBounds() {
+        mValues[FaceOverlayGeometry.MSCALE_X] = mScale;
+        mValues[FaceOverlayGeometry.MSCALE_Y] = mScale;
+        mValues[FaceOverlayGeometry.MTRANS_X] = mTransX;
+        mValues[FaceOverlayGeometry.MTRANS_Y] = mTransY;
+        mValues[8] = 1;
+        FaceOverlayGeometry.getMatrixRect(mValues, mIntrinsicWidth, mIntrinsicHeight, mBounds);
+    }
+}
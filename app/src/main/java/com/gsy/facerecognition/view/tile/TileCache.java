@@ -0,0 +1,141 @@
+package com.gsy.facerecognition.view.tile;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import com.gsy.facerecognition.utils.BitmapPool;
+
+/**
+ * 分块的内存缓存，按块的序号保存在数组中，总字节数有上限，超出时淘汰最久没有绘制的块，淘汰的bitmap归还到对象池。
+ * 绘制中的块不能在别的线程被淘汰，因此只在主线程使用，解码线程把结果post到主线程后再放入
+ */
+public class TileCache {
+    private final BitmapPool mBitmapPool;
+    private final long mMaxBytes;
+    private final Bitmap[] mTiles;                                  // 下标为TileGrid中块的序号
+    private final long[] mLastUse;                                  // 每块最近一次使用的时间，越大越新
+    private long mClock;
+    private long mSize;                                             // 缓存中bitmap的总字节数
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * 按进程最大内存的1/16作为上限
+     */
+    public static TileCache createDefault(TileGrid grid, BitmapPool bitmapPool) {
+        return new TileCache(grid.getTileCount(), Runtime.getRuntime().maxMemory() / 16, bitmapPool);
+    }
+
+    /**
+     * @param tileCount  总块数，即TileGrid.getTileCount
+     * @param maxBytes   字节上限
+     * @param bitmapPool 淘汰的bitmap归还到这里
+     */
+    public TileCache(int tileCount, long maxBytes, BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+        mMaxBytes = maxBytes;
+        mTiles = new Bitmap[tileCount];
+        mLastUse = new long[tileCount];
+    }
+
+    public boolean contains(int index) {
+        return mTiles[index] != null;
+    }
+
+    /**
+     * 获取一块用来绘制，同时更新使用时间
+     *
+     * @return 块的bitmap，没有时为null
+     */
+    public Bitmap get(int index) {
+        Bitmap tile = mTiles[index];
+        if (tile == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mLastUse[index] = ++mClock;
+        return tile;
+    }
+
+    /**
+     * 放入一块，超出上限时淘汰最久没有使用的块，刚放入的块最后淘汰
+     */
+    public void put(int index, Bitmap tile) {
+        remove(index);
+        mTiles[index] = tile;
+        mLastUse[index] = ++mClock;
+        mSize += BitmapPool.byteCountOf(tile);
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * 根据系统的内存等级缩小缓存，在onTrimMemory中调用
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    /**
+     * 清空缓存，所有bitmap归还到对象池
+     */
+    public void clear() {
+        for (int i = 0; i < mTiles.length; i++) {
+            remove(i);
+        }
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "TileCache{size=" + mSize + "/" + mMaxBytes + ", hit=" + mHitCount + ", miss=" + mMissCount
+                + ", eviction=" + mEvictionCount + '}';
+    }
+
+    private void remove(int index) {
+        Bitmap tile = mTiles[index];
+        if (tile == null) {
+            return;
+        }
+        mTiles[index] = null;
+        mSize -= BitmapPool.byteCountOf(tile);
+        mBitmapPool.put(tile);
+    }
+
+    private void trimToSize(long maxBytes) {
+        // 块的总数只有几百，直接遍历找最久没有使用的块
+        while (mSize > maxBytes) {
+            int oldest = -1;
+            for (int i = 0; i < mTiles.length; i++) {
+                if (mTiles[i] != null && (oldest < 0 || mLastUse[i] < mLastUse[oldest])) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                return;
+            }
+            remove(oldest);
+            mEvictionCount++;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.gsy.facerecognition.view.tile;
+
+/**
+ * 放大显示时的分块金字塔。
+ * 第level层的每块解码后为tileSize大小，对应原图中tileSize << level的区域，即inSampleSize为1 << level，
+ * 只保留比显示图更清晰的几层。所有层的块统一编号，序号可以直接作为数组的下标，查询时不分配对象。
+ * 坐标都是图片数据(没有摆正)中的像素坐标
+ */
+public class TileGrid {
+    public static final int DEFAULT_TILE_SIZE = 256;
+    private static final float PREFETCH_RATIO = 0.5f;               // 预取移动方向上半个可见范围
+
+    private final int mWidth, mHeight;                              // 原图的宽高
+    private final int mTileSize;
+    private final int mLevelCount;
+    private final int[] mColumns;                                   // 每层的列数
+    private final int[] mRows;                                      // 每层的行数
+    private final int[] mOffsets;                                   // 每层第一块的序号
+    private final int mTileCount;
+
+    /**
+     * @param width      原图的宽
+     * @param height     原图的高
+     * @param tileSize   每块解码后的宽高
+     * @param levelCount 层数，由levelCountFor计算
+     */
+    public TileGrid(int width, int height, int tileSize, int levelCount) {
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mLevelCount = levelCount;
+        mColumns = new int[levelCount];
+        mRows = new int[levelCount];
+        mOffsets = new int[levelCount];
+        int count = 0;
+        for (int level = 0; level < levelCount; level++) {
+            int span = tileSize << level;
+            mColumns[level] = (width + span - 1) / span;
+            mRows[level] = (height + span - 1) / span;
+            mOffsets[level] = count;
+            count += mColumns[level] * mRows[level];
+        }
+        mTileCount = count;
+    }
+
+    /**
+     * 比显示图更清晰的层数
+     *
+     * @param displaySampleSize 显示图的缩小倍数，即原图的宽 / 显示图的宽，可以不是整数
+     * @return 层数，显示图就是原图时为0
+     */
+    public static int levelCountFor(float displaySampleSize) {
+        int count = 0;
+        while ((1 << count) < displaySampleSize && count < 30) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 计算当前缩放需要的层，解码后的一个像素不超过屏幕上的一个像素
+     *
+     * @param sourcePerScreen 屏幕上一个像素对应原图中的像素数
+     * @return 层，显示图已经足够清晰时为-1
+     */
+    public int levelFor(float sourcePerScreen) {
+        int level = 0;
+        while ((2 << level) <= sourcePerScreen && level < 30) {
+            level++;
+        }
+        return level < mLevelCount ? level : -1;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    /**
+     * @return 所有层的总块数，块的序号小于这个值
+     */
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    public int getTileIndex(int level, int column, int row) {
+        return mOffsets[level] + row * mColumns[level] + column;
+    }
+
+    public int getLevel(int index) {
+        int level = mLevelCount - 1;
+        while (level > 0 && mOffsets[level] > index) {
+            level--;
+        }
+        return level;
+    }
+
+    /**
+     * @return 块的inSampleSize
+     */
+    public int getSampleSize(int index) {
+        return 1 << getLevel(index);
+    }
+
+    /**
+     * 块在原图中的范围，最后一行和一列的块被原图的边缘截断
+     *
+     * @param index 块的序号
+     * @param out   输出{left, top, right, bottom}
+     */
+    public void getTileRect(int index, int[] out) {
+        int level = getLevel(index);
+        int local = index - mOffsets[level];
+        int span = mTileSize << level;
+        int left = local % mColumns[level] * span;
+        int top = local / mColumns[level] * span;
+        out[0] = left;
+        out[1] = top;
+        out[2] = Math.min(left + span, mWidth);
+        out[3] = Math.min(top + span, mHeight);
+    }
+
+    /**
+     * 查询和矩形相交的块，按行的顺序输出
+     *
+     * @param level  层
+     * @param left   矩形，原图的坐标
+     * @param top    矩形
+     * @param right  矩形
+     * @param bottom 矩形
+     * @param out    输出块的序号
+     * @param offset 从out的这个位置开始输出
+     * @return 输出的块数
+     */
+    public int queryTiles(int level, float left, float top, float right, float bottom, int[] out, int offset) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, mWidth);
+        bottom = Math.min(bottom, mHeight);
+        if (left >= right || top >= bottom) {
+            return 0;
+        }
+        int span = mTileSize << level;
+        // 右边和下边正好在块的边界上时不包含下一块
+        int firstColumn = (int) (left / span);
+        int lastColumn = Math.min(mColumns[level] - 1, (int) Math.ceil(right / span) - 1);
+        int firstRow = (int) (top / span);
+        int lastRow = Math.min(mRows[level] - 1, (int) Math.ceil(bottom / span) - 1);
+        int count = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                out[offset + count++] = getTileIndex(level, column, row);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 查询移动方向上即将可见的块：矩形在移动方向上外侧PREFETCH_RATIO宽或高的一条。
+     * 和可见矩形共用的一行或一列也会输出，调用者跳过已经请求过的块即可
+     *
+     * @param level  层
+     * @param left   当前可见的矩形，原图的坐标
+     * @param top    矩形
+     * @param right  矩形
+     * @param bottom 矩形
+     * @param dx     最近一次的水平移动，图片向左移动时(看到右边的内容)为正
+     * @param dy     最近一次的竖直移动
+     * @param out    输出块的序号
+     * @return 输出的块数，没有移动时为0
+     */
+    public int queryPrefetch(int level, float left, float top, float right, float bottom, float dx, float dy
+            , int[] out) {
+        float width = (right - left) * PREFETCH_RATIO;
+        float height = (bottom - top) * PREFETCH_RATIO;
+        int count = 0;
+        if (dx > 0) {
+            count += queryTiles(level, right, top, right + width, bottom, out, count);
+        } else if (dx < 0) {
+            count += queryTiles(level, left - width, top, left, bottom, out, count);
+        }
+        if (dy > 0) {
+            count += queryTiles(level, left, bottom, right, bottom + height, out, count);
+        } else if (dy < 0) {
+            count += queryTiles(level, left, top - height, right, top, out, count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,221 @@
+package com.gsy.facerecognition.view.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.gsy.facerecognition.metrics.Metrics;
+import com.gsy.facerecognition.utils.BitmapPool;
+import com.gsy.facerecognition.utils.BitmapUtils;
+import com.gsy.facerecognition.utils.PixelMemoryGovernor;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 分块的后台解码。每个线程借用一个自己的BitmapRegionDecoder，解码结果post到主线程放入TileCache。
+ * 每次更新可见范围时先请求可见的块，再请求移动方向上预取的块，线程池按提交顺序执行；
+ * 连续几次更新都没有再请求的块已经移出了可见范围，轮到它时直接跳过。
+ * 除了解码线程中的run，其他方法都只在主线程调用
+ */
+public class TileLoader {
+    private static final String TAG = "TileLoader";
+    private static final int STALE_GENERATIONS = 4;                 // 超过这么多次更新没有请求的块不再解码
+
+    /**
+     * 解码完成的回调，在主线程调用，块已经放入缓存
+     */
+    public interface OnTileLoadedListener {
+        void onTileLoaded(int index);
+    }
+
+    private final String mFilePath;
+    private final TileGrid mGrid;
+    private final TileCache mCache;
+    private final BitmapPool mBitmapPool;
+    private final OnTileLoadedListener mListener;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayBlockingQueue<BitmapRegionDecoder> mDecoders;    // 空闲的解码器，最多每个线程一个
+    private final boolean[] mIsQueued;                              // 已经提交还没有完成的块
+    private final AtomicIntegerArray mRequestGenerations;           // 每块最近一次被请求时的mGeneration
+    private volatile int mGeneration;
+    private volatile boolean mIsReleased;
+    private volatile boolean mIsFailed;                             // 打开解码器失败，不再请求
+
+    /**
+     * @param filePath    图片路径
+     * @param grid        分块金字塔，原图的宽高必须和文件一致
+     * @param cache       解码结果放入这里
+     * @param bitmapPool  解码使用的对象池
+     * @param workerCount 解码线程数
+     * @param listener    解码完成的回调
+     */
+    public TileLoader(String filePath, TileGrid grid, TileCache cache, BitmapPool bitmapPool, int workerCount
+            , OnTileLoadedListener listener) {
+        mFilePath = filePath;
+        mGrid = grid;
+        mCache = cache;
+        mBitmapPool = bitmapPool;
+        mListener = listener;
+        mIsQueued = new boolean[grid.getTileCount()];
+        mRequestGenerations = new AtomicIntegerArray(grid.getTileCount());
+        workerCount = Math.max(1, workerCount);
+        mDecoders = new ArrayBlockingQueue<BitmapRegionDecoder>(workerCount);
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 更新需要的块，缓存中已有的和正在解码的块不会重复提交
+     *
+     * @param visible       可见的块，先提交
+     * @param visibleCount  可见的块数
+     * @param prefetch      预取的块
+     * @param prefetchCount 预取的块数
+     */
+    public void update(int[] visible, int visibleCount, int[] prefetch, int prefetchCount) {
+        if (mIsReleased || mIsFailed) {
+            return;
+        }
+        int generation = ++mGeneration;
+        for (int i = 0; i < visibleCount; i++) {
+            request(visible[i], generation);
+        }
+        for (int i = 0; i < prefetchCount; i++) {
+            request(prefetch[i], generation);
+        }
+    }
+
+    /**
+     * 释放线程池和解码器，没有完成的块不再放入缓存，缓存由调用者清空
+     */
+    public void release() {
+        mIsReleased = true;
+        mExecutor.shutdownNow();
+        synchronized (mDecoders) {
+            BitmapRegionDecoder decoder;
+            while ((decoder = mDecoders.poll()) != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private void request(int index, int generation) {
+        mRequestGenerations.set(index, generation);
+        if (mIsQueued[index] || mCache.contains(index)) {
+            return;
+        }
+        mIsQueued[index] = true;
+        mExecutor.execute(new DecodeTask(index));
+    }
+
+    private boolean isStale(int index) {
+        return mGeneration - mRequestGenerations.get(index) > STALE_GENERATIONS;
+    }
+
+    /**
+     * 借用一个解码器，没有空闲的时新建一个。同时执行的任务不超过线程数，因此解码器也不超过线程数
+     */
+    private BitmapRegionDecoder obtainDecoder() throws IOException {
+        BitmapRegionDecoder decoder = mDecoders.poll();
+        return decoder != null ? decoder : BitmapRegionDecoder.newInstance(mFilePath, false);
+    }
+
+    private void recycleDecoder(BitmapRegionDecoder decoder) {
+        synchronized (mDecoders) {
+            if (mIsReleased || !mDecoders.offer(decoder)) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private Bitmap decode(int index) throws IOException {
+        int[] tileRect = new int[4];
+        mGrid.getTileRect(index, tileRect);
+        Rect rect = new Rect(tileRect[0], tileRect[1], tileRect[2], tileRect[3]);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = mGrid.getSampleSize(index);
+        // 块的大小和格式固定，预算不足时只等待
+        PixelMemoryGovernor.Grant grant = BitmapUtils.reserveDecode(rect.width(), rect.height()
+                , options.inSampleSize, 4, PixelMemoryGovernor.DEGRADE_NONE);
+        if (grant == null) {
+            return null;
+        }
+        BitmapRegionDecoder decoder = null;
+        long start = Metrics.start();
+        try {
+            decoder = obtainDecoder();
+            Bitmap tile = mBitmapPool.decodeRegion(decoder, rect, options);
+            BitmapUtils.recordBitmapBytes(Metrics.STAGE_TILE_DECODE, tile);
+            return tile;
+        } finally {
+            Metrics.end(Metrics.STAGE_TILE_DECODE, start);
+            if (decoder != null) {
+                recycleDecoder(decoder);
+            }
+            BitmapUtils.releaseDecode(grant);
+        }
+    }
+
+    private class DecodeTask implements Runnable {
+        private final int mIndex;
+
+        DecodeTask(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            Bitmap tile = null;
+            if (!mIsReleased && !isStale(mIndex)) {
+                try {
+                    tile = decode(mIndex);
+                } catch (IOException e) {
+                    Log.w(TAG, "open region decoder failed " + mFilePath, e);
+                    mIsFailed = true;
+                }
+            }
+            final Bitmap result = tile;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mIsQueued[mIndex] = false;
+                    if (result == null) {
+                        return;
+                    }
+                    if (mIsReleased) {
+                        mBitmapPool.put(result);
+                        return;
+                    }
+                    mCache.put(mIndex, result);
+                    mListener.onTileLoaded(mIndex);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.gsy.facerecognition;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 统计当前线程在start之后分配的字节数，用来验证热路径不分配对象。
+ * JVM不支持按线程统计分配时用Assume跳过测试，而不是当作通过
+ */
+public class AllocationCounter {
+    private static final long TOLERANCE_BYTES = 1024;              // getThreadAllocatedBytes本身可能分配少量对象
+
+    private final com.sun.management.ThreadMXBean mBean;
+    private final long mThreadId;
+    private long mStartBytes;
+
+    public AllocationCounter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("per-thread allocation counting not available"
+                , bean instanceof com.sun.management.ThreadMXBean);
+        mBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue("per-thread allocation counting not enabled"
+                , mBean.isThreadAllocatedMemorySupported() && mBean.isThreadAllocatedMemoryEnabled());
+        mThreadId = Thread.currentThread().getId();
+    }
+
+    /**
+     * 开始统计，调用之前先预热，避免把解释执行和类加载的分配算进去
+     */
+    public void start() {
+        mStartBytes = mBean.getThreadAllocatedBytes(mThreadId);
+    }
+
+    /**
+     * 断言start之后几乎没有分配，少量的分配平均到每次调用为0
+     *
+     * @param message 失败时的说明
+     */
+    public void assertNoAllocation(String message) {
+        long allocated = mBean.getThreadAllocatedBytes(mThreadId) - mStartBytes;
+        assertTrue(message + ": allocated " + allocated + " bytes", allocated < TOLERANCE_BYTES);
+    }
+}
@@ -0,0 +1,76 @@
+package com.gsy.facerecognition.detect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FaceMerger和TiledFaceDetector中分块计算的本地单元测试
+ */
+public class FaceMergerTest {
+
+    @Test
+    public void duplicatesAtSeamKeepHighestConfidence() {
+        FaceInfo left = new FaceInfo(100, 100, 20, 0.5f);
+        FaceInfo right = new FaceInfo(103, 98, 21, 0.6f);
+        FaceInfo other = new FaceInfo(300, 100, 20, 0.4f);
+        FaceInfo[] merged = new FaceMerger().merge(Arrays.asList(left, right, other));
+        assertEquals(2, merged.length);
+        assertSame(right, merged[0]);
+        assertSame(other, merged[1]);
+    }
+
+    @Test
+    public void smallFaceInsideCoarseFaceIsDropped() {
+        // 粗识别的大脸和块中只识别出一部分的小脸，交并比不高，但小脸几乎完全在大脸内
+        FaceInfo coarse = new FaceInfo(500, 500, 100, 0.7f);
+        FaceInfo partial = new FaceInfo(520, 480, 30, 0.5f);
+        FaceInfo[] merged = new FaceMerger().merge(Arrays.asList(partial, coarse));
+        assertEquals(1, merged.length);
+        assertSame(coarse, merged[0]);
+    }
+
+    @Test
+    public void separateFacesAreKept() {
+        List<FaceInfo> faces = new ArrayList<FaceInfo>();
+        for (int i = 0; i < 10; i++) {
+            faces.add(new FaceInfo(50 + i * 45, 100, 20, 0.5f));
+        }
+        assertEquals(10, new FaceMerger().merge(faces).length);
+    }
+
+    @Test
+    public void tilesCoverImageWithOverlap() {
+        int length = 7999;
+        int tileLength = 2000;
+        int overlap = 500;
+        int[] origins = TiledFaceDetector.computeTileOrigins(length, tileLength, overlap);
+        assertEquals(0, origins[0]);
+        assertEquals(length - tileLength, origins[origins.length - 1]);
+        for (int i = 1; i < origins.length; i++) {
+            assertTrue(origins[i - 1] + tileLength - origins[i] >= overlap);
+        }
+        assertArrayEquals(new int[]{0}, TiledFaceDetector.computeTileOrigins(800, 1000, 250));
+        assertArrayEquals(new int[]{0}, TiledFaceDetector.computeTileOrigins(1000, 1000, 250));
+    }
+
+    @Test
+    public void tileSampleSizeLimitsTileCount() {
+        assertEquals(1, TiledFaceDetector.computeTileSampleSize(4000, 1000));
+        assertEquals(2, TiledFaceDetector.computeTileSampleSize(8000, 1000));
+        assertEquals(3, TiledFaceDetector.computeTileSampleSize(8001, 1000));
+    }
+
+    @Test
+    public void tileFacesMapToSourceCoordinates() {
+        List<FaceInfo> out = new ArrayList<FaceInfo>();
+        TiledFaceDetector.toSource(new FaceInfo[]{new FaceInfo(10, 20, 5, 0.5f)}, null, 2, 2, 1000, 500, out);
+        assertEquals(1020, out.get(0).getMidX(), 0);
+        assertEquals(540, out.get(0).getMidY(), 0);
+        assertEquals(10, out.get(0).eyesDistance(), 0);
+    }
+}
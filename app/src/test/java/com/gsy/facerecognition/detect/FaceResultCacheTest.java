@@ -0,0 +1,113 @@
+package com.gsy.facerecognition.detect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * FaceResultCache的本地单元测试
+ */
+public class FaceResultCacheTest {
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("face_cache", "");
+        assertTrue(mCacheDir.delete());
+        assertTrue(mCacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void putAndReopen() throws Exception {
+        FaceResultCache cache = new FaceResultCache(mCacheDir);
+        cache.put("a", record(2));
+        cache.put("b", record(0));
+
+        FaceResultCache reopened = new FaceResultCache(mCacheDir);
+        assertEquals(2, reopened.size());
+        FaceResultCache.Record record = reopened.get("a");
+        assertNotNull(record);
+        assertEquals(1000, record.getWidth());
+        assertEquals(750, record.getHeight());
+        assertEquals(2, record.getFaces().length);
+        assertEquals(101f, record.getFaces()[1].getMidX(), 0f);
+        assertEquals(0, reopened.get("b").getFaces().length);
+    }
+
+    @Test
+    public void truncatedTailIsDropped() throws Exception {
+        FaceResultCache cache = new FaceResultCache(mCacheDir);
+        cache.put("a", record(1));
+        cache.put("b", record(3));
+        // 模拟写最后一条记录时进程被杀
+        File journal = new File(mCacheDir, "face_results.journal");
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+
+        FaceResultCache reopened = new FaceResultCache(mCacheDir);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.get("a"));
+        assertNull(reopened.get("b"));
+        // 截断后可以继续追加
+        reopened.put("c", record(1));
+        assertEquals(2, new FaceResultCache(mCacheDir).size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        FaceResultCache cache = new FaceResultCache(mCacheDir, 2, 1024 * 1024);
+        cache.put("a", record(1));
+        cache.put("b", record(1));
+        cache.get("a");
+        cache.put("c", record(1));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        FaceResultCache reopened = new FaceResultCache(mCacheDir, 2, 1024 * 1024);
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("b"));
+    }
+
+    @Test
+    public void accessOrderSurvivesRewrite() throws Exception {
+        FaceResultCache cache = new FaceResultCache(mCacheDir, 3, 1024 * 1024);
+        cache.put("a", record(1));
+        cache.put("b", record(1));
+        cache.put("c", record(1));
+        cache.get("a");
+        // 淘汰b并按访问顺序重写：c、a、d
+        cache.put("d", record(1));
+
+        FaceResultCache reopened = new FaceResultCache(mCacheDir, 3, 1024 * 1024);
+        reopened.put("e", record(1));
+        assertNull(reopened.get("c"));
+        assertNotNull(reopened.get("a"));
+        assertNotNull(reopened.get("d"));
+    }
+
+    private static FaceResultCache.Record record(int faceCount) {
+        FaceInfo[] faces = new FaceInfo[faceCount];
+        for (int i = 0; i < faceCount; i++) {
+            faces[i] = new FaceInfo(100 + i, 200 + i, 30, 0.5f);
+        }
+        return new FaceResultCache.Record(1000, 750, faces);
+    }
+}
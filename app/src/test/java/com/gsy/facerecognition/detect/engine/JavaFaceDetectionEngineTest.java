@@ -0,0 +1,167 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.detect.FaceFilter;
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 纯Java识别引擎的本地单元测试，使用手写的两级分类器和画出来的"脸"：
+ * 亮的方块中间有一条暗的眼睛带，额头和脸颊都比眼睛带亮
+ */
+public class JavaFaceDetectionEngineTest {
+    private static final String CASCADE_XML = "<?xml version=\"1.0\"?>\n"
+            + "<opencv_storage>\n"
+            + "<test_cascade type_id=\"opencv-haar-classifier\">\n"
+            + "  <size>24 24</size>\n"
+            + "  <stages>\n"
+            + stage("0 2 24 6 1.", "0 8 24 6 -1.")              // 额头比眼睛亮
+            + stage("0 14 24 6 1.", "0 8 24 6 -1.")             // 脸颊比眼睛亮
+            + "  </stages>\n"
+            + "</test_cascade>\n"
+            + "</opencv_storage>\n";
+
+    private static String stage(String rect0, String rect1) {
+        return "    <_>\n"
+                + "      <trees>\n"
+                + "        <_>\n"
+                + "          <_>\n"
+                + "            <feature>\n"
+                + "              <rects>\n"
+                + "                <_>" + rect0 + "</_>\n"
+                + "                <_>" + rect1 + "</_></rects>\n"
+                + "              <tilted>0</tilted></feature>\n"
+                + "            <threshold>0.3</threshold>\n"
+                + "            <left_val>-1.</left_val>\n"
+                + "            <right_val>1.</right_val></_></_></trees>\n"
+                + "      <stage_threshold>0.5</stage_threshold>\n"
+                + "      <parent>-1</parent>\n"
+                + "      <next>-1</next></_>\n";
+    }
+
+    private static HaarCascade loadCascade() throws IOException {
+        return HaarCascade.loadOpenCvXml(new ByteArrayInputStream(CASCADE_XML.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void loadsOpenCvXml() throws Exception {
+        HaarCascade cascade = loadCascade();
+        assertEquals(24, cascade.getWindowWidth());
+        assertEquals(24, cascade.getWindowHeight());
+        assertEquals(2, cascade.getStageCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTiltedFeatures() throws Exception {
+        HaarCascade.loadOpenCvXml(new ByteArrayInputStream(CASCADE_XML.replace("<tilted>0</tilted>"
+                , "<tilted>1</tilted>").getBytes("UTF-8")));
+    }
+
+    @Test
+    public void integralImageRectSum() {
+        int width = 7, height = 5;
+        byte[] luma = new byte[width * height];
+        new Random(1).nextBytes(luma);
+        IntegralImage image = IntegralImage.compute(luma, width, height);
+        int sum = 0;
+        long sqSum = 0;
+        for (int y = 1; y < 4; y++) {
+            for (int x = 2; x < 6; x++) {
+                int value = luma[y * width + x] & 0xFF;
+                sum += value;
+                sqSum += value * value;
+            }
+        }
+        assertEquals(sum, image.rectSum(2, 1, 4, 3));
+        assertEquals(sqSum, image.rectSqSum(2, 1, 4, 3));
+    }
+
+    @Test
+    public void detectsFacesAtDifferentScales() throws Exception {
+        int width = 360, height = 240;
+        byte[] luma = new byte[width * height];
+        Random random = new Random(42);
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (108 + random.nextInt(41));
+        }
+        drawFace(luma, width, 40, 40, 48);
+        drawFace(luma, width, 200, 60, 96);
+        JavaFaceDetectionEngine engine = new JavaFaceDetectionEngine(loadCascade(), 4, 1.2f, 3);
+        try {
+            FaceInfo[] faces = engine.detect(new ArrayPixelBuffer(width, height, luma), 10);
+            faces = FaceFilter.filterIncompleteFaces(faces, width, height);
+            assertEquals(Arrays.toString(faces), 2, faces.length);
+            Arrays.sort(faces, new Comparator<FaceInfo>() {
+                @Override
+                public int compare(FaceInfo lhs, FaceInfo rhs) {
+                    return Float.compare(lhs.getMidX(), rhs.getMidX());
+                }
+            });
+            assertFace(faces[0], 40, 40, 48);
+            assertFace(faces[1], 200, 60, 96);
+        } finally {
+            engine.release();
+        }
+    }
+
+    @Test
+    public void detectsFacesInLumaFrame() throws Exception {
+        int width = 200, height = 150;
+        byte[] luma = new byte[width * height];
+        Random random = new Random(3);
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (108 + random.nextInt(41));
+        }
+        drawFace(luma, width, 60, 40, 64);
+        PixelFramePool pool = new PixelFramePool(1024 * 1024);
+        PixelFrame frame = pool.acquire(width, height, PixelFrame.FORMAT_LUMA);
+        frame.getBuffer().put(luma);
+        JavaFaceDetectionEngine engine = new JavaFaceDetectionEngine(loadCascade(), 2, 1.2f, 3);
+        try {
+            FaceInfo[] expected = engine.detect(new ArrayPixelBuffer(width, height, luma), 10);
+            FaceInfo[] faces = engine.detect(frame, 10);
+            assertEquals(1, FaceFilter.filterIncompleteFaces(faces, width, height).length);
+            assertEquals(Arrays.toString(expected), Arrays.toString(faces));
+        } finally {
+            engine.release();
+            frame.release();
+        }
+    }
+
+    @Test
+    public void noFacesInNoise() throws Exception {
+        int width = 200, height = 150;
+        byte[] luma = new byte[width * height];
+        new Random(7).nextBytes(luma);
+        JavaFaceDetectionEngine engine = new JavaFaceDetectionEngine(loadCascade(), 2, 1.2f, 3);
+        try {
+            assertEquals(0, engine.detect(new ArrayPixelBuffer(width, height, luma), 10).length);
+        } finally {
+            engine.release();
+        }
+    }
+
+    private static void assertFace(FaceInfo face, int left, int top, int size) {
+        float tolerance = size * 0.15f;
+        assertEquals(face.toString(), left + size / 2f, face.getMidX(), tolerance);
+        assertEquals(face.toString(), top + size * 0.4f, face.getMidY(), tolerance);
+        assertEquals(face.toString(), size * 0.4f, face.eyesDistance(), tolerance);
+    }
+
+    private static void drawFace(byte[] luma, int width, int left, int top, int size) {
+        for (int y = 0; y < size; y++) {
+            boolean isEyes = y >= size * 8 / 24 && y < size * 14 / 24;
+            for (int x = 0; x < size; x++) {
+                luma[(top + y) * width + left + x] = (byte) (isEyes ? 40 : 200);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.index.PerceptualHash;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 堆外帧和对象池的本地单元测试，帧的内容由测试直接写入，和copyPixelsToBuffer的内存格式一致
+ */
+public class PixelFrameTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    @Test
+    public void poolReusesReleasedBuffers() {
+        PixelFramePool pool = new PixelFramePool(1024 * 1024);
+        PixelFrame frame = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_RGB_565);
+        assertEquals(WIDTH * HEIGHT * 2, frame.getBuffer().remaining());
+        assertTrue(frame.getBuffer().isDirect());
+        frame.release();
+        assertEquals(WIDTH * HEIGHT * 2, pool.getSize());
+
+        // 亮度帧只要一半，复用同一个buffer
+        PixelFrame luma = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_LUMA);
+        assertEquals(WIDTH * HEIGHT, luma.getBuffer().remaining());
+        assertEquals(0, pool.getSize());
+        // 超过需要的两倍不复用
+        luma.release();
+        pool.acquire(WIDTH / 4, HEIGHT / 4, PixelFrame.FORMAT_LUMA).release();
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+
+        pool.clear();
+        assertEquals(0, pool.getSize());
+        // 超过上限一半的buffer不放回池中
+        PixelFramePool small = new PixelFramePool(WIDTH * HEIGHT);
+        small.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_LUMA).release();
+        assertEquals(0, small.getSize());
+    }
+
+    @Test
+    public void releasedWhenLastUserReleases() {
+        PixelFramePool pool = new PixelFramePool(1024 * 1024);
+        PixelFrame frame = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_LUMA);
+        assertSame(frame, frame.toLuma(pool));
+        assertEquals(2, frame.getRefCount());
+        frame.release();
+        assertEquals(0, pool.getSize());
+        frame.getBuffer();
+        frame.release();
+        assertEquals(WIDTH * HEIGHT, pool.getSize());
+        try {
+            frame.getBuffer();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void convertsToLuma() {
+        PixelFramePool pool = new PixelFramePool(1024 * 1024);
+        Random random = new Random(5);
+        int[] argb = new int[WIDTH * HEIGHT];
+        int[] rgb565 = new int[WIDTH * HEIGHT];
+        PixelFrame argbFrame = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_ARGB_8888);
+        PixelFrame rgb565Frame = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_RGB_565);
+        ByteBuffer argbBuffer = argbFrame.getBuffer();
+        ByteBuffer rgb565Buffer = rgb565Frame.getBuffer();
+        for (int i = 0; i < argb.length; i++) {
+            int r = random.nextInt(256);
+            int g = random.nextInt(256);
+            int b = random.nextInt(256);
+            argb[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            argbBuffer.put((byte) r).put((byte) g).put((byte) b).put((byte) 0xFF);
+            int r5 = r >> 3, g6 = g >> 2, b5 = b >> 3;
+            rgb565[i] = 0xFF000000 | (r5 << 3 | r5 >> 2) << 16 | (g6 << 2 | g6 >> 4) << 8 | (b5 << 3 | b5 >> 2);
+            rgb565Buffer.putShort((short) (r5 << 11 | g6 << 5 | b5));
+        }
+
+        assertLuma(ArrayPixelBuffer.fromArgb(WIDTH, HEIGHT, argb).getLuma(), argbFrame, pool);
+        assertLuma(ArrayPixelBuffer.fromArgb(WIDTH, HEIGHT, rgb565).getLuma(), rgb565Frame, pool);
+        argbFrame.release();
+        rgb565Frame.release();
+    }
+
+    @Test
+    public void bufferOverloadsMatchArrays() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        new Random(6).nextBytes(luma);
+        PixelFramePool pool = new PixelFramePool(1024 * 1024);
+        PixelFrame frame = pool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_LUMA);
+        frame.getBuffer().put(luma);
+
+        assertEquals(PerceptualHash.dHash(luma, WIDTH, HEIGHT, 6)
+                , PerceptualHash.dHash(frame.getBuffer(), WIDTH, HEIGHT, 6));
+        IntegralImage expected = IntegralImage.compute(luma, WIDTH, HEIGHT);
+        IntegralImage actual = IntegralImage.compute(frame.getBuffer(), WIDTH, HEIGHT);
+        assertEquals(expected.rectSum(3, 4, 20, 10), actual.rectSum(3, 4, 20, 10));
+        assertEquals(expected.rectSqSum(0, 0, WIDTH, HEIGHT), actual.rectSqSum(0, 0, WIDTH, HEIGHT));
+        frame.release();
+    }
+
+    private static void assertLuma(byte[] expected, PixelFrame frame, PixelFramePool pool) {
+        byte[] out = new byte[WIDTH * HEIGHT];
+        frame.readLuma(out);
+        assertArrayEquals(expected, out);
+        PixelFrame luma = frame.toLuma(pool);
+        assertEquals(PixelFrame.FORMAT_LUMA, luma.getFormat());
+        luma.getBuffer().get(out);
+        assertArrayEquals(expected, out);
+        luma.release();
+    }
+}
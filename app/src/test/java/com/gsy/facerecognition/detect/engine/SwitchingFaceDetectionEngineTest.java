@@ -0,0 +1,62 @@
+package com.gsy.facerecognition.detect.engine;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SwitchingFaceDetectionEngineTest {
+
+    @Test
+    public void switchesAndReleasesReplacedEngine() {
+        FakeEngine initial = new FakeEngine("initial");
+        FakeEngine faster = new FakeEngine("faster");
+        SwitchingFaceDetectionEngine engine = new SwitchingFaceDetectionEngine(initial);
+        PixelBuffer buffer = new ArrayPixelBuffer(2, 2, new byte[4]);
+        engine.detect(buffer, 1);
+        assertEquals("initial", engine.getName());
+
+        engine.switchTo(faster);
+        engine.detect(buffer, 1);
+        assertEquals("faster", engine.getName());
+        assertEquals(1, initial.mDetectCount);
+        assertEquals(1, faster.mDetectCount);
+        assertTrue(initial.mIsReleased);
+        assertFalse(faster.mIsReleased);
+
+        engine.release();
+        assertTrue(faster.mIsReleased);
+        // 释放之后选出的引擎直接释放
+        FakeEngine late = new FakeEngine("late");
+        engine.switchTo(late);
+        assertTrue(late.mIsReleased);
+        assertEquals("faster", engine.getName());
+    }
+
+    private static class FakeEngine implements FaceDetectionEngine {
+        private final String mName;
+        int mDetectCount;
+        boolean mIsReleased;
+
+        FakeEngine(String name) {
+            mName = name;
+        }
+
+        @Override
+        public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+            mDetectCount++;
+            return new FaceInfo[0];
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void release() {
+            mIsReleased = true;
+        }
+    }
+}
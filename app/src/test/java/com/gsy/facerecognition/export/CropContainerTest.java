@@ -0,0 +1,149 @@
+package com.gsy.facerecognition.export;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CropContainerTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("crops", ".fcc");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void concurrentAppendsAreReadBackThroughIndex() throws Exception {
+        final CropContainerWriter writer = new CropContainerWriter(mFile);
+        final int threadCount = 4;
+        final int perThread = 50;
+        Thread[] threads = new Thread[threadCount];
+        final Throwable[] error = new Throwable[1];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            int face = thread * perThread + i;
+                            byte[] data = data(face);
+                            writer.append(entry(face), data, data.length);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error[0]);
+        writer.finish();
+
+        CropContainerReader reader = new CropContainerReader(mFile);
+        try {
+            assertFalse(reader.isRecovered());
+            assertAllFaces(reader, threadCount * perThread);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void unfinishedContainerIsRecoveredUpToTornRecord() throws Exception {
+        CropContainerWriter writer = new CropContainerWriter(mFile);
+        for (int face = 0; face < 10; face++) {
+            byte[] data = data(face);
+            writer.append(entry(face), data, data.length);
+        }
+        writer.close();
+        // 最后一条只写了一半
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 7);
+        file.close();
+
+        CropContainerReader reader = new CropContainerReader(mFile);
+        try {
+            assertTrue(reader.isRecovered());
+            assertAllFaces(reader, 9);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void scanStopsAtCorruptedRecord() throws Exception {
+        CropContainerWriter writer = new CropContainerWriter(mFile);
+        long[] offsets = new long[5];
+        for (int face = 0; face < offsets.length; face++) {
+            byte[] data = data(face);
+            CropEntry entry = entry(face);
+            writer.append(entry, data, data.length);
+            offsets[face] = entry.getDataOffset();
+        }
+        writer.finish();
+        // 破坏第3条记录的数据和文件尾，索引不可用，扫描时CRC不一致
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(offsets[2]);
+        file.write(~data(2)[0]);
+        file.seek(file.length() - 1);
+        file.write(0);
+        file.close();
+
+        CropContainerReader reader = new CropContainerReader(mFile);
+        try {
+            assertTrue(reader.isRecovered());
+            assertAllFaces(reader, 2);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertAllFaces(CropContainerReader reader, int count) throws Exception {
+        List<CropEntry> entries = reader.getEntries();
+        assertEquals(count, entries.size());
+        Map<Integer, CropEntry> byFace = new HashMap<Integer, CropEntry>();
+        for (CropEntry entry : entries) {
+            assertNull(byFace.put(entry.getFaceIndex(), entry));
+        }
+        for (int face = 0; face < count; face++) {
+            CropEntry entry = byFace.get(face);
+            assertNotNull(entry);
+            assertEquals("photo" + face / 3 + ".jpg", entry.getPath());
+            assertEquals(face + 10, entry.getRight());
+            assertEquals(face % 50 + 20, entry.getWidth());
+            assertTrue(Arrays.equals(data(face), reader.read(entry)));
+        }
+    }
+
+    private static CropEntry entry(int face) {
+        return new CropEntry("photo" + face / 3 + ".jpg", face, face, face + 1, face + 10, face + 12
+                , face % 50 + 20, face % 50 + 24);
+    }
+
+    private static byte[] data(int face) {
+        byte[] data = new byte[100 + face * 7 % 300];
+        new Random(face).nextBytes(data);
+        return data;
+    }
+}
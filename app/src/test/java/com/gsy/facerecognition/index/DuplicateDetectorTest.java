@@ -0,0 +1,160 @@
+package com.gsy.facerecognition.index;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.recognize.FaceLibrary;
+import com.gsy.facerecognition.recognize.LbpDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 查重的本地单元测试，哈希和宽高由测试直接给出，不解码图片
+ */
+public class DuplicateDetectorTest {
+    private static final long HASH = 0x5A5AF0F00FF0A5A5L;
+
+    private File mDir;
+    private final FakeHasher mHasher = new FakeHasher();
+    private final FakeDetector mDetector = new FakeDetector();
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("dedupe", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        mHasher.put("a.jpg", HASH, 400, 300);
+        mHasher.put("b.jpg", HASH ^ 0x11, 200, 150);                // 缩小并重新压缩的副本
+        mHasher.put("c.jpg", HASH, 300, 300);                       // 裁剪过，宽高比不同
+        mHasher.put("d.jpg", ~HASH, 400, 300);                      // 另一张图片
+        mHasher.put("e.jpg", HASH ^ 0x1, 800, 600);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void nearDuplicatesReuseRescaledFaces() throws Exception {
+        FaceIndexStore store = new FaceIndexStore(mDir);
+        DuplicateDetector detector = new DuplicateDetector(mDetector, mHasher, store, null
+                , DuplicateDetector.DEFAULT_MAX_DISTANCE);
+        FaceIndexStore.Record a = index(detector, store, "a.jpg");
+        assertEquals(HASH, a.getHash());
+        assertEquals(1, mDetector.mCalls);
+
+        FaceIndexStore.Record b = index(detector, store, "b.jpg");
+        assertEquals(1, mDetector.mCalls);
+        assertEquals(200, b.getWidth());
+        assertEquals(150, b.getHeight());
+        assertEquals(a.getFaces()[0].getMidX() / 2, b.getFaces()[0].getMidX(), 1e-4f);
+        assertEquals(a.getFaces()[0].getMidY() / 2, b.getFaces()[0].getMidY(), 1e-4f);
+        assertEquals(a.getFaces()[0].eyesDistance() / 2, b.getFaces()[0].eyesDistance(), 1e-4f);
+
+        index(detector, store, "c.jpg");
+        index(detector, store, "d.jpg");
+        assertEquals(3, mDetector.mCalls);
+        DuplicateDetector.Stats stats = detector.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        assertEquals(0.25f, stats.getHitRate(), 1e-6f);
+
+        // 哈希保存在索引中，重新打开后仍然可以复用
+        store = new FaceIndexStore(mDir);
+        detector = new DuplicateDetector(mDetector, mHasher, store, null, DuplicateDetector.DEFAULT_MAX_DISTANCE);
+        FaceIndexStore.Record e = index(detector, store, "e.jpg");
+        assertEquals(3, mDetector.mCalls);
+        assertEquals(a.getFaces()[0].getMidX() * 2, e.getFaces()[0].getMidX(), 1e-4f);
+
+        // 原图都删除后，剩下的c宽高比不同，不能复用
+        store.remove("a.jpg");
+        store.remove("b.jpg");
+        store.remove("e.jpg");
+        mHasher.put("f.jpg", HASH, 400, 300);
+        index(detector, store, "f.jpg");
+        assertEquals(4, mDetector.mCalls);
+    }
+
+    @Test
+    public void descriptorsAreCopiedFromOriginal() throws Exception {
+        FaceIndexStore store = new FaceIndexStore(mDir);
+        FaceLibrary library = new FaceLibrary(mDir);
+        try {
+            DuplicateDetector detector = new DuplicateDetector(mDetector, mHasher, store, library
+                    , DuplicateDetector.DEFAULT_MAX_DISTANCE);
+            // 原图的描述子由实际的识别保存，这里没有，不能复用
+            index(detector, store, "a.jpg");
+            index(detector, store, "b.jpg");
+            assertEquals(2, mDetector.mCalls);
+
+            byte[] descriptor = new byte[LbpDescriptor.LENGTH];
+            Arrays.fill(descriptor, (byte) 7);
+            library.replace("a.jpg", new byte[][]{descriptor});
+            index(detector, store, "e.jpg");
+            assertEquals(2, mDetector.mCalls);
+            assertArrayEquals(descriptor, library.getDescriptor("e.jpg", 0));
+        } finally {
+            library.close();
+        }
+    }
+
+    private FaceIndexStore.Record index(DuplicateDetector detector, FaceIndexStore store, String path) {
+        ImageEntry entry = new ImageEntry(path, path.hashCode() & 0xFFFF, 1000);
+        FaceIndexStore.Record record = detector.detect(entry);
+        assertNotNull(record);
+        assertTrue(store.put(path, record));
+        return record;
+    }
+
+    private static class FakeHasher implements DuplicateDetector.Hasher {
+        private final Map<String, long[]> mHashes = new HashMap<String, long[]>();
+
+        void put(String path, long hash, int width, int height) {
+            mHashes.put(path, new long[]{hash, width, height});
+        }
+
+        @Override
+        public boolean hash(String path, long[] out) {
+            long[] hash = mHashes.get(path);
+            if (hash == null) {
+                return false;
+            }
+            System.arraycopy(hash, 0, out, 0, DuplicateDetector.HASH_SIZE);
+            return true;
+        }
+    }
+
+    /**
+     * 一张图一个脸，在图片的左上部分
+     */
+    private class FakeDetector implements FaceIndexer.Detector {
+        int mCalls;
+
+        @Override
+        public FaceIndexStore.Record detect(ImageEntry entry) {
+            mCalls++;
+            long[] hash = new long[DuplicateDetector.HASH_SIZE];
+            if (!mHasher.hash(entry.getPath(), hash)) {
+                return null;
+            }
+            int width = (int) hash[1];
+            int height = (int) hash[2];
+            return new FaceIndexStore.Record(entry.getLength(), entry.getLastModified(), width, height
+                    , new FaceInfo[]{new FaceInfo(width * 0.3f, height * 0.4f, width * 0.1f, 1)});
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.gsy.facerecognition.index;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.recognize.FaceLibrary;
+import com.gsy.facerecognition.recognize.LbpDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 增量索引的本地单元测试，图库为临时目录中的普通文件，识别用文件大小生成一个假的结果
+ */
+public class FaceIndexerTest {
+    private File mImageDir;
+    private File mIndexDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mImageDir = createTempDir("images");
+        mIndexDir = createTempDir("index");
+        writeFile("a.jpg", 10);
+        writeFile("b.JPEG", 20);
+        writeFile("sub/c.png", 30);
+        writeFile("sub/deeper/d.jpg", 40);
+        writeFile("notes.txt", 50);
+        writeFile(".hidden/e.jpg", 60);
+    }
+
+    @After
+    public void tearDown() {
+        delete(mImageDir);
+        delete(mIndexDir);
+    }
+
+    @Test
+    public void directorySourceListsImagesOnly() throws Exception {
+        assertEquals(4, new DirectoryImageSource(mImageDir).listImages().size());
+    }
+
+    @Test
+    public void rerunIndexesOnlyNewAndChangedImages() throws Exception {
+        CountingDetector detector = new CountingDetector();
+        FaceIndexer.Stats stats = newIndexer(new FaceIndexStore(mIndexDir), detector, new PauseGate(), 2).run();
+        assertTrue(stats.isCompleted());
+        assertEquals(4, stats.getIndexed());
+        assertEquals(4, detector.mCalls.get());
+
+        stats = newIndexer(new FaceIndexStore(mIndexDir), detector, new PauseGate(), 2).run();
+        assertEquals(4, stats.getUpToDate());
+        assertEquals(0, stats.getPending());
+        assertEquals(4, detector.mCalls.get());
+
+        // 修改一张，新增一张，删除一张
+        File changed = writeFile("a.jpg", 11);
+        writeFile("sub/f.jpg", 70);
+        assertTrue(new File(mImageDir, "b.JPEG").delete());
+        FaceIndexStore store = new FaceIndexStore(mIndexDir);
+        stats = newIndexer(store, detector, new PauseGate(), 2).run();
+        assertEquals(2, stats.getIndexed());
+        assertEquals(1, stats.getRemoved());
+        assertEquals(6, detector.mCalls.get());
+        assertEquals(4, store.size());
+        assertEquals(11f, store.get(changed.getAbsolutePath()).getFaces()[0].getMidX(), 0f);
+        assertNull(store.get(new File(mImageDir, "b.JPEG").getAbsolutePath()));
+
+        // 删除也保存在journal中
+        assertEquals(4, new FaceIndexStore(mIndexDir).size());
+    }
+
+    @Test
+    public void deletedImagesAreRemovedFromLibrary() throws Exception {
+        FaceLibrary library = new FaceLibrary(mIndexDir);
+        try {
+            String a = new File(mImageDir, "a.jpg").getAbsolutePath();
+            String b = new File(mImageDir, "b.JPEG").getAbsolutePath();
+            byte[][] descriptors = {new byte[LbpDescriptor.LENGTH]};
+            library.replace(a, descriptors);
+            library.replace(b, descriptors);
+            // 之前的版本删除时漏掉的图片
+            library.replace(new File(mImageDir, "gone.jpg").getAbsolutePath(), descriptors);
+
+            assertTrue(new File(mImageDir, "b.JPEG").delete());
+            FaceIndexStore store = new FaceIndexStore(mIndexDir);
+            new FaceIndexer(new DirectoryImageSource(mImageDir), store, new CountingDetector(), library
+                    , new PauseGate(), 2).run();
+            assertEquals(1, library.getPaths().size());
+            assertEquals(a, library.getPaths().get(0));
+            assertEquals(1, library.findPerson(descriptors[0], LbpDescriptor.DEFAULT_MAX_DISTANCE, 10).size());
+        } finally {
+            library.close();
+        }
+    }
+
+    @Test
+    public void changedImageThatFailsIsRemovedFromLibrary() throws Exception {
+        FaceLibrary library = new FaceLibrary(mIndexDir);
+        try {
+            String a = new File(mImageDir, "a.jpg").getAbsolutePath();
+            library.replace(a, new byte[][]{new byte[LbpDescriptor.LENGTH]});
+            // 修改之后无法解码
+            writeFile("a.jpg", 12);
+            CountingDetector detector = new CountingDetector();
+            detector.mFailedLength = 12;
+            FaceIndexer.Stats stats = new FaceIndexer(new DirectoryImageSource(mImageDir), new FaceIndexStore(mIndexDir)
+                    , detector, library, new PauseGate(), 2).run();
+            assertEquals(1, stats.getFailed());
+            assertTrue(library.getPaths().isEmpty());
+        } finally {
+            library.close();
+        }
+    }
+
+    @Test
+    public void failedImagesAreNotRetried() throws Exception {
+        CountingDetector detector = new CountingDetector();
+        detector.mFailedLength = 20;
+        FaceIndexer.Stats stats = newIndexer(new FaceIndexStore(mIndexDir), detector, new PauseGate(), 1).run();
+        assertEquals(3, stats.getIndexed());
+        assertEquals(1, stats.getFailed());
+        FaceIndexStore store = new FaceIndexStore(mIndexDir);
+        assertTrue(store.get(new File(mImageDir, "b.JPEG").getAbsolutePath()).isFailed());
+        assertEquals(0, newIndexer(store, detector, new PauseGate(), 1).run().getPending());
+        assertEquals(4, detector.mCalls.get());
+    }
+
+    @Test
+    public void killedRunResumes() throws Exception {
+        final FaceIndexer[] indexer = new FaceIndexer[1];
+        CountingDetector killer = new CountingDetector() {
+            @Override
+            public FaceIndexStore.Record detect(ImageEntry entry) {
+                // 第三张识别到一半时进程被杀
+                if (mCalls.get() == 2) {
+                    indexer[0].release();
+                }
+                return super.detect(entry);
+            }
+        };
+        indexer[0] = newIndexer(new FaceIndexStore(mIndexDir), killer, new PauseGate(), 1);
+        FaceIndexer.Stats stats = indexer[0].run();
+        assertFalse(stats.isCompleted());
+        assertEquals(3, killer.mCalls.get());
+
+        // 只有完成的两张写入了journal，再追加半条记录模拟写到一半被杀
+        RandomAccessFile journal = new RandomAccessFile(new File(mIndexDir, FaceIndexStore.JOURNAL_NAME), "rw");
+        journal.seek(journal.length());
+        journal.writeInt(0x46494431);
+        journal.writeInt(100);
+        journal.close();
+
+        CountingDetector detector = new CountingDetector();
+        FaceIndexStore store = new FaceIndexStore(mIndexDir);
+        assertEquals(2, store.size());
+        stats = newIndexer(store, detector, new PauseGate(), 2).run();
+        assertTrue(stats.isCompleted());
+        assertEquals(2, stats.getUpToDate());
+        assertEquals(2, stats.getIndexed());
+        assertEquals(2, detector.mCalls.get());
+        assertEquals(4, new FaceIndexStore(mIndexDir).size());
+    }
+
+    @Test
+    public void pausedGateBlocksUntilAllReasonsCleared() throws Exception {
+        CountingDetector detector = new CountingDetector();
+        PauseGate gate = new PauseGate();
+        gate.setPaused(PauseGate.REASON_SCREEN_ON, true);
+        gate.setPaused(PauseGate.REASON_LOW_MEMORY, true);
+        final FaceIndexer indexer = newIndexer(new FaceIndexStore(mIndexDir), detector, gate, 2);
+        final FaceIndexer.Stats[] result = new FaceIndexer.Stats[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = indexer.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        assertEquals(0, detector.mCalls.get());
+        gate.setPaused(PauseGate.REASON_SCREEN_ON, false);
+        Thread.sleep(100);
+        assertEquals(0, detector.mCalls.get());
+        gate.setPaused(PauseGate.REASON_LOW_MEMORY, false);
+        thread.join(5000);
+        assertEquals(4, result[0].getIndexed());
+    }
+
+    private FaceIndexer newIndexer(FaceIndexStore store, FaceIndexer.Detector detector, PauseGate gate
+            , int workerCount) {
+        return new FaceIndexer(new DirectoryImageSource(mImageDir), store, detector, gate, workerCount);
+    }
+
+    /**
+     * 一张图一个脸，x为文件大小
+     */
+    private static class CountingDetector implements FaceIndexer.Detector {
+        final AtomicInteger mCalls = new AtomicInteger();
+        long mFailedLength = -1;
+
+        @Override
+        public FaceIndexStore.Record detect(ImageEntry entry) {
+            mCalls.incrementAndGet();
+            if (entry.getLength() == mFailedLength) {
+                return null;
+            }
+            return new FaceIndexStore.Record(entry.getLength(), entry.getLastModified(), 100, 100
+                    , new FaceInfo[]{new FaceInfo(entry.getLength(), 50, 10, 1)});
+        }
+    }
+
+    private File writeFile(String name, int length) throws IOException {
+        File file = new File(mImageDir, name);
+        File parent = file.getParentFile();
+        assertTrue(parent.isDirectory() || parent.mkdirs());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,134 @@
+package com.gsy.facerecognition.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PerceptualHashTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    public void copiesHaveCloseHashes() {
+        byte[] image = render(1, WIDTH, HEIGHT);
+        long hash = PerceptualHash.dHash(image, WIDTH, HEIGHT, 1);
+        assertNotEquals(PerceptualHash.NO_HASH, hash);
+
+        // 缩小一半
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.dHash(halve(image, WIDTH, HEIGHT), WIDTH / 2
+                , HEIGHT / 2, 1)) <= 2);
+        // 重新压缩的噪声
+        byte[] noisy = image.clone();
+        Random random = new Random(2);
+        for (int i = 0; i < noisy.length; i++) {
+            noisy[i] = (byte) Math.max(0, Math.min(255, (noisy[i] & 0xFF) + random.nextInt(7) - 3));
+        }
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.dHash(noisy, WIDTH, HEIGHT, 1)) <= 2);
+        // 同一张图片按方向6保存，数据是逆时针旋转过的
+        byte[] rotated = new byte[image.length];
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < HEIGHT; x++) {
+                rotated[y * HEIGHT + x] = image[x * WIDTH + (WIDTH - 1 - y)];
+            }
+        }
+        assertEquals(hash, PerceptualHash.dHash(rotated, HEIGHT, WIDTH, 6));
+
+        long other = PerceptualHash.dHash(render(2, WIDTH, HEIGHT), WIDTH, HEIGHT, 1);
+        assertTrue(PerceptualHash.distance(hash, other) > 10);
+        assertEquals(PerceptualHash.NO_HASH, PerceptualHash.dHash(new byte[8 * 8], 8, 8, 1));
+    }
+
+    @Test
+    public void multiIndexSearchMatchesLinearScan() {
+        Random random = new Random(3);
+        MultiIndexHash<Integer> index = new MultiIndexHash<Integer>();
+        List<Long> hashes = new ArrayList<Long>();
+        for (int i = 0; i < 3000; i++) {
+            // 一半是已有哈希的变体，保证每个半径都有结果
+            long hash = i % 2 == 0 || hashes.isEmpty() ? random.nextLong()
+                    : flip(hashes.get(random.nextInt(hashes.size())), random.nextInt(12), random);
+            hashes.add(hash);
+            index.add(hash, i);
+        }
+        assertEquals(3000, index.size());
+        for (int maxDistance = 0; maxDistance <= 12; maxDistance++) {
+            for (int q = 0; q < 20; q++) {
+                long query = flip(hashes.get(random.nextInt(hashes.size())), random.nextInt(maxDistance + 1), random);
+                List<MultiIndexHash.Item<Integer>> found = index.search(query, maxDistance);
+                assertEquals(values(index.searchLinear(query, maxDistance)), values(found));
+                for (int i = 1; i < found.size(); i++) {
+                    assertTrue(found.get(i - 1).getDistance() <= found.get(i).getDistance());
+                }
+            }
+        }
+
+        assertTrue(index.remove(hashes.get(10), 10));
+        assertFalse(index.remove(hashes.get(10), 10));
+        assertEquals(2999, index.size());
+        assertFalse(values(index.search(hashes.get(10), 0)).contains(10));
+    }
+
+    private static Set<Integer> values(List<MultiIndexHash.Item<Integer>> items) {
+        Set<Integer> values = new HashSet<Integer>();
+        for (MultiIndexHash.Item<Integer> item : items) {
+            assertTrue(values.add(item.getValue()));
+        }
+        return values;
+    }
+
+    private static long flip(long hash, int bits, Random random) {
+        Set<Integer> flipped = new HashSet<Integer>();
+        while (flipped.size() < bits) {
+            flipped.add(random.nextInt(PerceptualHash.BITS));
+        }
+        for (int bit : flipped) {
+            hash ^= 1L << bit;
+        }
+        return hash;
+    }
+
+    /**
+     * 几个随机的亮斑，平滑的图片和照片一样，缩小后基本不变
+     */
+    private static byte[] render(long seed, int width, int height) {
+        Random random = new Random(seed);
+        float[] blobs = new float[10 * 4];
+        for (int b = 0; b < blobs.length; b += 4) {
+            blobs[b] = random.nextFloat() * width;
+            blobs[b + 1] = random.nextFloat() * height;
+            blobs[b + 2] = 10 + random.nextFloat() * 30;
+            blobs[b + 3] = random.nextFloat() * 200 - 100;
+        }
+        byte[] luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float value = 128;
+                for (int b = 0; b < blobs.length; b += 4) {
+                    float dx = x - blobs[b];
+                    float dy = y - blobs[b + 1];
+                    value += blobs[b + 3] * (float) Math.exp(-(dx * dx + dy * dy) / (blobs[b + 2] * blobs[b + 2]));
+                }
+                luma[y * width + x] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return luma;
+    }
+
+    private static byte[] halve(byte[] luma, int width, int height) {
+        byte[] out = new byte[width / 2 * (height / 2)];
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int sum = (luma[2 * y * width + 2 * x] & 0xFF) + (luma[2 * y * width + 2 * x + 1] & 0xFF)
+                        + (luma[(2 * y + 1) * width + 2 * x] & 0xFF) + (luma[(2 * y + 1) * width + 2 * x + 1] & 0xFF);
+                out[y * (width / 2) + x] = (byte) ((sum + 2) / 4);
+            }
+        }
+        return out;
+    }
+}
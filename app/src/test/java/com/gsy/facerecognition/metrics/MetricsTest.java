@@ -0,0 +1,95 @@
+package com.gsy.facerecognition.metrics;
+
+import com.gsy.facerecognition.AllocationCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Metrics的本地单元测试
+ */
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        Metrics.reset();
+        Metrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void bucketIsLog2() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(0, LatencyHistogram.bucketOf(1));
+        assertEquals(1, LatencyHistogram.bucketOf(3));
+        assertEquals(10, LatencyHistogram.bucketOf(1024));
+        assertEquals(62, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        for (int i = 0; i < 90; i++) {
+            Metrics.record(Metrics.STAGE_DECODE, 1000);             // 桶[512, 1024)
+        }
+        for (int i = 0; i < 10; i++) {
+            Metrics.record(Metrics.STAGE_DECODE, 1000000);          // 桶[524288, 1048576)
+        }
+        MetricsSnapshot snapshot = Metrics.snapshot();
+        assertEquals(100, snapshot.getCount(Metrics.STAGE_DECODE));
+        assertEquals(90 * 1000L + 10 * 1000000L, snapshot.getTotalNanos(Metrics.STAGE_DECODE));
+        assertEquals(1000000, snapshot.getMaxNanos(Metrics.STAGE_DECODE));
+        assertEquals(1023, snapshot.getPercentileNanos(Metrics.STAGE_DECODE, 50));
+        assertEquals(1023, snapshot.getPercentileNanos(Metrics.STAGE_DECODE, 90));
+        // 上界超过最大值时取最大值
+        assertEquals(1000000, snapshot.getPercentileNanos(Metrics.STAGE_DECODE, 99));
+        assertEquals(0, snapshot.getPercentileNanos(Metrics.STAGE_FILTER, 50));
+    }
+
+    @Test
+    public void disabledRecordsNothing() {
+        Metrics.setEnabled(false);
+        long start = Metrics.start();
+        Metrics.end(Metrics.STAGE_DRAW, start);
+        Metrics.record(Metrics.STAGE_DRAW, 100);
+        Metrics.addBitmapBytes(Metrics.STAGE_DRAW, 100);
+        MetricsSnapshot snapshot = Metrics.snapshot();
+        assertEquals(0, snapshot.getCount(Metrics.STAGE_DRAW));
+        assertEquals(0, snapshot.getBitmapBytes(Metrics.STAGE_DRAW));
+        assertEquals("", snapshot.toString());
+    }
+
+    @Test
+    public void snapshotText() {
+        Metrics.end(Metrics.STAGE_FIND_FACES, Metrics.start());
+        Metrics.addBitmapBytes(Metrics.STAGE_PREPARE, 2000000);
+        Metrics.addBitmapBytes(Metrics.STAGE_PREPARE, 1000000);
+        String text = Metrics.snapshot().toString();
+        assertTrue(text, text.startsWith("prepare count=0 "));
+        assertTrue(text, text.contains("bitmaps=2 bitmapBytes=3000000\n"));
+        assertTrue(text, text.contains("findFaces count=1 "));
+    }
+
+    @Test
+    public void hooksDoNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        for (int i = 0; i < 20000; i++) {
+            // 预热，避免把解释执行和类加载的分配算进去
+            Metrics.end(Metrics.STAGE_DRAW, Metrics.start());
+            Metrics.addBitmapBytes(Metrics.STAGE_DECODE, i);
+        }
+        counter.start();
+        for (int i = 0; i < 100000; i++) {
+            Metrics.end(Metrics.STAGE_DRAW, Metrics.start());
+            Metrics.addBitmapBytes(Metrics.STAGE_DECODE, i);
+        }
+        counter.assertNoAllocation("100000 hooks");
+    }
+}
@@ -0,0 +1,208 @@
+package com.gsy.facerecognition.recognize;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 从图片到查找同一个人的完整流程：裁剪对齐、LBP描述子、FaceLibrary。
+ * 每个"人"是以两眼中点为原点、按两眼距离缩放的一组随机光斑，同一个人的照片位置、大小、亮度和噪声不同
+ */
+public class FaceLibraryTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 160;
+    private static final int PERSON_COUNT = 20;
+    private static final int PHOTOS_PER_PERSON = 5;
+
+    private File mDir;
+    private final float[][] mPeople = new float[PERSON_COUNT][];
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("library", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        Random random = new Random(7);
+        for (int i = 0; i < PERSON_COUNT; i++) {
+            // 每个光斑是{x, y, 半径, 亮度}，坐标以两眼距离为单位
+            float[] blobs = new float[12 * 4];
+            for (int b = 0; b < blobs.length; b += 4) {
+                blobs[b] = random.nextFloat() * 2 - 1;
+                blobs[b + 1] = random.nextFloat() * 2 - 0.6f;
+                blobs[b + 2] = 0.15f + random.nextFloat() * 0.3f;
+                blobs[b + 3] = random.nextFloat() * 120 - 60;
+            }
+            mPeople[i] = blobs;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void findsPhotosOfTheSamePerson() throws Exception {
+        FaceLibrary library = new FaceLibrary(mDir);
+        Random random = new Random(8);
+        for (int person = 0; person < PERSON_COUNT; person++) {
+            for (int photo = 0; photo < PHOTOS_PER_PERSON; photo++) {
+                library.replace(path(person, photo), new byte[][]{describeNewPhoto(person, random)});
+            }
+        }
+        assertEquals(PERSON_COUNT * PHOTOS_PER_PERSON, library.getIndexedFaceCount());
+        byte[] query = describeNewPhoto(3, random);
+        assertPhotosOf(3, library.findPerson(query, LbpDescriptor.DEFAULT_MAX_DISTANCE, PHOTOS_PER_PERSON));
+
+        // 一张照片重新识别后没有脸，不再返回
+        library.replace(path(3, 0), new byte[0][]);
+        List<FaceLibrary.Match> matches = library.findPerson(query, LbpDescriptor.DEFAULT_MAX_DISTANCE
+                , PHOTOS_PER_PERSON);
+        assertEquals(PHOTOS_PER_PERSON - 1, countPhotosOf(3, matches));
+        for (FaceLibrary.Match match : matches) {
+            assertNotEquals(path(3, 0), match.getPath());
+        }
+        assertNull(library.getDescriptor(path(3, 0), 0));
+        byte[] stored = library.getDescriptor(path(5, 2), 0);
+        assertNotNull(stored);
+        library.close();
+
+        // 重新打开，不重建索引，用已经保存的脸查找
+        FaceLibrary reopened = new FaceLibrary(mDir);
+        try {
+            List<FaceLibrary.Match> found = reopened.findPerson(stored, LbpDescriptor.DEFAULT_MAX_DISTANCE
+                    , PHOTOS_PER_PERSON);
+            assertEquals(path(5, 2), found.get(0).getPath());
+            assertEquals(0, found.get(0).getDistance());
+            assertPhotosOf(5, found);
+            assertEquals(PHOTOS_PER_PERSON - 1, countPhotosOf(3, reopened.findPerson(query
+                    , LbpDescriptor.DEFAULT_MAX_DISTANCE, PHOTOS_PER_PERSON)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void alignmentIgnoresPositionAndScale() {
+        byte[] a = describe(render(0, 60, 70, 24, 1, 0, new Random(1)), new FaceInfo(60, 70, 24, 1));
+        byte[] b = describe(render(0, 130, 80, 40, 1, 0, new Random(1)), new FaceInfo(130, 80, 40, 1));
+        byte[] other = describe(render(1, 60, 70, 24, 1, 0, new Random(1)), new FaceInfo(60, 70, 24, 1));
+        assertTrue(LbpDescriptor.distance(a, b) < LbpDescriptor.distance(a, other));
+        assertTrue(LbpDescriptor.distance(a, b) < LbpDescriptor.DEFAULT_MAX_DISTANCE);
+    }
+
+    @Test
+    public void pathWithoutNodesIsDroppedOnOpen() throws Exception {
+        byte[] a = describeNewPhoto(0, new Random(1));
+        byte[] c = describeNewPhoto(1, new Random(2));
+        FaceLibrary library = new FaceLibrary(mDir);
+        library.replace("/a.jpg", new byte[][]{a});
+        library.close();
+        // 模拟写完分配编号的行、添加节点之前进程被杀
+        FileOutputStream out = new FileOutputStream(new File(mDir, FaceLibrary.PATHS_NAME), true);
+        out.write("A 1 /b.jpg\n".getBytes("UTF-8"));
+        out.close();
+
+        library = new FaceLibrary(mDir);
+        try {
+            assertEquals(Collections.singletonList("/a.jpg"), library.getPaths());
+            assertNull(library.getDescriptor("/b.jpg", 0));
+            // 之后的图片使用同样的节点，不能被当作/b.jpg的脸
+            library.replace("/c.jpg", new byte[][]{c});
+        } finally {
+            library.close();
+        }
+        library = new FaceLibrary(mDir);
+        try {
+            assertEquals(new HashSet<String>(Arrays.asList("/a.jpg", "/c.jpg"))
+                    , new HashSet<String>(library.getPaths()));
+            List<FaceLibrary.Match> matches = library.findPerson(c, 0, 10);
+            assertEquals(1, matches.size());
+            assertEquals("/c.jpg", matches.get(0).getPath());
+            assertArrayEquals(c, library.getDescriptor("/c.jpg", 0));
+        } finally {
+            library.close();
+        }
+    }
+
+    private void assertPhotosOf(int person, List<FaceLibrary.Match> matches) {
+        assertFalse(matches.isEmpty());
+        Set<String> paths = new HashSet<String>();
+        for (FaceLibrary.Match match : matches) {
+            assertTrue(match.toString(), match.getPath().startsWith("person" + person + "/"));
+            assertTrue(paths.add(match.getPath()));
+        }
+    }
+
+    private static int countPhotosOf(int person, List<FaceLibrary.Match> matches) {
+        int count = 0;
+        for (FaceLibrary.Match match : matches) {
+            if (match.getPath().startsWith("person" + person + "/")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String path(int person, int photo) {
+        return "person" + person + "/photo" + photo + ".jpg";
+    }
+
+    /**
+     * 随机的位置、大小、对比度、亮度和噪声
+     */
+    private byte[] describeNewPhoto(int person, Random random) {
+        float eyes = 20 + random.nextInt(20);
+        float midX = eyes * 1.5f + random.nextInt((int) (WIDTH - eyes * 3));
+        float midY = eyes * 1.5f + random.nextInt((int) (HEIGHT - eyes * 3));
+        float contrast = 0.7f + random.nextFloat() * 0.6f;
+        float brightness = random.nextFloat() * 40 - 20;
+        byte[] luma = render(person, midX, midY, eyes, contrast, brightness, random);
+        return describe(luma, new FaceInfo(midX, midY, eyes, 1));
+    }
+
+    private static byte[] describe(byte[] luma, FaceInfo face) {
+        return LbpDescriptor.describe(luma, WIDTH, HEIGHT, face);
+    }
+
+    private byte[] render(int person, float midX, float midY, float eyes, float contrast, float brightness
+            , Random noise) {
+        float[] blobs = mPeople[person];
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                float u = (x - midX) / eyes;
+                float v = (y - midY) / eyes;
+                float value = 120;
+                for (int b = 0; b < blobs.length; b += 4) {
+                    float du = u - blobs[b];
+                    float dv = v - blobs[b + 1];
+                    float r = blobs[b + 2];
+                    value += blobs[b + 3] * (float) Math.exp(-(du * du + dv * dv) / (r * r));
+                }
+                value = 128 + (value - 128) * contrast + brightness + (float) noise.nextGaussian() * 2;
+                luma[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return luma;
+    }
+}
@@ -0,0 +1,178 @@
+package com.gsy.facerecognition.recognize;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * HnswIndex的本地单元测试，向量是围绕随机中心的簇，召回率和逐个比较的精确结果对比
+ */
+public class HnswIndexTest {
+    private static final int DIMENSION = 32;
+    private static final int COUNT = 5000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("faces", ".hnsw");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + HnswIndex.UPPER_SUFFIX).delete();
+    }
+
+    @Test
+    public void searchRecallsBruteForceNeighbours() throws Exception {
+        HnswIndex index = new HnswIndex(mFile, DIMENSION);
+        try {
+            Random random = new Random(1);
+            byte[][] vectors = clusteredVectors(random, COUNT);
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(i, index.add(i, vectors[i]));
+            }
+            assertEquals(COUNT, index.size());
+            assertTrue(recall(index, new Random(2), 100, 10, 64) >= 0.95);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void reopenedIndexAnswersWithoutRebuilding() throws Exception {
+        Random random = new Random(3);
+        byte[][] vectors = clusteredVectors(random, 2000);
+        HnswIndex index = new HnswIndex(mFile, DIMENSION);
+        for (int i = 0; i < vectors.length; i++) {
+            index.add(1000 + i, vectors[i]);
+        }
+        long[] labels = new long[5];
+        int[] distances = new int[5];
+        int count = index.search(vectors[7], 5, 64, labels, distances, null);
+        index.close();
+
+        HnswIndex reopened = new HnswIndex(mFile, DIMENSION);
+        try {
+            assertEquals(vectors.length, reopened.size());
+            long[] reopenedLabels = new long[5];
+            int[] reopenedDistances = new int[5];
+            assertEquals(count, reopened.search(vectors[7], 5, 64, reopenedLabels, reopenedDistances, null));
+            assertArrayEquals(labels, reopenedLabels);
+            assertArrayEquals(distances, reopenedDistances);
+            assertEquals(1007, reopenedLabels[0]);
+            assertEquals(0, reopenedDistances[0]);
+            byte[] vector = new byte[DIMENSION];
+            reopened.getVector(7, vector);
+            assertArrayEquals(vectors[7], vector);
+            // 继续添加
+            reopened.add(5000, vectors[0]);
+            assertEquals(vectors.length + 1, reopened.size());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void unfinishedNodesAreIgnored() throws Exception {
+        Random random = new Random(4);
+        byte[][] vectors = clusteredVectors(random, 300);
+        HnswIndex index = new HnswIndex(mFile, DIMENSION);
+        for (int i = 0; i < vectors.length; i++) {
+            index.add(i, vectors[i]);
+        }
+        index.close();
+        // 模拟后面的节点写完邻居但是节点数还没有更新时进程被杀，入口节点在节点数之前写入
+        int finished;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(20);
+            finished = Math.max(250, raf.readInt() + 1);
+            raf.seek(16);
+            raf.writeInt(finished);
+        } finally {
+            raf.close();
+        }
+        assertTrue(finished < vectors.length);
+        HnswIndex reopened = new HnswIndex(mFile, DIMENSION);
+        try {
+            assertEquals(finished, reopened.size());
+            long[] labels = new long[20];
+            int[] distances = new int[20];
+            for (int q = finished; q < vectors.length; q++) {
+                int count = reopened.search(vectors[q], 20, 64, labels, distances, null);
+                assertEquals(20, count);
+                for (int i = 0; i < count; i++) {
+                    assertTrue(labels[i] < finished);
+                }
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDifferentDimension() throws Exception {
+        new HnswIndex(mFile, DIMENSION).close();
+        new HnswIndex(mFile, DIMENSION * 2);
+    }
+
+    /**
+     * @return 查询点的近似结果中，精确的k个最近邻所占的比例
+     */
+    private static double recall(HnswIndex index, Random random, int queryCount, int k, int ef) {
+        long[] labels = new long[k];
+        int[] distances = new int[k];
+        long[] exactLabels = new long[k];
+        int[] exactDistances = new int[k];
+        int found = 0;
+        for (int q = 0; q < queryCount; q++) {
+            byte[] query = clusteredVectors(random, 1)[0];
+            int count = index.search(query, k, ef, labels, distances, null);
+            index.bruteForce(query, k, exactLabels, exactDistances);
+            // 距离相同的点可能有不同的标签，按距离比较
+            int kthDistance = exactDistances[k - 1];
+            Set<Long> exact = new HashSet<Long>();
+            for (int i = 0; i < k; i++) {
+                exact.add(exactLabels[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                if (exact.contains(labels[i]) || distances[i] <= kthDistance) {
+                    found++;
+                }
+            }
+        }
+        return (double) found / (queryCount * k);
+    }
+
+    /**
+     * 50个随机中心，每个向量在中心附近随机偏移
+     */
+    private static byte[][] clusteredVectors(Random random, int count) {
+        Random centers = new Random(0);
+        int[][] centerValues = new int[50][DIMENSION];
+        for (int[] center : centerValues) {
+            for (int d = 0; d < DIMENSION; d++) {
+                center[d] = 40 + centers.nextInt(176);
+            }
+        }
+        byte[][] vectors = new byte[count][DIMENSION];
+        for (int i = 0; i < count; i++) {
+            int[] center = centerValues[random.nextInt(centerValues.length)];
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = (byte) Math.max(0, Math.min(255, center[d] + (int) (random.nextGaussian() * 20)));
+            }
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,238 @@
+package com.gsy.facerecognition.stream;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.PixelBuffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸跟踪的本地单元测试。帧是静止的纹理背景上移动的纹理方块，方块中心是唯一的最亮点，
+ * 假的引擎把最亮的点当作两眼中点，因此可以知道每一帧真实的位置
+ */
+public class FaceTrackerTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int FACE_SIZE = 48;
+    private static final float EYES_DISTANCE = 20;
+
+    private final byte[] mBackground = texture(WIDTH, HEIGHT, 1);
+    private final byte[] mFaceA = texture(FACE_SIZE, FACE_SIZE, 2);
+    private final byte[] mFaceB = texture(FACE_SIZE, FACE_SIZE, 3);
+
+    @Test
+    public void followsMovingFaceBetweenKeyframes() {
+        FaceTracker tracker = new FaceTracker(100, FaceTracker.DEFAULT_MIN_SCORE);
+        assertTrue(tracker.needsKeyframe());
+        FaceTracker.TrackedFace[] faces = tracker.onKeyframe(frame(50, 50, -1, -1), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(50, 50, EYES_DISTANCE, 1)});
+        int id = faces[0].getId();
+        for (int i = 1; i <= 15; i++) {
+            assertFalse(tracker.needsKeyframe());
+            int x = 50 + 3 * i;
+            int y = 50 + i;
+            faces = tracker.track(frame(x, y, -1, -1), WIDTH, HEIGHT);
+            assertNotNull("lost at frame " + i, faces);
+            assertEquals(1, faces.length);
+            assertEquals(id, faces[0].getId());
+            assertEquals(x, faces[0].getFace().getMidX(), 1f);
+            assertEquals(y, faces[0].getFace().getMidY(), 1f);
+            assertTrue(faces[0].getScore() >= FaceTracker.DEFAULT_MIN_SCORE);
+        }
+    }
+
+    @Test
+    public void lostFaceNeedsDetection() {
+        FaceTracker tracker = new FaceTracker();
+        tracker.onKeyframe(frame(50, 50, -1, -1), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(50, 50, EYES_DISTANCE, 1)});
+        // 脸离开画面，只剩背景
+        assertNull(tracker.track(mBackground.clone(), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void keyframesKeepIdsAcrossMissesAndCountSwitches() {
+        FaceTracker tracker = new FaceTracker(1, FaceTracker.DEFAULT_MIN_SCORE);
+        FaceTracker.TrackedFace[] first = tracker.onKeyframe(frame(40, 50, 110, 60), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(40, 50, EYES_DISTANCE, 1), new FaceInfo(110, 60, EYES_DISTANCE, 1)});
+        assertNotEquals(first[0].getId(), first[1].getId());
+        // 顺序不同、位置稍有移动，id跟着脸走
+        FaceTracker.TrackedFace[] second = tracker.onKeyframe(frame(44, 52, 106, 58), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(106, 58, EYES_DISTANCE, 1), new FaceInfo(44, 52, EYES_DISTANCE, 1)});
+        assertEquals(first[1].getId(), second[0].getId());
+        assertEquals(first[0].getId(), second[1].getId());
+        // 识别漏掉了一张脸，下一个关键帧又识别到时id不变
+        FaceTracker.TrackedFace[] third = tracker.onKeyframe(frame(44, 52, 106, 58), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(44, 52, EYES_DISTANCE, 1)});
+        assertEquals(1, tracker.getTrackCount());
+        FaceTracker.TrackedFace[] fourth = tracker.onKeyframe(frame(44, 52, 106, 58), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(44, 52, EYES_DISTANCE, 1), new FaceInfo(106, 58, EYES_DISTANCE, 1)});
+        assertEquals(third[0].getId(), fourth[0].getId());
+        assertEquals(first[1].getId(), fourth[1].getId());
+        assertEquals(0, tracker.getIdSwitches());
+        // 跳得太远没有关联上，旧的跟踪就在附近，记作一次切换
+        FaceTracker.TrackedFace[] fifth = tracker.onKeyframe(frame(44, 52, 106 + 25, 58), WIDTH, HEIGHT
+                , new FaceInfo[]{new FaceInfo(44, 52, EYES_DISTANCE, 1), new FaceInfo(106 + 25, 58, EYES_DISTANCE, 1)});
+        assertNotEquals(first[1].getId(), fifth[1].getId());
+        assertEquals(1, tracker.getIdSwitches());
+    }
+
+    @Test
+    public void streamDetectsOnlyKeyframes() throws Exception {
+        final int frameCount = 40;
+        CountingEngine engine = new CountingEngine();
+        final List<StreamingFaceDetector.StreamResult> results =
+                Collections.synchronizedList(new ArrayList<StreamingFaceDetector.StreamResult>());
+        StreamingFaceDetector detector = new StreamingFaceDetector(engine, WIDTH, HEIGHT, frameCount, 1, 5
+                , new FaceTracker(10, FaceTracker.DEFAULT_MIN_SCORE)
+                , new StreamingFaceDetector.OnStreamResultListener() {
+            @Override
+            public void onStreamResult(StreamingFaceDetector.StreamResult result) {
+                results.add(result);
+            }
+        });
+        try {
+            detector.play(new FrameSource() {
+                private int mIndex;
+
+                @Override
+                public boolean next(StreamFrame frame) {
+                    if (mIndex == frameCount) {
+                        return false;
+                    }
+                    frame.setLuma(frame(40 + 2 * mIndex, 60, -1, -1), WIDTH, HEIGHT);
+                    mIndex++;
+                    return true;
+                }
+            }, 0);
+            detector.awaitIdle();
+        } finally {
+            detector.release();
+        }
+        StreamingFaceDetector.Stats stats = detector.getStats();
+        assertEquals(frameCount, stats.getPublished());
+        assertEquals(frameCount / 10, engine.mCalls.get());
+        assertEquals(frameCount / 10, stats.getKeyframes());
+        assertEquals(frameCount - frameCount / 10, stats.getTrackedFrames());
+        assertTrue(stats.toString(), stats.getCostRatio() > 1);
+        assertEquals(0, stats.getIdSwitches());
+        int id = results.get(0).getTrackIds()[0];
+        for (int i = 0; i < frameCount; i++) {
+            StreamingFaceDetector.StreamResult result = results.get(i);
+            assertEquals(i % 10 == 0, result.isKeyframe());
+            assertEquals(id, result.getTrackIds()[0]);
+            assertEquals(40 + 2 * i, result.getFaces()[0].getMidX(), 1f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trackingRequiresSingleWorker() {
+        new StreamingFaceDetector(new CountingEngine(), WIDTH, HEIGHT, 2, 2, 5, new FaceTracker(), null);
+    }
+
+    /**
+     * 背景上画最多两张脸，坐标为负时不画。每张脸的中心是唯一的最亮点
+     */
+    private byte[] frame(int ax, int ay, int bx, int by) {
+        byte[] luma = mBackground.clone();
+        if (ax >= 0) {
+            paste(luma, mFaceA, ax, ay);
+        }
+        if (bx >= 0) {
+            paste(luma, mFaceB, bx, by);
+        }
+        return luma;
+    }
+
+    private static void paste(byte[] luma, byte[] face, int midX, int midY) {
+        int left = midX - FACE_SIZE / 2;
+        // 方块在两眼中点下方，和模板的位置一致
+        int top = midY + (int) (EYES_DISTANCE / 2) - FACE_SIZE / 2;
+        for (int y = 0; y < FACE_SIZE; y++) {
+            for (int x = 0; x < FACE_SIZE; x++) {
+                int px = left + x;
+                int py = top + y;
+                if (px >= 0 && py >= 0 && px < WIDTH && py < HEIGHT) {
+                    luma[py * WIDTH + px] = face[y * FACE_SIZE + x];
+                }
+            }
+        }
+        luma[midY * WIDTH + midX] = (byte) 255;
+    }
+
+    /**
+     * 平滑过的随机纹理，亮度在0到200之间
+     */
+    private static byte[] texture(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] noise = new int[width * height];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt(201);
+        }
+        byte[] out = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -2; dy <= 2; dy++) {
+                    for (int dx = -2; dx <= 2; dx++) {
+                        int sx = x + dx;
+                        int sy = y + dy;
+                        if (sx >= 0 && sy >= 0 && sx < width && sy < height) {
+                            sum += noise[sy * width + sx];
+                            count++;
+                        }
+                    }
+                }
+                // 拉开对比度，平滑后的值集中在中间
+                int value = 100 + (sum / count - 100) * 3;
+                out[y * width + x] = (byte) Math.max(0, Math.min(200, value));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 把唯一的最亮点当作两眼中点，统计调用次数
+     */
+    private static class CountingEngine implements FaceDetectionEngine {
+        final AtomicInteger mCalls = new AtomicInteger();
+
+        @Override
+        public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+            mCalls.incrementAndGet();
+            int width = buffer.getWidth();
+            byte[] luma = new byte[width * buffer.getHeight()];
+            buffer.readLuma(luma);
+            try {
+                // 完整识别比跟踪慢得多
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < luma.length; i++) {
+                if ((luma[i] & 0xFF) > 220) {
+                    return new FaceInfo[]{new FaceInfo(i % width, i / width, EYES_DISTANCE, 1)};
+                }
+            }
+            return new FaceInfo[0];
+        }
+
+        @Override
+        public String getName() {
+            return "counting";
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.gsy.facerecognition.stream;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.detect.engine.FaceDetectionEngine;
+import com.gsy.facerecognition.detect.engine.PixelBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 连续识别的本地单元测试。帧为临时目录中的PGM文件，第i帧在(20 + i, 24)有一个亮点，
+ * 假的引擎把最亮的点当作人脸，因此可以从结果确认识别的是哪一帧
+ */
+public class StreamingFaceDetectorTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long MS = 1000000L;
+
+    private File mFrameDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mFrameDir = File.createTempFile("frames", "");
+        assertTrue(mFrameDir.delete());
+        assertTrue(mFrameDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFrameDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFrameDir.delete();
+    }
+
+    @Test
+    public void pgmFramesRoundTripThroughRgb565() throws Exception {
+        writeFrames(2);
+        PgmFrameSource source = new PgmFrameSource(mFrameDir);
+        assertEquals(2, source.getFrameCount());
+        StreamFrame frame = new StreamFrame(WIDTH, HEIGHT);
+        assertTrue(source.next(frame));
+        assertTrue(source.next(frame));
+        assertEquals(WIDTH, frame.getWidth());
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        frame.readLuma(luma);
+        assertEquals(255, luma[24 * WIDTH + 21] & 0xFF);
+        assertEquals(0, luma[0]);
+        assertFalse(source.next(frame));
+    }
+
+    @Test
+    public void slowStreamPublishesEveryFrameInOrder() throws Exception {
+        writeFrames(10);
+        RecordingListener listener = new RecordingListener();
+        StreamingFaceDetector detector = new StreamingFaceDetector(new BrightestPointEngine(1), WIDTH, HEIGHT, 2, 1
+                , 5, listener);
+        try {
+            assertEquals(10, detector.play(new PgmFrameSource(mFrameDir), 20 * MS));
+            detector.awaitIdle();
+        } finally {
+            detector.release();
+        }
+        StreamingFaceDetector.Stats stats = detector.getStats();
+        assertEquals(10, stats.getSubmitted());
+        assertEquals(10, stats.getPublished());
+        assertEquals(0, stats.getDropped());
+        assertTrue(stats.getLatencyMaxNanos() > 0);
+        assertTrue(stats.getThroughput() > 0);
+        for (int i = 0; i < 10; i++) {
+            StreamingFaceDetector.StreamResult result = listener.mResults.get(i);
+            assertEquals(i, result.getSequence());
+            assertEquals(20 + i, result.getFaces()[0].getMidX(), 0f);
+            assertTrue(i == 0 || result.getTimestampNanos() > listener.mResults.get(i - 1).getTimestampNanos());
+        }
+    }
+
+    @Test
+    public void fastStreamDropsOldestAndKeepsNewest() throws Exception {
+        writeFrames(30);
+        RecordingListener listener = new RecordingListener();
+        StreamingFaceDetector detector = new StreamingFaceDetector(new BrightestPointEngine(10), WIDTH, HEIGHT, 1, 1
+                , 5, listener);
+        final Set<StreamFrame> frames = Collections.newSetFromMap(new IdentityHashMap<StreamFrame, Boolean>());
+        final PgmFrameSource pgm = new PgmFrameSource(mFrameDir);
+        try {
+            detector.play(new FrameSource() {
+                @Override
+                public boolean next(StreamFrame frame) throws IOException {
+                    frames.add(frame);
+                    return pgm.next(frame);
+                }
+            }, 0);
+            detector.awaitIdle();
+        } finally {
+            detector.release();
+        }
+        StreamingFaceDetector.Stats stats = detector.getStats();
+        assertEquals(30, stats.getSubmitted());
+        assertTrue(stats.toString(), stats.getDropped() > 0);
+        assertEquals(stats.getSubmitted(), stats.getPublished() + stats.getDropped() + stats.getStale()
+                + stats.getFailed());
+        // 最新的一帧总是会被识别
+        StreamingFaceDetector.StreamResult last = listener.mResults.get(listener.mResults.size() - 1);
+        assertEquals(29, last.getSequence());
+        assertEquals(20 + 29, last.getFaces()[0].getMidX(), 0f);
+        // 只使用预先分配的帧：队列1 + 识别线程1 + 生产者1
+        assertTrue(frames.size() <= 3);
+    }
+
+    @Test
+    public void parallelWorkersPublishInFrameOrder() throws Exception {
+        writeFrames(20);
+        RecordingListener listener = new RecordingListener();
+        StreamingFaceDetector detector = new StreamingFaceDetector(new BrightestPointEngine(3), WIDTH, HEIGHT, 4, 3
+                , 5, listener);
+        try {
+            detector.play(new PgmFrameSource(mFrameDir), MS);
+            detector.awaitIdle();
+        } finally {
+            detector.release();
+        }
+        for (int i = 1; i < listener.mResults.size(); i++) {
+            assertTrue(listener.mResults.get(i).getSequence() > listener.mResults.get(i - 1).getSequence());
+        }
+        StreamingFaceDetector.Stats stats = detector.getStats();
+        assertEquals(20, stats.getPublished() + stats.getDropped() + stats.getStale());
+    }
+
+    @Test
+    public void reusedFramesHaveNoTimestamp() throws Exception {
+        writeFrames(1);
+        RecordingListener listener = new RecordingListener();
+        StreamingFaceDetector detector = new StreamingFaceDetector(new BrightestPointEngine(1), WIDTH, HEIGHT, 1, 1
+                , 5, listener);
+        try {
+            StreamFrame frame = detector.obtainFrame();
+            assertTrue(new PgmFrameSource(mFrameDir).next(frame));
+            frame.setTimestampNanos(System.nanoTime() - 500 * MS);
+            detector.submit(frame);
+            detector.awaitIdle();
+            frame = detector.obtainFrame();
+            frame.setTimestampNanos(1);
+            detector.recycle(frame);
+            // 识别过的帧和归还的帧再取出时都没有上一次的时间戳，不设置时submit使用当前时间
+            for (int i = 0; i < 3; i++) {
+                assertEquals(0, detector.obtainFrame().getTimestampNanos());
+            }
+        } finally {
+            detector.release();
+        }
+        assertEquals(1, listener.mResults.size());
+    }
+
+    @Test
+    public void engineExceptionDropsOnlyThatFrame() throws Exception {
+        writeFrames(5);
+        RecordingListener listener = new RecordingListener();
+        StreamingFaceDetector detector = new StreamingFaceDetector(new BrightestPointEngine(1) {
+            private boolean mHasThrown;
+
+            @Override
+            public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+                if (!mHasThrown) {
+                    mHasThrown = true;
+                    throw new IllegalStateException("engine failed");
+                }
+                return super.detect(buffer, maxCount);
+            }
+        }, WIDTH, HEIGHT, 5, 1, 5, listener);
+        try {
+            assertEquals(5, detector.play(new PgmFrameSource(mFrameDir), 20 * MS));
+            detector.awaitIdle();
+        } finally {
+            detector.release();
+        }
+        StreamingFaceDetector.Stats stats = detector.getStats();
+        assertEquals(1, stats.getFailed());
+        assertEquals(4, stats.getPublished());
+        assertEquals(1, listener.mResults.get(0).getSequence());
+        assertEquals(4, listener.mResults.get(3).getSequence());
+    }
+
+    /**
+     * 第i帧全黑，只有(20 + i, 24)为白色，第一帧的头部带注释
+     */
+    private void writeFrames(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byte[] luma = new byte[WIDTH * HEIGHT];
+            luma[24 * WIDTH + 20 + i] = (byte) 255;
+            String header = (i == 0 ? "P5\n# frame 0\n" : "P5\n") + WIDTH + " " + HEIGHT + "\n255\n";
+            FileOutputStream out = new FileOutputStream(new File(mFrameDir, String.format("frame_%03d.pgm", i)));
+            try {
+                out.write(header.getBytes("US-ASCII"));
+                out.write(luma);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static class RecordingListener implements StreamingFaceDetector.OnStreamResultListener {
+        final List<StreamingFaceDetector.StreamResult> mResults =
+                Collections.synchronizedList(new ArrayList<StreamingFaceDetector.StreamResult>());
+
+        @Override
+        public void onStreamResult(StreamingFaceDetector.StreamResult result) {
+            mResults.add(result);
+        }
+    }
+
+    /**
+     * 把最亮的点当作一张两眼距离为2的脸，识别耗时固定
+     */
+    private static class BrightestPointEngine implements FaceDetectionEngine {
+        private final long mDetectMillis;
+
+        BrightestPointEngine(long detectMillis) {
+            mDetectMillis = detectMillis;
+        }
+
+        @Override
+        public FaceInfo[] detect(PixelBuffer buffer, int maxCount) {
+            int width = buffer.getWidth();
+            byte[] luma = new byte[width * buffer.getHeight()];
+            buffer.readLuma(luma);
+            int brightest = 0;
+            for (int i = 0; i < luma.length; i++) {
+                if ((luma[i] & 0xFF) > (luma[brightest] & 0xFF)) {
+                    brightest = i;
+                }
+            }
+            try {
+                Thread.sleep(mDetectMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new FaceInfo[]{new FaceInfo(brightest % width, brightest / width, 2, 1)};
+        }
+
+        @Override
+        public String getName() {
+            return "brightest";
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
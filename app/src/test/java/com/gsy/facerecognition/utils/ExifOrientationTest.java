@@ -0,0 +1,104 @@
+package com.gsy.facerecognition.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ExifOrientation的本地单元测试，按EXIF规范中第0行、第0列在摆正后的位置检查全部8个方向
+ */
+public class ExifOrientationTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    /**
+     * 图片数据左上角(0, 0)在摆正后的位置：
+     * 1 左上，2 右上，3 右下，4 左下，5 左上，6 右上，7 右下，8 左下
+     */
+    @Test
+    public void topLeftCornerOfAllOrientations() {
+        float[][] expected = {
+                {0, 0}, {WIDTH, 0}, {WIDTH, HEIGHT}, {0, HEIGHT},
+                {0, 0}, {HEIGHT, 0}, {HEIGHT, WIDTH}, {0, WIDTH}};
+        float[] transform = new float[ExifOrientation.TRANSFORM_SIZE];
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            ExifOrientation.toUpright(orientation, WIDTH, HEIGHT, transform);
+            assertEquals("orientation " + orientation, expected[orientation - 1][0]
+                    , ExifOrientation.mapX(transform, 0, 0), 0);
+            assertEquals("orientation " + orientation, expected[orientation - 1][1]
+                    , ExifOrientation.mapY(transform, 0, 0), 0);
+        }
+    }
+
+    /**
+     * 第0行(沿x轴方向)在摆正后的走向：
+     * 1、2、3、4在水平方向，5、6、7、8在竖直方向
+     */
+    @Test
+    public void firstRowDirectionOfAllOrientations() {
+        float[][] expected = {
+                {1, 0}, {-1, 0}, {-1, 0}, {1, 0},
+                {0, 1}, {0, 1}, {0, -1}, {0, -1}};
+        float[] transform = new float[ExifOrientation.TRANSFORM_SIZE];
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            ExifOrientation.toUpright(orientation, WIDTH, HEIGHT, transform);
+            float dx = ExifOrientation.mapX(transform, 1, 0) - ExifOrientation.mapX(transform, 0, 0);
+            float dy = ExifOrientation.mapY(transform, 1, 0) - ExifOrientation.mapY(transform, 0, 0);
+            assertEquals("orientation " + orientation, expected[orientation - 1][0], dx, 0);
+            assertEquals("orientation " + orientation, expected[orientation - 1][1], dy, 0);
+        }
+    }
+
+    @Test
+    public void mapsImageBoundsOntoUprightBounds() {
+        float[] transform = new float[ExifOrientation.TRANSFORM_SIZE];
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            ExifOrientation.toUpright(orientation, WIDTH, HEIGHT, transform);
+            int uprightWidth = ExifOrientation.uprightWidth(orientation, WIDTH, HEIGHT);
+            int uprightHeight = ExifOrientation.uprightHeight(orientation, WIDTH, HEIGHT);
+            assertEquals(orientation >= 5, ExifOrientation.isTransposed(orientation));
+            float[] corners = {0, 0, WIDTH, 0, 0, HEIGHT, WIDTH, HEIGHT};
+            ExifOrientation.mapPoints(transform, corners, 4);
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < corners.length; i += 2) {
+                minX = Math.min(minX, corners[i]);
+                maxX = Math.max(maxX, corners[i]);
+                minY = Math.min(minY, corners[i + 1]);
+                maxY = Math.max(maxY, corners[i + 1]);
+            }
+            assertEquals(0, minX, 0);
+            assertEquals(0, minY, 0);
+            assertEquals(uprightWidth, maxX, 0);
+            assertEquals(uprightHeight, maxY, 0);
+        }
+    }
+
+    @Test
+    public void fromUprightIsInverse() {
+        float[] to = new float[ExifOrientation.TRANSFORM_SIZE];
+        float[] from = new float[ExifOrientation.TRANSFORM_SIZE];
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            ExifOrientation.toUpright(orientation, WIDTH, HEIGHT, to);
+            ExifOrientation.fromUpright(orientation, WIDTH, HEIGHT, from);
+            float x = 12.5f, y = 7.25f;
+            float uprightX = ExifOrientation.mapX(to, x, y);
+            float uprightY = ExifOrientation.mapY(to, x, y);
+            assertEquals(x, ExifOrientation.mapX(from, uprightX, uprightY), 1e-4f);
+            assertEquals(y, ExifOrientation.mapY(from, uprightX, uprightY), 1e-4f);
+        }
+    }
+
+    @Test
+    public void uprightOrientations() {
+        assertTrue(ExifOrientation.isUpright(1));
+        assertTrue(ExifOrientation.isUpright(2));
+        for (int orientation = 3; orientation <= 8; orientation++) {
+            assertFalse(ExifOrientation.isUpright(orientation));
+        }
+        // 不合法的值按1处理
+        assertTrue(ExifOrientation.isUpright(0));
+        float[] transform = ExifOrientation.toUpright(0, WIDTH, HEIGHT, new float[ExifOrientation.TRANSFORM_SIZE]);
+        assertEquals(5, ExifOrientation.mapX(transform, 5, 6), 0);
+        assertEquals(6, ExifOrientation.mapY(transform, 5, 6), 0);
+    }
+}
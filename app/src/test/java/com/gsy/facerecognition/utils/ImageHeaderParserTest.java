@@ -0,0 +1,223 @@
+package com.gsy.facerecognition.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * ImageHeaderParser的本地单元测试，使用手工拼出来的JPEG和PNG文件头
+ */
+public class ImageHeaderParserTest {
+
+    @Test
+    public void parseJpegWithExifLittleEndian() throws Exception {
+        byte[] jpeg = buildJpeg(true, 6, 4000, 3000);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(jpeg));
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.TYPE_JPEG, header.getType());
+        assertEquals(4000, header.getWidth());
+        assertEquals(3000, header.getHeight());
+        assertEquals(6, header.getOrientation());
+        assertTrue(header.isTransposed());
+        assertTrue(header.hasThumbnail());
+        assertEquals(THUMBNAIL.length, header.getThumbnailLength());
+        // 缩略图的偏移是文件中的绝对位置
+        for (int i = 0; i < THUMBNAIL.length; i++) {
+            assertEquals(THUMBNAIL[i], jpeg[(int) header.getThumbnailOffset() + i]);
+        }
+    }
+
+    @Test
+    public void parseJpegWithExifBigEndian() throws Exception {
+        byte[] jpeg = buildJpeg(false, 3, 1001, 777);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(jpeg));
+        assertNotNull(header);
+        assertEquals(1001, header.getWidth());
+        assertEquals(777, header.getHeight());
+        assertEquals(3, header.getOrientation());
+        assertFalse(header.isTransposed());
+        assertEquals(THUMBNAIL[0], jpeg[(int) header.getThumbnailOffset()]);
+    }
+
+    @Test
+    public void thumbnailIfdDoesNotOverrideOrientation() throws Exception {
+        byte[] jpeg = buildJpeg(true, 6, 4000, 3000, THUMBNAIL.length, 3);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(jpeg));
+        assertNotNull(header);
+        assertEquals(6, header.getOrientation());
+        assertTrue(header.hasThumbnail());
+    }
+
+    @Test
+    public void rejectsThumbnailOutsideExif() throws Exception {
+        // 损坏的长度，解码缩略图时会申请将近2G的数组
+        byte[] jpeg = buildJpeg(false, 6, 4000, 3000, Integer.MAX_VALUE, 0);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(jpeg));
+        assertNotNull(header);
+        assertEquals(6, header.getOrientation());
+        assertFalse(header.hasThumbnail());
+        assertEquals(0, header.getThumbnailLength());
+    }
+
+    @Test
+    public void parseJpegWithoutExif() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        writeSof(out, 640, 480);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(header);
+        assertEquals(640, header.getWidth());
+        assertEquals(480, header.getHeight());
+        assertEquals(1, header.getOrientation());
+        assertFalse(header.hasThumbnail());
+    }
+
+    @Test
+    public void parsePng() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        writeInt(out, 13);
+        out.write(new byte[]{'I', 'H', 'D', 'R'});
+        writeInt(out, 1920);
+        writeInt(out, 1080);
+        out.write(new byte[5]);
+        ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.TYPE_PNG, header.getType());
+        assertEquals(1920, header.getWidth());
+        assertEquals(1080, header.getHeight());
+        assertEquals(1, header.getOrientation());
+    }
+
+    @Test
+    public void parseUnknownOrTruncated() throws Exception {
+        assertNull(ImageHeaderParser.parse(new ByteArrayInputStream(new byte[]{'G', 'I', 'F', '8'})));
+        byte[] jpeg = buildJpeg(true, 1, 100, 100);
+        // 在APP1段的中间截断
+        byte[] truncated = new byte[30];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        try {
+            ImageHeaderParser.parse(new ByteArrayInputStream(truncated));
+            fail();
+        } catch (IOException e) {
+            // 文件不完整
+        }
+    }
+
+    private static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9};
+
+    private static byte[] buildJpeg(boolean isLittleEndian, int orientation, int width, int height) throws IOException {
+        return buildJpeg(isLittleEndian, orientation, width, height, THUMBNAIL.length, 0);
+    }
+
+    /**
+     * 拼一个JPEG文件头：SOI + APP1(EXIF，IFD0中有方向，IFD1中有缩略图) + DQT + SOF0
+     *
+     * @param thumbnailLength      IFD1中记录的缩略图长度
+     * @param thumbnailOrientation IFD1中的方向，为0时没有
+     */
+    private static byte[] buildJpeg(boolean isLittleEndian, int orientation, int width, int height
+            , int thumbnailLength, int thumbnailOrientation) throws IOException {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        Writer writer = new Writer(tiff, isLittleEndian);
+        tiff.write(isLittleEndian ? new byte[]{'I', 'I'} : new byte[]{'M', 'M'});
+        writer.writeShort(42);
+        writer.writeInt(8);                                         // IFD0的偏移
+        // IFD0: 1个entry
+        writer.writeShort(1);
+        writer.writeShort(0x0112);
+        writer.writeShort(3);
+        writer.writeInt(1);
+        writer.writeShort(orientation);
+        writer.writeShort(0);
+        int ifd1Offset = 8 + 2 + 12 + 4;
+        writer.writeInt(ifd1Offset);
+        // IFD1: 2个或3个entry
+        int entryCount = thumbnailOrientation > 0 ? 3 : 2;
+        int thumbnailOffset = ifd1Offset + 2 + 12 * entryCount + 4;
+        writer.writeShort(entryCount);
+        if (thumbnailOrientation > 0) {
+            writer.writeShort(0x0112);
+            writer.writeShort(3);
+            writer.writeInt(1);
+            writer.writeShort(thumbnailOrientation);
+            writer.writeShort(0);
+        }
+        writer.writeShort(0x0201);
+        writer.writeShort(4);
+        writer.writeInt(1);
+        writer.writeInt(thumbnailOffset);
+        writer.writeShort(0x0202);
+        writer.writeShort(4);
+        writer.writeInt(1);
+        writer.writeInt(thumbnailLength);
+        writer.writeInt(0);
+        tiff.write(THUMBNAIL);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        byte[] tiffBytes = tiff.toByteArray();
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xE1});
+        writeShort(out, 2 + 6 + tiffBytes.length);
+        out.write(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        out.write(tiffBytes);
+        // 一个无关的DQT段，需要被跳过
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xDB});
+        writeShort(out, 2 + 65);
+        out.write(new byte[65]);
+        writeSof(out, width, height);
+        return out.toByteArray();
+    }
+
+    private static void writeSof(ByteArrayOutputStream out, int width, int height) throws IOException {
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xC0});
+        writeShort(out, 17);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(new byte[10]);
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xDA});
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8 & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value & 0xFFFF);
+    }
+
+    private static class Writer {
+        private final ByteArrayOutputStream mOut;
+        private final boolean mIsLittleEndian;
+
+        Writer(ByteArrayOutputStream out, boolean isLittleEndian) {
+            mOut = out;
+            mIsLittleEndian = isLittleEndian;
+        }
+
+        void writeShort(int value) {
+            if (mIsLittleEndian) {
+                mOut.write(value & 0xFF);
+                mOut.write(value >> 8 & 0xFF);
+            } else {
+                ImageHeaderParserTest.writeShort(mOut, value);
+            }
+        }
+
+        void writeInt(int value) {
+            if (mIsLittleEndian) {
+                writeShort(value & 0xFFFF);
+                writeShort(value >>> 16);
+            } else {
+                ImageHeaderParserTest.writeInt(mOut, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.gsy.facerecognition.utils;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 像素内存预算的本地单元测试，预算为4MB，即一张1000x1000的ARGB_8888
+ */
+public class PixelMemoryGovernorTest {
+    private static final long BUDGET = 4000000;
+    private static final long WAIT_NANOS = 20 * 1000000L;
+
+    private final PixelMemoryGovernor mGovernor = new PixelMemoryGovernor(BUDGET, WAIT_NANOS);
+
+    @Test
+    public void byteCountRoundsUpLikeBitmapFactory() {
+        assertEquals(1000L * 1000 * 4, PixelMemoryGovernor.byteCountOf(1000, 1000, 1, 4));
+        assertEquals(334L * 334 * 2, PixelMemoryGovernor.byteCountOf(1001, 1001, 3, 2));
+    }
+
+    @Test
+    public void reserveAndRelease() throws Exception {
+        PixelMemoryGovernor.Grant first = mGovernor.acquire(1000, 500, 1, 4, PixelMemoryGovernor.DEGRADE_NONE);
+        PixelMemoryGovernor.Grant second = mGovernor.acquire(1000, 500, 1, 4, PixelMemoryGovernor.DEGRADE_NONE);
+        assertFalse(first.isDegraded());
+        assertEquals(BUDGET, mGovernor.getReserved());
+        mGovernor.release(first);
+        mGovernor.release(second);
+        assertEquals(0, mGovernor.getReserved());
+        assertEquals(0, mGovernor.getWaitCount());
+        // 没有预留时比预算还大的解码也可以开始
+        PixelMemoryGovernor.Grant huge = mGovernor.acquire(4000, 3000, 1, 4, PixelMemoryGovernor.DEGRADE_NONE);
+        assertEquals(48000000, huge.getBytes());
+        mGovernor.release(huge);
+    }
+
+    @Test
+    public void degradesConfigThenSampleSizeAfterWaiting() throws Exception {
+        PixelMemoryGovernor.Grant held = mGovernor.acquire(1000, 750, 1, 4, PixelMemoryGovernor.DEGRADE_NONE);
+        // 剩下1MB：565需要2MB放不下，再缩小一半为0.5MB
+        PixelMemoryGovernor.Grant grant = mGovernor.acquire(1000, 1000, 1, 4
+                , PixelMemoryGovernor.DEGRADE_CONFIG | PixelMemoryGovernor.DEGRADE_SAMPLE_SIZE);
+        assertTrue(grant.isDegraded());
+        assertEquals(2, grant.getBytesPerPixel());
+        assertEquals(2, grant.getSampleSize());
+        assertEquals(500000, grant.getBytes());
+        // 只允许缩小时保持格式
+        PixelMemoryGovernor.Grant sampled = mGovernor.acquire(1000, 1000, 1, 4
+                , PixelMemoryGovernor.DEGRADE_SAMPLE_SIZE);
+        assertEquals(4, sampled.getBytesPerPixel());
+        assertEquals(4, sampled.getSampleSize());
+        assertEquals(2, mGovernor.getDegradeCount());
+        mGovernor.release(held);
+        mGovernor.release(grant);
+        mGovernor.release(sampled);
+        assertEquals(0, mGovernor.getReserved());
+        assertEquals(3000000 + 500000 + 250000, mGovernor.getPeakReserved());
+    }
+
+    @Test
+    public void waitsForReleaseWhenDegradeIsNotAllowed() throws Exception {
+        final PixelMemoryGovernor.Grant held = mGovernor.acquire(1000, 1000, 1, 4
+                , PixelMemoryGovernor.DEGRADE_NONE);
+        final AtomicReference<PixelMemoryGovernor.Grant> result = new AtomicReference<PixelMemoryGovernor.Grant>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(mGovernor.acquire(256, 256, 1, 4, PixelMemoryGovernor.DEGRADE_NONE));
+                } catch (InterruptedException e) {
+                    // 测试失败
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(WAIT_NANOS * 3 / 1000000);
+        assertNull(result.get());
+        mGovernor.release(held);
+        thread.join(5000);
+        assertNotNull(result.get());
+        assertFalse(result.get().isDegraded());
+        assertEquals(1, mGovernor.getWaitCount());
+    }
+
+    @Test
+    public void trimMemoryShrinksBudget() {
+        mGovernor.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(BUDGET, mGovernor.getBudget());
+        mGovernor.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(BUDGET / 2, mGovernor.getBudget());
+        mGovernor.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(BUDGET / 4, mGovernor.getBudget());
+        // 之后较轻的等级不会放大预算
+        mGovernor.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(BUDGET / 4, mGovernor.getBudget());
+        mGovernor.restoreBudget();
+        assertEquals(BUDGET, mGovernor.getBudget());
+    }
+}
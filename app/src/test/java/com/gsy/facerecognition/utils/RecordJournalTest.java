@@ -0,0 +1,126 @@
+package com.gsy.facerecognition.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * RecordJournal的本地单元测试
+ */
+public class RecordJournalTest {
+    private static final int MAGIC = 0x54455354;
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("record_journal", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdirs());
+        mFile = new File(mDir, "test.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void appendAndLoad() throws Exception {
+        RecordJournal journal = open();
+        assertTrue(journal.append(journal.frame(new byte[]{1})));
+        assertTrue(journal.append(journal.frame(new byte[]{2, 3})));
+        assertEquals(2 * RecordJournal.RECORD_OVERHEAD + 3, journal.getLength());
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        RecordJournal reopened = load(records);
+        assertEquals(2, records.size());
+        assertArrayEquals(new byte[]{2, 3}, records.get(1));
+        assertEquals(journal.getLength(), reopened.getLength());
+    }
+
+    @Test
+    public void tornTailIsTruncatedAndLaterAppendsSurvive() throws Exception {
+        RecordJournal journal = open();
+        assertTrue(journal.append(journal.frame(new byte[]{1})));
+        long validLength = mFile.length();
+        // 模拟写记录时进程被杀
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(validLength);
+        file.write(journal.frame(new byte[]{2, 2, 2}), 0, 6);
+        file.close();
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        RecordJournal reopened = load(records);
+        assertEquals(1, records.size());
+        assertEquals(validLength, mFile.length());
+        assertTrue(reopened.append(reopened.frame(new byte[]{3})));
+
+        records.clear();
+        load(records);
+        assertEquals(2, records.size());
+        assertArrayEquals(new byte[]{3}, records.get(1));
+    }
+
+    @Test
+    public void crcMismatchStopsLoading() throws Exception {
+        RecordJournal journal = open();
+        assertTrue(journal.append(journal.frame(new byte[]{1})));
+        assertTrue(journal.append(journal.frame(new byte[]{2})));
+        // 改掉第二条记录的内容
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(RecordJournal.RECORD_OVERHEAD + 1 + 8);
+        file.write(9);
+        file.close();
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        load(records);
+        assertEquals(1, records.size());
+        assertEquals(RecordJournal.RECORD_OVERHEAD + 1, mFile.length());
+    }
+
+    @Test
+    public void rewriteReplacesRecords() throws Exception {
+        RecordJournal journal = open();
+        assertTrue(journal.append(journal.frame(new byte[]{1})));
+        assertTrue(journal.append(journal.frame(new byte[]{2})));
+        assertTrue(journal.rewrite(Arrays.asList(journal.frame(new byte[]{5, 6}))));
+        assertEquals(RecordJournal.RECORD_OVERHEAD + 2, journal.getLength());
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        load(records);
+        assertEquals(1, records.size());
+        assertArrayEquals(new byte[]{5, 6}, records.get(0));
+        assertFalse(new File(mDir, "test.journal.tmp").exists());
+    }
+
+    private RecordJournal open() {
+        return new RecordJournal(mFile, new File(mDir, "test.journal.tmp"), MAGIC);
+    }
+
+    private RecordJournal load(final List<byte[]> records) {
+        RecordJournal journal = open();
+        journal.load(new RecordJournal.RecordReader() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                records.add(payload);
+            }
+        });
+        return journal;
+    }
+}
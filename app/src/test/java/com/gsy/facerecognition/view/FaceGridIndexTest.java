@@ -0,0 +1,102 @@
+package com.gsy.facerecognition.view;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸框网格索引的本地单元测试，和逐个检查所有脸的结果比较
+ */
+public class FaceGridIndexTest {
+    private static final int VIEW_WIDTH = 1000;
+    private static final int VIEW_HEIGHT = 800;
+
+    @Test
+    public void queryEdgesMatchesLinearCheck() {
+        Random random = new Random(3);
+        int imageWidth = 4000, imageHeight = 3000;
+        FaceInfo[] faces = new FaceInfo[600];
+        for (int i = 0; i < faces.length; i++) {
+            faces[i] = i % 97 == 0 ? null : new FaceInfo(random.nextFloat() * imageWidth
+                    , random.nextFloat() * imageHeight, 5 + random.nextFloat() * 60, 1);
+        }
+        float adjustScale = 0.5f;
+        FaceGridIndex index = new FaceGridIndex(faces, adjustScale, FaceOverlayGeometry.FACE_VERTICAL);
+        int[] result = new int[index.size()];
+        boolean[] needDraws = new boolean[faces.length];
+        float[] rect = new float[FaceOverlayGeometry.RECT_SIZE];
+        float[] viewport = new float[FaceOverlayGeometry.RECT_SIZE];
+        float[] values = new float[9];
+        for (int round = 0; round < 200; round++) {
+            float scale = 0.2f + random.nextFloat() * 3;
+            values[FaceOverlayGeometry.MSCALE_X] = scale;
+            values[FaceOverlayGeometry.MSCALE_Y] = scale;
+            values[FaceOverlayGeometry.MTRANS_X] = -random.nextFloat() * imageWidth * adjustScale * scale + 300;
+            values[FaceOverlayGeometry.MTRANS_Y] = -random.nextFloat() * imageHeight * adjustScale * scale + 300;
+            values[8] = 1;
+            FaceOverlayGeometry.checkFaces(faces, faces.length, adjustScale, values, imageWidth / 2
+                    , imageHeight / 2, VIEW_WIDTH, VIEW_HEIGHT, rect, needDraws);
+            FaceOverlayGeometry.viewportInImage(values, VIEW_WIDTH, VIEW_HEIGHT, viewport);
+            int count = index.queryEdges(viewport[0], viewport[1], viewport[2], viewport[3], result);
+
+            // 逐个检查：超出显示范围，并且还能看到一部分
+            int[] expected = new int[faces.length];
+            int expectedCount = 0;
+            int faceIndex = 0;
+            for (int i = 0; i < faces.length; i++) {
+                if (faces[i] == null) continue;
+                if (needDraws[i] && isVisible(faces[i], adjustScale, values)) {
+                    expected[expectedCount++] = faceIndex;
+                }
+                faceIndex++;
+            }
+            int[] actual = Arrays.copyOf(result, count);
+            Arrays.sort(actual);
+            assertArrayEquals("round " + round, Arrays.copyOf(expected, expectedCount), actual);
+        }
+    }
+
+    private static boolean isVisible(FaceInfo face, float adjustScale, float[] values) {
+        float distance = face.eyesDistance() * adjustScale;
+        float[] box = {face.getMidX() * adjustScale - distance
+                , face.getMidY() * adjustScale - FaceOverlayGeometry.FACE_VERTICAL * distance
+                , face.getMidX() * adjustScale + distance
+                , face.getMidY() * adjustScale + FaceOverlayGeometry.FACE_VERTICAL * distance};
+        FaceOverlayGeometry.mapRect(values, box);
+        return box[0] <= VIEW_WIDTH && box[2] >= 0 && box[1] <= VIEW_HEIGHT && box[3] >= 0;
+    }
+
+    @Test
+    public void viewportInImageInvertsMatrix() {
+        float[] values = {2, 0, -100, 0, 2, 50, 0, 0, 1};
+        float[] viewport = new float[FaceOverlayGeometry.RECT_SIZE];
+        FaceOverlayGeometry.viewportInImage(values, VIEW_WIDTH, VIEW_HEIGHT, viewport);
+        assertArrayEquals(new float[]{50, -25, 550, 375}, viewport, 1e-4f);
+    }
+
+    @Test
+    public void copyLinesOutlinesBoxes() {
+        FaceInfo[] faces = {new FaceInfo(100, 200, 10, 1), null, new FaceInfo(300, 400, 20, 1)};
+        FaceGridIndex index = new FaceGridIndex(faces, 2f, FaceOverlayGeometry.FACE_VERTICAL);
+        float[] lines = new float[2 * FaceGridIndex.LINE_FLOATS_PER_FACE];
+        assertEquals(FaceGridIndex.LINE_FLOATS_PER_FACE, index.copyLines(new int[]{1}, 1, lines));
+        // 第二张非null的脸，显示图中为(560, 720)到(640, 880)，四条边首尾相接
+        assertArrayEquals(new float[]{560, 720, 640, 720, 640, 720, 640, 880, 640, 880, 560, 880, 560, 880, 560, 720}
+                , Arrays.copyOf(lines, FaceGridIndex.LINE_FLOATS_PER_FACE), 1e-4f);
+        assertEquals(2 * FaceGridIndex.LINE_FLOATS_PER_FACE, index.copyLines(new int[]{1, 0}, 2, lines));
+        assertEquals(180, lines[FaceGridIndex.LINE_FLOATS_PER_FACE], 1e-4f);
+        assertEquals(360, lines[FaceGridIndex.LINE_FLOATS_PER_FACE + 1], 1e-4f);
+    }
+
+    @Test
+    public void emptyIndex() {
+        FaceGridIndex index = new FaceGridIndex(new FaceInfo[]{null}, 1f, FaceOverlayGeometry.FACE_VERTICAL);
+        assertEquals(0, index.size());
+        assertEquals(0, index.queryEdges(0, 0, 100, 100, new int[0]));
+    }
+}
@@ -0,0 +1,69 @@
+package com.gsy.facerecognition.view;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * MyImageView人脸框几何计算的本地单元测试
+ */
+public class FaceOverlayGeometryTest {
+    private static final float DELTA = 1e-4f;
+
+    private static float[] scaleTranslate(float scale, float tx, float ty) {
+        float[] values = new float[9];
+        values[FaceOverlayGeometry.MSCALE_X] = scale;
+        values[FaceOverlayGeometry.MSCALE_Y] = scale;
+        values[FaceOverlayGeometry.MTRANS_X] = tx;
+        values[FaceOverlayGeometry.MTRANS_Y] = ty;
+        values[8] = 1;
+        return values;
+    }
+
+    @Test
+    public void mapRectScaleAndTranslate() {
+        float[] rect = {10, 20, 30, 40};
+        FaceOverlayGeometry.mapRect(scaleTranslate(2, 5, -5), rect);
+        assertArrayEquals(new float[]{25, 35, 65, 75}, rect, DELTA);
+    }
+
+    @Test
+    public void mapRectRotationIsBoundingBox() {
+        // 旋转90度: x' = -y, y' = x
+        float[] values = {0, -1, 0, 1, 0, 0, 0, 0, 1};
+        float[] rect = {0, 0, 40, 20};
+        FaceOverlayGeometry.mapRect(values, rect);
+        assertArrayEquals(new float[]{-20, 0, 0, 40}, rect, DELTA);
+    }
+
+    @Test
+    public void checkFacesMarksFacesNearViewEdge() {
+        FaceInfo[] faces = {
+                new FaceInfo(500, 500, 50, 1),                      // view中间
+                new FaceInfo(30, 500, 50, 1),                       // 靠近左边
+                null,
+                new FaceInfo(500, 960, 50, 1)                       // 靠近下边
+        };
+        boolean[] needDraws = new boolean[faces.length];
+        float[] rect = new float[FaceOverlayGeometry.RECT_SIZE];
+        FaceOverlayGeometry.checkFaces(faces, faces.length, 1f, scaleTranslate(1, 0, 0), 1000, 1000, 1000, 1000
+                , rect, needDraws);
+        assertFalse(needDraws[0]);
+        assertTrue(needDraws[1]);
+        assertFalse(needDraws[2]);
+        assertTrue(needDraws[3]);
+
+        // 以view中心放大两倍后中间的脸仍然完整显示
+        FaceOverlayGeometry.checkFaces(faces, faces.length, 1f, scaleTranslate(2, -250, -250), 1000, 1000, 1000
+                , 1000, rect, needDraws);
+        assertFalse(needDraws[0]);
+        float[] rects = new float[faces.length * FaceOverlayGeometry.RECT_SIZE];
+        needDraws[0] = true;
+        assertEquals(3, FaceOverlayGeometry.computeFaceRects(faces, faces.length, needDraws, 0.5f, rects));
+        assertArrayEquals(new float[]{225, 200, 275, 300}, Arrays.copyOf(rects, 4), DELTA);
+    }
+}
@@ -0,0 +1,157 @@
+package com.gsy.facerecognition.view;
+
+import com.gsy.facerecognition.AllocationCounter;
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 拖动、缩放、回弹计算的本地单元测试，2000x1000的图片显示在1000x1000的view中
+ */
+public class ZoomPanControllerTest {
+    private static final float DELTA = 1e-3f;
+
+    private ZoomPanController mController;
+
+    @Before
+    public void setUp() {
+        mController = new ZoomPanController();
+        mController.setImage(2000, 1000, 1000, 1000);
+    }
+
+    @Test
+    public void centerCrop() {
+        assertArrayEquals(new float[]{-500, 0, 1500, 1000}, mController.getBounds(), DELTA);
+        assertEquals(1f, mController.getValues()[FaceOverlayGeometry.MSCALE_X], DELTA);
+        assertEquals(-500f, mController.getValues()[FaceOverlayGeometry.MTRANS_X], DELTA);
+    }
+
+    @Test
+    public void dragInsideBoundsSettles() {
+        mController.onDown(100, 100);
+        assertTrue(mController.onMove(200, 150, 0, 0));
+        // 竖直方向没有空间，也允许拖动，松手时回弹
+        assertArrayEquals(new float[]{-400, 50, 1600, 1050}, mController.getBounds(), DELTA);
+        assertEquals(ZoomPanController.UP_BOUNCE, mController.onUp());
+        mController.applyBounce(0.5f);
+        assertEquals(25, mController.getBounds()[1], DELTA);
+        mController.applyBounce(1f);
+        assertArrayEquals(new float[]{-400, 0, 1600, 1000}, mController.getBounds(), DELTA);
+
+        mController.onDown(0, 0);
+        mController.onMove(-100, 0, 0, 0);
+        assertEquals(ZoomPanController.UP_SETTLED, mController.onUp());
+        assertArrayEquals(new float[]{-500, 0, 1500, 1000}, mController.getBounds(), DELTA);
+    }
+
+    @Test
+    public void dragPastEdgeBouncesBack() {
+        mController.onDown(0, 0);
+        mController.onMove(700, 0, 0, 0);
+        assertEquals(200, mController.getBounds()[0], DELTA);
+        assertEquals(ZoomPanController.UP_BOUNCE, mController.onUp());
+        mController.applyBounce(1f);
+        assertEquals(0, mController.getBounds()[0], DELTA);
+        assertEquals(2000, mController.getBounds()[2], DELTA);
+    }
+
+    @Test
+    public void rescaleImageKeepsPositionDuringGesture() {
+        mController.onDown(400, 500);
+        mController.onPointerDown(400, 500, 600, 500);
+        mController.onMove(300, 500, 700, 500);
+        float[] before = mController.getBounds().clone();
+        // 手势中途把2000x1000的预览图换成4000x2000的显示图
+        mController.rescaleImage(4000, 2000);
+        assertArrayEquals(before, mController.getBounds(), DELTA);
+        assertEquals(1f, mController.getValues()[FaceOverlayGeometry.MSCALE_X], DELTA);
+        // 继续缩放，结果和没有替换时相同
+        mController.onMove(200, 500, 800, 500);
+        assertArrayEquals(new float[]{-2500, -1000, 3500, 2000}, mController.getBounds(), DELTA);
+        assertEquals(ZoomPanController.UP_SETTLED, mController.onUp());
+        assertEquals(ZoomPanController.MAX_SCALE * 1000, mController.getBounds()[3] - mController.getBounds()[1]
+                , DELTA);
+    }
+
+    @Test
+    public void pinchScalesAroundMidPointAndClampsToMaxScale() {
+        mController.onDown(400, 500);
+        mController.onPointerDown(400, 500, 600, 500);
+        mController.onMove(300, 500, 700, 500);
+        assertArrayEquals(new float[]{-1500, -500, 2500, 1500}, mController.getBounds(), DELTA);
+
+        // 放大到view高度的4倍，松手时回到MAX_SCALE倍
+        mController.onMove(100, 500, 900, 500);
+        assertEquals(4000, mController.getBounds()[3] - mController.getBounds()[1], DELTA);
+        assertEquals(ZoomPanController.UP_SETTLED, mController.onUp());
+        float[] bounds = mController.getBounds();
+        assertEquals(ZoomPanController.MAX_SCALE * 1000, bounds[3] - bounds[1], DELTA);
+        assertTrue(bounds[0] <= 0 && bounds[2] >= 1000 && bounds[1] <= 0 && bounds[3] >= 1000);
+    }
+
+    @Test
+    public void pinchCannotShrinkBelowFitCenter() {
+        mController.onPointerDown(400, 500, 600, 500);
+        mController.onMove(475, 500, 525, 500);
+        assertEquals(ZoomPanController.UP_SETTLED, mController.onUp());
+        // 最小为FitCenter，整张图片居中显示
+        assertArrayEquals(new float[]{0, 250, 1000, 750}, mController.getBounds(), DELTA);
+    }
+
+    @Test
+    public void moveEventsDoNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        int faceCount = 50;
+        FaceInfo[] faces = new FaceInfo[faceCount];
+        Random random = new Random(1);
+        for (int i = 0; i < faceCount; i++) {
+            faces[i] = new FaceInfo(random.nextFloat() * 2000, random.nextFloat() * 1000, 20 + random.nextFloat() * 60
+                    , 1);
+        }
+        FaceGridIndex index = new FaceGridIndex(faces, 1f, FaceOverlayGeometry.FACE_VERTICAL);
+        int[] drawFaces = new int[faceCount];
+        float[] viewport = new float[FaceOverlayGeometry.RECT_SIZE];
+        // 预热，避免把解释执行和类加载的分配算进去
+        runGestures(20000, index, drawFaces, viewport);
+        counter.start();
+        int events = runGestures(100000, index, drawFaces, viewport);
+        counter.assertNoAllocation(events + " events");
+    }
+
+    /**
+     * 和MyImageView.onTouchEvent相同的调用：拖动、双指缩放、松手、回弹，每次移动后查询需要绘制的人脸
+     *
+     * @return 事件数量
+     */
+    private int runGestures(int moveCount, FaceGridIndex index, int[] drawFaces, float[] viewport) {
+        int events = 0;
+        for (int i = 0; i < moveCount; i++) {
+            int phase = i % 20;
+            if (phase == 0) {
+                mController.onDown(500, 500);
+                events++;
+            } else if (phase == 10) {
+                mController.onUp();
+                mController.applyBounce(1f);
+                mController.onPointerDown(400, 500, 600, 500);
+                events += 2;
+            }
+            float offset = phase * 7;
+            mController.onMove(400 - offset, 500, 600 + offset, 500);
+            FaceOverlayGeometry.viewportInImage(mController.getValues(), mController.getViewWidth()
+                    , mController.getViewHeight(), viewport);
+            index.queryEdges(viewport[0], viewport[1], viewport[2], viewport[3], drawFaces);
+            events++;
+            if (phase == 19) {
+                mController.onUp();
+                events++;
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,83 @@
+package com.gsy.facerecognition.view.tile;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分块金字塔的本地单元测试
+ */
+public class TileGridTest {
+
+    @Test
+    public void levelCount() {
+        assertEquals(0, TileGrid.levelCountFor(1f));
+        assertEquals(1, TileGrid.levelCountFor(1.5f));
+        assertEquals(1, TileGrid.levelCountFor(2f));
+        assertEquals(3, TileGrid.levelCountFor(4.2f));
+    }
+
+    @Test
+    public void levelForScale() {
+        // 显示图为原图的1/4.2，有inSampleSize为1、2、4三层
+        TileGrid grid = new TileGrid(4200, 3000, 256, TileGrid.levelCountFor(4.2f));
+        assertEquals(0, grid.levelFor(0.5f));
+        assertEquals(0, grid.levelFor(1.9f));
+        assertEquals(1, grid.levelFor(2f));
+        assertEquals(2, grid.levelFor(4.1f));
+        // 比显示图更模糊，直接使用显示图
+        assertEquals(-1, grid.levelFor(8f));
+    }
+
+    @Test
+    public void indicesCoverEveryTileOnce() {
+        TileGrid grid = new TileGrid(1000, 600, 256, 3);
+        // 第0层4x3，第1层2x2，第2层1x1
+        assertEquals(12 + 4 + 1, grid.getTileCount());
+        int[] rect = new int[4];
+        long area = 0;
+        for (int index = 0; index < grid.getTileCount(); index++) {
+            int level = grid.getLevel(index);
+            grid.getTileRect(index, rect);
+            assertTrue(rect[2] <= 1000 && rect[3] <= 600);
+            assertEquals(index, grid.getTileIndex(level, rect[0] / (256 << level), rect[1] / (256 << level)));
+            area += (long) (rect[2] - rect[0]) * (rect[3] - rect[1]);
+        }
+        // 每层都正好覆盖整张图
+        assertEquals(3L * 1000 * 600, area);
+        assertEquals(2, grid.getSampleSize(grid.getTileIndex(1, 1, 1)));
+        grid.getTileRect(grid.getTileIndex(1, 1, 1), rect);
+        assertArrayEquals(new int[]{512, 512, 1000, 600}, rect);
+    }
+
+    @Test
+    public void queryTilesClipsToImage() {
+        TileGrid grid = new TileGrid(1000, 600, 256, 2);
+        int[] out = new int[grid.getTileCount()];
+        int count = grid.queryTiles(0, -100, 200, 300, 512, out, 0);
+        // 右边和下边正好在边界上时不包含下一块
+        assertArrayEquals(new int[]{grid.getTileIndex(0, 0, 0), grid.getTileIndex(0, 1, 0)
+                , grid.getTileIndex(0, 0, 1), grid.getTileIndex(0, 1, 1)}, Arrays.copyOf(out, count));
+        assertEquals(0, grid.queryTiles(0, 1000, 0, 1200, 600, out, 0));
+        assertEquals(4, grid.queryTiles(1, 0, 0, 2000, 2000, out, 0));
+    }
+
+    @Test
+    public void prefetchFollowsPanDirection() {
+        TileGrid grid = new TileGrid(2048, 2048, 256, 1);
+        int[] out = new int[grid.getTileCount()];
+        // 可见范围为第2、3列，向右移动时预取第4列，半个可见范围宽
+        int count = grid.queryPrefetch(0, 512, 512, 1024, 768, 10, 0, out);
+        assertArrayEquals(new int[]{grid.getTileIndex(0, 4, 2)}, Arrays.copyOf(out, count));
+        count = grid.queryPrefetch(0, 512, 512, 1024, 768, -10, 0, out);
+        assertArrayEquals(new int[]{grid.getTileIndex(0, 1, 2)}, Arrays.copyOf(out, count));
+        count = grid.queryPrefetch(0, 512, 512, 1024, 768, 0, 10, out);
+        assertArrayEquals(new int[]{grid.getTileIndex(0, 2, 3), grid.getTileIndex(0, 3, 3)}
+                , Arrays.copyOf(out, count));
+        assertEquals(0, grid.queryPrefetch(0, 512, 512, 1024, 768, 0, 0, out));
+        // 已经到了图片的边缘，没有可以预取的块
+        assertEquals(0, grid.queryPrefetch(0, 1536, 0, 2048, 256, 10, 0, out));
+    }
+}
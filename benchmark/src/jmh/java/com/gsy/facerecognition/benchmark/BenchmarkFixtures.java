@@ -0,0 +1,44 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+
+import java.util.Random;
+
+/**
+ * 基准测试共用的数据，随机数使用固定的种子，每次运行的输入相同
+ */
+final class BenchmarkFixtures {
+    static final long SEED = 20170603L;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @param size "宽x高"
+     * @return {宽, 高}
+     */
+    static int[] parseSize(String size) {
+        int index = size.indexOf('x');
+        return new int[]{Integer.parseInt(size.substring(0, index)), Integer.parseInt(size.substring(index + 1))};
+    }
+
+    /**
+     * 在图中随机分布的脸，大约1/4在边缘附近，会被判断为不完整或者超出显示范围
+     *
+     * @param count  人脸数量
+     * @param width  图的宽
+     * @param height 图的高
+     * @return 人脸
+     */
+    static FaceInfo[] randomFaces(int count, int width, int height) {
+        Random random = new Random(SEED);
+        FaceInfo[] faces = new FaceInfo[count];
+        float maxEyesDistance = Math.min(width, height) / 8f;
+        for (int i = 0; i < count; i++) {
+            float eyesDistance = maxEyesDistance * (0.2f + 0.8f * random.nextFloat());
+            faces[i] = new FaceInfo(random.nextFloat() * width, random.nextFloat() * height, eyesDistance
+                    , 0.3f + 0.7f * random.nextFloat());
+        }
+        return faces;
+    }
+}
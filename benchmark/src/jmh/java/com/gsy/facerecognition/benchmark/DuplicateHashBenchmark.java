@@ -0,0 +1,68 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.index.MultiIndexHash;
+import com.gsy.facerecognition.index.PerceptualHash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 查重：从小解码图计算dHash，以及在图库的哈希中按汉明距离查找，多索引哈希和逐个比较
+ */
+@State(Scope.Thread)
+public class DuplicateHashBenchmark {
+    private static final int QUERY_COUNT = 64;
+
+    @Param({"10000", "100000"})
+    public int imageCount;
+
+    @Param({"4", "8"})
+    public int maxDistance;
+
+    private MultiIndexHash<Integer> mIndex;
+    private long[] mQueries;
+    private int mNextQuery;
+    private byte[] mLuma;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(BenchmarkFixtures.SEED);
+        mIndex = new MultiIndexHash<Integer>();
+        long[] hashes = new long[imageCount];
+        for (int i = 0; i < imageCount; i++) {
+            hashes[i] = random.nextLong();
+            mIndex.add(hashes[i], i);
+        }
+        // 一半的查询是已有图片的副本
+        mQueries = new long[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            long hash = i % 2 == 0 ? hashes[random.nextInt(imageCount)] : random.nextLong();
+            mQueries[i] = hash ^ (1L << random.nextInt(PerceptualHash.BITS));
+        }
+        // 和BitmapImageHasher的解码图大小相同
+        mLuma = new byte[128 * 96];
+        random.nextBytes(mLuma);
+    }
+
+    @Benchmark
+    public List<MultiIndexHash.Item<Integer>> search() {
+        return mIndex.search(mQueries[mNextQuery++ % QUERY_COUNT], maxDistance);
+    }
+
+    @Benchmark
+    public List<MultiIndexHash.Item<Integer>> searchLinear() {
+        return mIndex.searchLinear(mQueries[mNextQuery++ % QUERY_COUNT], maxDistance);
+    }
+
+    @Benchmark
+    public long dHash() {
+        return PerceptualHash.dHash(mLuma, 128, 96, 6);
+    }
+}
@@ -0,0 +1,66 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.utils.ExifOrientation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * EXIF方向的仿射变换：构造变换、求逆，以及把识别结果从图片数据的坐标映射到摆正后的坐标
+ */
+@State(Scope.Thread)
+public class ExifOrientationBenchmark {
+    @Param({"1", "3", "6", "7"})
+    public int orientation;
+
+    @Param({"1000x750", "4032x3024"})
+    public String imageSize;
+
+    @Param({"1", "10", "50"})
+    public int faceCount;
+
+    private int mWidth;
+    private int mHeight;
+    private final float[] mTransform = new float[ExifOrientation.TRANSFORM_SIZE];
+    private final float[] mInverse = new float[ExifOrientation.TRANSFORM_SIZE];
+    private final float[] mMatrixValues = new float[9];
+    private float[] mSourcePoints;
+    private float[] mPoints;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        mWidth = size[0];
+        mHeight = size[1];
+        FaceInfo[] faces = BenchmarkFixtures.randomFaces(faceCount, mWidth, mHeight);
+        mSourcePoints = new float[faceCount * 2];
+        for (int i = 0; i < faceCount; i++) {
+            mSourcePoints[i * 2] = faces[i].getMidX();
+            mSourcePoints[i * 2 + 1] = faces[i].getMidY();
+        }
+        mPoints = new float[faceCount * 2];
+        ExifOrientation.toUpright(orientation, mWidth, mHeight, mTransform);
+    }
+
+    @Benchmark
+    public float[] toUpright() {
+        return ExifOrientation.toUpright(orientation, mWidth, mHeight, mTransform);
+    }
+
+    @Benchmark
+    public float[] invertToMatrixValues() {
+        ExifOrientation.invert(mTransform, mInverse);
+        return ExifOrientation.toMatrixValues(mInverse, mMatrixValues);
+    }
+
+    @Benchmark
+    public float[] mapPoints() {
+        System.arraycopy(mSourcePoints, 0, mPoints, 0, mPoints.length);
+        ExifOrientation.mapPoints(mTransform, mPoints, faceCount);
+        return mPoints;
+    }
+}
@@ -0,0 +1,47 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.FaceFilter;
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.utils.ExifOrientation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 识别结果的后处理：过滤不完整的脸，映射到摆正后的坐标
+ */
+@State(Scope.Thread)
+public class FaceFilterBenchmark {
+    @Param({"1", "10", "50"})
+    public int faceCount;
+
+    @Param({"1000x750", "4032x3024"})
+    public String imageSize;
+
+    private int mWidth;
+    private int mHeight;
+    private FaceInfo[] mFaces;
+    private float[] mTransform;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        mWidth = size[0];
+        mHeight = size[1];
+        mFaces = BenchmarkFixtures.randomFaces(faceCount, mWidth, mHeight);
+        mTransform = ExifOrientation.toUpright(6, mWidth, mHeight, new float[ExifOrientation.TRANSFORM_SIZE]);
+    }
+
+    @Benchmark
+    public FaceInfo[] filterIncompleteFaces() {
+        return FaceFilter.filterIncompleteFaces(mFaces, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public FaceInfo[] mapFaces() {
+        return FaceFilter.mapFaces(mFaces, mTransform);
+    }
+}
@@ -0,0 +1,95 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.view.FaceGridIndex;
+import com.gsy.facerecognition.view.FaceOverlayGeometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * MyImageView每次手势移动和绘制时的几何计算：getMatrixRectF、checkFace和drawFace中的人脸框，
+ * 以及网格索引只查询view边界附近的脸，和逐个检查所有脸比较
+ */
+@State(Scope.Thread)
+public class FaceOverlayBenchmark {
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    @Param({"1", "10", "50", "500"})
+    public int faceCount;
+
+    @Param({"1000x750", "2000x1500"})
+    public String imageSize;
+
+    @Param({"1", "3"})
+    public float zoom;                                              // 相对于CenterCrop的放大倍数
+
+    private int mWidth;
+    private int mHeight;
+    private FaceInfo[] mFaces;
+    private boolean[] mNeedDraws;
+    private float[] mRects;
+    private final float[] mRect = new float[FaceOverlayGeometry.RECT_SIZE];
+    private final float[] mMatrixValues = new float[9];
+    private final float[] mViewport = new float[FaceOverlayGeometry.RECT_SIZE];
+    private FaceGridIndex mIndex;
+    private int[] mDrawFaces;
+    private float[] mDrawLines;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        mWidth = size[0];
+        mHeight = size[1];
+        mFaces = BenchmarkFixtures.randomFaces(faceCount, mWidth, mHeight);
+        mNeedDraws = new boolean[faceCount];
+        mRects = new float[faceCount * FaceOverlayGeometry.RECT_SIZE];
+        mIndex = new FaceGridIndex(mFaces, 1f, FaceOverlayGeometry.FACE_VERTICAL);
+        mDrawFaces = new int[faceCount];
+        mDrawLines = new float[faceCount * FaceGridIndex.LINE_FLOATS_PER_FACE];
+        // 和MyImageView.centerCropImage相同，再以view中心放大zoom倍
+        float scale = Math.max(VIEW_WIDTH * 1f / mWidth, VIEW_HEIGHT * 1f / mHeight) * zoom;
+        mMatrixValues[FaceOverlayGeometry.MSCALE_X] = scale;
+        mMatrixValues[FaceOverlayGeometry.MSCALE_Y] = scale;
+        mMatrixValues[FaceOverlayGeometry.MTRANS_X] = (VIEW_WIDTH - mWidth * scale) / 2;
+        mMatrixValues[FaceOverlayGeometry.MTRANS_Y] = (VIEW_HEIGHT - mHeight * scale) / 2;
+        mMatrixValues[8] = 1;
+        FaceOverlayGeometry.checkFaces(mFaces, faceCount, 1f, mMatrixValues, mWidth, mHeight, VIEW_WIDTH
+                , VIEW_HEIGHT, mRect, mNeedDraws);
+    }
+
+    @Benchmark
+    public float[] getMatrixRect() {
+        FaceOverlayGeometry.getMatrixRect(mMatrixValues, mWidth, mHeight, mRect);
+        return mRect;
+    }
+
+    @Benchmark
+    public boolean[] checkFace() {
+        FaceOverlayGeometry.checkFaces(mFaces, faceCount, 1f, mMatrixValues, mWidth, mHeight, VIEW_WIDTH
+                , VIEW_HEIGHT, mRect, mNeedDraws);
+        return mNeedDraws;
+    }
+
+    @Benchmark
+    public int drawFaceRects() {
+        return FaceOverlayGeometry.computeFaceRects(mFaces, faceCount, mNeedDraws, 1f, mRects);
+    }
+
+    @Benchmark
+    public int queryEdges() {
+        FaceOverlayGeometry.viewportInImage(mMatrixValues, VIEW_WIDTH, VIEW_HEIGHT, mViewport);
+        return mIndex.queryEdges(mViewport[0], mViewport[1], mViewport[2], mViewport[3], mDrawFaces);
+    }
+
+    @Benchmark
+    public int queryEdgesAndCopyLines() {
+        FaceOverlayGeometry.viewportInImage(mMatrixValues, VIEW_WIDTH, VIEW_HEIGHT, mViewport);
+        int count = mIndex.queryEdges(mViewport[0], mViewport[1], mViewport[2], mViewport[3], mDrawFaces);
+        return mIndex.copyLines(mDrawFaces, count, mDrawLines);
+    }
+}
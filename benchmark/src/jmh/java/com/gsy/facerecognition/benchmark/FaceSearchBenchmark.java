@@ -0,0 +1,113 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.FaceInfo;
+import com.gsy.facerecognition.recognize.HnswIndex;
+import com.gsy.facerecognition.recognize.LbpDescriptor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 查找同一个人：HNSW索引的近似查询和逐个比较所有脸，以及从图片计算一张脸的描述子。
+ * 索引文件保存在临时目录中，按参数命名，第一次运行时建立，之后的运行直接打开，和应用冷启动时一样
+ */
+@State(Scope.Thread)
+public class FaceSearchBenchmark {
+    private static final int PERSON_COUNT = 1000;
+    private static final int QUERY_COUNT = 64;
+
+    @Param({"10000", "100000"})
+    public int faceCount;
+
+    @Param({"64", "128"})
+    public int ef;
+
+    private HnswIndex mIndex;
+    private byte[][] mQueries;
+    private int mNextQuery;
+    private final long[] mLabels = new long[20];
+    private final int[] mDistances = new int[20];
+    private byte[] mLuma;
+    private FaceInfo mFace;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "face_search_" + faceCount + ".hnsw");
+        mIndex = new HnswIndex(file, LbpDescriptor.LENGTH);
+        byte[][] people = randomPeople();
+        Random random = new Random(BenchmarkFixtures.SEED + 1);
+        if (mIndex.size() != faceCount) {
+            mIndex.close();
+            file.delete();
+            new File(file.getPath() + HnswIndex.UPPER_SUFFIX).delete();
+            mIndex = new HnswIndex(file, LbpDescriptor.LENGTH);
+            for (int i = 0; i < faceCount; i++) {
+                mIndex.add(i, randomFace(people, random));
+            }
+            mIndex.flush();
+        }
+        mQueries = new byte[QUERY_COUNT][];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            mQueries[i] = randomFace(people, random);
+        }
+        mLuma = new byte[1000 * 750];
+        random.nextBytes(mLuma);
+        mFace = new FaceInfo(500, 375, 60, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mIndex.close();
+    }
+
+    @Benchmark
+    public int search() {
+        byte[] query = mQueries[mNextQuery++ % QUERY_COUNT];
+        return mIndex.search(query, mLabels.length, ef, mLabels, mDistances, null);
+    }
+
+    @Benchmark
+    public int bruteForce() {
+        byte[] query = mQueries[mNextQuery++ % QUERY_COUNT];
+        return mIndex.bruteForce(query, mLabels.length, mLabels, mDistances);
+    }
+
+    @Benchmark
+    public byte[] describe() {
+        return LbpDescriptor.describe(mLuma, 1000, 750, mFace);
+    }
+
+    /**
+     * 每个人一个随机的描述子，同一个人的脸在它附近
+     */
+    private static byte[][] randomPeople() {
+        Random random = new Random(BenchmarkFixtures.SEED);
+        byte[][] people = new byte[PERSON_COUNT][LbpDescriptor.LENGTH];
+        for (byte[] person : people) {
+            for (int i = 0; i < person.length; i++) {
+                // LBP直方图集中在少数几种模式上，大部分开平方后的值很小
+                person[i] = (byte) (random.nextInt(4) == 0 ? 40 + random.nextInt(180) : random.nextInt(30));
+            }
+        }
+        return people;
+    }
+
+    private static byte[] randomFace(byte[][] people, Random random) {
+        byte[] person = people[random.nextInt(people.length)];
+        byte[] face = new byte[person.length];
+        for (int i = 0; i < face.length; i++) {
+            int value = (person[i] & 0xFF) + (int) (random.nextGaussian() * 15);
+            face[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return face;
+    }
+}
@@ -0,0 +1,60 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.detect.engine.IntegralImage;
+import com.gsy.facerecognition.detect.engine.PixelFrame;
+import com.gsy.facerecognition.detect.engine.PixelFramePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 识别图交给引擎：每次在Java堆上分配亮度数组，和转换到对象池中的堆外亮度帧
+ */
+@State(Scope.Thread)
+public class PixelFrameBenchmark {
+    private static final int WIDTH = 1000;                          // EngineImageDetector的识别图大小
+    private static final int HEIGHT = 750;
+
+    private PixelFramePool mPool;
+    private PixelFrame mFrame;                                      // copyPixelsToBuffer得到的RGB_565
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPool = new PixelFramePool(64L * 1024 * 1024);
+        mFrame = mPool.acquire(WIDTH, HEIGHT, PixelFrame.FORMAT_RGB_565);
+        ByteBuffer buffer = mFrame.getBuffer();
+        Random random = new Random(BenchmarkFixtures.SEED);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) random.nextInt());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFrame.release();
+    }
+
+    @Benchmark
+    public IntegralImage heapArray() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        mFrame.readLuma(luma);
+        return IntegralImage.compute(luma, WIDTH, HEIGHT);
+    }
+
+    @Benchmark
+    public IntegralImage pooledFrame() {
+        PixelFrame luma = mFrame.toLuma(mPool);
+        try {
+            return IntegralImage.compute(luma.getBuffer(), WIDTH, HEIGHT);
+        } finally {
+            luma.release();
+        }
+    }
+}
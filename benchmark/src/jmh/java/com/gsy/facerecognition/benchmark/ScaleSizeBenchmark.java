@@ -0,0 +1,49 @@
+package com.gsy.facerecognition.benchmark;
+
+import com.gsy.facerecognition.utils.ScaleSizeUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 加载图片时缩小倍数的计算，对应BitmapUtils.computeScaleSize、computeInitScaleSize和computeSampleSize
+ */
+@State(Scope.Thread)
+public class ScaleSizeBenchmark {
+    @Param({"640x480", "1920x1080", "4032x3024", "8000x6000"})
+    public String imageSize;
+
+    @Param({"-1", "1000"})
+    public int minSide;
+
+    @Param({"-1", "1000000"})
+    public int maxPixels;
+
+    private int mWidth;
+    private int mHeight;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkFixtures.parseSize(imageSize);
+        mWidth = size[0];
+        mHeight = size[1];
+    }
+
+    @Benchmark
+    public int computeScaleSize() {
+        return ScaleSizeUtils.computeScaleSize(mWidth, mHeight, minSide, maxPixels);
+    }
+
+    @Benchmark
+    public int computeInitScaleSize() {
+        return ScaleSizeUtils.computeInitScaleSize(mWidth, mHeight, minSide, maxPixels);
+    }
+
+    @Benchmark
+    public int computeSampleSize() {
+        return ScaleSizeUtils.computeSampleSize(mWidth, mHeight, 1000, 1000);
+    }
+}